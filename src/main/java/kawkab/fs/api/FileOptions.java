@@ -2,19 +2,49 @@ package kawkab.fs.api;
 
 import java.io.File;
 
+/**
+ * The options of a new file. The options are set when the file is created, and they are ignored when an existing
+ * file is opened.
+ *
+ * The retention periods apply to the files of records. The age of a data block is taken from the timestamp of its last
+ * record, which is the first field of the record, in milliseconds since the epoch. A retention of zero days keeps the
+ * data forever.
+ */
 public final class FileOptions {
 	final int recordSize;
-	
+	final int localRetentionDays;
+	final int globalRetentionDays;
+
 	/*public enum FileType {
 		BINARY,
 		FIXED_LEN_RECORDS
 	}*/
-	
+
 	public FileOptions() { this(1); }
-	
-	public FileOptions(int recordSize){ this.recordSize = recordSize; }
-	
+
+	public FileOptions(int recordSize){ this(recordSize, 0, 0); }
+
+	/**
+	 * @param localRetentionDays Days after which the data blocks are removed from the local store of the primary node.
+	 *                           The blocks remain readable from the global store.
+	 * @param globalRetentionDays Days after which the data and its index are deleted from the system
+	 */
+	public FileOptions(int recordSize, int localRetentionDays, int globalRetentionDays) {
+		if (localRetentionDays < 0 || localRetentionDays > Short.MAX_VALUE ||
+				globalRetentionDays < 0 || globalRetentionDays > Short.MAX_VALUE)
+			throw new IllegalArgumentException(String.format("Invalid retention days: local=%d, global=%d",
+					localRetentionDays, globalRetentionDays));
+
+		this.recordSize = recordSize;
+		this.localRetentionDays = localRetentionDays;
+		this.globalRetentionDays = globalRetentionDays;
+	}
+
 	public static FileOptions defaults() { return new FileOptions(); }
-	
+
 	public int recordSize() { return recordSize; }
+
+	public int localRetentionDays() { return localRetentionDays; }
+
+	public int globalRetentionDays() { return globalRetentionDays; }
 }
@@ -0,0 +1,25 @@
+package kawkab.fs.api;
+
+public final class FileStat {
+	private final String filename;
+	private final boolean exists;
+	private final long size;
+	private final int recordSize;
+
+	public FileStat(String filename, boolean exists, long size, int recordSize) {
+		this.filename = filename;
+		this.exists = exists;
+		this.size = size;
+		this.recordSize = recordSize;
+	}
+
+	public static FileStat notExists(String filename) { return new FileStat(filename, false, 0, 0); }
+
+	public String filename() { return filename; }
+
+	public boolean exists() { return exists; }
+
+	public long size() { return size; }
+
+	public int recordSize() { return recordSize; }
+}
@@ -161,7 +161,7 @@ public final class CLI {
 		Cache.instance().resetStats();
 	}
 
-	private void pareseClientFlush() {
+	private void pareseClientFlush() throws KawkabException {
 		if (client == null) {
 			System.out.println("Client is not connected to any server. Connect the client using the command cc");
 			return;
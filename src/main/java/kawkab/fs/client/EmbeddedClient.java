@@ -0,0 +1,260 @@
+package kawkab.fs.client;
+
+import kawkab.fs.api.FileOptions;
+import kawkab.fs.api.FileStat;
+import kawkab.fs.api.Record;
+import kawkab.fs.core.FileHandle;
+import kawkab.fs.core.Filesystem;
+import kawkab.fs.core.exceptions.KawkabException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Client for the applications that run in the same JVM as the Kawkab node. It provides the same operations as KClient,
+ * but the operations are executed directly on the FileHandles without the RPC and the serialization.
+ *
+ * The filesystem must be bootstrapped before creating the client. Similar to KClient, an EmbeddedClient is not
+ * thread-safe. Each application thread should use its own client.
+ */
+public class EmbeddedClient {
+	private final Filesystem fs;
+	private final Map<String, FileHandle> handles;
+	private final ByteBuffer buffer;
+
+	private static final int BUFLEN_BYTES = 1024 * 1024; // Maximum size of a batch of records
+
+	public EmbeddedClient() throws KawkabException {
+		try {
+			fs = Filesystem.instance();
+		} catch (IOException e) {
+			throw new KawkabException(e);
+		}
+		handles = new HashMap<>();
+		buffer = ByteBuffer.allocate(BUFLEN_BYTES);
+	}
+
+	public void open(String fn, Filesystem.FileMode mode, int recSize) throws KawkabException {
+		if (handles.containsKey(fn)){
+			throw new KawkabException(String.format("File %s is already opened",fn));
+		}
+
+		try {
+			handles.put(fn, fs.open(fn, mode, new FileOptions(recSize)));
+		} catch (IOException | InterruptedException e) {
+			throw new KawkabException(e);
+		}
+	}
+
+	public int bulkOpen(String[] fnames, Filesystem.FileMode[] modes, int[] recSizes) throws KawkabException {
+		assert fnames.length == modes.length;
+		assert modes.length == recSizes.length;
+
+		for (String fn : fnames) {
+			if (handles.containsKey(fn)){
+				throw new KawkabException(String.format("File %s is already opened",fn));
+			}
+		}
+
+		FileOptions[] opts = new FileOptions[recSizes.length];
+		for (int i=0; i<recSizes.length; i++) {
+			opts[i] = new FileOptions(recSizes[i]);
+		}
+
+		FileHandle[] fhs;
+		try {
+			fhs = fs.bulkOpen(fnames, modes, opts);
+		} catch (IOException | InterruptedException e) {
+			throw new KawkabException(e);
+		}
+
+		for (int i=0; i<fnames.length; i++) {
+			handles.put(fnames[i], fhs[i]);
+		}
+
+		return fhs.length;
+	}
+
+	public List<String> list(String prefix, String startAfter, int maxEntries) throws KawkabException {
+		return fs.list(prefix, startAfter, maxEntries);
+	}
+
+	public List<FileStat> stat(String[] fnames) throws KawkabException {
+		try {
+			return Arrays.asList(fs.stat(fnames));
+		} catch (IOException | InterruptedException e) {
+			throw new KawkabException(e);
+		}
+	}
+
+	public long size(String fn) throws KawkabException {
+		return handle(fn).size();
+	}
+
+	public int recordSize(String fn) throws KawkabException {
+		return handle(fn).recordSize();
+	}
+
+	public int append(String fn, Record rec) throws KawkabException {
+		FileHandle fh = handle(fn);
+		try {
+			return fh.append(recordBuffer(rec, rec.size()), rec.size());
+		} catch (IOException | InterruptedException e) {
+			throw new KawkabException(e);
+		}
+	}
+
+	public int append(String fn, ByteBuffer srcBuf) throws KawkabException {
+		FileHandle fh = handle(fn);
+		try {
+			return fh.append(srcBuf, fh.recordSize());
+		} catch (IOException | InterruptedException e) {
+			throw new KawkabException(e);
+		}
+	}
+
+	/**
+	 * Appends the records of the file with a single append call on the FileHandle.
+	 */
+	public int appendBuffered(String fn, Record[] records, int recSize) throws KawkabException {
+		FileHandle fh = handle(fn);
+
+		if (records.length*recSize > BUFLEN_BYTES) {
+			throw new KawkabException(String.format("Source data cannot fit in buffer, numRecs=%d, recSize=%d, bufLen=%d",
+					records.length, recSize, BUFLEN_BYTES));
+		}
+
+		buffer.clear();
+		for (Record rec : records) {
+			buffer.put(recordBuffer(rec, recSize));
+		}
+		buffer.flip();
+
+		try {
+			return fh.append(buffer, recSize);
+		} catch (IOException | InterruptedException e) {
+			throw new KawkabException(e);
+		}
+	}
+
+	/**
+	 * Appends the records of multiple files. The consecutive records of the same file are appended with a single
+	 * append call on the FileHandle of the file.
+	 *
+	 * @return Number of records appended
+	 */
+	public int appendRecords(String[] fnames, Record[] records) throws KawkabException {
+		assert fnames.length == records.length;
+
+		Set<FileHandle> appended = new HashSet<>();
+		int i = 0;
+		try {
+			while (i < fnames.length) {
+				String fn = fnames[i];
+				FileHandle fh = handle(fn);
+				int recSize = records[i].size();
+
+				buffer.clear();
+				do {
+					buffer.put(recordBuffer(records[i], recSize));
+					i++;
+				} while (i < fnames.length && fnames[i].equals(fn) && buffer.remaining() >= recSize);
+				buffer.flip();
+
+				fh.append(buffer, recSize, false);
+				appended.add(fh);
+			}
+
+			for (FileHandle fh : appended) { // Waits once for the peers after all the appends
+				fh.awaitReplicated();
+			}
+		} catch (IOException | InterruptedException e) {
+			throw new KawkabException(e);
+		}
+
+		return fnames.length;
+	}
+
+	public Record recordNum(String fn, long recNum, Record recFactory, boolean loadFromPrimary) throws KawkabException {
+		FileHandle fh = handle(fn);
+		Record rec = recFactory.newRecord();
+		try {
+			if (!fh.recordNum(rec.copyInDstBuffer(), recNum, recFactory.size(), loadFromPrimary)) {
+				throw new KawkabException("Record not found");
+			}
+		} catch (IOException e) {
+			throw new KawkabException(e);
+		}
+		return rec;
+	}
+
+	public Record recordAt(String fn, long timestamp, Record recFactory, boolean loadFromPrimary) throws KawkabException {
+		FileHandle fh = handle(fn);
+		Record rec = recFactory.newRecord();
+		try {
+			if (!fh.recordAt(rec.copyInDstBuffer(), timestamp, recFactory.size(), loadFromPrimary)) {
+				throw new KawkabException("Record not found");
+			}
+		} catch (IOException e) {
+			throw new KawkabException(e);
+		}
+		return rec;
+	}
+
+	public List<Record> readRecords(String fn, long minTS, long maxTS, Record recFactory, boolean loadFromPrimary) throws KawkabException {
+		FileHandle fh = handle(fn);
+		try {
+			return fh.readRecords(minTS, maxTS, recFactory, loadFromPrimary);
+		} catch (IOException e) {
+			throw new KawkabException(e);
+		}
+	}
+
+	public void flush() throws KawkabException {
+		fs.flush();
+	}
+
+	public void close(String fn) throws KawkabException {
+		FileHandle fh = handle(fn);
+		fs.close(fh);
+		handles.remove(fn);
+	}
+
+	public void bulkClose(String[] fnames) throws KawkabException {
+		for (String fn : fnames) {
+			close(fn);
+		}
+	}
+
+	/**
+	 * Closes all the files that are opened through this client.
+	 */
+	public void disconnect() throws KawkabException {
+		for (String fn : new ArrayList<>(handles.keySet())) {
+			close(fn);
+		}
+	}
+
+	private FileHandle handle(String fn) throws KawkabException {
+		FileHandle fh = handles.get(fn);
+		if (fh == null)
+			throw new KawkabException(String.format("File %s is not opened",fn));
+		return fh;
+	}
+
+	/**
+	 * @return A view of the record's source buffer that contains exactly recSize bytes
+	 */
+	private ByteBuffer recordBuffer(Record rec, int recSize) {
+		ByteBuffer srcBuf = rec.copyOutSrcBuffer().duplicate();
+		srcBuf.limit(srcBuf.position() + recSize);
+		return srcBuf;
+	}
+}
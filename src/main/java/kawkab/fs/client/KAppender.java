@@ -0,0 +1,189 @@
+package kawkab.fs.client;
+
+import kawkab.fs.api.Record;
+import kawkab.fs.core.exceptions.BackpressureException;
+import kawkab.fs.core.exceptions.KawkabException;
+import kawkab.fs.core.exceptions.OutOfMemoryException;
+import kawkab.fs.core.services.thrift.AppendBatches;
+import kawkab.fs.core.services.thrift.FilesystemServiceClient;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Buffers the records that are appended one at a time and sends them to the server in batches using the multi-file
+ * appendRecords request. The buffer is sent when the next record does not fit in the buffer, or when the oldest
+ * record in the buffer has waited for the linger time.
+ *
+ * The appender uses its own connection to the server of the KClient that created it. The files must be opened in the
+ * append mode through that KClient before appending records through the appender.
+ *
+ * If the server runs out of memory or rejects the batch due to backpressure, the appender retries the batch with
+ * exponential backoff. The callers of append() are blocked until the batch is accepted, which limits the rate of the
+ * producers to the rate of the server. If the server has appended some of the records before running out of memory,
+ * only the remaining records are sent again. If the batch is not accepted, the unsent records stay in the buffer.
+ *
+ * The appender is thread-safe.
+ */
+public class KAppender {
+	private static final int MAX_BACKOFF_MS = 100;
+	private static final int MAX_WAIT_MS = 30000; // Maximum time to wait for the server to accept a batch
+
+	private final KClient kclient;
+	private final FilesystemServiceClient client;
+	private final ByteBuffer buffer;
+	private final Map<Integer, Integer> recSizes = new HashMap<>(); // sessionID -> record size of the buffered records
+	private final long lingerMs;
+	private final Thread lingerThread;
+
+	private long firstRecTime; // Time when the oldest record in the buffer was appended
+	private volatile boolean closed;
+
+	KAppender(KClient kclient, String ip, int port, boolean compactProtocol, int bufLenBytes, long lingerMs) throws KawkabException {
+		assert lingerMs > 0;
+
+		this.kclient = kclient;
+		this.lingerMs = lingerMs;
+		client = new FilesystemServiceClient(ip, port, compactProtocol);
+		buffer = ByteBuffer.allocate(bufLenBytes);
+
+		lingerThread = new Thread(this::runLingerTimer);
+		lingerThread.setName("KAppender-linger");
+		lingerThread.setDaemon(true);
+		lingerThread.start();
+	}
+
+	/**
+	 * Copies the record in the buffer. The record may not be sent to the server until the buffer is full or the linger
+	 * time has passed.
+	 *
+	 * @throws OutOfMemoryException if the server does not accept the batch for a long time
+	 * @throws BackpressureException if the server rejects the batch due to backpressure for a long time
+	 */
+	public synchronized void append(String fn, Record rec) throws OutOfMemoryException, KawkabException {
+		if (closed)
+			throw new KawkabException("Appender is closed");
+
+		int sessionID = kclient.appendSessionID(fn);
+
+		if (buffer.remaining() < Integer.BYTES + rec.size()) {
+			flushBuffer();
+		}
+
+		if (buffer.position() == 0) {
+			firstRecTime = System.currentTimeMillis();
+		}
+
+		ByteBuffer srcBuf = rec.copyOutSrcBuffer().duplicate();
+		srcBuf.limit(srcBuf.position()+rec.size());
+		buffer.putInt(sessionID);
+		buffer.put(srcBuf);
+		recSizes.put(sessionID, rec.size());
+	}
+
+	/**
+	 * Sends the buffered records to the server and waits for the response.
+	 */
+	public synchronized void flush() throws OutOfMemoryException, KawkabException {
+		flushBuffer();
+	}
+
+	private void flushBuffer() throws OutOfMemoryException, KawkabException {
+		if (buffer.position() == 0)
+			return;
+
+		buffer.flip();
+
+		boolean sent = false;
+		try {
+			long backoffMs = 1;
+			long waitedMs = 0;
+			while (true) {
+				try {
+					client.appendRecords(buffer);
+					sent = true;
+					break;
+				} catch (OutOfMemoryException | BackpressureException e) {
+					if (e instanceof OutOfMemoryException) {
+						AppendBatches.removeAppended(buffer, ((OutOfMemoryException) e).appendedRecords(), recSizes::get);
+						if (!buffer.hasRemaining()) {
+							sent = true;
+							break;
+						}
+					}
+
+					if (waitedMs >= MAX_WAIT_MS)
+						throw e;
+
+					long waitMs = backoffMs;
+					if (e instanceof BackpressureException) // Wait at least as long as the server suggests
+						waitMs = Math.max(waitMs, ((BackpressureException) e).retryAfterMs());
+
+					try {
+						Thread.sleep(waitMs);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						throw new KawkabException(ie);
+					}
+
+					waitedMs += waitMs;
+					backoffMs = Math.min(backoffMs*2, MAX_BACKOFF_MS);
+				}
+			}
+		} finally {
+			if (sent) {
+				buffer.clear();
+				recSizes.clear();
+			} else {
+				buffer.position(buffer.limit()).limit(buffer.capacity()); // Keep the unsent records for the next try
+			}
+		}
+	}
+
+	private void runLingerTimer() {
+		while (!closed) {
+			long sleepMs;
+			synchronized (this) {
+				if (closed)
+					break;
+
+				long now = System.currentTimeMillis();
+				if (buffer.position() > 0 && now - firstRecTime >= lingerMs) {
+					try {
+						flushBuffer();
+					} catch (KawkabException e) {
+						e.printStackTrace();
+					}
+				}
+
+				sleepMs = buffer.position() > 0 ? Math.max(1, lingerMs - (now - firstRecTime)) : lingerMs;
+			}
+
+			try {
+				Thread.sleep(sleepMs);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Sends the remaining records and closes the connection of the appender. This does not close the files.
+	 */
+	public void close() throws KawkabException {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+
+			try {
+				flushBuffer();
+			} finally {
+				client.disconnect();
+			}
+		}
+
+		lingerThread.interrupt();
+	}
+}
@@ -1,22 +1,31 @@
 package kawkab.fs.client;
 
+import kawkab.fs.api.FileStat;
 import kawkab.fs.api.Record;
 import kawkab.fs.core.Filesystem;
 import kawkab.fs.core.exceptions.KawkabException;
 import kawkab.fs.core.exceptions.OutOfMemoryException;
+import kawkab.fs.core.services.thrift.FilesystemServiceAsyncClient;
 import kawkab.fs.core.services.thrift.FilesystemServiceClient;
+import kawkab.fs.core.services.thrift.SharedRingIngest;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class KClient {
 	private final int id;
 	private FilesystemServiceClient client;
+	private SharedRingChannel ring; // Appends through shared memory when the server is on the same host
+	private int ringID;
+	private FilesystemServiceAsyncClient asyncClient; // Non-blocking appends and reads; files are opened and closed through the client
 	private String ip;
 	private int port;
+	private boolean compactProtocol;
 	private Map<String, Session> sessions;
 	private ByteBuffer buffer;
 
@@ -29,12 +38,20 @@ public class KClient {
 	}
 
 	public synchronized void connect(String ip, int port) throws KawkabException {
+		connect(ip, port, false);
+	}
+
+	/**
+	 * @param compactProtocol Use the Thrift compact protocol. This must match the fsServerProtocol of the server.
+	 */
+	public synchronized void connect(String ip, int port, boolean compactProtocol) throws KawkabException {
 		if (client != null) {
 			System.out.printf("Client %d is already connected to %s:%d, not connecting again\n", id, ip, port);
 			return;
 		}
 
-		client = new FilesystemServiceClient(ip, port);
+		client = new FilesystemServiceClient(ip, port, compactProtocol);
+		this.compactProtocol = compactProtocol;
 
 		this.ip = ip;
 		this.port = port;
@@ -42,6 +59,68 @@ public class KClient {
 		System.out.printf("[KC] Connected to %s:%d\n", ip, port);
 	}
 
+	/**
+	 * Opens the connections for the asynchronous functions. The client must be already connected, which is used to open
+	 * and close the files.
+	 *
+	 * @param numConnections Number of connections over which the asynchronous requests are pipelined
+	 */
+	public synchronized void connectAsync(int numConnections) throws KawkabException {
+		if (client == null) {
+			throw new KawkabException("Client is not connected");
+		}
+
+		if (asyncClient != null) {
+			System.out.printf("Client %d is already connected asynchronously to %s:%d, not connecting again\n", id, ip, port);
+			return;
+		}
+
+		asyncClient = new FilesystemServiceAsyncClient(ip, port, numConnections, compactProtocol);
+	}
+
+	/**
+	 * Sends the subsequent appends of this client through a memory-mapped ring buffer instead of the socket. The
+	 * server must run on the same host. The other requests, including the open and close requests, still use the
+	 * socket. The appends through the ring are one-way: an append returns when the records are in the ring. Flush,
+	 * close, and disconnect wait until the server has appended all the records in the ring, and fail if the server has
+	 * failed to append any of them.
+	 *
+	 * @param dir The sharedRingDir of the server, which must be accessible to the user of this client
+	 * @param ringSizeBytes Capacity of the ring, must be a power of two and at least eight times BUFLEN_BYTES
+	 */
+	public synchronized void enableSharedMemory(String dir, int ringSizeBytes) throws KawkabException {
+		if (client == null) {
+			throw new KawkabException("Client is not connected");
+		}
+
+		if (ring != null)
+			return;
+
+		File file = new File(dir, String.format("%s%d-%d", SharedRingIngest.RING_FILE_PREFIX, ProcessHandle.current().pid(), id));
+		SharedRingChannel channel = new SharedRingChannel(file, ringSizeBytes, BUFLEN_BYTES);
+		try {
+			ringID = client.attachSharedRing(channel.path());
+		} catch (KawkabException e) {
+			channel.close();
+			throw e;
+		}
+
+		ring = channel;
+	}
+
+	private void disableSharedMemory() throws KawkabException {
+		if (ring == null)
+			return;
+
+		try {
+			ring.waitUntilDrained();
+		} finally {
+			client.detachSharedRing(ringID);
+			ring.close();
+			ring = null;
+		}
+	}
+
 	public int open(String fn, Filesystem.FileMode mode, int recSize) throws KawkabException {
 		assert client != null;
 
@@ -94,6 +173,25 @@ public class KClient {
 		return ids.size();
 	}
 
+	/**
+	 * Lists the files and directories whose names start with the prefix, sorted by name. Pass the last returned name
+	 * as startAfter to get the next page.
+	 */
+	public List<String> list(String prefix, String startAfter, int maxEntries) throws KawkabException {
+		assert client != null;
+
+		return client.list(prefix, startAfter, maxEntries);
+	}
+
+	/**
+	 * Returns the stats of the given files in the same order. The files do not need to be opened.
+	 */
+	public List<FileStat> stat(String[] fnames) throws KawkabException {
+		assert client != null;
+
+		return client.bulkStat(fnames);
+	}
+
 	public long size(String fn) throws KawkabException {
 		assert client != null;
 
@@ -123,6 +221,15 @@ public class KClient {
 		if (session.mode != Filesystem.FileMode.APPEND)
 			throw new KawkabException(String.format("File %s is not opened in the append mode.", fn));
 
+		if (ring != null) {
+			buffer.clear();
+			buffer.putInt(session.id);
+			buffer.put(rec.copyOutSrcBuffer());
+			buffer.flip();
+			ring.write(buffer);
+			return rec.size();
+		}
+
 		return client.append(session.id, rec.copyOutSrcBuffer(), rec.size());
 	}
 
@@ -171,6 +278,22 @@ public class KClient {
 
 		buffer.clear();
 
+		if (ring != null) {
+			if (records.length*(Integer.BYTES+recSize) > BUFLEN_BYTES) {
+				throw new KawkabException(String.format("Source data cannot fit in buffer, numRecs=%d, recSize=%d, bufLen=%d",
+						records.length, recSize, BUFLEN_BYTES));
+			}
+
+			for (Record rec : records) {
+				buffer.putInt(session.id);
+				buffer.put(rec.copyOutSrcBuffer());
+			}
+
+			buffer.flip();
+			ring.write(buffer);
+			return records.length*recSize;
+		}
+
 		for (Record rec : records) {
 			buffer.put(rec.copyOutSrcBuffer());
 		}
@@ -196,6 +319,12 @@ public class KClient {
 		}
 
 		buffer.flip();
+
+		if (ring != null) {
+			ring.write(buffer);
+			return fnames.length;
+		}
+
 		return client.appendRecords(buffer);
 	}
 
@@ -255,6 +384,10 @@ public class KClient {
 
 		//printBuffers(results, recFactory);
 
+		return toRecords(results, recFactory);
+	}
+
+	private List<Record> toRecords(List<ByteBuffer> results, Record recFactory) {
 		List<Record> recs = new ArrayList<>(results.size());
 
 		int recSize = recFactory.size();
@@ -277,6 +410,109 @@ public class KClient {
 		return recs;
 	}
 
+	/**
+	 * Appends the record without waiting for the response. The appends to the same file are executed in the order in
+	 * which this function is called. The record is copied before returning, so the caller can reuse the record.
+	 *
+	 * @return A future that is completed with the number of bytes appended
+	 */
+	public CompletableFuture<Integer> appendAsync(String fn, Record rec) throws KawkabException {
+		assert asyncClient != null;
+		Session session = appendSession(fn);
+
+		ByteBuffer srcBuf = rec.copyOutSrcBuffer().duplicate();
+		srcBuf.limit(srcBuf.position()+rec.size());
+		ByteBuffer data = ByteBuffer.allocate(rec.size());
+		data.put(srcBuf);
+		data.flip();
+
+		return asyncClient.appendRecord(session.id, data, rec.size());
+	}
+
+	/**
+	 * Asynchronous version of {@link #appendBuffered(String, Record[], int)}. The records are copied before returning.
+	 */
+	public CompletableFuture<Integer> appendBufferedAsync(String fn, Record[] records, int recSize) throws KawkabException {
+		assert asyncClient != null;
+		Session session = appendSession(fn);
+
+		if (records.length*recSize > BUFLEN_BYTES) {
+			throw new KawkabException(String.format("Source data cannot fit in buffer, numRecs=%d, recSize=%d, bufLen=%d",
+					records.length, recSize, BUFLEN_BYTES));
+		}
+
+		ByteBuffer data = ByteBuffer.allocate(records.length*recSize);
+		for (Record rec : records) {
+			ByteBuffer srcBuf = rec.copyOutSrcBuffer().duplicate();
+			srcBuf.limit(srcBuf.position()+recSize);
+			data.put(srcBuf);
+		}
+		data.flip();
+
+		return asyncClient.appendBuffered(session.id, data, recSize);
+	}
+
+	public CompletableFuture<Record> recordNumAsync(String fn, long recNum, Record recFactory, boolean loadFromPrimary) throws KawkabException {
+		assert asyncClient != null;
+		Session session = session(fn);
+
+		return asyncClient.recordNum(session.id, recNum, recFactory.size(), loadFromPrimary).thenApply(buffer -> {
+			Record rec = recFactory.newRecord();
+			rec.copyInDstBuffer().put(buffer);
+			return rec;
+		});
+	}
+
+	public CompletableFuture<Record> recordAtAsync(String fn, long timestamp, Record recFactory, boolean loadFromPrimary) throws KawkabException {
+		assert asyncClient != null;
+		Session session = session(fn);
+
+		return asyncClient.recordAt(session.id, timestamp, recFactory.size(), loadFromPrimary).thenApply(buffer -> {
+			Record rec = recFactory.newRecord();
+			rec.copyInDstBuffer().put(buffer);
+			return rec;
+		});
+	}
+
+	public CompletableFuture<List<Record>> readRecordsAsync(String fn, long minTS, long maxTS, Record recFactory, boolean loadFromPrimary) throws KawkabException {
+		assert asyncClient != null;
+		Session session = session(fn);
+
+		return asyncClient.readRecords(session.id, minTS, maxTS, recFactory.size(), loadFromPrimary)
+				.thenApply(results -> toRecords(results, recFactory));
+	}
+
+	/**
+	 * Creates an appender that batches the records of the opened files and sends them through a separate connection
+	 * to the same server. The buffer is sent when it is full or when the oldest buffered record has waited for
+	 * lingerMs milliseconds.
+	 */
+	public KAppender newAppender(long lingerMs) throws KawkabException {
+		if (client == null) {
+			throw new KawkabException("Client is not connected");
+		}
+
+		return new KAppender(this, ip, port, compactProtocol, BUFLEN_BYTES, lingerMs);
+	}
+
+	int appendSessionID(String fn) throws KawkabException {
+		return appendSession(fn).id;
+	}
+
+	private Session session(String fn) throws KawkabException {
+		Session session = sessions.get(fn);
+		if (session == null)
+			throw new KawkabException(String.format("File %s is not opened",fn));
+		return session;
+	}
+
+	private Session appendSession(String fn) throws KawkabException {
+		Session session = session(fn);
+		if (session.mode != Filesystem.FileMode.APPEND)
+			throw new KawkabException(String.format("File %s is not opened in the append mode.", fn));
+		return session;
+	}
+
 	private void printBuffers(List<ByteBuffer> results, Record recFactory) {
 		int recSize = recFactory.size();
 
@@ -313,8 +549,10 @@ public class KClient {
 		return client.noopRead(recSize);
 	}
 
-	public void flush() {
+	public void flush() throws KawkabException {
 		assert client != null;
+		if (ring != null)
+			ring.waitUntilDrained();
 		client.flush();
 	}
 
@@ -324,6 +562,9 @@ public class KClient {
 		if (session == null)
 			throw new KawkabException(String.format("File %s is not opened",fn));
 
+		if (ring != null)
+			ring.waitUntilDrained();
+
 		client.close(session.id);
 		sessions.remove(fn);
 	}
@@ -340,6 +581,9 @@ public class KClient {
 			ids[i] = session.id;
 		}
 
+		if (ring != null)
+			ring.waitUntilDrained();
+
 		client.bulkClose(ids);
 
 		for (int i=0; i<fnames.length; i++) {
@@ -352,12 +596,19 @@ public class KClient {
 			throw new KawkabException(String.format("Client is not connected to %s:%d.",ip,port));
 		}
 
+		disableSharedMemory();
+
 		for (Session session : sessions.values()) {
 			client.close(session.id);
 		}
 
 		client.disconnect();
 		client = null;
+
+		if (asyncClient != null) {
+			asyncClient.disconnect();
+			asyncClient = null;
+		}
 		ip = null;
 		port = 0;
 	}
@@ -0,0 +1,112 @@
+package kawkab.fs.client;
+
+import kawkab.fs.core.exceptions.KawkabException;
+import kawkab.fs.core.services.thrift.SharedRingIngest;
+import org.agrona.IoUtil;
+import org.agrona.concurrent.BackoffIdleStrategy;
+import org.agrona.concurrent.IdleStrategy;
+import org.agrona.concurrent.UnsafeBuffer;
+import org.agrona.concurrent.ringbuffer.OneToOneRingBuffer;
+import org.agrona.concurrent.ringbuffer.RingBuffer;
+import org.agrona.concurrent.ringbuffer.RingBufferDescriptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Producer side of a memory-mapped single-producer single-consumer ring buffer that is drained by a Kawkab server on
+ * the same host. The messages are appendRecords batches, i.e., {sessionID, record} pairs.
+ *
+ * The writes are one-way: a write returns when the batch is in the ring, and blocks while the ring is full. The server
+ * counts the batches that it fails to append in the header of the ring, and waitUntilDrained reports them.
+ *
+ * The file must be in the sharedRingDir of the server, and its header has the token that the server writes in that
+ * directory, see SharedRingIngest.
+ */
+class SharedRingChannel {
+	private final File file;
+	private final MappedByteBuffer mapped;
+	private final UnsafeBuffer header;
+	private final RingBuffer ring;
+	private long seenFailures; // Failed batches that are already reported to the caller
+	private final UnsafeBuffer srcBuffer = new UnsafeBuffer(new byte[0]);
+	private final IdleStrategy idle = new BackoffIdleStrategy(100, 10, TimeUnit.MICROSECONDS.toNanos(1), TimeUnit.MICROSECONDS.toNanos(100));
+
+	/**
+	 * @param file The ring buffer file in the sharedRingDir of the server
+	 * @param capacity Capacity of the ring in bytes, must be a power of two
+	 * @param maxBatchBytes Maximum size of a batch that is written in the ring
+	 */
+	SharedRingChannel(File file, int capacity, int maxBatchBytes) throws KawkabException {
+		long token;
+		try {
+			byte[] tokenBytes = Files.readAllBytes(new File(file.getParentFile(), SharedRingIngest.TOKEN_FILE).toPath());
+			token = Long.parseLong(new String(tokenBytes, StandardCharsets.US_ASCII).trim());
+		} catch (IOException | NumberFormatException e) {
+			throw new KawkabException("Unable to read the shared ring token of the server from " + file.getParent() +
+					", the directory must be the sharedRingDir of the server: " + e.getMessage());
+		}
+
+		this.file = file;
+		mapped = IoUtil.mapNewFile(file, SharedRingIngest.HEADER_LENGTH + capacity + RingBufferDescriptor.TRAILER_LENGTH);
+		header = new UnsafeBuffer(mapped, 0, SharedRingIngest.HEADER_LENGTH);
+		ring = new OneToOneRingBuffer(new UnsafeBuffer(mapped, SharedRingIngest.HEADER_LENGTH, capacity + RingBufferDescriptor.TRAILER_LENGTH));
+
+		header.putInt(SharedRingIngest.CAPACITY_OFFSET, capacity);
+		header.putLong(SharedRingIngest.TOKEN_OFFSET, token);
+		header.putLongVolatile(SharedRingIngest.MAGIC_OFFSET, SharedRingIngest.MAGIC);
+
+		if (ring.maxMsgLength() < maxBatchBytes) {
+			close();
+			throw new KawkabException(String.format("Ring capacity %d is too small for batches of %d bytes", capacity, maxBatchBytes));
+		}
+	}
+
+	String path() {
+		return file.getAbsolutePath();
+	}
+
+	/**
+	 * Writes the remaining bytes of the buffer in the ring, and blocks while the ring is full.
+	 */
+	void write(ByteBuffer batch) {
+		srcBuffer.wrap(batch, batch.position(), batch.remaining());
+		while (!ring.write(SharedRingIngest.MSG_APPEND_RECORDS, srcBuffer, 0, batch.remaining())) {
+			idle.idle(0);
+		}
+		idle.reset();
+		batch.position(batch.limit());
+	}
+
+	/**
+	 * Blocks until the server has drained all the batches in the ring.
+	 *
+	 * @throws KawkabException if the server has failed to append any batch since the last call
+	 */
+	void waitUntilDrained() throws KawkabException {
+		while (ring.consumerPosition() < ring.producerPosition()) {
+			idle.idle(0);
+		}
+		idle.reset();
+
+		long failures = header.getLongVolatile(SharedRingIngest.FAILED_BATCHES_OFFSET);
+		if (failures > seenFailures) {
+			int len = header.getInt(SharedRingIngest.ERROR_LENGTH_OFFSET);
+			String error = header.getStringWithoutLengthUtf8(SharedRingIngest.ERROR_OFFSET, len);
+			long failed = failures - seenFailures;
+			seenFailures = failures;
+			throw new KawkabException(String.format("The server failed to append %d batches from the shared ring, " +
+					"last error: %s", failed, error));
+		}
+	}
+
+	void close() {
+		IoUtil.unmap(mapped);
+		file.delete();
+	}
+}
@@ -52,6 +52,10 @@ public final class Configuration {
 
 
 	public final int maxBlocksPerLocalDevice; // = 20510 + inodeBlocksPerMachine + ibmapsPerMachine; //FIXME: Should it not be a long value???
+	public final int localMmapBudgetMiB; // = 4096; // Mapped size of the local block files for reads, 0 to disable
+	public final boolean localMmapPrefetch; // = false; // Read ahead a block file when it is mapped
+	public final int localBlockPoolSize; // = 8; // Pre-allocated data block files per local device, 0 to disable
+	public final boolean localBlockPoolZeroFill; // = true; // Write zeros to allocate the pooled files, otherwise sparse
 	//public final int maxBlocksInCache; //        = 20000; //Size of the cache in number of blocks. The blocks are ibmaps, inodeBlocks, and data segments (not data blocks)
 	public final int cacheSizeMiB;	// Size of the cache in MB
 	
@@ -59,8 +63,27 @@ public final class Configuration {
 	public final int inodesBlockFetchExpiryTimeoutMs; //  = 2000; //Expire data fetched from the global store after dataExpiryTimeoutMs
 	//public final int primaryFetchExpiryTimeoutMs = 5000; //Expire data fetched from the primary node after primaryFetchExpiryTimeoutMs
 
-	public final int numLocalDevices; // = 1;
+	public final int numLocalDevices; // = 1; // Number of localDataDirs if they are given
+	public final String[] localDataDirs; // = {"fs0"}; // Directory of each local device where the data blocks are stored
+	public final int localWorkersPerDevice; // = 1; // Local store workers of each device
+	public final String localIOEngine; // = "pool"; // I/O engine of the local store workers: sync, pool, or uring
+	public final int localIOThreads; // = 8; // I/O threads per local store worker in the pool engine
+	public final int localIOQueueDepth; // = 64; // Maximum number of blocks in a batch of a local store worker
 	public final int numWorkersStoreToGlobal; // = 8;
+	public final int maxUploadBacklog; // = 10000; // Blocks queued for the global store that make the upload backlog 100%
+	public final int flowLowWatermark; // = 70; // Percent of the local store or the upload backlog at which the appends are throttled
+	public final int flowHighWatermark; // = 95; // Percent at which the appends are rejected with a retryable error
+	public final int maxAppendThrottleMs; // = 20; // Delay of an append just below the high watermark
+	public final int createBlockTimeoutMs; // = 10000; // Wait for space in the local store before failing to create a data block
+	public final int uploadPriorityBoostMs; // = 10000; // Head start of the metadata uploads, and of the evictable uploads when the local store is nearly full
+	public final int retentionReaperIntervalSec; // = 3600; // Interval of the scans that delete the data older than the retention of the files, 0 to disable
+	public final int replicationFactor; // = 0; // Peer nodes that receive the appended data until its block is in the global store, 0 to disable
+	public final int replicationQuorum; // = replicationFactor; // Peers that must acknowledge the data before an append returns
+	public final int replicaAckTimeoutMs; // = 5000; // Wait of an append for the acknowledgements of the quorum
+	public final int replicaBatchMaxBytes; // = 1048576; // Maximum data in a batch of the replication stream
+	public final int replicaPipelineDepth; // = 4; // Batches sent to a peer that are not acknowledged yet
+	public final int replicaMaxPendingBytes; // = 67108864; // Data queued for a slow peer before the stream skips the peer's backlog
+	public final int maxReplicaBlocks; // = 1000; // Replica block files that a peer keeps for the other nodes
 	//public final int numWorkersLoadFromGlobal = 5;
 	
 	public final int grpcClientFrameSize; // = dataBlockSizeBytes > 4194304 ? dataBlockSizeBytes+2048 : 4194304; //Frame size to use when fetching blocks from primary nodes, at least 4MB
@@ -85,6 +108,7 @@ public final class Configuration {
 	public final String[] minioServers; // = {"http://10.10.0.6:9000"};
 	public final String minioAccessKey; // = "kawkab"; //Length must be at least 5 characters long. This should match minio server settings.
 	public final String minioSecretKey; // = "kawkabsecret"; //Length must be at least 8 characters long. This should match minio server settings.
+	public final String globalStoreCodec; // = "none"; // Compression of the data blocks in the global store: none, lz4, lz4hc, or delta
 	
 	//Thrift service port for remote reads
 	public final int primaryNodeServicePort; // = 22332;
@@ -92,6 +116,16 @@ public final class Configuration {
 	// Filesystem RPC service for the filesystem clients
 	public final int fsServerListenPort; // = 33433;
 	public final int maxBufferLen; // = 16*1024; //in bytes
+	public final String fsServerType; // = "selector"; // selector, hsha, or threadpool
+	public final String fsServerProtocol; // = "binary"; // binary or compact
+	public final int fsServerWorkerThreads; // = 8; // Worker threads, or minimum worker threads in the threadpool server
+	public final int fsServerMaxWorkerThreads; // = 1000; // Used only in the threadpool server
+	public final int fsServerSelectorThreads; // = 8; // Used only in the selector server
+	public final int fsServerMaxFrameLen; // = 16*1024*1024; // in bytes
+	public final String sharedRingDir; // = "/dev/shm/kawkab-rings"; // The only directory of the shared ring files of the local clients
+	public final int sharedRingMaxBytes; // = 64*1024*1024; // Maximum capacity of a shared ring
+
+	public final int metricsHttpPort; // = 0; // Port of the Prometheus text endpoint of the metrics, 0 to disable
 
 	public final Map<Integer, NodeInfo> nodesMap;
 	
@@ -128,6 +162,10 @@ public final class Configuration {
 		inodeSizeBytes			= Integer.parseInt(props.getProperty("inodeSizeBytes", "50"));
 			
 		maxBlocksPerLocalDevice	= Integer.parseInt(props.getProperty("maxBlocksPerLocalDevice", "30000"));
+		localMmapBudgetMiB	= Integer.parseInt(props.getProperty("localMmapBudgetMiB", "4096"));
+		localMmapPrefetch	= Boolean.parseBoolean(props.getProperty("localMmapPrefetch", "false"));
+		localBlockPoolSize	= Integer.parseInt(props.getProperty("localBlockPoolSize", "8"));
+		localBlockPoolZeroFill	= Boolean.parseBoolean(props.getProperty("localBlockPoolZeroFill", "true"));
 		//maxBlocksInCache		= Integer.parseInt(props.getProperty("maxBlocksInCache", "20000"));
 		cacheSizeMiB				= Integer.parseInt(props.getProperty("cacheSizeMiB", "10000"));
 			
@@ -139,8 +177,36 @@ public final class Configuration {
 		percentIndexEntriesPerNode = Integer.parseInt(props.getProperty("percentIndexEntriesPerNode", "70"));
 		nodesPerBlockPOH = indexBlockSizeBytes/indexNodeSizeBytes;
 
-		numLocalDevices = Integer.parseInt(props.getProperty("numLocalDevices", "1"));
+		String dataDirs = props.getProperty("localDataDirs", "").trim();
+		if (dataDirs.isEmpty()) { // The devices are the directories fs0, fs1, ... in the working directory
+			numLocalDevices = Integer.parseInt(props.getProperty("numLocalDevices", "1"));
+			localDataDirs = new String[numLocalDevices];
+			for (int i=0; i<numLocalDevices; i++) {
+				localDataDirs[i] = "fs" + i;
+			}
+		} else {
+			localDataDirs = dataDirs.split("\\s*,\\s*");
+			numLocalDevices = localDataDirs.length;
+		}
+		localWorkersPerDevice = Integer.parseInt(props.getProperty("localWorkersPerDevice", "1"));
+		localIOEngine = props.getProperty("localIOEngine", "pool");
+		localIOThreads = Integer.parseInt(props.getProperty("localIOThreads", "8"));
+		localIOQueueDepth = Integer.parseInt(props.getProperty("localIOQueueDepth", "64"));
 		numWorkersStoreToGlobal	= Integer.parseInt(props.getProperty("numWorkersStoreToGlobal", "4"));
+		maxUploadBacklog	= Integer.parseInt(props.getProperty("maxUploadBacklog", "10000"));
+		flowLowWatermark	= Integer.parseInt(props.getProperty("flowLowWatermark", "70"));
+		flowHighWatermark	= Integer.parseInt(props.getProperty("flowHighWatermark", "95"));
+		maxAppendThrottleMs	= Integer.parseInt(props.getProperty("maxAppendThrottleMs", "20"));
+		createBlockTimeoutMs	= Integer.parseInt(props.getProperty("createBlockTimeoutMs", "10000"));
+		uploadPriorityBoostMs	= Integer.parseInt(props.getProperty("uploadPriorityBoostMs", "10000"));
+		retentionReaperIntervalSec	= Integer.parseInt(props.getProperty("retentionReaperIntervalSec", "3600"));
+		replicationFactor	= Integer.parseInt(props.getProperty("replicationFactor", "0"));
+		replicationQuorum	= Integer.parseInt(props.getProperty("replicationQuorum", ""+replicationFactor));
+		replicaAckTimeoutMs	= Integer.parseInt(props.getProperty("replicaAckTimeoutMs", "5000"));
+		replicaBatchMaxBytes	= Integer.parseInt(props.getProperty("replicaBatchMaxBytes", "1048576"));
+		replicaPipelineDepth	= Integer.parseInt(props.getProperty("replicaPipelineDepth", "4"));
+		replicaMaxPendingBytes	= Integer.parseInt(props.getProperty("replicaMaxPendingBytes", "67108864"));
+		maxReplicaBlocks	= Integer.parseInt(props.getProperty("maxReplicaBlocks", "1000"));
 			
 		// Folders in the underlying filesystem
 		basePath		= props.getProperty("basePath", "fs");
@@ -154,6 +220,7 @@ public final class Configuration {
 		minioServers	= props.getProperty("minioServers", "http://10.10.0.6:9000").split(",");
 		minioAccessKey	= props.getProperty("minioAccessKey", "kawkab"); // Length must be at least 5 characters long. This should match minio server settings.
 		minioSecretKey	= props.getProperty("minioSecretKey", "kawkabsecret"); // Length must be at least 8 characters long. This should match minio server settings.
+		globalStoreCodec	= props.getProperty("globalStoreCodec", "none");
 			
 		// gRPC RPC server between the nodes to read data from the primary nodes
 		primaryNodeServicePort = Integer.parseInt(props.getProperty("primaryNodeServicePort", "22332"));
@@ -161,6 +228,16 @@ public final class Configuration {
 		// RPC service for the filesystem clients
 		fsServerListenPort	= Integer.parseInt(props.getProperty("fsServerListenPort", "33433"));
 		maxBufferLen		= Integer.parseInt(props.getProperty("maxBufferLen", "16384")); // in bytes
+		fsServerType		= props.getProperty("fsServerType", "selector");
+		fsServerProtocol	= props.getProperty("fsServerProtocol", "binary");
+		fsServerWorkerThreads	= Integer.parseInt(props.getProperty("fsServerWorkerThreads", "8"));
+		fsServerMaxWorkerThreads	= Integer.parseInt(props.getProperty("fsServerMaxWorkerThreads", "1000"));
+		fsServerSelectorThreads	= Integer.parseInt(props.getProperty("fsServerSelectorThreads", "8"));
+		fsServerMaxFrameLen	= Integer.parseInt(props.getProperty("fsServerMaxFrameLen", "16777216")); // in bytes
+		sharedRingDir		= props.getProperty("sharedRingDir", "/dev/shm/kawkab-rings");
+		sharedRingMaxBytes	= Integer.parseInt(props.getProperty("sharedRingMaxBytes", "67108864")); // in bytes
+
+		metricsHttpPort		= Integer.parseInt(props.getProperty("metricsHttpPort", "0"));
 		
 		Map<Integer, NodeInfo> map = new HashMap<>();
 		int nodesCount = Integer.parseInt(props.getProperty("nodesCount", "1"));
@@ -219,11 +296,34 @@ public final class Configuration {
 		System.out.println(String.format("Cache size (MiB) ......... = %d", cacheSizeMiB));
 		System.out.println();
 		System.out.println(String.format("Num local devices......... = %d", numLocalDevices));
+		System.out.println(String.format("Local data dirs........... = %s", String.join(",", localDataDirs)));
+		System.out.println(String.format("Local workers per device.. = %d", localWorkersPerDevice));
+		System.out.println(String.format("Local I/O engine.......... = %s, threads %d, queue depth %d",
+				localIOEngine, localIOThreads, localIOQueueDepth));
 		System.out.println(String.format("Max blocks per local device= %d", maxBlocksPerLocalDevice));
+		System.out.println(String.format("Local mmap budget (MiB)... = %d, prefetch %b", localMmapBudgetMiB, localMmapPrefetch));
+		System.out.println(String.format("Local block file pool..... = %d, zero-fill %b", localBlockPoolSize, localBlockPoolZeroFill));
 		System.out.println();
 		System.out.println(String.format("Global store workers...... = %d", numWorkersStoreToGlobal));
+		System.out.println(String.format("Flow control.............. = watermarks %d%%-%d%%, max upload backlog %d, max throttle %d ms",
+				flowLowWatermark, flowHighWatermark, maxUploadBacklog, maxAppendThrottleMs));
+		System.out.println(String.format("Create block timeout (ms). = %d", createBlockTimeoutMs));
+		System.out.println(String.format("Upload priority boost (ms) = %d", uploadPriorityBoostMs));
+		System.out.println(String.format("Retention scan (s)........ = %d", retentionReaperIntervalSec));
+		System.out.println(String.format("Replication factor........ = %d, quorum %d", replicationFactor, replicationQuorum));
+		System.out.println(String.format("Replica ack timeout (ms).. = %d", replicaAckTimeoutMs));
+		System.out.println(String.format("Replica stream............ = batch %d bytes, depth %d, max pending %d bytes",
+				replicaBatchMaxBytes, replicaPipelineDepth, replicaMaxPendingBytes));
+		System.out.println(String.format("Max replica blocks........ = %d", maxReplicaBlocks));
+		System.out.println(String.format("Global store codec........ = %s", globalStoreCodec));
 		System.out.println(String.format("Index node size bytes= %d", indexNodeSizeBytes));
 		System.out.println(String.format("RPC buffer len............ = %d", maxBufferLen));
+		System.out.println(String.format("FS server type/protocol... = %s/%s", fsServerType, fsServerProtocol));
+		System.out.println(String.format("FS server threads......... = worker %d, max %d, selector %d",
+				fsServerWorkerThreads, fsServerMaxWorkerThreads, fsServerSelectorThreads));
+		System.out.println(String.format("FS server max frame len... = %d", fsServerMaxFrameLen));
+		System.out.println(String.format("Shared rings dir/max bytes = %s/%d", sharedRingDir, sharedRingMaxBytes));
+		System.out.println(String.format("Metrics HTTP port......... = %d", metricsHttpPort));
 	}
 	
 	private void verify() {
@@ -238,7 +338,18 @@ public final class Configuration {
 		assert minioAccessKey.length() >= 5; //From minio documentation
 		assert minioSecretKey.length() >= 8; //From minio documentation
 		
+		assert globalStoreCodec.equals("none") || globalStoreCodec.equals("lz4") || globalStoreCodec.equals("lz4hc") ||
+				globalStoreCodec.equals("delta") :
+				"globalStoreCodec should be none, lz4, lz4hc, or delta, currently it is " + globalStoreCodec;
+		
 		assert maxBlocksPerLocalDevice > inodeBlocksPerMachine + ibmapsPerMachine; //Inodes and Ibmaps are never evicted from the local storage
+		assert localMmapBudgetMiB >= 0;
+		assert localBlockPoolSize >= 0;
+		assert localIOEngine.equals("sync") || localIOEngine.equals("pool") || localIOEngine.equals("uring") :
+				"localIOEngine should be sync, pool, or uring, currently it is " + localIOEngine;
+		assert localIOThreads > 0 && localIOQueueDepth > 0;
+		assert numLocalDevices > 0 && numLocalDevices < (1 << 15) : "numLocalDevices should be in [1, 32767], currently it is " + numLocalDevices;
+		assert localWorkersPerDevice > 0;
 		
 		assert cacheSizeMiB > (segmentSizeBytes/1048576.0);
 		
@@ -249,6 +360,33 @@ public final class Configuration {
 		assert powerOfTwo(inodesBlockSizeBytes) : "inodesBlockSizeBytes should be power of 2, currently it is: "+inodesBlockSizeBytes;
 		assert powerOfTwo(indexNodeSizeBytes) : "indexBlockSizeBytes should be power of 2, currently it is: "+ indexNodeSizeBytes;
 
+		assert metricsHttpPort >= 0 && metricsHttpPort <= 65535;
+
+		assert 0 < flowLowWatermark && flowLowWatermark < flowHighWatermark && flowHighWatermark <= 100 :
+				"Flow watermarks should be 0 < flowLowWatermark < flowHighWatermark <= 100, currently they are "
+						+ flowLowWatermark + " and " + flowHighWatermark;
+		assert maxUploadBacklog > 0;
+		assert maxAppendThrottleMs >= 0;
+		assert createBlockTimeoutMs >= 0;
+		assert uploadPriorityBoostMs >= 0;
+		assert retentionReaperIntervalSec >= 0;
+		assert replicationFactor >= 0 && replicationFactor < nodesMap.size() :
+				"replicationFactor should be less than the number of nodes, currently it is " + replicationFactor;
+		assert 0 <= replicationQuorum && replicationQuorum <= replicationFactor;
+		assert replicaAckTimeoutMs > 0;
+		assert replicaBatchMaxBytes > 0 && replicaBatchMaxBytes <= 8388608; // Well below the maximum frame of the Thrift transports
+		assert replicaPipelineDepth > 0;
+		assert replicaMaxPendingBytes >= replicaBatchMaxBytes;
+		assert maxReplicaBlocks > 0;
+		assert inodeSizeBytes >= 32 : "inodeSizeBytes should be at least the serialized inode size (32), currently it is " + inodeSizeBytes;
+
+		assert fsServerType.equals("selector") || fsServerType.equals("hsha") || fsServerType.equals("threadpool") :
+				"fsServerType should be selector, hsha, or threadpool, currently it is " + fsServerType;
+		assert fsServerProtocol.equals("binary") || fsServerProtocol.equals("compact") :
+				"fsServerProtocol should be binary or compact, currently it is " + fsServerProtocol;
+		assert fsServerMaxFrameLen >= maxBufferLen;
+		assert powerOfTwo(sharedRingMaxBytes) : "sharedRingMaxBytes should be power of 2, currently it is: " + sharedRingMaxBytes;
+
 		assert nodesPerBlockPOH > 0 : "nodesPerBlockPOH should be greater than zero, currently it is " + nodesPerBlockPOH;
 	}
 	
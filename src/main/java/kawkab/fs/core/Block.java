@@ -34,6 +34,7 @@ public abstract class Block extends AbstractTransferItem {
 	protected final static PrimaryNodeServiceClient primaryNodeService = PrimaryNodeServiceClient.instance(); // To load the block from the primary node
 	
 	//private AtomicInteger globalDirtyCnt;
+	private volatile long localDirtySince; // For the local flush lag metric
 	private AtomicInteger localDirtyCnt; // Keeps track of the number of times the block is udpated. It helps in keeping track of the
 	                        // updated bytes and flush only the updated bytes to the local/global store. 
 	                        // TODO: Change this to a dirty bit. This can be achieved by an AtomicBoolean instead of
@@ -140,7 +141,15 @@ public abstract class Block extends AbstractTransferItem {
 	 * Increment the local dirty counts.
 	 */
 	public void markLocalDirty() {
-		localDirtyCnt.incrementAndGet();
+		if (localDirtyCnt.incrementAndGet() == 1)
+			localDirtySince = System.nanoTime();
+	}
+	
+	/**
+	 * @return System.nanoTime() when the block became dirty after it was last synced locally
+	 */
+	public long localDirtySince() {
+		return localDirtySince;
 	}
 	
 	/**
@@ -287,6 +296,15 @@ public abstract class Block extends AbstractTransferItem {
 	 */
 	protected abstract void loadBlockOnNonPrimary(boolean loadFromPrimary) throws FileNotExistException, KawkabException, IOException;
 	
+	/**
+	 * Creates the block in the local store if the block is created lazily on its first load on the primary node.
+	 *
+	 * @return true if the block is created now, in which case the block is not loaded from the local or global store
+	 */
+	protected boolean createOnFirstLoad() throws IOException, KawkabException {
+		return false;
+	}
+	
 	/**
 	 * Helper function: Loads the block from the local or the global store. This code runs only on the primary node
 	 * of this block.
@@ -310,6 +328,11 @@ public abstract class Block extends AbstractTransferItem {
 					//System.out.println(" [B] **** LOAD BLOCK ON PRIMARY: " + id);
 					//System.out.println("[B] On primary. Load from the LOCAL store: " + id);
 
+					if (createOnFirstLoad()) { // The block did not exist, and its initial content is already in memory
+						isLoaded = true;
+						return;
+					}
+
 					if (!localStoreManager.load(this)) { // Load data from the local store
 						System.out.println("[B] On primary: Loading from the GLOBAL STORE: " + id);
 						loadFromGlobal(0, sizeWhenSerialized()); // Load from the global store if failed to load from the local store
@@ -0,0 +1,200 @@
+package kawkab.fs.core;
+
+import kawkab.fs.commons.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of pre-allocated data block files for each local device. A new data block takes a file from the pool of its
+ * device and renames it to the block's path, instead of creating a new file that grows with every segment flush.
+ * The files of the blocks that are evicted from the local store are recycled to the pool.
+ *
+ * The pool directory of a device is on the same device as the block files so that the files are moved by renaming.
+ * A background thread keeps the pools filled. The JDK has no fallocate, so the filler allocates a file by writing
+ * zeros to the full block size, unless localBlockPoolZeroFill is false, in which case the file is extended sparsely.
+ *
+ * A recycled file contains the data of its previous block. The valid length of a block file is tracked in the
+ * LocalStoreDB, and the readers must not rely on the file size.
+ */
+public final class BlockFilePool {
+	private static BlockFilePool instance;
+
+	private final int capacity; // Number of files per device
+	private final int fileSize;
+	private final boolean zeroFill;
+	private final String blocksPath;
+	private final Map<String, BlockingQueue<File>> pools = new ConcurrentHashMap<>(); // Device directory to its pool
+	private final AtomicLong counter = new AtomicLong();
+	private final Thread filler;
+	private volatile boolean working = true;
+
+	private BlockFilePool() {
+		Configuration conf = Configuration.instance();
+		capacity = conf.localBlockPoolSize;
+		fileSize = conf.dataBlockSizeBytes;
+		zeroFill = conf.localBlockPoolZeroFill;
+		blocksPath = conf.blocksPath;
+
+		filler = new Thread(this::runFiller, "BlockFilePoolFiller");
+		filler.setDaemon(true);
+		if (capacity > 0)
+			filler.start();
+	}
+
+	public static synchronized BlockFilePool instance() {
+		if (instance == null) {
+			instance = new BlockFilePool();
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Moves a pre-allocated file to the given path.
+	 *
+	 * @param device Device prefix of the block path, for example "fs0"
+	 * @return false if the pool of the device is empty, in which case the caller should create the file
+	 */
+	boolean takeAs(String device, File dst) {
+		if (capacity == 0)
+			return false;
+
+		BlockingQueue<File> pool = pool(device);
+		File file;
+		while ((file = pool.poll()) != null) {
+			try {
+				Files.move(file.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				return true;
+			} catch (IOException e) {
+				System.out.println("[BFP] Unable to move the pooled file " + file + " to " + dst + ": " + e.getMessage());
+				file.delete();
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Moves the file of an evicted block to the pool of its device.
+	 *
+	 * @return false if the pool is full or the file cannot be moved, in which case the caller should delete the file
+	 */
+	boolean recycle(String device, File file) {
+		if (capacity == 0)
+			return false;
+
+		BlockingQueue<File> pool = pool(device);
+		if (pool.remainingCapacity() == 0 || file.length() != fileSize) // Only the pre-allocated files are recycled
+			return false;
+
+		File dst = newPoolFile(device);
+		try {
+			Files.move(file.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			return false;
+		}
+
+		if (!pool.offer(dst)) {
+			dst.delete();
+		}
+		return true;
+	}
+
+	void shutdown() {
+		working = false;
+		filler.interrupt();
+	}
+
+	private BlockingQueue<File> pool(String device) {
+		return pools.computeIfAbsent(device, this::loadPool);
+	}
+
+	/**
+	 * Creates the pool of the device with the files that are left in the pool directory from the previous run.
+	 */
+	private BlockingQueue<File> loadPool(String device) {
+		BlockingQueue<File> pool = new LinkedBlockingQueue<>(capacity);
+		File dir = poolDir(device);
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.length() != fileSize || !pool.offer(file)) {
+					file.delete();
+				}
+			}
+		}
+
+		return pool;
+	}
+
+	private void runFiller() {
+		while (working) {
+			for (Map.Entry<String, BlockingQueue<File>> entry : pools.entrySet()) {
+				BlockingQueue<File> pool = entry.getValue();
+				while (working && pool.remainingCapacity() > 0) {
+					File file = newPoolFile(entry.getKey());
+					try {
+						allocate(file);
+					} catch (IOException e) {
+						System.out.println("[BFP] Unable to allocate a block file " + file + ": " + e.getMessage());
+						file.delete();
+						break;
+					}
+
+					if (!pool.offer(file)) {
+						file.delete();
+					}
+				}
+			}
+
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	private void allocate(File file) throws IOException {
+		try (
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				FileChannel channel = raf.getChannel()
+		) {
+			if (zeroFill) {
+				ByteBuffer zeros = ByteBuffer.allocateDirect(Math.min(fileSize, 1 << 20));
+				long pos = 0;
+				while (pos < fileSize) {
+					zeros.clear();
+					zeros.limit((int) Math.min(zeros.capacity(), fileSize - pos));
+					pos += channel.write(zeros, pos);
+				}
+				channel.force(false);
+			} else {
+				raf.setLength(fileSize);
+			}
+		}
+	}
+
+	private File newPoolFile(String device) {
+		return new File(poolDir(device), String.format("%x-%d.blk", System.nanoTime(), counter.incrementAndGet()));
+	}
+
+	private File poolDir(String device) {
+		return new File(device + File.separator + blocksPath + "-pool");
+	}
+}
@@ -47,6 +47,22 @@ public abstract class BlockID {
 	 */
 	abstract public String localPath();
 	
+	/**
+	 * @return Key of this block in the global store. The key is the same on all the nodes, regardless of the local
+	 * device of the block.
+	 */
+	public String globalPath() {
+		return localPath();
+	}
+	
+	/**
+	 * @return Key of this block in the global store of the earlier versions if it is different from globalPath(), or
+	 * null. The blocks that were uploaded by those versions are read and deleted with this key.
+	 */
+	public String legacyGlobalPath() {
+		return null;
+	}
+	
 	/**
 	 * @return an integer that is unique across the block type. For example, the segments of the same block has the
 	 * same perBlockTypeKey.
@@ -55,6 +71,55 @@ public abstract class BlockID {
 	 */
 	abstract public int perBlockTypeKey();
 	
+	/**
+	 * The key of the block's file in the local storage is the pair (localKeyHigh, localKeyLow). The key is unique
+	 * across the block type, and the segments of the same block have the same key. Unlike localPath(), the key does
+	 * not need to create objects.
+	 *
+	 * @return The high 64 bits of the local file key
+	 */
+	abstract public long localKeyHigh();
+	
+	/**
+	 * @return The low 64 bits of the local file key, see localKeyHigh()
+	 */
+	abstract public long localKeyLow();
+	
+	/**
+	 * The key of the block is the pair (keyHigh, keyLow), which is unique across all the blocks. The high bits of
+	 * keyHigh are the block type, see typeBits(). The cache looks up the blocks by their keys using BlockKey, without
+	 * creating a BlockID for each lookup.
+	 *
+	 * @return The high 64 bits of the block's key
+	 */
+	abstract public long keyHigh();
+	
+	/**
+	 * @return The low 64 bits of the block's key, see keyHigh()
+	 */
+	abstract public long keyLow();
+	
+	/**
+	 * @return The bits of the block type in keyHigh()
+	 */
+	protected static long typeBits(BlockType type) {
+		return (long) type.ordinal() << 60;
+	}
+	
+	/**
+	 * The hash code of a block's key. The hashCode() of a BlockID must be equal to the hash of its key so that a BlockKey
+	 * finds the block in the hash maps.
+	 *
+	 * @return A non-negative hash code
+	 */
+	static int hash(long high, long low) {
+		long h = high * 0x9E3779B97F4A7C15L + low;
+		h ^= h >>> 32;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 29;
+		return (int) h & 0x7fffffff;
+	}
+	
 	/**
 	 * Determines whether the node running this code is the primary writer of this block. 
 	 * @return
@@ -77,8 +142,8 @@ public abstract class BlockID {
 	 */
 	public abstract String fileID();
 
-	/* (non-Javadoc)
-	 * @see java.lang.Object#hashCode()
+	/**
+	 * @return BlockID.hash(keyHigh(), keyLow())
 	 */
 	@Override
 	public abstract int hashCode();
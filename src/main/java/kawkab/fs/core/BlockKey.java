@@ -0,0 +1,71 @@
+package kawkab.fs.core;
+
+/**
+ * A mutable 128-bit key to look up the blocks in the hash maps that are keyed by BlockIDs, without creating a BlockID
+ * for each lookup. A BlockKey is equal to a BlockID that has the same keyHigh() and keyLow(), and both have the same
+ * hash code. A key is reused by setting its value, so the users must not share a key between threads, and must not
+ * add a key in a map unless the key is not modified afterwards.
+ *
+ * The maps must be looked up by BlockKey.equals(), which is the case for the get() function of HashMap,
+ * LinkedHashMap, and ConcurrentHashMap.
+ */
+final class BlockKey {
+	private static final ThreadLocal<BlockKey> threadKeys = ThreadLocal.withInitial(BlockKey::new);
+
+	private long high;
+	private long low;
+	private int hash;
+
+	/**
+	 * @return The key of the current thread
+	 */
+	static BlockKey ofThread() {
+		return threadKeys.get();
+	}
+
+	BlockKey set(long high, long low) {
+		this.high = high;
+		this.low = low;
+		this.hash = BlockID.hash(high, low);
+		return this;
+	}
+
+	/**
+	 * Sets the key of the block's file in the local storage, which is the same for the segments of a block.
+	 */
+	BlockKey setLocalFile(BlockID id) {
+		return set(BlockID.typeBits(id.type()) | id.localKeyHigh(), id.localKeyLow());
+	}
+
+	BlockKey copy() {
+		return new BlockKey().set(high, low);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+
+		if (obj instanceof BlockID) {
+			BlockID id = (BlockID) obj;
+			return id.keyHigh() == high && id.keyLow() == low;
+		}
+
+		if (obj instanceof BlockKey) {
+			BlockKey other = (BlockKey) obj;
+			return other.high == high && other.low == low;
+		}
+
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("K-%x-%x", high, low);
+	}
+}
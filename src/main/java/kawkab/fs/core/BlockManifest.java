@@ -0,0 +1,138 @@
+package kawkab.fs.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+import kawkab.fs.core.exceptions.KawkabException;
+
+/**
+ * A persistent bitmap of the metadata blocks, inodes blocks or ibmaps, that exist in the local store in the range of
+ * this node. The blocks are created lazily when they are first loaded on the primary node, and the bootstrap reads
+ * only the manifest instead of checking a file for every block in the range.
+ *
+ * The bitmap is stored as one bit per block. A bit is set after the block file is created, and the byte of the bit
+ * is written in place. If the manifest is not found, for example after an upgrade, it is rebuilt by checking the
+ * files of the range in parallel.
+ */
+final class BlockManifest {
+	private final String name;
+	private final int rangeStart;
+	private final int count;
+	private final IntFunction<BlockID> idOf;
+	private final BitSet created;
+	private final FileChannel channel;
+
+	/**
+	 * @param dir Directory of the manifest file
+	 * @param idOf Returns the BlockID of a block index in the range
+	 */
+	BlockManifest(String name, String dir, int rangeStart, int count, IntFunction<BlockID> idOf) throws IOException {
+		this.name = name;
+		this.rangeStart = rangeStart;
+		this.count = count;
+		this.idOf = idOf;
+
+		File file = new File(dir, name + ".manifest");
+		boolean exists = file.exists() && file.length() == bytesLength();
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+
+		if (exists) {
+			ByteBuffer buffer = ByteBuffer.allocate(bytesLength());
+			while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0);
+			created = BitSet.valueOf(buffer.array());
+		} else {
+			created = scan();
+			channel.truncate(0);
+			channel.write(ByteBuffer.wrap(Arrays.copyOf(created.toByteArray(), bytesLength())), 0);
+			channel.force(false);
+		}
+
+		System.out.printf("[BM] %s manifest: %d of %d blocks exist%s\n", name, created.cardinality(), count,
+				exists ? "" : " (rebuilt)");
+	}
+
+	/**
+	 * Creates the block file with the block's current content if the block is in the range and does not exist in the
+	 * local store yet. The caller must hold the block's load lock so that the block is not created concurrently.
+	 *
+	 * @param blockIndex Index of the block among the blocks of its type
+	 * @return true if the block is created now, in which case the block need not be loaded
+	 */
+	boolean createIfAbsent(Block block, int blockIndex) throws IOException, KawkabException {
+		int idx = blockIndex - rangeStart;
+		if (idx < 0 || idx >= count)
+			return false;
+
+		synchronized (this) {
+			if (created.get(idx))
+				return false;
+		}
+
+		boolean createdNow = false;
+		File file = new File(block.id().localPath());
+		if (!file.exists()) { // The file can exist if the node crashed before the bit was written
+			try {
+				LocalStoreManager.instance().createBlock(block.id());
+			} catch (InterruptedException e) {
+				throw new KawkabException(e);
+			}
+			block.storeToFile();
+			createdNow = true;
+		}
+
+		markCreated(idx);
+		return createdNow;
+	}
+
+	/**
+	 * @param blockIndex Index of the block among the blocks of its type
+	 * @return Whether the block is in the range and exists in the local store
+	 */
+	synchronized boolean contains(int blockIndex) {
+		int idx = blockIndex - rangeStart;
+		return idx >= 0 && idx < count && created.get(idx);
+	}
+
+	synchronized void shutdown() {
+		try {
+			channel.force(false);
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private synchronized void markCreated(int idx) throws IOException {
+		created.set(idx);
+
+		int byteIdx = idx / 8;
+		byte[] bytes = created.get(byteIdx*8, byteIdx*8+8).toByteArray();
+		ByteBuffer buffer = ByteBuffer.wrap(new byte[]{bytes.length == 0 ? 0 : bytes[0]});
+		channel.write(buffer, byteIdx);
+		channel.force(false);
+	}
+
+	/**
+	 * Checks the block files of the range in parallel.
+	 */
+	private BitSet scan() {
+		BitSet bits = new BitSet(count);
+		IntStream.range(0, count).parallel()
+				.filter(i -> new File(idOf.apply(rangeStart + i).localPath()).exists())
+				.forEachOrdered(bits::set);
+		return bits;
+	}
+
+	private int bytesLength() {
+		return (count + 7) / 8;
+	}
+}
@@ -3,10 +3,13 @@ package kawkab.fs.core;
 import kawkab.fs.commons.Configuration;
 import kawkab.fs.core.exceptions.KawkabException;
 import kawkab.fs.core.exceptions.OutOfMemoryException;
+import kawkab.fs.core.metrics.Metrics;
 import kawkab.fs.utils.LatHistogram;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
@@ -31,6 +34,7 @@ public class BufferedCache extends Cache implements BlockEvictionListener{
 	//private Block syncWaitBlock;
 
 	private LocalStoreManager localStore;
+	private final Metrics metrics = Metrics.instance();
 	private final int MAX_BLOCKS_IN_CACHE;
 	private DSPool dsp;
 
@@ -170,6 +174,7 @@ public class BufferedCache extends Cache implements BlockEvictionListener{
 					throw new OutOfMemoryException("Cache is full. Current cache size: " + cache.size());
 
 				missed++;
+				metrics.cacheAccess(blockID.type(), false);
 
 				//evictIfNeeded();
 
@@ -209,6 +214,7 @@ public class BufferedCache extends Cache implements BlockEvictionListener{
 				assert cachedItem.block().id() != null;
 				cachedItem.incrementRefCnt();
 				cachedBlock = cachedItem.block();
+				metrics.cacheAccess(blockID.type(), true);
 			}
 			
 			assert cache.size() <= MAX_BLOCKS_IN_CACHE;
@@ -223,6 +229,29 @@ public class BufferedCache extends Cache implements BlockEvictionListener{
 		return cachedBlock;
 	}
 
+	/**
+	 * Acquires the block with the given key if the block is in the cache, without creating a BlockID.
+	 *
+	 * @return null if the block is not cached, in which case the caller should acquire the block using acquireBlock()
+	 */
+	Block acquireIfCached(BlockKey key) {
+		cacheLock.lock();
+		acqLog.start();
+		try {
+			CachedItem cachedItem = cache.get(key);
+			if (cachedItem == null)
+				return null; // Counted as an access in acquireBlock()
+
+			accessed++;
+			cachedItem.incrementRefCnt();
+			metrics.cacheAccess(BlockType.DATA_SEGMENT, true);
+			return cachedItem.block();
+		} finally {
+			acqLog.end();
+			cacheLock.unlock();
+		}
+	}
+
 	/**
 	 * Releases the block and decrements its reference count. Blocks with reference count 0 are eligible for eviction.
 	 * 
@@ -341,6 +370,22 @@ public class BufferedCache extends Cache implements BlockEvictionListener{
 		}
 	}*/
 	
+	@Override
+	public List<Block> dirtyBlocks() {
+		List<Block> dirty = new ArrayList<>();
+		cacheLock.lock();
+		try {
+			for (CachedItem cachedItem : cache.values()) {
+				Block block = cachedItem.block();
+				if (block.id().onPrimaryNode() && block.isLocalDirty())
+					dirty.add(block);
+			}
+		} finally {
+			cacheLock.unlock();
+		}
+		return dirty;
+	}
+	
 	/**
 	 * Flushes the block in the persistent store. This should be used only for system shutdown.
 	 * 
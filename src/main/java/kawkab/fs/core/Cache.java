@@ -1,6 +1,7 @@
 package kawkab.fs.core;
 
 import java.io.IOException;
+import java.util.List;
 
 import kawkab.fs.core.exceptions.KawkabException;
 import kawkab.fs.core.exceptions.OutOfMemoryException;
@@ -65,6 +66,23 @@ public abstract class Cache {
 	 */
 	public abstract Block acquireBlock(BlockID blockID) throws OutOfMemoryException, KawkabException, IOException;
 	
+	/**
+	 * Acquires the data segment the same as acquireBlock(new DataSegmentID(inumber, blockInFile, segmentInBlock,
+	 * recordSize)). The implementations can look up a cached segment without creating the BlockID. The caller releases
+	 * the segment using the segment's ID.
+	 */
+	public Block acquireSegment(long inumber, long blockInFile, int segmentInBlock, int recordSize)
+			throws OutOfMemoryException, KawkabException, IOException {
+		return acquireBlock(new DataSegmentID(inumber, blockInFile, segmentInBlock, recordSize));
+	}
+	
+	/**
+	 * Acquires the inodes block the same as acquireBlock(new InodesBlockID(blockIndex)), see acquireSegment().
+	 */
+	public Block acquireInodesBlock(int blockIndex) throws OutOfMemoryException, KawkabException, IOException {
+		return acquireBlock(new InodesBlockID(blockIndex));
+	}
+	
 	/**
 	 * Releases the block and decrements its reference count. Blocks with reference count 0 are eligible for eviction.
 	 * 
@@ -81,6 +99,14 @@ public abstract class Cache {
 	 * @throws KawkabException
 	 */
 	public abstract void flush() throws KawkabException;
+
+	/**
+	 * @return The cached blocks of this node that have updates that are not in the local store. Unlike flush(), the
+	 * blocks stay in the cache and can be in use. See LocalStoreManager.storeAll().
+	 */
+	public List<Block> dirtyBlocks() {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not list the dirty blocks");
+	}
 	
 	public abstract void shutdown() throws KawkabException;
 	
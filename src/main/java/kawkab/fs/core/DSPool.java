@@ -28,6 +28,7 @@ public class DSPool {
 	public void release(DataSegment ds) {
 		//System.out.println("Released " + ds.id());
 
+		ds.releaseMappedView();
 		ds.reset(null);
 
 		pool.offer(ds);
@@ -25,8 +25,11 @@ import static kawkab.fs.commons.FixedLenRecordUtils.offsetInSegment;
 public final class DataSegment extends Block {
 	private final static Configuration conf = Configuration.instance();
 	private final static int segmentSizeBytes = conf.segmentSizeBytes;
+	private final static MappedBlockFiles mappedFiles = MappedBlockFiles.instance();
 	
 	private ByteBuffer dataBuf; // Buffer to hold actual segment data
+	private final ByteBuffer ownBuf; // The segment's own buffer. dataBuf is a view of a mapped file for sealed segments.
+	private MappedBlockFiles.Region mappedRegion; // Non-null if dataBuf is a view of a mapped block file
 	private boolean isLastSeg;
 	private volatile boolean isSegFull;  // Sets to true only when the block becomes full in an append operation.
 	private long lastFetchTimeMs = 0; // ApproximateClock time in ms when the block was last loaded. This must be initialized
@@ -60,7 +63,8 @@ public final class DataSegment extends Block {
 		super(segmentID);
 		writePos = new AtomicInteger(0);
 
-		dataBuf = ByteBuffer.allocateDirect(segmentSizeBytes);
+		ownBuf = ByteBuffer.allocateDirect(segmentSizeBytes);
+		dataBuf = ownBuf;
 		storeBuffer = dataBuf.duplicate();
 		initedForAppends = false;
 		if (id == null)
@@ -76,6 +80,7 @@ public final class DataSegment extends Block {
 		super.reset(segmentID);
 		isLastSeg = segmentID.segmentInBlock()+1 == conf.segmentsPerBlock;
 		
+		releaseMappedView();
 		dataBuf.clear();
 		storeBuffer.clear();
 		
@@ -225,17 +230,15 @@ public final class DataSegment extends Block {
 	}
 
 	boolean readRecord(final ByteBuffer dstBuf, final long timestamp) {
-		ByteBuffer buf = dataBuf.duplicate();
-		buf.rewind(); //To read the first record
+		ByteBuffer buf = dataBuf; // Only the absolute reads are used, so the point reads do not create a view
 
 		// FIXME: The timestamps are read based on the assumption that the first 8 bytes of a record is a timestamp.
 		// We need a systematic way to parse and read a record.
 
 
 		int limit = writePos.get();
-		buf.limit(limit);
 
-		assert buf.remaining() >= recordSize; // at least have one record
+		assert limit >= recordSize; // at least have one record
 		if (timestamp < buf.getLong(0)) { // if the records in this segment are all greater than the given ts
 			return false;
 		}
@@ -244,11 +247,11 @@ public final class DataSegment extends Block {
 			return false;
 		}
 
-		int recIndex = binarySearch(buf, timestamp); //Record number in this segment that has the matching timestamp
+		int recIndex = binarySearch(buf, limit, timestamp); //Record number in this segment that has the matching timestamp
 		int pos = recIndex*recordSize;
-		buf.position(pos);
-		buf.limit(pos+recordSize);
-		dstBuf.put(buf);
+		for (int i=0; i<recordSize; i++) {
+			dstBuf.put(buf.get(pos+i));
+		}
 
 		return true;
 	}
@@ -281,7 +284,7 @@ public final class DataSegment extends Block {
 			return 0;
 		}
 
-		int recIndex = binarySearch(buf, maxTS); //Record number in this segment that has the matching timestamp
+		int recIndex = binarySearch(buf, buf.limit(), maxTS); //Record number in this segment that has the matching timestamp
 		int pos = recIndex*recordSize;
 		int cnt = 0;
 		while (recIndex >= 0 && buf.getLong(pos) >= minTS) {
@@ -327,7 +330,7 @@ public final class DataSegment extends Block {
 			return 0;
 		}
 
-		int recIndex = binarySearch(buf, maxTS); //Record number in this segment that has the matching timestamp
+		int recIndex = binarySearch(buf, buf.limit(), maxTS); //Record number in this segment that has the matching timestamp
 		int pos = recIndex*recordSize;
 		int cnt = 0;
 		while (recIndex >= 0 && buf.getLong(pos) >= minTS) {
@@ -349,8 +352,7 @@ public final class DataSegment extends Block {
 		return cnt;
 	}
 
-	private int binarySearch(ByteBuffer buf, long maxTS) {
-		int limit = buf.limit();
+	private int binarySearch(ByteBuffer buf, int limit, long maxTS) {
 		int lowRecNum=0;
 		int numRecords = limit/recordSize;
 		int highRecNum = numRecords-1; // Doubling the total records because we want to start search from the last record
@@ -403,19 +405,78 @@ public final class DataSegment extends Block {
 			return 0;
 		}*/
 		
+		int segOffset = ((DataSegmentID)id).segmentInBlock() * segmentSizeBytes;
+		
+		// The block files are pre-allocated, so the bytes after the valid length of the file are not the block's data
+		long validLength = LocalStoreManager.instance().validLength(id);
+		if (validLength < 0) // The length is not tracked for the files that are created before the files were pooled
+			validLength = new File(id.localPath()).length();
+		
+		if (!initedForAppends && mappedFiles.enabled() && mapSealedSegment(segOffset, validLength)) {
+			return segmentSizeBytes;
+		}
+		
+		String path = id.localPath();
+		mappedFiles.beginRead(path); // Prevents the file from being reused for another block while it is read
 		try (
-				RandomAccessFile file = new RandomAccessFile(id.localPath(), "r");
+				RandomAccessFile file = new RandomAccessFile(path, "r");
 				SeekableByteChannel channel = file.getChannel()
 		) {
 			
-			channel.position(((DataSegmentID)id).segmentInBlock() * segmentSizeBytes);
+			channel.position(segOffset);
 			//assert bytesLoaded == 0;
-			return loadFrom(channel);
+			return loadFrom(channel, (int) Math.max(0, Math.min(segmentSizeBytes, validLength - segOffset)));
+		} finally {
+			mappedFiles.endRead(path);
 		}
 	}
 	
+	/**
+	 * Serves the segment from a read-only view of the mapped block file if the segment is complete in the file. A
+	 * complete segment is sealed and is never appended again.
+	 *
+	 * @return false if the segment is not mapped, in which case the caller should copy the segment from the file
+	 */
+	private boolean mapSealedSegment(int segOffset, long validLength) {
+		MappedBlockFiles.Region region = mappedFiles.acquire(id.localPath(), segOffset, segmentSizeBytes, validLength);
+		if (region == null)
+			return false;
+
+		mappedRegion = region;
+		dataBuf = region.view(segOffset, segmentSizeBytes);
+		storeBuffer = dataBuf.duplicate();
+
+		dirtyOffset = segmentSizeBytes;
+		writePos.set(segmentSizeBytes);
+		initialAppendPos = segmentSizeBytes;
+		isSegFull = true;
+		return true;
+	}
+
+	/**
+	 * Switches the segment back to its own buffer and releases the mapped region, if any. This must be called before
+	 * the segment is reused for another block.
+	 */
+	synchronized void releaseMappedView() {
+		if (mappedRegion == null)
+			return;
+
+		mappedFiles.release(mappedRegion);
+		mappedRegion = null;
+		dataBuf = ownBuf;
+		storeBuffer = dataBuf.duplicate();
+	}
+	
 	@Override
 	public synchronized int loadFrom(ReadableByteChannel channel) throws IOException {
+		return loadFrom(channel, segmentSizeBytes);
+	}
+	
+	/**
+	 * @param maxLength Number of valid bytes that are available in the channel. The bytes after that are read as if
+	 *                  the channel has reached its end.
+	 */
+	private int loadFrom(ReadableByteChannel channel, int maxLength) throws IOException {
 		//System.out.printf("[DS] Loading %s from channel: rem=%d, writePos=%d\n",
 		//		id, dataBuf.remaining(), dataBuf.position());
 
@@ -435,7 +496,10 @@ public final class DataSegment extends Block {
 		buffer.clear();
 		buffer.limit(length);
 
+		int limit = dataBuf.limit();
+		dataBuf.limit(Math.min(limit, dataBuf.position() + maxLength));
 		int bytesRead = Commons.readFrom(channel, dataBuf);
+		dataBuf.limit(limit);
 
 		if (!initedForAppends) {
 			dirtyOffset = bytesRead;
@@ -531,7 +595,34 @@ public final class DataSegment extends Block {
 	}
 
 	/**
-	 * Stores only dirty bytes at the end of the channel.
+	 * @return A view of the dirty bytes of this segment. The view is valid until markStored() is called.
+	 */
+	synchronized ByteBuffer dirtyBytes() {
+		int limit = isSegFull ? segmentSizeBytes : writePos.get();
+		ByteBuffer dirty = storeBuffer.duplicate();
+		dirty.clear();
+		dirty.position(dirtyOffset);
+		dirty.limit(limit);
+		return dirty;
+	}
+
+	/**
+	 * @return Offset in the block file where the dirty bytes of this segment start
+	 */
+	synchronized long dirtyOffsetInBlock() {
+		return (long) ((DataSegmentID)id).segmentInBlock() * segmentSizeBytes + dirtyOffset;
+	}
+
+	/**
+	 * Marks the given number of dirty bytes as stored after they are written from the view returned by dirtyBytes().
+	 */
+	synchronized void markStored(int bytes) {
+		dirtyOffset += bytes;
+	}
+
+	/**
+	 * Stores only dirty bytes at the segment's dirty offset in the channel. The block files are pre-allocated, so the
+	 * size of the channel is not the end of the block's data.
 	 * @param channel
 	 * @return
 	 * @throws IOException
@@ -540,8 +631,7 @@ public final class DataSegment extends Block {
 	public synchronized int storeTo(FileChannel channel) throws IOException {
 		int bytesWritten = 0;
 
-		//channel.position(appendOffsetInBlock());
-		channel.position(channel.size());
+		channel.position(dirtyOffsetInBlock());
 
 		synchronized (storeBuffer) {
 			int limit = isSegFull ? segmentSizeBytes : writePos.get();
@@ -1,7 +1,6 @@
 package kawkab.fs.core;
 
 import java.io.File;
-import java.util.Objects;
 
 import kawkab.fs.commons.Commons;
 import kawkab.fs.commons.Configuration;
@@ -15,9 +14,13 @@ public final class DataSegmentID extends BlockID {
 	private final long blockInFile;
 	private final int segmentInBlock; //Zero based segment index
 	private final int recordSize;
-	private String localPath;
+	private volatile LocalPath localPath;
+	private String globalPath;
 	private int hash;
-	private static int numDevices = Configuration.instance().numLocalDevices;
+	private static volatile int legacyDevices = Configuration.instance().numLocalDevices; // See setLegacyDevices()
+	private static final String[] localDataDirs = Configuration.instance().localDataDirs;
+	private static LocalStoreManager localStore; // Set on the first use because the IDs are created before the local store
+	private static final int segmentsPerBlock = Configuration.instance().segmentsPerBlock;
 	private static final String blocksPath = Configuration.instance().blocksPath;
 	
 	/**
@@ -35,6 +38,14 @@ public final class DataSegmentID extends BlockID {
 		this.recordSize = recordSize;
 	}
 
+	/**
+	 * @return ID of the last segment of the block. A data block is queued for the upload to the global store with the
+	 * ID of its last segment, see DataSegment.shouldStoreGlobally().
+	 */
+	public static DataSegmentID lastSegmentOf(long inumber, long blockInFile, int recordSize) {
+		return new DataSegmentID(inumber, blockInFile, segmentsPerBlock-1, recordSize);
+	}
+
 	public int recordSize() {
 		return recordSize;
 	}
@@ -49,16 +60,84 @@ public final class DataSegmentID extends BlockID {
 		return new DataSegment(this);
 	}
 
+	/**
+	 * @return Path of the block file on its local device. The device of a block is chosen when the block is created
+	 * locally, and it is recorded in the LocalStoreDB. The blocks that are not in the local store, or that were created
+	 * before the devices were recorded, have the path on the device that is derived from the block.
+	 */
 	@Override
 	public String localPath() {
+		if (localStore == null)
+			localStore = LocalStoreManager.instance();
+		
+		int device = localStore.deviceOf(this);
+		LocalPath cached = localPath;
+		if (cached != null && cached.device == device)
+			return cached.path;
+		
+		String path = buildPath(deviceDir(device));
+		if (device >= 0 || localStore.exists(this)) // Not cached for a block that is about to be created
+			localPath = new LocalPath(device, path);
+		
+		return path;
+	}
+	
+	/**
+	 * @return Path of the block file on the given local device
+	 */
+	String localPath(int device) {
+		return buildPath(deviceDir(device));
+	}
+	
+	/**
+	 * @param device The recorded local device of the block, or -1 if the device is not recorded
+	 * @return The directory of the device
+	 */
+	String deviceDir(int device) {
+		return device < 0 ? legacyDevice() : localDataDirs[device];
+	}
+	
+	/**
+	 * @return The key of the block in the global store, which is the path of the block under the directory of its
+	 * device. The key does not depend on the local devices, so it does not change if the devices change.
+	 */
+	@Override
+	public String globalPath() {
+		String path = globalPath;
+		if (path == null) {
+			path = buildPath(null).intern();
+			globalPath = path;
+		}
+		return path;
+	}
+	
+	/**
+	 * @return The key of the block in the global store of the earlier versions, which is the local path of the block
+	 * before the blocks were placed on the devices by their free space
+	 */
+	@Override
+	public String legacyGlobalPath() {
+		return buildPath(legacyDevice());
+	}
+	
+	/**
+	 * Sets the number of the local devices when the devices of the blocks were derived from the blocks. The device of
+	 * a legacy block, and its legacy key in the global store, depend on that number. The local store records the number
+	 * when it is created, see LocalStoreDB.legacyDevices().
+	 */
+	static void setLegacyDevices(int devices) {
+		legacyDevices = devices;
+	}
+	
+	/**
+	 * @param deviceDir The directory of the device, or null for the path without the device
+	 */
+	private String buildPath(String deviceDir) {
 		//TODO: May be a better approach is to use Base64 encoding for the inumber and use hex values
 		//for the block number! Currently it is implemented as the encoding of both values.
 		
 		//String uuid = String.format("%016x%016x", id.highBits, id.lowBits);
 		
-		if (localPath != null)
-			return localPath;
-		
 		String uuid = Commons.uuidToBase64String(inumber, blockInFile);
 		int uuidLen = uuid.length();
 		int wordSize = 3; //Number of characters of the Base64 encoding that make a directory
@@ -67,8 +146,10 @@ public final class DataSegmentID extends BlockID {
 		
 		assert wordSize * levels < uuidLen-1;
 		
-		StringBuilder path = new StringBuilder(blocksPath.length()+uuidLen+levels+4); //4 for extra head-room
-		path.append("fs").append(perBlockTypeKey() % numDevices).append(File.separator).append(blocksPath).append(File.separator);
+		StringBuilder path = new StringBuilder(40+blocksPath.length()+uuidLen+levels); //40 for the device and extra head-room
+		if (deviceDir != null)
+			path.append(deviceDir).append(File.separator);
+		path.append(blocksPath).append(File.separator);
 		
 		int rootLen = uuidLen - levels*wordSize; // The root folder can have more characters than wordSize
 		path.append(uuid, 0, rootLen);
@@ -77,14 +158,47 @@ public final class DataSegmentID extends BlockID {
 			path.append(File.separator).append(uuid, rootLen+i*wordSize, rootLen+i*wordSize+wordSize);
 		}
 		
-		localPath = path.toString().intern(); //TODO: Should we intern() this string?
+		return path.toString();
+	}
 
-		return localPath;
+	/**
+	 * @return The device directory of the blocks whose device is not recorded
+	 */
+	private String legacyDevice() {
+		return "fs" + (perBlockTypeKey() % legacyDevices);
 	}
 
 	@Override
 	public int perBlockTypeKey() {
-		return Objects.hash(inumber, blockInFile);
+		return 31 * (31 + Long.hashCode(inumber)) + Long.hashCode(blockInFile); // Objects.hash(inumber, blockInFile) without boxing
+	}
+
+	@Override
+	public long keyHigh() {
+		return keyHighOf(inumber);
+	}
+	
+	@Override
+	public long keyLow() {
+		return keyLowOf(blockInFile, segmentInBlock);
+	}
+	
+	static long keyHighOf(long inumber) {
+		return typeBits(BlockType.DATA_SEGMENT) | inumber;
+	}
+	
+	static long keyLowOf(long blockInFile, int segmentInBlock) {
+		return blockInFile * segmentsPerBlock + segmentInBlock;
+	}
+	
+	@Override
+	public long localKeyHigh() {
+		return inumber;
+	}
+	
+	@Override
+	public long localKeyLow() {
+		return blockInFile;
 	}
 
 	@Override
@@ -112,9 +226,8 @@ public final class DataSegmentID extends BlockID {
 	@Override
 	public int hashCode() {
 		if (hash == 0)
-			hash = Objects.hash(inumber, blockInFile, segmentInBlock);
+			hash = BlockID.hash(keyHigh(), keyLow());
 		return hash;
-		//return Objects.hash(inumber, blockInFile, segmentInBlock);
 	}
 
 	@Override
@@ -129,4 +242,17 @@ public final class DataSegmentID extends BlockID {
 				blockInFile == that.blockInFile &&
 				segmentInBlock == that.segmentInBlock;
 	}
+	
+	/**
+	 * The cached path of the block file and the device of the path
+	 */
+	private static final class LocalPath {
+		private final int device;
+		private final String path;
+		
+		private LocalPath(int device, String path) {
+			this.device = device;
+			this.path = path.intern();
+		}
+	}
 }
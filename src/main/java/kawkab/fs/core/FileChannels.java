@@ -52,7 +52,8 @@ import java.util.Map;
  * */
 
 public class FileChannels implements DeferredWorkReceiver<FileChannels.FileChannelWrap> {
-	private final Map<String, TimerQueueItem<FileChannelWrap>> timerItemsMap;
+	private final Map<BlockKey, TimerQueueItem<FileChannelWrap>> timerItemsMap; // Keyed by the keys of the local files
+	private final BlockKey lookupKey = new BlockKey(); // Reused for the lookups under the lock of this object
 	
 	private static final int timeoutMillis = 5000; //5 seconds selected arbitrarily
 	private final TimerQueue tq;
@@ -74,13 +75,13 @@ public class FileChannels implements DeferredWorkReceiver<FileChannels.FileChann
 	 * @throws FileNotFoundException
 	 */
 	public synchronized FileChannel acquireChannel(BlockID blockID) throws IOException {
-		String filePath = blockID.localPath();
-		TimerQueueItem<FileChannelWrap> itemWrap = timerItemsMap.get(filePath);
+		TimerQueueItem<FileChannelWrap> itemWrap = timerItemsMap.get(lookupKey.setLocalFile(blockID));
 		
 		// If the channel is already opened and not in the process of closing, return the existing channel
 		if (itemWrap != null && tq.tryDisable(itemWrap)) {
 			hitCount++;
 			//itemWrap.incrementAndGet();
+			itemWrap.getItem().inUse = true;
 			return itemWrap.getItem().channel();
 		}
 		
@@ -89,10 +90,11 @@ public class FileChannels implements DeferredWorkReceiver<FileChannels.FileChann
 		// map.
 		
 		
-		FileChannelWrap channelWrap = new FileChannelWrap(filePath);
+		FileChannelWrap channelWrap = new FileChannelWrap(lookupKey.copy(), blockID.localPath());
 		itemWrap = new TimerQueueItem<>(channelWrap, this);
 		//itemWrap.incrementAndGet();
-		timerItemsMap.put(filePath, itemWrap);
+		channelWrap.inUse = true;
+		timerItemsMap.put(channelWrap.key(), itemWrap);
 
 		missCount++;
 		
@@ -102,8 +104,7 @@ public class FileChannels implements DeferredWorkReceiver<FileChannels.FileChann
 	@Override
 	public synchronized void deferredWork(FileChannelWrap wrap) {
 		try {
-			String filePath = wrap.filePath();
-			TimerQueueItem<FileChannelWrap> item = timerItemsMap.get(filePath);
+			TimerQueueItem<FileChannelWrap> item = timerItemsMap.get(wrap.key());
 
 			// Here we should remove the saved wrapper from the timerItemsMap. However, we have to check if the
 			// mapped FileChannelWrap is the same as the one that is passed in this function. If they are not the same,
@@ -112,7 +113,7 @@ public class FileChannels implements DeferredWorkReceiver<FileChannels.FileChann
 			
 			if (item.getItem() == wrap) { // If the saved wrapper and wrap are the same, it is safe to remove wrap because the channel cannot be reused
 				//assert item.count() == 0 : "The counter of the TimerItemQueue must be 0 before it can be removed from the map. The current value is " + item.count();
-				timerItemsMap.remove(filePath);
+				timerItemsMap.remove(wrap.key());
 			}
 			
 			// Close the file channel and release the channel object
@@ -123,22 +124,50 @@ public class FileChannels implements DeferredWorkReceiver<FileChannels.FileChann
 	}
 	
 	public synchronized void releaseFileChannel(BlockID id) {
-		TimerQueueItem<FileChannelWrap> item = timerItemsMap.get(id.localPath());
+		TimerQueueItem<FileChannelWrap> item = timerItemsMap.get(lookupKey.setLocalFile(id));
 		
 		assert item != null : id + " is null";
 
 		//if (item.decrementAndGet() == 0)
+		item.getItem().inUse = false;
 		tq.enableAndAdd(item, timeoutMillis+clock.currentTime());
 	}
 	
+	/**
+	 * Closes the cached channel of the local file of the block, so that the file can be removed or reused for another
+	 * block without a stale channel to the file.
+	 *
+	 * @return false if the channel is acquired and not released yet, in which case the file must not be reused
+	 */
+	public synchronized boolean invalidate(BlockID id) {
+		TimerQueueItem<FileChannelWrap> item = timerItemsMap.get(lookupKey.setLocalFile(id));
+		if (item == null)
+			return true;
+		
+		if (item.getItem().inUse)
+			return false;
+		
+		// If the timer has expired, deferredWork() closes the channel once it gets the lock of this object
+		if (tq.tryDisable(item)) {
+			timerItemsMap.remove(item.getItem().key());
+			try {
+				item.getItem().closeChannel();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		return true;
+	}
+	
 	public void shutdown() {
 		System.out.printf("["+name+"]File Channel: Hits: %d, Miss: %d, Total: %d, Hit ratio: %.2f\n",
 				hitCount, missCount, hitCount+missCount, (hitCount*1.0/(hitCount+missCount)));
 		
 		synchronized (this) {
 			if (timerItemsMap.size() > 0) {
-				for (String key : timerItemsMap.keySet()) {
-					System.out.println("\t\t\t[" + name + "] >> File not closed yet: " + key);
+				for (TimerQueueItem<FileChannelWrap> item : timerItemsMap.values()) {
+					System.out.println("\t\t\t[" + name + "] >> File not closed yet: " + item.getItem());
 				}
 			}
 		}
@@ -156,14 +185,17 @@ public class FileChannels implements DeferredWorkReceiver<FileChannels.FileChann
 	
 	public class FileChannelWrap {
 		private FileChannel channel;
+		private final BlockKey key;
 		private String filePath;
+		private boolean inUse; // True between acquireChannel and releaseFileChannel, guarded by the FileChannels object
 		
-		private FileChannelWrap (String filePath) throws IOException {
+		private FileChannelWrap (BlockKey key, String filePath) throws IOException {
+			this.key = key;
 			this.filePath = filePath;
 			this.channel = FileChannel.open(new File(filePath).toPath(), StandardOpenOption.WRITE, StandardOpenOption.READ);
 		}
 		
-		private String filePath() { return filePath; }
+		private BlockKey key() { return key; }
 		private FileChannel channel() { return channel; }
 		private void closeChannel() throws IOException {
 			channel.close();
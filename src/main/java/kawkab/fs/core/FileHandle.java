@@ -5,6 +5,8 @@ import kawkab.fs.commons.Commons;
 import kawkab.fs.commons.Configuration;
 import kawkab.fs.core.Filesystem.FileMode;
 import kawkab.fs.core.exceptions.*;
+import kawkab.fs.core.metrics.FileMetrics;
+import kawkab.fs.core.metrics.Metrics;
 import kawkab.fs.core.timerqueue.DeferredWorkReceiver;
 import kawkab.fs.core.timerqueue.TimerQueueIface;
 import kawkab.fs.core.timerqueue.TimerQueueItem;
@@ -27,11 +29,15 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 	private final boolean onPrimaryNode; //Indicates whether this file is opened on its primary node or not
 	private final TimerQueueIface fsQ;
 	private TimerQueueItem<InodesBlock> inbAcquired;
+	private final FileMetrics metrics;
+	private volatile long replicaSeq; // Sequence number of the last bytes appended through this handle, see awaitReplicated()
 
 	private final static Cache cache;
 	private final static ApproximateClock clock = ApproximateClock.instance();
 	private final static int inodesPerBlock;	// Used in accessing the inode of this file when on the non-primary node
 	private final static LocalStoreManager localStore;	// FIXME: Isn't it a bad design to access localStore from a file handle?
+	private final static FlowControl flowControl;
+	private final static Replicator replicator;
 	private final static int bufferTimeLimitMs = 5000;
 	//private final LatHistogram rLog;
 	//private final LatHistogram wLog;
@@ -41,6 +47,8 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 		inodesPerBlock = conf.inodesPerBlock;
 		cache = Cache.instance();
 		localStore = LocalStoreManager.instance();
+		flowControl = FlowControl.instance();
+		replicator = Replicator.instance();
 	}
 
 	public FileHandle(long inumber, FileMode mode, TimerQueueIface fsQ, TimerQueueIface segsQ) throws IOException, KawkabException {
@@ -62,6 +70,8 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 		if (mode == FileMode.APPEND) //Pre-fetch the last block for writes
 			inode.loadLastBlock();
 
+		metrics = Metrics.instance().file(inumber); // Released in close()
+
 		//rLog = new LatHistogram(TimeUnit.MICROSECONDS, "R-"+inumber, 10, 10000);
 		//wLog = new LatHistogram(TimeUnit.MICROSECONDS, "W-"+inumber, 10, 10000);
 	}
@@ -81,6 +91,7 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 			throw new IllegalArgumentException("Read length is negative or greater than the given buffer size.");
 
 		//rLog.start();
+		metrics.read();
 
 		long fileSize = 0;
 		InodesBlock inb = null;
@@ -96,8 +107,7 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 				inode = this.inode;
 			} else {
 				int blockIndex = (int) (inumber / inodesPerBlock);
-				BlockID id = new InodesBlockID(blockIndex);
-				inb = (InodesBlock) cache.acquireBlock(id);
+				inb = (InodesBlock) cache.acquireInodesBlock(blockIndex);
 				inb.loadBlock(loadFromPrimary);
 				inode = inb.getInode(inumber);
 			}
@@ -132,6 +142,7 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 	public synchronized List<ByteBuffer> readRecords(final long minTS, final long maxTS, final int recSize, boolean loadFromPrimary)
 			throws OutOfMemoryException, KawkabException, IOException {
 		//rLog.start();
+		metrics.read();
 		InodesBlock inb = null;
 		Inode inode;
 
@@ -144,8 +155,7 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 				inode = this.inode;
 			} else {
 				int blockIndex = (int) (inumber / inodesPerBlock);
-				BlockID id = new InodesBlockID(blockIndex);
-				inb = (InodesBlock) cache.acquireBlock(id);
+				inb = (InodesBlock) cache.acquireInodesBlock(blockIndex);
 				inb.loadBlock(loadFromPrimary);
 				inode = inb.getInode(inumber);
 			}
@@ -163,6 +173,7 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 	public synchronized List<Record> readRecords(final long minTS, final long maxTS, final Record recFactory, boolean loadFromPrimary)
 			throws OutOfMemoryException, KawkabException, IOException {
 		//rLog.start();
+		metrics.read();
 		InodesBlock inb = null;
 		Inode inode;
 
@@ -175,8 +186,7 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 				inode = this.inode;
 			} else {
 				int blockIndex = (int) (inumber / inodesPerBlock);
-				BlockID id = new InodesBlockID(blockIndex);
-				inb = (InodesBlock) cache.acquireBlock(id);
+				inb = (InodesBlock) cache.acquireInodesBlock(blockIndex);
 				inb.loadBlock(loadFromPrimary);
 				inode = inb.getInode(inumber);
 			}
@@ -207,6 +217,7 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 			OutOfMemoryException, IOException, RecordNotFoundException, KawkabException {
 
 		//rLog.start();
+		metrics.read();
 		InodesBlock inb = null;
 		Inode inode;
 
@@ -219,8 +230,7 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 				inode = this.inode;
 			} else {
 				int blockIndex = (int) (inumber / inodesPerBlock);
-				BlockID id = new InodesBlockID(blockIndex);
-				inb = (InodesBlock) cache.acquireBlock(id);
+				inb = (InodesBlock) cache.acquireInodesBlock(blockIndex);
 				inb.loadBlock(loadFromPrimary);
 				inode = inb.getInode(inumber);
 			}
@@ -252,6 +262,7 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 	public synchronized boolean recordNum(final ByteBuffer dstBuf, final long recordNum, final int recSize, final boolean loadFromPrimary) throws
 			OutOfMemoryException, IOException, KawkabException, RecordNotFoundException, InvalidFileOffsetException {
 		//rLog.start();
+		metrics.read();
 
 		if (recordNum <= 0)
 			throw new InvalidFileOffsetException("Record number " + recordNum + " is invalid.");
@@ -268,8 +279,7 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 				inode = this.inode;
 			} else {
 				int blockIndex = (int) (inumber / inodesPerBlock);
-				BlockID id = new InodesBlockID(blockIndex);
-				inb = (InodesBlock) cache.acquireBlock(id);
+				inb = (InodesBlock) cache.acquireInodesBlock(blockIndex);
 				inb.loadBlock(loadFromPrimary);
 				inode = inb.getInode(inumber);
 			}
@@ -293,13 +303,23 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 	 * dataIndex.timestamp() to refer to the data just written.
 	 * @throws OutOfMemoryException
 	 * @throws InvalidFileOffsetException
+	 * @throws BackpressureException if the flow control rejects the append; the file is not modified
+	 * @throws ReplicationException if the replicationQuorum peers do not acknowledge the data in time; the data is
+	 * appended but it is not known to be replicated
 	 * @throws IOException
 	 * @throws KawkabException
 	 * @throws InterruptedException
 	 */
 	
-	public synchronized int append(byte[] data, int offset, int length) throws OutOfMemoryException, MaxFileSizeExceededException,
+	public int append(byte[] data, int offset, int length) throws OutOfMemoryException, MaxFileSizeExceededException,
 									IOException, KawkabException, InterruptedException{
+		int appendedBytes = appendBytes(data, offset, length);
+		awaitReplicated();
+		return appendedBytes;
+	}
+
+	private synchronized int appendBytes(byte[] data, int offset, int length) throws OutOfMemoryException,
+									MaxFileSizeExceededException, IOException, KawkabException, InterruptedException{
 		//wLog.start();
 
 		if (fileMode != FileMode.APPEND || !onPrimaryNode) {
@@ -310,6 +330,8 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 			throw new FileHandleClosedException("The file handle is closed. Open the file again to get the new handle.");
 		}
 
+		flowControl.admitAppend();
+
 		int appendedBytes = inode.appendBuffered(data, offset, length);
 
 		if (inbAcquired == null || !fsQ.tryDisable(inbAcquired)) {
@@ -319,6 +341,10 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 		inbAcquired.getItem().markLocalDirty();
 		fsQ.enableAndAdd(inbAcquired, clock.currentTime() + bufferTimeLimitMs);
 
+		metrics.appended(appendedBytes);
+
+		replicaSeq = inode.replicaSeq();
+
 		//wLog.end();
 		return appendedBytes;
 	}
@@ -333,12 +359,35 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 	 * dataIndex.timestamp() to refer to the data just written.
 	 * @throws OutOfMemoryException
 	 * @throws InvalidFileOffsetException
+	 * @throws BackpressureException if the flow control rejects the append; the file is not modified
+	 * @throws ReplicationException if the replicationQuorum peers do not acknowledge the data in time; the data is
+	 * appended but it is not known to be replicated
 	 * @throws IOException
 	 * @throws KawkabException
 	 * @throws InterruptedException
 	 */
-	public synchronized int append(final ByteBuffer srcBuf, int recSize) throws OutOfMemoryException, MaxFileSizeExceededException,
+	public int append(final ByteBuffer srcBuf, int recSize) throws OutOfMemoryException, MaxFileSizeExceededException,
 			IOException, KawkabException, InterruptedException{
+		return append(srcBuf, recSize, true);
+	}
+
+	/**
+	 * Append data at the end of the file and index with the given key
+	 *
+	 * @param awaitQuorum Whether to wait until the replicationQuorum peers acknowledge the data. A batch of appends
+	 *                    passes false and calls awaitReplicated() once after the batch.
+	 * @return Number of bytes appended
+	 */
+	public int append(final ByteBuffer srcBuf, int recSize, boolean awaitQuorum) throws OutOfMemoryException,
+			MaxFileSizeExceededException, IOException, KawkabException, InterruptedException{
+		int appendedBytes = appendRecords(srcBuf, recSize);
+		if (awaitQuorum)
+			awaitReplicated();
+		return appendedBytes;
+	}
+
+	private synchronized int appendRecords(final ByteBuffer srcBuf, int recSize) throws OutOfMemoryException,
+			MaxFileSizeExceededException, IOException, KawkabException, InterruptedException{
 		if (fileMode != FileMode.APPEND || !onPrimaryNode) {
 			throw new InvalidFileModeException();
 		}
@@ -347,6 +396,8 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 			throw new FileHandleClosedException("The file handle is closed. Open the file again to get the new handle.");
 		}
 
+		flowControl.admitAppend();
+
 		//wLog.start();
 
 		int appendedBytes = inode.appendRecords(srcBuf, recSize);
@@ -358,10 +409,25 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 		inbAcquired.getItem().markLocalDirty();
 		fsQ.enableAndAdd(inbAcquired, clock.currentTime() + bufferTimeLimitMs);
 
+		metrics.appended(appendedBytes);
+
+		replicaSeq = inode.replicaSeq();
+
 		//wLog.end();
 		return appendedBytes;
 	}
 
+	/**
+	 * Waits until the replicationQuorum peers acknowledge the data that has been appended through this handle. The
+	 * handle is not locked while waiting, so the other appends of the file are not blocked by the peers.
+	 *
+	 * @throws ReplicationException if the peers do not acknowledge the data in time; the data is appended but it is
+	 * not known to be replicated
+	 */
+	public void awaitReplicated() throws ReplicationException, InterruptedException {
+		replicator.awaitQuorum(replicaSeq);
+	}
+
 	/**
 	 * @return Returns file size in bytes.
 	 * @throws KawkabException 
@@ -458,6 +524,24 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 		return fileMode;
 	}
 	
+	/**
+	 * Recovers the tail of the file after a crash, see Inode.recoverTail(). The inodes block is stored if the file
+	 * size has changed.
+	 *
+	 * @return The recovered file size
+	 */
+	synchronized long recoverTail() throws IOException, KawkabException {
+		if (!onPrimaryNode || inodesBlock == null)
+			throw new InvalidFileModeException();
+
+		long size = inode.fileSize();
+		long recovered = inode.recoverTail();
+		if (recovered != size)
+			inodesBlock.markLocalDirty(); // Stored when the block is released in close()
+
+		return recovered;
+	}
+	
 	synchronized void close() throws KawkabException {
 		if (inbAcquired != null && fsQ.tryDisable(inbAcquired)) {
 			deferredWork(inbAcquired.getItem());
@@ -465,6 +549,7 @@ public final class FileHandle implements DeferredWorkReceiver<InodesBlock> {
 
 		if (inodesBlock != null) {
 			inode.cleanup(); //FIXME: This will cleanup for all the clients that have opened the file, which is wrong.
+			Metrics.instance().release(metrics);
 			cache.releaseBlock(inodesBlock.id());
 		}
 
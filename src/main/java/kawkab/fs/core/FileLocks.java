@@ -30,6 +30,6 @@ public class FileLocks {
 	public Lock grabLock(BlockID blockID) { //FIXME: This is not a good approach. We should not give the lock to the caller
 		assert blockID != null : "BlockID should not be null";
 
-		return locks.get(blockID.perBlockTypeKey());
+		return locks.getAt(Math.floorMod(blockID.perBlockTypeKey(), locks.size())); // get() would box the key
 	}
 }
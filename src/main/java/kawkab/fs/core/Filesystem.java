@@ -1,9 +1,11 @@
 package kawkab.fs.core;
 
 import kawkab.fs.api.FileOptions;
+import kawkab.fs.api.FileStat;
 import kawkab.fs.commons.Configuration;
 import kawkab.fs.core.exceptions.*;
 import kawkab.fs.core.index.poh.POHNode;
+import kawkab.fs.core.metrics.Metrics;
 import kawkab.fs.core.services.thrift.FilesystemServiceServer;
 import kawkab.fs.core.services.thrift.PrimaryNodeServiceServer;
 import kawkab.fs.core.timerqueue.TimerQueue;
@@ -11,9 +13,18 @@ import kawkab.fs.core.timerqueue.TimerQueueIface;
 import kawkab.fs.utils.GCMonitor;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public final class Filesystem {
 	private static volatile boolean initialized;
@@ -32,6 +43,7 @@ public final class Filesystem {
 
 	private TimerQueueIface fsQ;
 	private TimerQueueIface segsQ;
+	private ExecutorService openExecutor; // Loads the inodes blocks of the files in a bulk open request in parallel
 
 	private Filesystem() throws KawkabException, IOException {
 		namespace = Namespace.instance();
@@ -41,7 +53,8 @@ public final class Filesystem {
 		fss.startServer();
 		fsQ = new TimerQueue("FS Timer Queue");
 		segsQ = new TimerQueue("Segs Timer Queue");
-		openFiles = new HashMap<>();
+		openFiles = new ConcurrentHashMap<>();
+		openExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 		cache = Cache.instance();
 		conf = Configuration.instance();
 	}
@@ -60,7 +73,7 @@ public final class Filesystem {
 	 * 
 	 * @param filename
 	 * @param mode Append mode allows to read and append the file. Read mode allows only to read the file.
-	 * @param opts Currently its just a place holder
+	 * @param opts Options of the file if the file is created, see FileOptions
 	 * @return A FileHandle that can be used to perform read, append, close, and delete operations on the file.
 	 * 
 	 * @throws IbmapsFullException if the system is full and no new file can be created unless an existing file is deleted
@@ -70,7 +83,7 @@ public final class Filesystem {
 	 * @throws KawkabException
 	 * @throws InterruptedException
 	 */
-	public synchronized FileHandle open(String filename, FileMode mode, FileOptions opts)
+	public FileHandle open(String filename, FileMode mode, FileOptions opts)
 			throws IbmapsFullException, IOException, FileAlreadyOpenedException, FileNotExistException, KawkabException, InterruptedException {
 		//TODO: Validate input
 		
@@ -82,10 +95,181 @@ public final class Filesystem {
 		System.out.println("[FS] Opened file: " + filename + ", inumber: " + inumber);
 		FileHandle file = new FileHandle(inumber, mode, fsQ, segsQ);
 		verify(inumber, opts.recordSize());
+		if (mode == FileMode.APPEND)
+			OpenFilesCheckpoint.instance().opened(inumber);
 		openFiles.put(file.inumber(), file);
 		return file;
 	}
 
+	/**
+	 * Opens multiple files in one batch. The namespace resolution is pipelined to ZooKeeper, the new files are created
+	 * together, and the inodes blocks of the files are loaded in parallel. The semantics for each file are the same as
+	 * in {@link #open(String, FileMode, FileOptions)}.
+	 *
+	 * If any of the files cannot be opened, none of the files of the batch remains open and the exception is passed to
+	 * the caller.
+	 *
+	 * @return FileHandles of the files in the same order as the filenames
+	 */
+	public FileHandle[] bulkOpen(String[] filenames, FileMode[] modes, FileOptions[] opts)
+			throws IbmapsFullException, IOException, FileAlreadyOpenedException, FileNotExistException, KawkabException, InterruptedException {
+		assert filenames.length == modes.length && filenames.length == opts.length;
+
+		boolean[] appendModes = new boolean[filenames.length];
+		for (int i=0; i<filenames.length; i++) {
+			assert opts[i].recordSize() > 0;
+			assert opts[i].recordSize() <= conf.segmentSizeBytes;
+
+			appendModes[i] = modes[i] == FileMode.APPEND;
+		}
+
+		long[] inumbers = namespace.openFiles(filenames, appendModes, opts);
+
+		FileHandle[] handles = new FileHandle[filenames.length];
+		Future<?>[] futures = new Future<?>[filenames.length];
+		boolean opened = false;
+		try {
+			for (int i=0; i<filenames.length; i++) {
+				final int idx = i;
+				futures[i] = openExecutor.submit(() -> {
+					FileHandle file = new FileHandle(inumbers[idx], modes[idx], fsQ, segsQ);
+					handles[idx] = file;
+					verify(inumbers[idx], opts[idx].recordSize());
+					return null;
+				});
+			}
+
+			Throwable failure = null;
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (failure == null)
+						failure = e.getCause();
+				}
+			}
+
+			if (failure != null) {
+				if (failure instanceof KawkabException)
+					throw (KawkabException) failure;
+				if (failure instanceof IOException)
+					throw (IOException) failure;
+				throw new KawkabException(failure);
+			}
+
+			long[] appendFiles = new long[filenames.length];
+			int numAppends = 0;
+			for (int i=0; i<filenames.length; i++) {
+				if (appendModes[i])
+					appendFiles[numAppends++] = inumbers[i];
+			}
+			OpenFilesCheckpoint.instance().opened(Arrays.copyOf(appendFiles, numAppends));
+
+			for (FileHandle file : handles) {
+				openFiles.put(file.inumber(), file);
+			}
+
+			opened = true;
+			return handles;
+		} finally {
+			if (!opened)
+				rollbackOpen(inumbers, appendModes, handles, futures);
+		}
+	}
+
+	/**
+	 * Closes the files of a failed bulkOpen. The opens that are still running are waited for so that their handles
+	 * are closed as well. A failure to close one file does not stop closing the other files.
+	 */
+	private void rollbackOpen(long[] inumbers, boolean[] appendModes, FileHandle[] handles, Future<?>[] futures) {
+		boolean interrupted = false;
+		for (int i=0; i<inumbers.length; i++) {
+			while (futures[i] != null) {
+				try {
+					futures[i].get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException | CancellationException e) {
+					break;
+				}
+			}
+
+			if (handles[i] != null) {
+				try {
+					handles[i].close();
+				} catch (KawkabException | RuntimeException e) {
+					System.out.println("[FS] Unable to close the file " + inumbers[i] + " of a failed bulk open: " + e.getMessage());
+				}
+			}
+
+			if (appendModes[i]) {
+				try {
+					namespace.closeAppendFile(inumbers[i]);
+				} catch (KawkabException | RuntimeException e) {
+					System.out.println("[FS] Unable to release the append mode of the file " + inumbers[i] + ": " + e.getMessage());
+				}
+			}
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Lists the files and directories whose names start with the given prefix. The results are sorted by name, and
+	 * the directories are returned with a trailing "/". Large directories can be enumerated page by page by passing
+	 * the last returned name as startAfter.
+	 *
+	 * @param prefix Prefix of the names, e.g., "nasdaq/2019-10-"
+	 * @param startAfter Returns the names greater than this name; null to start from the first name
+	 * @param maxEntries Maximum number of names to return
+	 */
+	public List<String> list(String prefix, String startAfter, int maxEntries) throws KawkabException {
+		return namespace.list(prefix, startAfter, maxEntries);
+	}
+
+	/**
+	 * Returns the size and the record size of the given files. The files do not need to be opened. The namespace
+	 * lookups are batched, and each inodes block is acquired once for all the files in the block.
+	 *
+	 * @return Stats of the files in the same order as the filenames
+	 */
+	public FileStat[] stat(String[] filenames) throws IOException, KawkabException, InterruptedException {
+		long[] inumbers = namespace.lookup(filenames);
+		FileStat[] stats = new FileStat[filenames.length];
+
+		Map<Integer, List<Integer>> byBlock = new HashMap<>(); // inodes block index -> indexes of the files
+		for (int i=0; i<filenames.length; i++) {
+			if (inumbers[i] < 0) {
+				stats[i] = FileStat.notExists(filenames[i]);
+				continue;
+			}
+			int blockIdx = (int) (inumbers[i] / conf.inodesPerBlock);
+			byBlock.computeIfAbsent(blockIdx, k -> new ArrayList<>()).add(i);
+		}
+
+		for (Map.Entry<Integer, List<Integer>> e : byBlock.entrySet()) {
+			BlockID id = new InodesBlockID(e.getKey());
+			InodesBlock inb = null;
+			try {
+				inb = (InodesBlock) cache.acquireBlock(id);
+				inb.loadBlock(true);
+
+				for (int i : e.getValue()) {
+					Inode inode = inb.getInode(inumbers[i]);
+					stats[i] = new FileStat(filenames[i], true, inb.fileSize(inumbers[i]), inode.recordSize());
+				}
+			} finally {
+				if (inb != null) {
+					cache.releaseBlock(id);
+				}
+			}
+		}
+
+		return stats;
+	}
+
 	private void verify(long inumber, int recSize) throws IOException, KawkabException {
 		BlockID id = new InodesBlockID((int) (inumber / conf.inodesPerBlock));
 		InodesBlock inb = null;
@@ -105,11 +289,13 @@ public final class Filesystem {
 		}
 	}
 
-	public synchronized void close(FileHandle fh) throws KawkabException {
+	public void close(FileHandle fh) throws KawkabException {
 		System.out.println("[FS] Closing file: " + fh.inumber());
 		fh.close();
-		if (fh.mode() == FileMode.APPEND)
+		if (fh.mode() == FileMode.APPEND) {
 			namespace.closeAppendFile(fh.inumber());
+			OpenFilesCheckpoint.instance().closed(fh.inumber());
+		}
 	}
 
 	public TimerQueueIface getTimerQueue() {
@@ -141,24 +327,75 @@ public final class Filesystem {
 		InodesBlock.bootstrap();
 		Ibmap.bootstrap();
 		namespace.bootstrap();
+		instance.recoverOpenFiles();
+		RetentionReaper.instance().start();
 		GCMonitor.initialize();
+		Metrics.instance().start();
 
 		initialized = true;
 		
 		return instance;
 	}
 	
+	/**
+	 * Recovers the tails of the files that were open for appends when the node stopped, in parallel. The files are
+	 * taken from the OpenFilesCheckpoint. A file is removed from the checkpoint after its tail is recovered.
+	 */
+	private void recoverOpenFiles() throws KawkabException {
+		OpenFilesCheckpoint checkpoint = OpenFilesCheckpoint.instance();
+		long[] inumbers = checkpoint.openFiles();
+		if (inumbers.length == 0)
+			return;
+
+		System.out.println("[FS] Recovering the tails of files: " + inumbers.length);
+		long startTime = System.currentTimeMillis();
+
+		Future<?>[] futures = new Future<?>[inumbers.length];
+		for (int i=0; i<inumbers.length; i++) {
+			final long inumber = inumbers[i];
+			futures[i] = openExecutor.submit(() -> {
+				FileHandle file = new FileHandle(inumber, FileMode.READ, fsQ, segsQ);
+				try {
+					file.recoverTail();
+				} finally {
+					file.close();
+				}
+				checkpoint.closed(inumber);
+				return null;
+			});
+		}
+
+		for (int i=0; i<futures.length; i++) {
+			try {
+				futures[i].get();
+			} catch (ExecutionException | InterruptedException e) {
+				// The file remains in the checkpoint and is recovered again on the next start
+				System.out.println("[FS] Unable to recover the tail of file " + inumbers[i] + ": " + e);
+			}
+		}
+
+		System.out.printf("[FS] Recovered the tails of %d files in %d ms\n", inumbers.length,
+				System.currentTimeMillis() - startTime);
+	}
+	
 	public synchronized void shutdown() throws KawkabException, InterruptedException{
 		if (closed)
 			return;
 		
 		closed = true;
 		fss.stopServer();
+		Replicator.instance().shutdown();
 		pns.stopServer();
+		RetentionReaper.instance().shutdown();
 		namespace.shutdown();
+		openExecutor.shutdown();
 		segsQ.shutdown();
 		fsQ.shutdown();
 		Cache.instance().shutdown();
+		InodesBlock.shutdown();
+		Ibmap.shutdown();
+		OpenFilesCheckpoint.instance().shutdown();
+		Metrics.instance().shutdown();
 		ApproximateClock.instance().shutdown();
 
 		System.out.print("GC duration stats (ms): "); GCMonitor.printStats();
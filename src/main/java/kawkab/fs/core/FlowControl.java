@@ -0,0 +1,117 @@
+package kawkab.fs.core;
+
+import kawkab.fs.commons.Configuration;
+import kawkab.fs.core.exceptions.BackpressureException;
+import kawkab.fs.core.metrics.Metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control of the appends based on the backlogs of the stages after the cache: the use of the local store
+ * and the number of blocks waiting to be uploaded to the global store. The pressure is the higher of the two, as a
+ * fraction of maxBlocksPerLocalDevice and maxUploadBacklog.
+ *
+ * Below the low watermark the appends are not delayed. Between the low and the high watermark an append is delayed in
+ * proportion to the pressure, up to maxAppendThrottleMs, so that the appenders slow down gradually instead of stalling
+ * when the local store becomes full. At the high watermark the appends are rejected with a BackpressureException
+ * before they modify the file, and the clients retry them later.
+ *
+ * The pressure is recomputed at most once per millisecond, so the check is a volatile read on the append path.
+ */
+public final class FlowControl {
+	private static final long refreshIntervalNanos = TimeUnit.MILLISECONDS.toNanos(1);
+	private static FlowControl instance;
+
+	private final double lowWatermark;
+	private final double highWatermark;
+	private final double maxUploadBacklog;
+	private final long maxThrottleNanos;
+	private final long retryAfterMs;
+	private final LocalStoreManager localStore;
+	private final Metrics metrics = Metrics.instance();
+	private final ThreadLocal<int[]> batchDepth = ThreadLocal.withInitial(() -> new int[1]);
+
+	private volatile double localUse;
+	private volatile double uploadBacklog;
+	private volatile double pressure;
+	private volatile long refreshedAt;
+
+	public static synchronized FlowControl instance() {
+		if (instance == null) {
+			instance = new FlowControl();
+		}
+
+		return instance;
+	}
+
+	private FlowControl() {
+		Configuration conf = Configuration.instance();
+		lowWatermark = conf.flowLowWatermark / 100.0;
+		highWatermark = conf.flowHighWatermark / 100.0;
+		maxUploadBacklog = conf.maxUploadBacklog;
+		maxThrottleNanos = TimeUnit.MILLISECONDS.toNanos(conf.maxAppendThrottleMs);
+		retryAfterMs = Math.max(1, conf.maxAppendThrottleMs);
+		localStore = LocalStoreManager.instance();
+
+		refreshedAt = System.nanoTime();
+		refresh();
+
+		metrics.gauge("kawkab_local_store_use_ratio", "Used fraction of the local store", () -> localUse);
+		metrics.gauge("kawkab_local_store_queued_blocks", "Blocks waiting to be stored locally", localStore::queuedBlocks);
+		metrics.gauge("kawkab_upload_backlog_ratio", "Upload backlog as a fraction of maxUploadBacklog", () -> uploadBacklog);
+		metrics.gauge("kawkab_flow_pressure", "Pressure of the flow control on the appends", () -> pressure);
+	}
+
+	/**
+	 * Delays the current thread if the pressure is above the low watermark, or rejects the append if the pressure is
+	 * above the high watermark. The caller must call this function before modifying the file.
+	 *
+	 * @throws BackpressureException if the pressure is above the high watermark
+	 * @throws InterruptedException if the thread is interrupted while it is delayed
+	 */
+	public void admitAppend() throws BackpressureException, InterruptedException {
+		double p = pressure();
+		if (p < lowWatermark || batchDepth.get()[0] > 0)
+			return;
+
+		if (p >= highWatermark) {
+			metrics.appendRejected();
+			throw new BackpressureException(String.format("Append rejected due to backpressure: local store %.0f%%, " +
+					"upload backlog %.0f%%", localUse*100, uploadBacklog*100), retryAfterMs);
+		}
+
+		long delayNanos = (long) (maxThrottleNanos * (p - lowWatermark) / (highWatermark - lowWatermark));
+		metrics.appendThrottled(delayNanos);
+		TimeUnit.NANOSECONDS.sleep(delayNanos);
+	}
+
+	/**
+	 * Admits the appends of a batch of multiple files together, so that the batch is either rejected before any of its
+	 * records is appended or appended completely. The appends of the current thread are not checked again until the
+	 * thread calls endBatch().
+	 */
+	public void beginBatch() throws BackpressureException, InterruptedException {
+		admitAppend();
+		batchDepth.get()[0]++;
+	}
+
+	public void endBatch() {
+		batchDepth.get()[0]--;
+	}
+
+	private double pressure() {
+		long now = System.nanoTime();
+		if (now - refreshedAt > refreshIntervalNanos) { // Concurrent refreshes are harmless
+			refreshedAt = now;
+			refresh();
+		}
+
+		return pressure;
+	}
+
+	private void refresh() {
+		localUse = localStore.usedFraction();
+		uploadBacklog = metrics.getUploadBacklog() / maxUploadBacklog;
+		pressure = Math.max(localUse, uploadBacklog);
+	}
+}
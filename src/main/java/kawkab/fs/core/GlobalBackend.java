@@ -6,5 +6,7 @@ import kawkab.fs.core.exceptions.KawkabException;
 public interface GlobalBackend {
 	public void loadFromGlobal(Block destBlock, int offset, int length) throws FileNotExistException, KawkabException;
 	public void storeToGlobal(BlockID srcBlock) throws KawkabException;
+	public boolean exists(BlockID id) throws KawkabException;
+	public void delete(BlockID id) throws KawkabException;
 	public void shutdown();
 }
@@ -3,18 +3,23 @@ package kawkab.fs.core;
 import kawkab.fs.commons.Configuration;
 import kawkab.fs.core.exceptions.FileNotExistException;
 import kawkab.fs.core.exceptions.KawkabException;
+import kawkab.fs.core.metrics.Metrics;
 
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
 
 public class GlobalStoreManager {
 	private static final Object initLock = new Object();
+	private static final long minRetryBackoffMs = 100; // Backoff of a worker after a failed upload, doubled on each failure
+	private static final long maxRetryBackoffMs = 10000;
 	private GlobalBackend[] backends; // To store blocks to the global store
 	private GlobalBackend loadWorker; // To load a block from the global store
-	private LinkedBlockingQueue<Task> storeQs[]; // Buffer to queue block store requests
+	private GlobalBackend deleteWorker; // To check and delete the blocks that are deleted by the retention policies
+	private final UploadScheduler scheduler; // Queue of the block store requests
 	private Thread[] workers;                   // Pool of worker threads that store blocks globally
-	private final int numWorkers = Configuration.instance().numWorkersStoreToGlobal; // Number of worker threads and number of reqsQs
+	private final int numWorkers = Configuration.instance().numWorkersStoreToGlobal; // Number of worker threads
 	private volatile boolean working = true;    // To stop accepting new requests after working is false
+	private final Metrics metrics = Metrics.instance();
 	
 	private static GlobalStoreManager instance;
 
@@ -31,32 +36,31 @@ public class GlobalStoreManager {
 	
 	private GlobalStoreManager() {
 		loadWorker = new S3Backend();
+		deleteWorker = new S3Backend();
 		backends = new GlobalBackend[numWorkers];
 		for(int i=0; i<numWorkers; i++) {
 			backends[i] = new S3Backend();
 		}
 
+		Configuration conf = Configuration.instance();
+		scheduler = new UploadScheduler(conf.uploadPriorityBoostMs, conf.flowLowWatermark / 100.0, numWorkers);
+
 		startWorkers();
 	}
 	
 	/**
 	 * Start the workers that store blocks in the global store
 	 * 
-	 * We are not using ExecutorService because we want the same worker to store the same block. We want to assign
-	 * work based on the blocks, which is not easily achievable using ExecutorService.
+	 * We are not using ExecutorService because the order of the uploads and the exclusion of the uploads of the same
+	 * block are decided by the UploadScheduler, from which each worker takes its next upload.
 	 */
 	private void startWorkers() {
-		storeQs = new LinkedBlockingQueue[numWorkers];
-		for(int i=0; i<numWorkers; i++) {
-			storeQs[i] = new LinkedBlockingQueue<>();
-		}
-		
 		workers = new Thread[numWorkers];
 		for (int i=0; i<workers.length; i++) {
 			final int workerID = i;
 			workers[i] = new Thread("GlobalStoreWorker-"+workerID) {
 				public void run() {
-					runStoreWorker(storeQs[workerID], backends[workerID]);
+					runStoreWorker(backends[workerID]);
 				}
 			};
 			
@@ -80,7 +84,51 @@ public class GlobalStoreManager {
 		}
 	}
 	
-	public void store(BlockID blockID, SyncCompleteListener listener) throws KawkabException {
+	/**
+	 * @return Whether the block is queued or being uploaded
+	 */
+	public boolean isQueued(BlockID id) {
+		return scheduler.contains(id);
+	}
+	
+	/**
+	 * @return Whether the block is stored in the global store and is not waiting for another upload
+	 */
+	public boolean isStored(BlockID id) throws KawkabException {
+		if (scheduler.contains(id))
+			return false;
+		
+		synchronized(deleteWorker) {
+			return deleteWorker.exists(id);
+		}
+	}
+	
+	/**
+	 * Deletes the block from the global store. The block must not be queued for the upload.
+	 */
+	public void delete(BlockID id) throws KawkabException {
+		assert !scheduler.contains(id);
+		
+		synchronized(deleteWorker) {
+			deleteWorker.delete(id);
+		}
+	}
+	
+	/**
+	 * @param localUse Returns the used fraction of the local store, which decides whether the uploads of the evictable
+	 *                 blocks are boosted
+	 */
+	void setLocalUse(DoubleSupplier localUse) {
+		scheduler.setLocalUse(localUse);
+	}
+	
+	/**
+	 * Queues the block to be stored in the global store. Repeated requests for a block whose upload has not started
+	 * are coalesced.
+	 *
+	 * @param evictable Whether the local copy of the block is evicted after the upload
+	 */
+	public void store(BlockID blockID, SyncCompleteListener listener, boolean evictable) throws KawkabException {
 		/*if (!working) {
 			throw new KawkabException("GlobalStoreManager has already received stop signal.");
 		}*/
@@ -92,20 +140,21 @@ public class GlobalStoreManager {
 		
 		//System.out.println("\t\t\t[GSM] Enque: " + block.id());
 		
-		//Load balance between workers, but assign same worker to the same block.
-		int queueNum = Math.abs(blockID.hashCode()) % numWorkers; //TODO: convert hashcode to a fixed computed integer or int based key
-		
-		storeQs[queueNum].add(new Task(blockID, listener));
+		if (scheduler.add(new Task(blockID, listener, evictable)))
+			metrics.uploadQueued();
 	}
 	
 	/**
-	 * The workers poll the same queue 
+	 * The workers take the uploads from the same scheduler. A worker backs off after a failed upload so that a slow or
+	 * unavailable global store is not flooded with retries. Meanwhile, the upload backlog grows and the flow control
+	 * throttles the appends. After the stop signal, the workers finish the remaining uploads.
 	 */
-	private void runStoreWorker(LinkedBlockingQueue<Task> reqs, GlobalBackend backend) {
+	private void runStoreWorker(GlobalBackend backend) {
+		long backoffMs = 0;
 		while(true) {
 			Task task = null;
 			try {
-				task = reqs.poll(3, TimeUnit.SECONDS);
+				task = scheduler.take(3, TimeUnit.SECONDS);
 			} catch (InterruptedException e1) {
 				if (!working) {
 					break;
@@ -113,30 +162,40 @@ public class GlobalStoreManager {
 			}
 		
 			if (task == null) {
-				if (!working)
+				if (!working && scheduler.isIdle())
 					break;
 				continue;
 			}
 			
+			boolean successful = false;
 			try {
-				storeToGlobal(task, backend);
+				successful = storeToGlobal(task, backend);
 			} catch (KawkabException e) {
 				e.printStackTrace();
+			} finally {
+				scheduler.done(task);
 			}
-		}
-		
-		// Perform the remaining tasks in the queue
-		Task task = null;
-		while( (task = reqs.poll()) != null) {
+			
+			if (successful || !working) {
+				backoffMs = 0;
+				continue;
+			}
+			
+			backoffMs = Math.min(Math.max(backoffMs*2, minRetryBackoffMs), maxRetryBackoffMs);
 			try {
-				storeToGlobal(task, backend);
-			} catch (KawkabException e) {
-				e.printStackTrace();
+				Thread.sleep(backoffMs);
+			} catch (InterruptedException e) {
+				if (!working)
+					break;
 			}
 		}
 	}
 	
-	private void storeToGlobal(Task task, GlobalBackend backend) throws KawkabException {
+	/**
+	 * @return false if the upload failed. The listener is notified of the failure to retry the upload, unless this
+	 * manager is shutting down.
+	 */
+	private boolean storeToGlobal(Task task, GlobalBackend backend) throws KawkabException {
 		//System.out.println("[GSM] Storing: " + task.block.id());
 		
 		//Block block = task.blockID;
@@ -177,13 +236,25 @@ public class GlobalStoreManager {
 			return;
 		}*/
 
-		backend.storeToGlobal(task.blockID);
+		try {
+			backend.storeToGlobal(task.blockID);
+		} catch (KawkabException e) {
+			System.out.println("[GSM] Unable to store " + task.blockID + " in the global store: " + e.getMessage());
+			metrics.uploadFailed();
+			successful = false;
+			if (!working) // The retry would not be processed after the shutdown
+				return false;
+		} finally {
+			metrics.uploadCompleted(task.queuedAt);
+		}
 		
 		try {
 			task.listener.notifyGlobalStoreComplete(task.blockID, successful);
 		} catch (KawkabException e) {
 			e.printStackTrace();
 		}
+		
+		return successful;
 	}
 	
 	public void shutdown() {
@@ -203,34 +274,28 @@ public class GlobalStoreManager {
 			}
 		}
 		
-		for (int i=0; i<storeQs.length; i++) {
-			Task task = null;
-			while( (task = storeQs[i].poll()) != null) {
-				try {
-					storeToGlobal(task, backends[0]);
-				} catch (KawkabException e) {
-					e.printStackTrace();
-				}
-			}
-		}
+		assert scheduler.isIdle();
 		
 		for(GlobalBackend backend : backends) {
 			backend.shutdown();
 		}
-		
-		for (int i=0; i<storeQs.length; i++) {
-			assert storeQs[i].size() == 0;
-		}
+		deleteWorker.shutdown();
 		
 		System.out.println("Closed GlobalStoreManager");
 	}
 	
-	private class Task {
+	static final class Task {
 		final SyncCompleteListener listener;
 		final BlockID blockID;
-		Task(BlockID blockID, SyncCompleteListener listener){
+		final boolean bulk; // Data and index blocks, as opposed to the small metadata blocks
+		final boolean evictable;
+		final long queuedAt; // For the priority and the upload latency metric
+		Task(BlockID blockID, SyncCompleteListener listener, boolean evictable){
 			this.blockID = blockID;
 			this.listener = listener;
+			this.bulk = blockID.type() == BlockID.BlockType.DATA_SEGMENT || blockID.type() == BlockID.BlockType.INDEX_BLOCK;
+			this.evictable = evictable;
+			this.queuedAt = System.nanoTime();
 		}
 	}
 }
@@ -4,6 +4,7 @@ import kawkab.fs.commons.Commons;
 import kawkab.fs.commons.Configuration;
 import kawkab.fs.core.exceptions.InodeNumberOutOfRangeException;
 import kawkab.fs.core.exceptions.InsufficientResourcesException;
+import kawkab.fs.core.exceptions.KawkabException;
 
 import java.io.File;
 import java.io.IOException;
@@ -26,6 +27,7 @@ public final class Ibmap extends Block{
 	private BitSet bitset;
 	
 	private static boolean bootstraped;
+	private static BlockManifest manifest; // Ibmaps of this node that exist in the local store
 	
 	Ibmap(IbmapBlockID id) {
 		super(id);
@@ -56,6 +58,13 @@ public final class Ibmap extends Block{
 		return inumber;
 	}
 	
+	/**
+	 * @return Index of the ibmap block that has the bit of the given inumber
+	 */
+	static int blockIndexFromInumber(long inumber) {
+		return (int)(inumber / (ibmapBlockSizeBytes * bitsPerByte));
+	}
+	
 	private long bitIdxToInumber(int ibmapIdx, int bitIndex){
 		return (8L*ibmapIdx*ibmapBlockSizeBytes) + bitIndex;
 	}
@@ -108,6 +117,11 @@ public final class Ibmap extends Block{
 		return bytes.length;
 	}
 	
+	@Override
+	protected boolean createOnFirstLoad() throws IOException, KawkabException {
+		return manifest != null && manifest.createIfAbsent(this, blockIndex);
+	}
+	
 	@Override
 	public synchronized int loadFromFile() throws IOException {
 		byte[] bytes = Files.readAllBytes(new File(id.localPath()).toPath());
@@ -190,22 +204,9 @@ public final class Ibmap extends Block{
 			}
 		}
 		
-		LocalStoreManager storage = LocalStoreManager.instance();
-		
-		int rangeStart = conf.ibmapBlocksRangeStart;
-		int rangeEnd = rangeStart + conf.ibmapsPerMachine;
-		
-		for(int i=rangeStart; i<rangeEnd; i++){
-			IbmapBlockID id = new IbmapBlockID(i);
-			File file = new File(id.localPath());
-			
-			if (!file.exists()) {
-				System.out.println("[I] Creating Ibmap: " + file.getCanonicalPath());
-				storage.createBlock(id);
-				Block block = id.newBlock();
-				block.storeToFile();
-			}
-		}
+		// The ibmaps are created lazily on their first load, see createOnFirstLoad()
+		manifest = new BlockManifest("ibmaps", conf.ibmapsPath, conf.ibmapBlocksRangeStart, conf.ibmapsPerMachine,
+				IbmapBlockID::new);
 		
 		bootstraped = true;
 	}
@@ -216,6 +217,8 @@ public final class Ibmap extends Block{
 	
 	static void shutdown(){
 		System.out.println("Closing Ibmaps");
+		if (manifest != null)
+			manifest.shutdown();
 		//TODO: stop new requests
 	}
 }
@@ -47,6 +47,26 @@ public final class IbmapBlockID extends BlockID {
 		return hashCode();
 	}
 	
+	@Override
+	public long keyHigh() {
+		return typeBits(type);
+	}
+	
+	@Override
+	public long keyLow() {
+		return mapNum;
+	}
+	
+	@Override
+	public long localKeyHigh() {
+		return 0;
+	}
+	
+	@Override
+	public long localKeyLow() {
+		return mapNum;
+	}
+	
 	@Override
 	public String fileID(){
 		return "B"+mapNum;
@@ -66,11 +86,7 @@ public final class IbmapBlockID extends BlockID {
 	 */
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + mapNum;
-		result = prime * result + 37; //37 is just a random prime number to differentiate this block from InodesBlock
-		return result;
+		return BlockID.hash(keyHigh(), keyLow()); // The type bits of the key differentiate the ibmaps and the inodes blocks
 	}
 
 	/* (non-Javadoc)
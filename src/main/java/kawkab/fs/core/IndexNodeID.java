@@ -5,7 +5,6 @@ import kawkab.fs.commons.Configuration;
 import kawkab.fs.core.index.poh.POHNode;
 
 import java.io.File;
-import java.util.Objects;
 
 public class IndexNodeID extends BlockID {
 	private final long inumber; // inumber of the file with which this index is associated
@@ -27,6 +26,14 @@ public class IndexNodeID extends BlockID {
 		this.blockInIndex = nodeNumInIndex / nodesPerBlock;
 	}
 
+	/**
+	 * @return ID of the last node of the index block. An index block is queued for the upload to the global store with
+	 * the ID of its last node, see POHNode.shouldStoreGlobally().
+	 */
+	public static IndexNodeID lastNodeOf(long inumber, int blockInIndex) {
+		return new IndexNodeID(inumber, (blockInIndex+1)*nodesPerBlock - 1);
+	}
+
 	public long inumber() {
 		return inumber;
 	}
@@ -59,7 +66,27 @@ public class IndexNodeID extends BlockID {
 
 	@Override
 	public int perBlockTypeKey() {
-		return Objects.hash(inumber, blockInIndex);
+		return 31 * (31 + Long.hashCode(inumber)) + blockInIndex; // Objects.hash(inumber, blockInIndex) without boxing
+	}
+
+	@Override
+	public long keyHigh() {
+		return typeBits(type) | inumber;
+	}
+
+	@Override
+	public long keyLow() {
+		return nodeNumInIndex;
+	}
+
+	@Override
+	public long localKeyHigh() {
+		return inumber;
+	}
+
+	@Override
+	public long localKeyLow() {
+		return blockInIndex;
 	}
 
 	@Override
@@ -70,7 +97,7 @@ public class IndexNodeID extends BlockID {
 	@Override
 	public int hashCode() {
 		if (hash == 0)
-			hash = Objects.hash(inumber, nodeNumInIndex);
+			hash = BlockID.hash(keyHigh(), keyLow());
 		return hash;
 	}
 
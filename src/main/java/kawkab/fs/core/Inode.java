@@ -11,6 +11,7 @@ import kawkab.fs.core.timerqueue.TimerQueueIface;
 import kawkab.fs.core.timerqueue.TimerQueueItem;
 import kawkab.fs.utils.LatHistogram;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
@@ -29,6 +30,9 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 	private long inumber;
 	private AtomicLong fileSize = new AtomicLong(0);
 	private int recordSize; //Temporarily set to 1 until we implement reading/writing records
+	private int localRetentionDays; // Zero to keep the data blocks in the local store until the file is deleted
+	private int globalRetentionDays; // Zero to keep the data forever
+	private volatile long firstBlock; // The first data block that is not deleted by the retention policy
 	private PostOrderHeapIndex index;
 
 	private volatile TimerQueueItem<DataSegment> acquiredSeg;
@@ -37,7 +41,9 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 	private static final ApproximateClock clock = ApproximateClock.instance();
 	private static final LocalStoreManager localStore = LocalStoreManager.instance();
 	private static final Configuration conf = Configuration.instance();
+	private static final Replicator replicator = Replicator.instance();
 	private TimerQueueIface timerQ;
+	private long replicaSeq; // Sequence number of the last appended bytes in the replication stream
 
 	private boolean isInited;
 	private int recsPerSeg;
@@ -69,8 +75,10 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 
 		assert recordSize >= 1;
 		recsPerSeg = conf.segmentSizeBytes / recordSize;
-		if (recordSize > 1)
+		if (recordSize > 1) {
 			index = new PostOrderHeapIndex(inumber, conf.indexNodeSizeBytes, conf.nodesPerBlockPOH, conf.percentIndexEntriesPerNode, cache, fsQ);
+			index.trimBefore(firstSegment());
+		}
 
 		//idxLog = new LatHistogram(TimeUnit.MICROSECONDS, "Index search", 100, 1000000);
 		//segLoadLog = new LatHistogram(TimeUnit.MICROSECONDS, "segLoadLog", 10, 1000);
@@ -99,6 +107,103 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 		}
 	}
 
+	/**
+	 * Rebuilds the tail of the file after a crash. The persisted fileSize lags the data because the inodes block is
+	 * stored lazily. The true size is taken from the valid lengths of the file's last local data blocks, and the index
+	 * is brought to the same length: the missing index timestamps are read from the first and the last records of the
+	 * segments, and the timestamps of the data that is lost are removed from the tail of the index.
+	 *
+	 * This must be called on the primary node before the file is opened for appends.
+	 *
+	 * @return The recovered file size, or the current file size if the tail cannot be recovered
+	 */
+	synchronized long recoverTail() throws IOException, KawkabException {
+		long fs = fileSize.get();
+		long dataSize = persistedDataSize(fs);
+		if (dataSize < 0) {
+			System.out.printf("[I] File %d has no local data blocks, keeping the file size %d\n", inumber, fs);
+			return fs;
+		}
+
+		if (index != null) {
+			long indexLen = index.persistedLength(indexLength(Math.min(fs, dataSize)));
+			long required = indexLength(dataSize);
+
+			if (indexLen > required && !index.truncate(indexLen, required)) {
+				System.out.printf("[I] Unable to truncate the index of file %d from %d to %d, keeping the file size %d\n",
+						inumber, indexLen, required, fs);
+				return fs;
+			}
+
+			ByteBuffer recBuf = ByteBuffer.allocate(recordSize);
+			for (long tsIdx = indexLen; tsIdx < required; tsIdx++) {
+				long segInFile = tsIdx / 2;
+				if (tsIdx % 2 == 0) { // The first record of the segment
+					index.appendMinTS(timestampAt(segInFile*recsPerSeg, recBuf), segInFile, tsIdx);
+				} else { // The last record of the full segment
+					index.appendMaxTS(timestampAt((segInFile+1)*recsPerSeg - 1, recBuf), segInFile, tsIdx);
+				}
+			}
+		}
+
+		if (dataSize != fs)
+			System.out.printf("[I] Recovered the tail of file %d: file size %d -> %d\n", inumber, fs, dataSize);
+
+		fileSize.set(dataSize);
+		return dataSize;
+	}
+
+	/**
+	 * @return The size of the file's data in the local block files, or -1 if the file has no local data block
+	 */
+	private long persistedDataSize(final long fs) throws KawkabException {
+		long blockInFile = FixedLenRecordUtils.blockInFile(FixedLenRecordUtils.segmentInFile(fs, recordSize));
+		while (blockInFile > 0 && !localStore.exists(new DataSegmentID(inumber, blockInFile, 0, recordSize))) {
+			blockInFile--;
+		}
+
+		long recsPerBlock = (long) recsPerSeg * conf.segmentsPerBlock;
+		long records = -1;
+		for (; ; blockInFile++) {
+			DataSegmentID id = new DataSegmentID(inumber, blockInFile, 0, recordSize);
+			if (!localStore.exists(id))
+				break;
+
+			long length = localStore.validLength(id);
+			if (length < 0) // The length is not tracked for the files that are created before the files were pooled
+				length = new File(id.localPath()).length();
+
+			if (length == 0) { // The block was created but no data was stored before the crash
+				localStore.discardEmptyBlock(id);
+				break;
+			}
+
+			int fullSegs = (int) (length / conf.segmentSizeBytes);
+			int recsInLastSeg = Math.min(recsPerSeg, (int) (length % conf.segmentSizeBytes) / recordSize);
+			records = blockInFile*recsPerBlock + (long) fullSegs*recsPerSeg + recsInLastSeg;
+
+			if (length < conf.dataBlockSizeBytes)
+				break;
+		}
+
+		return records < 0 ? -1 : records * recordSize;
+	}
+
+	/**
+	 * @return The timestamp of the given record, which is the first field of the record
+	 */
+	private long timestampAt(final long recInFile, final ByteBuffer recBuf) throws IOException, KawkabException {
+		DataSegment segment = acquireSegmentForRead(recInFile / recsPerSeg);
+		try {
+			segment.loadBlock(false);
+			recBuf.clear();
+			segment.read(recBuf, recInFile*recordSize);
+			return recBuf.getLong(0);
+		} finally {
+			cache.releaseBlock(segment.id());
+		}
+	}
+
 	/**
 	 * Returns the ID of the segment that contains the given offset in file
 	 * @throws IOException
@@ -111,11 +216,15 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 		return new DataSegmentID(inumber, blockInFile, segmentInBlock, recordSize);
 	}
 
-	private BlockID idBySegInFile(long segInFile) {
+	/**
+	 * Acquires the segment from the cache without creating the segment's ID if the segment is cached. The caller must
+	 * release the segment using the segment's ID.
+	 */
+	private DataSegment acquireSegmentForRead(long segInFile) throws IOException, KawkabException {
 		int segmentInBlock = FixedLenRecordUtils.segmentInBlock(segInFile);
 		long blockInFile = FixedLenRecordUtils.blockInFile(segInFile);
 
-		return new DataSegmentID(inumber, blockInFile, segmentInBlock, recordSize);
+		return (DataSegment) cache.acquireSegment(inumber, blockInFile, segmentInBlock, recordSize);
 	}
 
 	/**
@@ -144,17 +253,16 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 		long segInFile = index.findHighest(timestamp, indexLength(fileSize.get()), loadFromPrimary);
 		//idxLog.end();
 
-		if (segInFile == -1)
+		if (segInFile == -1 || segInFile < firstSegment()) // The record is not found or it is deleted
 			return  false;
 
 		//System.out.println("  Read at offset: " + offsetInFile);
-		BlockID curSegId = idBySegInFile(segInFile);
 
 		//System.out.println("Reading block at offset " + offsetInFile + ": " + curBlkUuid.key);
 
 		DataSegment curSegment = null;
 		try {
-			curSegment = (DataSegment)cache.acquireBlock(curSegId);
+			curSegment = acquireSegmentForRead(segInFile);
 			//segLoadLog.start();
 			curSegment.loadBlock(loadFromPrimary); //The segment data might not be loaded when we get from the cache
 			//segLoadLog.end();
@@ -204,13 +312,16 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 					recNum, offsetInFile, recordSize, fileSize/recordSize));
 
 		//System.out.println("  Read at offset: " + offsetInFile);
-		BlockID curSegId = getByFileOffset(offsetInFile);
+		long segInFile = FixedLenRecordUtils.segmentInFile(offsetInFile, recordSize);
+
+		if (segInFile < firstSegment())
+			throw new KawkabException(String.format("Record number %d is deleted by the retention policy of the file", recNum));
 
 		//System.out.println("Reading block at offset " + offsetInFile + ": " + curBlkUuid.key);
 
 		DataSegment curSegment = null;
 		try {
-			curSegment = (DataSegment)cache.acquireBlock(curSegId);
+			curSegment = acquireSegmentForRead(segInFile);
 
 			//segLoadLog.start();
 			curSegment.loadBlock(loadFromPrimary); //The segment data might not be loaded when we get from the cache
@@ -251,18 +362,20 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 		dstBuf.clear();
 
 		int length = offsets.size();
+		long firstSeg = firstSegment();
 		List<ByteBuffer> results = new ArrayList<>(); //The lists contains offsets to unique segments.
 		for (int i=0; i<length; i++) {
 			long[] segNums = offsets.get(i);
 			for (int j=0; j<segNums.length; j++) {
 				long segInFile = segNums[j];
-				BlockID curSegId = idBySegInFile(segInFile);
+				if (segInFile < firstSeg) // Deleted by the retention policy
+					continue;
 
-				//System.out.printf("[I] Searching recs in: %s\n", curSegId);
+				//System.out.printf("[I] Searching recs in: %d\n", segInFile);
 
 				DataSegment curSegment = null;
 				try {
-					curSegment = (DataSegment)cache.acquireBlock(curSegId);
+					curSegment = acquireSegmentForRead(segInFile);
 
 					//segLoadLog.start();
 					curSegment.loadBlock(loadFromPrimary); //The segment data might not be loaded when we get from the cache
@@ -310,18 +423,20 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 		//System.out.println(offsets.size());
 
 		int length = offsets.size();
+		long firstSeg = firstSegment();
 		List<Record> results = new ArrayList<>(); //The lists contains offsets to unique segments.
 		for (int i=0; i<length; i++) {
 			long[] segNums = offsets.get(i);
 			for (int j=0; j<segNums.length; j++) {
 				long segInFile = segNums[j];
-				BlockID curSegId = idBySegInFile(segInFile);
+				if (segInFile < firstSeg) // Deleted by the retention policy
+					continue;
 
-				//System.out.printf("[I] Searching recs in: %s\n", curSegId);
+				//System.out.printf("[I] Searching recs in: %d\n", segInFile);
 
 				DataSegment curSegment = null;
 				try {
-					curSegment = (DataSegment)cache.acquireBlock(curSegId);
+					curSegment = acquireSegmentForRead(segInFile);
 					curSegment.loadBlock(loadFromPrimary); //The segment data might not be loaded when we get from the cache
 					int cnt = curSegment.readAll(minTS, maxTS, recFactory, results);
 					//System.out.printf("  seg=%d, cnt=%d\n", segInFile, cnt);
@@ -359,13 +474,16 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 			throw new IllegalArgumentException(String.format("File offset + read length is greater "
 					+ "than file size: %d + %d > %d", offsetInFile,length,fileSize));
 
+		if (FixedLenRecordUtils.segmentInFile(offsetInFile, recordSize) < firstSegment())
+			throw new InvalidFileOffsetException(String.format("File offset %d is deleted by the retention policy of the file",
+					offsetInFile));
+
 		int bufferOffset = 0;
 		int remaining = length;
 		long curOffsetInFile = offsetInFile;
 
 		while(remaining > 0 && curOffsetInFile < fileSize.get() && bufferOffset<buffer.length) {
 			//System.out.println("  Read at offset: " + offsetInFile);
-			BlockID curSegId = getByFileOffset(curOffsetInFile);
 
 			//System.out.println("Reading block at offset " + offsetInFile + ": " + curBlkUuid.key);
 
@@ -375,13 +493,13 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 			int bytesRead = 0;
 
 			// System.out.println(String.format("Seg=%s, bufLen=%d, bufOffset=%d, toRead=%d, offInFile=%d, remInBuf=%d,dataRem=%d",
-			//     curSegId.toString(), buffer.length, bufferOffset, toRead, curOffsetInFile, buffer.length-bufferOffset,remaining));
+			//     segNumber, buffer.length, bufferOffset, toRead, curOffsetInFile, buffer.length-bufferOffset,remaining));
 
 			assert bufferOffset+toRead <= buffer.length;
 
 			DataSegment curSegment = null;
 			try {
-				curSegment = (DataSegment)cache.acquireBlock(curSegId);
+				curSegment = acquireSegmentForRead(segNumber);
 				curSegment.loadBlock(loadFromPrimary); //The segment data might not be loaded when we get from the cache
 				bytesRead = curSegment.read(buffer, bufferOffset, toRead, curOffsetInFile);
 			} finally {
@@ -454,7 +572,10 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 		long timestamp = srcBuf.getLong(srcBuf.position());
 		DataSegment ds = acquiredSeg.getItem();
 
+		int startPos = srcBuf.position();
 		int appended = ds.append(srcBuf, fileSizeBuffered);
+		if (replicator.enabled())
+			replicaSeq = replicator.submit((DataSegmentID) ds.id(), offsetInBlock(ds, fileSizeBuffered), srcBuf, startPos, appended);
 
 		long recInFile = fileSizeBuffered/recordSize;
 		boolean isFirstRec = recInFile % recsPerSeg == 0;
@@ -510,6 +631,8 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 
 			try {
 				int bytes = ds.append(data, offset, remaining, fileSizeBuffered);
+				if (replicator.enabled())
+					replicaSeq = replicator.submit((DataSegmentID) ds.id(), offsetInBlock(ds, fileSizeBuffered), data, offset, bytes);
 
 				remaining -= bytes;
 				offset += bytes;
@@ -532,6 +655,20 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 		return length;
 	}
 
+	/**
+	 * @return The offset in the block file of the byte at the offset in the file, which is in the segment
+	 */
+	private int offsetInBlock(DataSegment ds, long offsetInFile) {
+		return ((DataSegmentID) ds.id()).segmentInBlock() * conf.segmentSizeBytes + FixedLenRecordUtils.offsetInSegment(offsetInFile, recordSize);
+	}
+
+	/**
+	 * @return The sequence number of the last appended bytes in the replication stream, see Replicator.awaitQuorum()
+	 */
+	long replicaSeq() {
+		return replicaSeq;
+	}
+
 	/**
 	 * A helper function to acquire segment from the cache, and create a new data block if needed.
 	 * @param fileSize Current file size
@@ -589,6 +726,9 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 		long inum = buffer.getLong();
 		long fs = buffer.getLong();
 		int recSize = buffer.getInt();
+		int localDays = buffer.getShort();
+		int globalDays = buffer.getShort();
+		long first = buffer.getLong();
 
 		assert fileSize.get() <= fs;
 
@@ -597,10 +737,13 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 			inumber = inum;
 			recordSize = recSize;
 		}
+		localRetentionDays = localDays;
+		globalRetentionDays = globalDays;
+		setFirstBlock(first);
 
 		//System.out.printf("[I] Loaded inode %d from buffer: fs=%d, recSize=%d, recordSize=%d\n", inum, fs, recSize, recordSize);
 
-		return Long.BYTES*2 + Integer.BYTES;
+		return persistentSizeBytes();
 	}
 
 	/**
@@ -649,8 +792,59 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 		buffer.putLong(inumber);
 		buffer.putLong(fileSize.get());
 		buffer.putInt(recordSize);
+		buffer.putShort((short) localRetentionDays);
+		buffer.putShort((short) globalRetentionDays);
+		buffer.putLong(firstBlock);
+
+		return persistentSizeBytes();
+	}
 
-		return Long.BYTES*2 + Integer.BYTES;
+	/**
+	 * @return Number of bytes of the serialized inode, which must not exceed inodeSizeBytes. The inodes that were
+	 * stored before the retention fields were added have zeros in their place, i.e., no retention.
+	 */
+	public static int persistentSizeBytes() {
+		return Long.BYTES*3 + Integer.BYTES + Short.BYTES*2;
+	}
+
+	/**
+	 * Sets the retention policy of a new file. See FileOptions.
+	 */
+	void setRetention(final int localDays, final int globalDays) {
+		assert 0 <= localDays && localDays <= Short.MAX_VALUE;
+		assert 0 <= globalDays && globalDays <= Short.MAX_VALUE;
+
+		localRetentionDays = localDays;
+		globalRetentionDays = globalDays;
+	}
+
+	int localRetentionDays() {
+		return localRetentionDays;
+	}
+
+	int globalRetentionDays() {
+		return globalRetentionDays;
+	}
+
+	long firstBlock() {
+		return firstBlock;
+	}
+
+	/**
+	 * Removes the data blocks before the given block from the file. The readers do not read these blocks afterwards,
+	 * and the caller deletes the blocks from the stores.
+	 */
+	void setFirstBlock(final long blockInFile) {
+		if (blockInFile <= firstBlock)
+			return;
+
+		firstBlock = blockInFile;
+		if (index != null)
+			index.trimBefore(firstSegment());
+	}
+
+	private long firstSegment() {
+		return firstBlock * conf.segmentsPerBlock;
 	}
 
 	/**
@@ -711,6 +905,10 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 		return fileSize.get() / recordSize;
 	}
 
+	long indexLength() {
+		return indexLength(fileSize.get());
+	}
+
 	private long indexLength(final long filesize) {
 		// ceil(recsInFile / recsPerSeg)
 		// 0 1 2 | 3 4 5 | 6 7
@@ -721,6 +919,10 @@ public final class Inode implements DeferredWorkReceiver<DataSegment> {
 		return segsInFile * 2 - ((recsInFile % recsPerSeg) == 0 ? 0 : 1);
 	}
 
+	long inumber() {
+		return inumber;
+	}
+
 	public int recordSize() {
 		return recordSize;
 	}
@@ -1,5 +1,6 @@
 package kawkab.fs.core;
 
+import kawkab.fs.api.FileOptions;
 import kawkab.fs.commons.Configuration;
 import kawkab.fs.core.exceptions.FileNotExistException;
 import kawkab.fs.core.exceptions.KawkabException;
@@ -17,6 +18,7 @@ import java.util.concurrent.TimeUnit;
 
 public final class InodesBlock extends Block {
 	private static boolean bootstraped; //Not saved persistently
+	private static BlockManifest manifest; // Inodes blocks of this node that exist in the local store
 	private Inode[] inodes; //Should be initialized in the bootstrap function only.
 	private long lastFetchTimeMs; 	// ApproximateClock time in ms when the block was last loaded. This must be initialized
 									// to zero when the block is first created in memory.
@@ -49,6 +51,14 @@ public final class InodesBlock extends Block {
 		markLocalDirty();
 	}
 	
+	protected void initInode(long inumber, FileOptions opts) {
+		int inumberIdx = inodeIdxFromInumber(inumber);
+		Inode inode = new Inode(inumber, opts.recordSize());
+		inode.setRetention(opts.localRetentionDays(), opts.globalRetentionDays());
+		inodes[inumberIdx] = inode;
+		markLocalDirty();
+	}
+	
 	/**
 	 * @param inumber 
 	 * @return Returns the Inode corresponding to the inumber
@@ -103,6 +113,11 @@ public final class InodesBlock extends Block {
 		return bytesRead;
 	}
 	
+	@Override
+	protected boolean createOnFirstLoad() throws IOException, KawkabException {
+		return manifest != null && manifest.createIfAbsent(this, ((InodesBlockID)id).blockIndex());
+	}
+	
 	@Override
 	public int loadFromFile() throws IOException {
 		try (RandomAccessFile file = new RandomAccessFile(id.localPath(), "r");
@@ -249,36 +264,24 @@ public final class InodesBlock extends Block {
 			folder.mkdirs();
 		}
 		
-		int count=0;
-		LocalStoreManager storage = LocalStoreManager.instance();
-		//Cache cache = Cache.instance();
-		int rangeStart = conf.inodeBlocksRangeStart;
-		int rangeEnd = rangeStart + conf.inodeBlocksPerMachine;
-		for(int i=rangeStart; i<rangeEnd; i++){
-			InodesBlockID id = new InodesBlockID(i);
-			File file = new File(id.localPath());
-			if (!file.exists()) {
-				storage.createBlock(id);
-				Block block = id.newBlock();
-				block.storeToFile();
-				count++;
-				
-				/*try {
-					Block block = cache.acquireBlock(id, true); // Create a new block in the local store
-					block.markLocalDirty(); // Mark the new block as dirty to write the initialized inodes
-					count++;
-				} finally {
-					cache.releaseBlock(id);
-				}*/
-			}
-		}
+		// The blocks are created lazily on their first load, see createOnFirstLoad()
+		manifest = new BlockManifest("inodes", conf.inodeBlocksPath, conf.inodeBlocksRangeStart,
+				conf.inodeBlocksPerMachine, InodesBlockID::new);
 		
-		System.out.println("Created inodeBlock files: " + count);
 		bootstraped = true;
 	}
 	
 	static void shutdown(){
 		System.out.println("Closing InodesBlock");
+		if (manifest != null)
+			manifest.shutdown();
+	}
+	
+	/**
+	 * @return Whether the inodes block of this node has been created in the local store
+	 */
+	static boolean isCreated(int blockIndex) {
+		return manifest != null && manifest.contains(blockIndex);
 	}
 	
 	static int blockIndexFromInumber(long inumber) {
@@ -45,6 +45,30 @@ public final class InodesBlockID extends BlockID{
 		return hashCode();
 	}
 	
+	@Override
+	public long keyHigh() {
+		return keyHighOf();
+	}
+	
+	static long keyHighOf() {
+		return typeBits(BlockType.INODES_BLOCK);
+	}
+	
+	@Override
+	public long keyLow() {
+		return blockIndex;
+	}
+	
+	@Override
+	public long localKeyHigh() {
+		return 0;
+	}
+	
+	@Override
+	public long localKeyLow() {
+		return blockIndex;
+	}
+	
 	@Override
 	public String fileID() {
 		return "I"+blockIndex;
@@ -60,11 +84,7 @@ public final class InodesBlockID extends BlockID{
 	 */
 	@Override
 	public int hashCode() {
-		final int prime = 11; //randomly selected
-		int result = 19; //randomly selected
-		result = prime * result + blockIndex;
-		result = prime * result + 17; //17 is just a random prime to differentiate it from the Ibmap block
-		return result;
+		return BlockID.hash(keyHigh(), keyLow()); // The type bits of the key differentiate the ibmaps and the inodes blocks
 	}
 
 	/* (non-Javadoc)
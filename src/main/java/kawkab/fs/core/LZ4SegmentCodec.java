@@ -0,0 +1,45 @@
+package kawkab.fs.core;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * LZ4 codec for the data segments. The high compression variant compresses slower but decompresses at the same speed,
+ * which fits the segments that are compressed once and read many times.
+ */
+final class LZ4SegmentCodec implements SegmentCodec {
+	private final String name;
+	private final LZ4Compressor compressor;
+	private final LZ4FastDecompressor decompressor;
+
+	LZ4SegmentCodec(boolean highCompression) {
+		LZ4Factory factory = LZ4Factory.fastestInstance();
+		name = highCompression ? "lz4hc" : "lz4";
+		compressor = highCompression ? factory.highCompressor() : factory.fastCompressor();
+		decompressor = factory.fastDecompressor();
+	}
+
+	@Override
+	public String name() {
+		return name;
+	}
+
+	@Override
+	public int maxCompressedLength(int srcLen) {
+		return compressor.maxCompressedLength(srcLen);
+	}
+
+	@Override
+	public int compress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dst, int dstOff, int recordSize) {
+		return compressor.compress(src, srcOff, srcLen, dst, dstOff, dst.capacity() - dstOff);
+	}
+
+	@Override
+	public void decompress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dst, int dstOff, int rawLen) {
+		int read = decompressor.decompress(src, srcOff, dst, dstOff, rawLen);
+		assert read == srcLen : String.format("Compressed length mismatch: expected %d, read %d", srcLen, read);
+	}
+}
@@ -0,0 +1,56 @@
+package kawkab.fs.core;
+
+import kawkab.fs.commons.Configuration;
+import kawkab.fs.core.exceptions.KawkabException;
+
+import java.util.List;
+
+/**
+ * Executes the local store I/O of a LocalStoreManager worker. The worker collects a batch of blocks from its queue and
+ * submits the batch to the engine, which returns after all the I/O tasks of the batch are finished.
+ *
+ * The tasks of the same file are executed in their submission order by a single thread because the blocks of the same
+ * file share a FileChannel. The tasks of different files can be executed concurrently.
+ */
+interface LocalIOEngine {
+	interface IOTask {
+		/**
+		 * @return The path of the file that this task reads or writes
+		 */
+		String fileKey();
+
+		void run() throws KawkabException;
+	}
+
+	/**
+	 * Executes the tasks and blocks until all of them are finished. The failure of a task does not stop the other
+	 * tasks. The failures are logged.
+	 */
+	void execute(List<IOTask> tasks) throws InterruptedException;
+
+	/**
+	 * @return Maximum number of tasks that the worker should submit in a batch
+	 */
+	int queueDepth();
+
+	void shutdown();
+
+	/**
+	 * Creates the engine that is selected by localIOEngine in the configuration.
+	 */
+	static LocalIOEngine create(String name) {
+		Configuration conf = Configuration.instance();
+		switch (conf.localIOEngine) {
+			case "sync":
+				return new SyncIOEngine(conf.localIOQueueDepth);
+			case "uring":
+				// The JVM has no io_uring binding without a native library. Fall back to the positional writes from a
+				// thread pool, which gives the device the same queue depth.
+				System.out.println("[LIO] io_uring is not available in this JVM, using the pooled engine for " + name);
+			case "pool":
+				return new PooledIOEngine(name, conf.localIOThreads, conf.localIOQueueDepth);
+			default:
+				throw new IllegalArgumentException("Unknown local I/O engine: " + conf.localIOEngine);
+		}
+	}
+}
@@ -2,85 +2,538 @@ package kawkab.fs.core;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 import kawkab.fs.commons.Configuration;
-import net.openhft.chronicle.map.ChronicleMap;
+import org.agrona.IoUtil;
+import org.agrona.concurrent.UnsafeBuffer;
 
+/**
+ * The table of the blocks that are stored in the local storage, with the valid length of each block file. The valid
+ * length of a data block file can be smaller than the file size because the files are pre-allocated.
+ *
+ * The table is an open-addressing hash table with linear probing in a memory mapped file. A key is the block type
+ * with the block's localKeyHigh() and localKeyLow(), so the segments of the same block have the same entry, and no
+ * objects are created to look up a block. The operations are lock-free: the slots are claimed and released with CAS
+ * operations, and the readers verify that a slot has not been reused while they read its key.
+ *
+ * The table stays mapped after shutdown() because the lock-free operations may still be reading it; the operations
+ * that start after shutdown() throw IllegalStateException.
+ *
+ * The slots of the removed entries are reused by later insertions. The table is compacted when it is opened if many
+ * slots are removed. If the table does not exist, it is rebuilt from the block files in the local directories.
+ *
+ * The high bits of the length field of a data block have the local device of the block plus one. The entries that
+ * were added before the devices were recorded have zero in these bits, and their device is derived from the block.
+ */
 public final class LocalStoreDB {
+	private static final String tablePath = Configuration.instance().basePath + "/localStoreDB/blocks-"+Configuration.instance().thisNodeID;
+	private static final long magic = 0x4b4c534442000001L; // "KLSDB" and the version of the format
+
+	// Header of the table file
+	private static final int magicOffset = 0;
+	private static final int capacityOffset = 8;
+	private static final int maxProbeOffset = 16; // Longest probe sequence of an insertion, which bounds the lookups
+	private static final int legacyDevicesOffset = 24; // See legacyDevices()
+	private static final int headerLength = 64;
+
+	// A slot has the state, the key, and the valid length of the block file
+	private static final int stateOffset = 0;
+	private static final int highOffset = 8;
+	private static final int lowOffset = 16;
+	private static final int lengthOffset = 24;
+	private static final int slotLength = 32;
+
+	private static final int deviceShift = 48;
+	private static final long lengthMask = (1L << deviceShift) - 1;
+
+	// The state of a slot is (sequence << 4) | (type << 2) | status. The sequence is incremented whenever the slot is
+	// claimed so that a reader can detect that the slot is reused while it reads the key.
+	private static final long empty = 0;
+	private static final long claimed = 1;
+	private static final long live = 2;
+	private static final long removed = 3;
+	private static final long statusMask = 3;
+
 	private final int maxSize;
-	private static final String mapFilePath = Configuration.instance().basePath + "/localStoreDB/chroniclemap-"+Configuration.instance().thisNodeID;
-	private static final String mapName = "localStoreDB";
-	private ChronicleMap<String, String> map; // Path to ID map. A key is a block's path because the data segments belonging
-	                                          // to the same block have the same path. In this way, we save the number of
-	                                          // entries in the map.
-	
+	private final int capacity;
+	private final int mask;
+	private MappedByteBuffer mapped;
+	private UnsafeBuffer table;
+	private volatile boolean closed;
+	private int size; // Number of the live entries, only counted when the table is opened
+	private int legacyDevices;
+
 	public LocalStoreDB(int maxSize) {
+		assert BlockID.BlockType.values().length <= 4; // The type takes two bits of the state
+
 		this.maxSize = maxSize;
-		initMap();
-	}
-	
-	private void initMap() {
-		System.out.println("Map file path: " + mapFilePath);
-		File file = new File(mapFilePath).getParentFile();
-		if (!file.exists()) {
-			file.mkdirs();
+
+		int cap = Integer.highestOneBit(2*(maxSize+100) - 1) << 1; // Power of two, at most half full
+		assert (long)cap * slotLength + headerLength <= Integer.MAX_VALUE;
+		capacity = cap;
+		mask = cap - 1;
+
+		initTable();
+	}
+
+	private void initTable() {
+		System.out.println("Local store table path: " + tablePath);
+		File file = new File(tablePath);
+		File parent = file.getParentFile();
+		if (!parent.exists()) {
+			parent.mkdirs();
+		}
+
+		long[] entries; // The live entries of the table that is rebuilt
+		if (file.exists()) {
+			mapped = IoUtil.mapExistingFile(file, "localStoreDB");
+			table = new UnsafeBuffer(mapped);
+
+			if (table.capacity() >= headerLength && table.getLong(magicOffset) == magic) {
+				legacyDevices = (int) table.getLong(legacyDevicesOffset);
+				if (legacyDevices == 0) { // Not recorded by the earlier versions of this table
+					legacyDevices = Configuration.instance().numLocalDevices;
+					table.putLong(legacyDevicesOffset, legacyDevices);
+				}
+
+				int removedCnt = recover();
+				if (table.getLong(capacityOffset) == capacity && removedCnt <= capacity/4)
+					return;
+
+				entries = liveEntries();
+				System.out.printf("[LSDB] Rebuilding the table: %d entries, %d removed\n", entries.length/4, removedCnt);
+			} else {
+				System.out.println("[LSDB] Rebuilding the table with an unknown format from the block files: " + tablePath);
+				legacyDevices = Configuration.instance().numLocalDevices;
+				entries = scanBlockFiles(legacyDevices);
+			}
+
+			IoUtil.unmap(mapped);
+		} else {
+			legacyDevices = Configuration.instance().numLocalDevices;
+			entries = scanBlockFiles(legacyDevices); // The blocks of the earlier versions of the table, which are not migrated
+			if (entries.length > 0)
+				System.out.printf("[LSDB] Rebuilding the table from %d existing block files\n", entries.length/4);
 		}
-		
+
+		// The new table is written in a temporary file and then renamed so that the existing table is not lost if
+		// the node stops before the new table is complete
+		File tmpFile = new File(tablePath + ".tmp");
+		tmpFile.delete();
+		mapped = IoUtil.mapNewFile(tmpFile, headerLength + (long)capacity*slotLength);
+		table = new UnsafeBuffer(mapped);
+		table.putLong(capacityOffset, capacity);
+		table.putLong(maxProbeOffset, 0);
+		table.putLong(legacyDevicesOffset, legacyDevices);
+		size = 0;
+
+		for (int i=0; i<entries.length; i+=4) {
+			insert(entries[i], entries[i+1], entries[i+2], entries[i+3]);
+			size++;
+		}
+
+		table.putLong(magicOffset, magic);
+		mapped.force();
+
 		try {
-			map = ChronicleMap
-					.of(String.class, String.class)
-				    .name(mapName)
-				    .averageKeySize(32)
-				    .averageValueSize(2)
-				    .entries(maxSize+100)
-				    .createPersistedTo(new File(mapFilePath));
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
 		} catch (IOException e) {
-			e.printStackTrace();
+			throw new UncheckedIOException("Unable to replace the local store table " + tablePath, e);
+		}
+	}
+
+	/**
+	 * Finds the block files in the local directories of the blocks. This rebuilds the table when the table does not
+	 * exist, for example when the node is upgraded from the earlier versions of the table, or when it is corrupted.
+	 * The valid length of a block is its file size because the files of those versions are not pre-allocated.
+	 *
+	 * @param legacyDevices See legacyDevices()
+	 * @return The type, high, low, and length of each block, four values per entry
+	 */
+	private static long[] scanBlockFiles(int legacyDevices) {
+		Configuration conf = Configuration.instance();
+		List<long[]> found = Collections.synchronizedList(new ArrayList<>());
+
+		// The data blocks in the directories of the devices, and in the directories of the blocks that were created
+		// before the devices were recorded, whose device is derived from the block
+		Set<String> deviceDirs = new HashSet<>(Arrays.asList(conf.localDataDirs));
+		for (int device=0; device<conf.localDataDirs.length; device++) {
+			scanDataBlocks(conf.localDataDirs[device], conf.blocksPath, device, found);
+		}
+		for (int i=-(legacyDevices-1); i<legacyDevices; i++) { // The derived device can be negative
+			if (!deviceDirs.contains("fs"+i))
+				scanDataBlocks("fs"+i, conf.blocksPath, -1, found);
 		}
+
+		scanFiles(Paths.get(conf.indexBlocksPath), 2, file -> { // <dir>/<inumber>-<blockInIndex>
+			String[] parts = file.getFileName().toString().split("-");
+			return new long[]{BlockID.BlockType.INDEX_BLOCK.ordinal(), Long.parseLong(parts[0]), Integer.parseInt(parts[1])};
+		}, -1, found);
+		scanFiles(Paths.get(conf.inodeBlocksPath), 2, file -> // <dir>/<blockIndex>
+				new long[]{BlockID.BlockType.INODES_BLOCK.ordinal(), 0, Integer.parseInt(file.getFileName().toString())}, -1, found);
+		scanFiles(Paths.get(conf.ibmapsPath), 1, file -> // <mapNum>
+				new long[]{BlockID.BlockType.IBMAP_BLOCK.ordinal(), 0, Integer.parseInt(file.getFileName().toString())}, -1, found);
+
+		long[] entries = new long[found.size()*4];
+		for (int i=0; i<found.size(); i++) {
+			System.arraycopy(found.get(i), 0, entries, i*4, 4);
+		}
+		return entries;
 	}
-	
+
 	/**
-	 * @return Previous location associated with blockName, or null if blockName was not already in the DB.
+	 * Adds the data blocks in the directory of a device. The path of a block has the Base64 encoding of the inumber
+	 * and the block number, see DataSegmentID.localPath().
 	 */
-	public synchronized void put(BlockID id) {
+	private static void scanDataBlocks(String deviceDir, String blocksPath, int device, List<long[]> found) {
+		Path root = Paths.get(deviceDir, blocksPath);
+		scanFiles(root, 7, file -> {
+			StringBuilder uuid = new StringBuilder();
+			for (Path part : root.relativize(file)) {
+				uuid.append(part);
+			}
+			ByteBuffer key = ByteBuffer.wrap(Base64.getUrlDecoder().decode(uuid.toString()));
+			if (key.remaining() != 2*Long.BYTES)
+				throw new IllegalArgumentException("Not a block file");
+			return new long[]{BlockID.BlockType.DATA_SEGMENT.ordinal(), key.getLong(), key.getLong()};
+		}, device, found);
+	}
+
+	/**
+	 * Adds the files that are at the given depth under the root directory. The files whose names are not the names
+	 * of the blocks, such as the manifests, are ignored.
+	 *
+	 * @param keyOf Returns the type, high, and low of the block of a file
+	 * @param device The device of the blocks, or -1 if the device is not recorded
+	 */
+	private static void scanFiles(Path root, int depth, Function<Path, long[]> keyOf, int device, List<long[]> found) {
+		if (!Files.isDirectory(root))
+			return;
+
+		try (Stream<Path> files = Files.walk(root, depth)) {
+			files.parallel()
+					.filter(file -> root.relativize(file).getNameCount() == depth && Files.isRegularFile(file))
+					.forEach(file -> {
+						try {
+							long[] key = keyOf.apply(file);
+							found.add(new long[]{key[0], key[1], key[2], ((device + 1L) << deviceShift) | Files.size(file)});
+						} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+							System.out.println("[LSDB] Ignoring the unknown file in the local store: " + file);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					});
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to scan the local store " + root, e);
+		}
+	}
+
+	/**
+	 * Releases the slots that were claimed but not filled when the node stopped, and counts the live entries.
+	 *
+	 * @return Number of the removed slots
+	 */
+	private int recover() {
+		int cap = (int) table.getLong(capacityOffset);
+		int removedCnt = 0;
+		size = 0;
+		for (int i=0; i<cap; i++) {
+			int slot = slotOffset(i);
+			long state = table.getLong(slot+stateOffset);
+			long status = state & statusMask;
+			if (status == claimed) {
+				table.putLong(slot+stateOffset, (state & ~statusMask) | removed);
+				status = removed;
+			}
+
+			if (status == live)
+				size++;
+			else if (status == removed)
+				removedCnt++;
+		}
+		return removedCnt;
+	}
+
+	/**
+	 * @return The type, high, low, and length of each live entry, four values per entry
+	 */
+	private long[] liveEntries() {
+		int cap = (int) table.getLong(capacityOffset);
+		long[] entries = new long[size*4];
+		int idx = 0;
+		for (int i=0; i<cap; i++) {
+			int slot = slotOffset(i);
+			long state = table.getLong(slot+stateOffset);
+			if ((state & statusMask) != live)
+				continue;
+
+			entries[idx++] = typeOf(state);
+			entries[idx++] = table.getLong(slot+highOffset);
+			entries[idx++] = table.getLong(slot+lowOffset);
+			entries[idx++] = table.getLong(slot+lengthOffset);
+		}
+		return entries;
+	}
+
+	/**
+	 * Adds the block in the table with zero valid length. The same block must not be added concurrently, which is the
+	 * case because a block is created under its load lock.
+	 */
+	public void put(BlockID id) {
+		put(id, -1);
+	}
+
+	/**
+	 * @param device The local device of the block file, or -1 if the device is not recorded
+	 */
+	public void put(BlockID id, int device) {
 		//System.out.println("[LSDB] Added: " + id.name());
-		
-		assert map.size()+1 <= maxSize;
-		
-		String prev = map.put(id.localPath(), "");
-		
-		if (prev != null) {
+
+		if (find(id) >= 0) {
 			System.out.println("\t Block already exists in the localstore: " + id + ", "+id.localPath());
+			assert false;
+			return;
 		}
-		
-		assert prev == null;
-		
+
+		insert(id.type().ordinal(), id.localKeyHigh(), id.localKeyLow(), (device + 1L) << deviceShift);
+
 		//System.out.println("Created block: "  + id +", "+ id.localPath());
 	}
-	
+
+	private void insert(long type, long high, long low, long length) {
+		ensureOpen();
+		int home = home(type, high, low);
+		for (int i=0; i<capacity; i++) {
+			int slot = slotOffset((home + i) & mask);
+			long state = table.getLongVolatile(slot+stateOffset);
+			long status = state & statusMask;
+			if (status != empty && status != removed)
+				continue;
+
+			long claimedState = (((state >>> 4) + 1) << 4) | (type << 2) | claimed;
+			if (!table.compareAndSetLong(slot+stateOffset, state, claimedState)) {
+				i--; // Check the same slot again
+				continue;
+			}
+
+			table.putLong(slot+highOffset, high);
+			table.putLong(slot+lowOffset, low);
+			table.putLong(slot+lengthOffset, length);
+			updateMaxProbe(i); // Before the entry is visible so that the lookups that find the entry probe far enough
+			table.putLongVolatile(slot+stateOffset, (claimedState & ~statusMask) | live);
+			return;
+		}
+
+		throw new IllegalStateException("The local store table is full, capacity " + capacity + ", max size " + maxSize);
+	}
+
 	/**
-	 * @param blockName
-	 * @return Whether the blockName entry exists in the DB or not
+	 * @return Whether the block exists in the local store or not
 	 */
-	public synchronized boolean exists(BlockID id) {
+	public boolean exists(BlockID id) {
 		//System.out.println("[LSDB] Exists: " + id.name());
-		return map.containsKey(id.localPath());
+		return find(id) >= 0;
 	}
-	
+
 	/**
-	 * @param blockName
-	 * @return Location of the blockName, or null if blockName entry was not in the DB.
+	 * @return true if the block was in the table
 	 */
-	public synchronized String removeEntry(BlockID id) {
+	public boolean removeEntry(BlockID id) {
 		//System.out.println("[LSDB] Removed: " + id.localPath());
-		return map.remove(id.localPath());
+		long type = id.type().ordinal();
+		long high = id.localKeyHigh();
+		long low = id.localKeyLow();
+
+		ensureOpen();
+		int home = home(type, high, low);
+		long maxProbe = table.getLongVolatile(maxProbeOffset);
+		for (int i=0; i<=maxProbe; i++) {
+			int slot = slotOffset((home + i) & mask);
+			long state = table.getLongVolatile(slot+stateOffset);
+			long status = state & statusMask;
+			if (status == empty)
+				return false;
+
+			if (status == live && matches(slot, state, type, high, low)) {
+				// The CAS uses the validated state, so it fails if the slot is reused by another block after the check
+				if (table.compareAndSetLong(slot+stateOffset, state, (state & ~statusMask) | removed))
+					return true;
+				i--; // Check the same slot again
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Updates the valid length of the block file after the block is stored locally. The length only grows because the
+	 * segments of a block can be stored out of order. A block is not removed while it is being stored.
+	 */
+	public void setLength(BlockID id, long length) {
+		int slot = find(id);
+		if (slot < 0)
+			return;
+
+		long prev;
+		do {
+			prev = table.getLongVolatile(slot+lengthOffset);
+			if ((prev & lengthMask) >= length)
+				return;
+		} while (!table.compareAndSetLong(slot+lengthOffset, prev, (prev & ~lengthMask) | length));
+	}
+
+	/**
+	 * @return The valid length of the block file, or -1 if the block is not in the DB
+	 */
+	public long length(BlockID id) {
+		int slot = find(id);
+		if (slot < 0)
+			return -1;
+		return table.getLongVolatile(slot+lengthOffset) & lengthMask;
+	}
+
+	/**
+	 * @return The local device of the block file, or -1 if the block is not in the DB or its device is not recorded
+	 */
+	public int device(BlockID id) {
+		int slot = find(id);
+		if (slot < 0)
+			return -1;
+		return (int) (table.getLongVolatile(slot+lengthOffset) >>> deviceShift) - 1;
+	}
+
+	public interface EntryVisitor {
+		/**
+		 * @param device The recorded device of the block, or -1
+		 */
+		void visit(BlockID.BlockType type, long localKeyHigh, long localKeyLow, int device);
+	}
+
+	/**
+	 * Visits the live entries of the table. The entries that are added or removed concurrently may not be visited.
+	 */
+	public void forEach(EntryVisitor visitor) {
+		ensureOpen();
+		BlockID.BlockType[] types = BlockID.BlockType.values();
+		for (int i=0; i<capacity; i++) {
+			int slot = slotOffset(i);
+			long state = table.getLongVolatile(slot+stateOffset);
+			if ((state & statusMask) != live)
+				continue;
+
+			visitor.visit(types[(int) typeOf(state)], table.getLongVolatile(slot+highOffset),
+					table.getLongVolatile(slot+lowOffset), (int) (table.getLongVolatile(slot+lengthOffset) >>> deviceShift) - 1);
+		}
+	}
+
+	/**
+	 * @return Number of the local devices when the table was created. The earlier versions derived the device of a data
+	 * block from the block and the number of the devices, and these blocks have no device in the table. The number is
+	 * recorded so that these blocks are found if the number of the devices changes.
+	 */
+	public int legacyDevices() {
+		return legacyDevices;
 	}
-	
-	public synchronized int size() {
-		return map.size();
+
+	/**
+	 * @return Number of the blocks in the table when the table was opened
+	 */
+	public int size() {
+		return size;
 	}
-	
+
+	/**
+	 * Closes the table and writes it to the file. The file is not unmapped here because the lookups that started
+	 * before the table is closed may still be reading the table. The mapping is released when the table is garbage
+	 * collected.
+	 */
 	public synchronized void shutdown() {
-		map.close();
+		if (closed)
+			return;
+
+		closed = true;
+		mapped.force();
+	}
+
+	private void ensureOpen() {
+		if (closed)
+			throw new IllegalStateException("The local store table is closed: " + tablePath);
+	}
+
+	/**
+	 * @return Offset of the live slot of the block, or -1 if the block is not in the table
+	 */
+	private int find(BlockID id) {
+		long type = id.type().ordinal();
+		long high = id.localKeyHigh();
+		long low = id.localKeyLow();
+
+		ensureOpen();
+		int home = home(type, high, low);
+		long maxProbe = table.getLongVolatile(maxProbeOffset);
+		for (int i=0; i<=maxProbe; i++) {
+			int slot = slotOffset((home + i) & mask);
+			long state = table.getLongVolatile(slot+stateOffset);
+			long status = state & statusMask;
+			if (status == empty)
+				return -1;
+
+			if (status == live && matches(slot, state, type, high, low))
+				return slot;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @param state The state of the slot that was read before the key
+	 * @return Whether the slot has the key and has not been reused while the key was read
+	 */
+	private boolean matches(int slot, long state, long type, long high, long low) {
+		return typeOf(state) == type &&
+				table.getLongVolatile(slot+highOffset) == high &&
+				table.getLongVolatile(slot+lowOffset) == low &&
+				table.getLongVolatile(slot+stateOffset) == state;
+	}
+
+	private void updateMaxProbe(long probe) {
+		long prev;
+		do {
+			prev = table.getLongVolatile(maxProbeOffset);
+			if (prev >= probe)
+				return;
+		} while (!table.compareAndSetLong(maxProbeOffset, prev, probe));
+	}
+
+	private int home(long type, long high, long low) {
+		long h = (high * 0x9E3779B97F4A7C15L) ^ (low * 0xC2B2AE3D27D4EB4FL) ^ type;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return (int) h & mask;
+	}
+
+	private static long typeOf(long state) {
+		return (state >>> 2) & 3;
+	}
+
+	private static int slotOffset(int idx) {
+		return headerLength + idx*slotLength;
 	}
 }
@@ -2,29 +2,59 @@ package kawkab.fs.core;
 
 import kawkab.fs.commons.Configuration;
 import kawkab.fs.core.exceptions.FileNotExistException;
+import kawkab.fs.core.exceptions.InsufficientResourcesException;
 import kawkab.fs.core.exceptions.KawkabException;
+import kawkab.fs.core.metrics.Metrics;
 import kawkab.fs.core.timerqueue.TimerQueue;
 import kawkab.fs.core.timerqueue.TimerQueueIface;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 
+/**
+ * Stores the blocks in the local storage. The data blocks are stored on the local devices, one data directory per
+ * device, and each device has its own workers and its own limit of maxBlocksPerLocalDevice blocks. A new data block
+ * is placed on the device that has the most free blocks per block waiting in its store queues, so that the flushes
+ * and the reads spread over the devices. The inodes, ibmaps, and index blocks are stored under basePath and count
+ * against the limit of the first device. The inodes blocks and ibmaps of this node are never evicted, so the blocks of
+ * their whole range are reserved at the start, and they are created lazily without taking permits.
+ */
 public final class LocalStoreManager implements SyncCompleteListener {
 	private GlobalStoreManager globalProc;
 	
 	private static final int maxBlocks = Configuration.instance().maxBlocksPerLocalDevice; // Number of blocks that can be created locally
-	private static final int numWorkers = Configuration.instance().numLocalDevices; // Number of worker threads and number of reqsQs
+	private static final int numDevices = Configuration.instance().numLocalDevices;
+	private static final int workersPerDevice = Configuration.instance().localWorkersPerDevice;
+	private static final int numWorkers = numDevices * workersPerDevice; // Number of worker threads and number of reqsQs
+	private static final String[] dataDirs = Configuration.instance().localDataDirs;
+	private static final long dataBlockSizeBytes = Configuration.instance().dataBlockSizeBytes;
+	private static final int createBlockTimeoutMs = Configuration.instance().createBlockTimeoutMs;
+	private static final int metadataBlocks = Configuration.instance().inodeBlocksPerMachine +
+			Configuration.instance().ibmapsPerMachine; // Reserved in the first device
 	
 	private TransferQueue<Block> storeQs[]; // Buffer to queue block store requests
 	private Thread[] workers;                   // Pool of worker threads that store blocks locally
 	private FileChannels[] fileChannels;
-	private final LocalStoreDB storedFilesMap;        // Contains the paths and IDs of the blocks that are currently stored locally
-	private final Semaphore storePermits; // To limit the number of files in the local storage
+	private LocalIOEngine[] ioEngines;         // I/O engine of each worker
+	private final Metrics metrics = Metrics.instance();
+	private final Replicator replicator = Replicator.instance();
+	private final LocalStoreDB storedFilesMap;        // Contains the IDs of the blocks that are currently stored locally
+	private final Semaphore[] storePermits; // To limit the number of files on each local device
 	private volatile boolean working = true;
+	private volatile boolean dbOpen = true;
 	private final FileLocks fileLocks;
+	private final BlockFilePool blockFilePool;
 	
 	private static LocalStoreManager instance;
 
@@ -39,21 +69,38 @@ public final class LocalStoreManager implements SyncCompleteListener {
 	private LocalStoreManager() {
 		//workers = Executors.newFixedThreadPool(numWorkers);
 		globalProc = GlobalStoreManager.instance();
-		
-		storedFilesMap = new LocalStoreDB(maxBlocks);
-		storePermits = new Semaphore(maxBlocks);
+		globalProc.setLocalUse(this::usedFraction);
+		
+		storedFilesMap = new LocalStoreDB(maxBlocks * numDevices);
+		DataSegmentID.setLegacyDevices(storedFilesMap.legacyDevices());
+		storePermits = new Semaphore[numDevices];
+		for (int i=0; i<numDevices; i++) {
+			storePermits[i] = new Semaphore(i == 0 ? maxBlocks - metadataBlocks : maxBlocks);
+			new File(dataDirs[i]).mkdirs(); // To get the free space of the device before its first block
+		}
 		
 		fileLocks = FileLocks.instance();
-		
-		int inLocalSystem = storedFilesMap.size();
-		assert inLocalSystem <= maxBlocks;
-		try {
-			storePermits.acquire(inLocalSystem);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+		blockFilePool = BlockFilePool.instance();
+		
+		int[] inDevice = new int[numDevices];
+		storedFilesMap.forEach((type, high, low, device) -> {
+			if (type == BlockID.BlockType.INODES_BLOCK || type == BlockID.BlockType.IBMAP_BLOCK)
+				return; // Reserved
+			BlockID id = type == BlockID.BlockType.DATA_SEGMENT ? new DataSegmentID(high, low, 0, 0) : null;
+			int idx = permitsIndex(id, device);
+			if (idx >= 0)
+				inDevice[idx]++;
+		});
+		
+		for (int i=0; i<numDevices; i++) {
+			try {
+				storePermits[i].acquire(Math.min(inDevice[i], storePermits[i].availablePermits()));
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
 		}
 		
-		System.out.println("Initializing local store manager. Workers = " + numWorkers);
+		System.out.println("Initializing local store manager. Devices = " + numDevices + ", workers = " + numWorkers);
 		
 		startWorkers();
 	}
@@ -75,6 +122,11 @@ public final class LocalStoreManager implements SyncCompleteListener {
 			fileChannels[i] = new FileChannels("LSM-Chnls-"+i);
 		}
 		
+		ioEngines = new LocalIOEngine[numWorkers];
+		for (int i=0; i<ioEngines.length; i++) {
+			ioEngines[i] = LocalIOEngine.create("LSM-"+i);
+		}
+		
 		workers = new Thread[numWorkers];
 		for (int i=0; i<workers.length; i++) {
 			final int workerID = i;
@@ -89,40 +141,108 @@ public final class LocalStoreManager implements SyncCompleteListener {
 	}
 
 	/**
-	 * The workers poll the same queue
+	 * The workers poll the same queue. Each worker collects a batch of up to queueDepth blocks and stores the batch
+	 * through its I/O engine.
 	 */
 	private void runStoreWorker(int workerID) {
 		TransferQueue<Block> reqs = storeQs[workerID];
 		FileChannels channels = fileChannels[workerID];
+		LocalIOEngine engine = ioEngines[workerID];
+		List<LocalIOEngine.IOTask> batch = new ArrayList<>(engine.queueDepth());
 		while(working) {
-			Block block = reqs.poll();
-			if (block == null) {
+			if (pollBatch(reqs, channels, engine.queueDepth(), batch) == 0) {
 				try {
 					Thread.sleep(3); //1ms is arbitrary
 				} catch (InterruptedException e1) {}
 				continue;
 			}
 
-			try {
-				processStoreRequest(block, channels);
-			} catch (KawkabException e) {
-				e.printStackTrace();
-			}
+			executeBatch(engine, batch);
 		}
 
 		// Perform the remaining tasks in the queue
-		Block block;
-		while( (block = reqs.poll()) != null) {
-			try {
-				processStoreRequest(block, channels);
-			} catch (KawkabException e) {
-				e.printStackTrace();
-			}
+		while (pollBatch(reqs, channels, engine.queueDepth(), batch) > 0) {
+			executeBatch(engine, batch);
 		}
 
 		System.out.println("Closing thread: " + Thread.currentThread().getName());
 	}
+	
+	/**
+	 * Polls up to maxSize blocks and makes one I/O task for the blocks of each file. The dirty segments of the same
+	 * block file are stored together with a gathering write.
+	 */
+	private int pollBatch(TransferQueue<Block> reqs, FileChannels channels, int maxSize, List<LocalIOEngine.IOTask> batch) {
+		batch.clear();
+		Map<String, List<Block>> files = new LinkedHashMap<>();
+		int count = 0;
+		Block block;
+		while (count < maxSize && (block = reqs.poll()) != null) {
+			BlockID id = block.id();
+			if (id == null)
+				continue;
+			
+			files.computeIfAbsent(id.localPath(), k -> new ArrayList<>(2)).add(block);
+			count++;
+		}
+		
+		for (Map.Entry<String, List<Block>> file : files.entrySet()) {
+			final String path = file.getKey();
+			final List<Block> blocks = file.getValue();
+			batch.add(new LocalIOEngine.IOTask() {
+				@Override
+				public String fileKey() {
+					return path;
+				}
+
+				@Override
+				public void run() throws KawkabException {
+					if (blocks.size() == 1 || blocks.get(0).id().type() != BlockID.BlockType.DATA_SEGMENT) {
+						for (Block blk : blocks) {
+							processStoreRequest(blk, channels);
+						}
+					} else {
+						processSegmentsStoreRequest(blocks, channels);
+					}
+				}
+			});
+		}
+		
+		return batch.size();
+	}
+	
+	private void executeBatch(LocalIOEngine engine, List<LocalIOEngine.IOTask> batch) {
+		try {
+			engine.execute(batch);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
 
+	/**
+	 * Queues all the dirty blocks to be stored locally, and then waits until all of them are stored. The workers store
+	 * the queued blocks in batches of up to localIOQueueDepth, unlike storing and waiting for one block at a time.
+	 * The blocks can be in use; the updates that are applied while waiting are also stored before this returns.
+	 *
+	 * @param blocks The blocks to store, such as Cache.dirtyBlocks()
+	 * @return The number of the blocks that were dirty
+	 */
+	public int storeAll(Collection<? extends Block> blocks) throws KawkabException, InterruptedException {
+		List<Block> queued = new ArrayList<>(blocks.size());
+		for (Block block : blocks) {
+			if (block.id().onPrimaryNode() && block.isLocalDirty()) {
+				store(block);
+				queued.add(block);
+			}
+		}
+		
+		for (Block block : queued) {
+			block.waitUntilSynced();
+		}
+		
+		return queued.size();
+	}
+	
 	/**
 	 * This a non-blocking function. The block is added in a queue to be stored locally. Only the dirty bytes
 	 * are copied to the local store. If the block is needed to be stored globally, the block is added in the globalStore's
@@ -151,10 +271,20 @@ public final class LocalStoreManager implements SyncCompleteListener {
 			throw new KawkabException("LocalProcessor has already received stop signal.");
 		}*/
 
-		//Load balance between workers, but assign same worker to the same block.
-		int queueNum = Math.abs(block.id().perBlockTypeKey()) % numWorkers; //TODO: convert hashcode to a fixed computed integer or int based key
-
-		storeQs[queueNum].add(block);
+		storeQs[queueOf(block.id())].add(block);
+	}
+	
+	/**
+	 * Load balance between workers, but assign same worker to the same block. A data block goes to a worker of its
+	 * device. The device of a block does not change while the block is in the local store.
+	 */
+	private int queueOf(BlockID id) {
+		int hash = Math.abs(id.perBlockTypeKey()); //TODO: convert hashcode to a fixed computed integer or int based key
+		if (id.type() != BlockID.BlockType.DATA_SEGMENT)
+			return hash % numWorkers;
+		
+		int device = Math.max(0, permitsIndex(id, storedFilesMap.device(id))); // A legacy block may not be on a device
+		return device * workersPerDevice + hash % workersPerDevice;
 	}
 
 	/**
@@ -202,6 +332,9 @@ public final class LocalStoreManager implements SyncCompleteListener {
 			assert channel.isOpen();
 
 			syncedCnt = block.storeTo(channel);
+			
+			if (syncedCnt > 0 && bid.type() == BlockID.BlockType.DATA_SEGMENT)
+				storedFilesMap.setLength(bid, ((DataSegment)block).dirtyOffsetInBlock());
 
 			//block.markGlobalDirty();
 		} catch (IOException e) {
@@ -216,6 +349,126 @@ public final class LocalStoreManager implements SyncCompleteListener {
 			lock.unlock();
 		}
 
+		afterStore(block, bid, dirtyCnt);
+
+		return syncedCnt;
+	}
+	
+	/**
+	 * Stores the dirty segments of the same block file. The contiguous dirty ranges of the segments are written with
+	 * a single gathering write. The rest of the processing of each segment is the same as in processStoreRequest().
+	 *
+	 * @param blocks DataSegments of the same block file
+	 */
+	private int processSegmentsStoreRequest(List<Block> blocks, FileChannels channels) throws KawkabException {
+		List<DataSegment> segments = new ArrayList<>(blocks.size());
+		for (Block block : blocks) {
+			if (block.id() == null || segments.contains(block))
+				continue;
+			
+			if (block.localDirtyCount() == 0) {
+				block.notifyLocalSyncComplete();
+				continue;
+			}
+			
+			segments.add((DataSegment) block);
+		}
+		
+		if (segments.isEmpty())
+			return 0;
+		
+		segments.sort(Comparator.comparingInt(seg -> ((DataSegmentID) seg.id()).segmentInBlock()));
+		
+		int numSegs = segments.size();
+		BlockID[] ids = new BlockID[numSegs];
+		int[] dirtyCnts = new int[numSegs];
+		int[] lengths = new int[numSegs];
+		for (int i=0; i<numSegs; i++) {
+			DataSegment seg = segments.get(i);
+			ids[i] = seg.id();
+			dirtyCnts[i] = seg.localDirtyCount();
+		}
+		
+		int syncedCnt = 0;
+		BlockID bid = ids[0];
+		Lock lock = fileLocks.grabLock(bid); // The segments of the same block have the same lock
+		FileChannel channel = null;
+		try {
+			lock.lock();
+			channel = channels.acquireChannel(bid);
+			
+			assert channel.isOpen();
+			
+			ByteBuffer[] run = new ByteBuffer[numSegs];
+			int runCount = 0;
+			long runStart = 0;
+			long runLen = 0;
+			for (int i=0; i<numSegs; i++) {
+				DataSegment seg = segments.get(i);
+				ByteBuffer dirty = seg.dirtyBytes();
+				long offset = seg.dirtyOffsetInBlock();
+				lengths[i] = dirty.remaining();
+				if (lengths[i] == 0)
+					continue;
+				
+				if (runCount > 0 && offset != runStart + runLen) { // Not contiguous with the current run
+					syncedCnt += writeRun(channel, run, runCount, runStart, runLen);
+					runCount = 0;
+				}
+				
+				if (runCount == 0) {
+					runStart = offset;
+					runLen = 0;
+				}
+				
+				run[runCount++] = dirty;
+				runLen += lengths[i];
+			}
+			
+			if (runCount > 0)
+				syncedCnt += writeRun(channel, run, runCount, runStart, runLen);
+			
+			long validLength = 0;
+			for (int i=0; i<numSegs; i++) {
+				DataSegment seg = segments.get(i);
+				seg.markStored(lengths[i]);
+				validLength = Math.max(validLength, seg.dirtyOffsetInBlock());
+			}
+			
+			if (syncedCnt > 0)
+				storedFilesMap.setLength(bid, validLength);
+		} catch (IOException e) {
+			System.out.println("Unbale to store data for ID: " + bid);
+			throw new KawkabException(e);
+		} finally {
+			if (channel != null) {
+				channels.releaseFileChannel(bid);
+			}
+			
+			lock.unlock();
+		}
+		
+		for (int i=0; i<numSegs; i++) {
+			afterStore(segments.get(i), ids[i], dirtyCnts[i]);
+		}
+		
+		return syncedCnt;
+	}
+	
+	private int writeRun(FileChannel channel, ByteBuffer[] run, int runCount, long runStart, long runLen) throws IOException {
+		channel.position(runStart);
+		long written = 0;
+		while (written < runLen) {
+			written += channel.write(run, 0, runCount);
+		}
+		return (int) written;
+	}
+	
+	/**
+	 * Re-queues the block if it became dirty again during the store, otherwise notifies the completion of the local
+	 * sync and submits the block to the global store if needed.
+	 */
+	private void afterStore(Block block, BlockID bid, int dirtyCnt) throws KawkabException {
 		//System.out.println("dirtyCnt=0, skipping submittingToGlobal: " + block.id());
 		//updateLocalDirty(block, dirtyCnt);
 		//block.subtractAndGetLocalDirty(dirtyCnt);
@@ -233,13 +486,12 @@ public final class LocalStoreManager implements SyncCompleteListener {
 			//The race b/w checking the localDirty() and the writer marking it localDirty() is safe. The localStore will
 			// eventually get the block.
 			block.notifyLocalSyncComplete();
+			metrics.localFlushed(block.localDirtySince());
 
 			if (block.shouldStoreGlobally()) { // If this block is the last data segment or an ibmap or an inodesBlock
-				globalProc.store(bid, this); // Add the block in the queue to be transferred to the globalStore
+				globalProc.store(bid, this, evictableAfterUpload(bid)); // Add the block in the queue to be transferred to the globalStore
 			}
 		}
-
-		return syncedCnt;
 	}
 
 	/*private long updateLocalDirty(Block block, long dirtyCount) {
@@ -268,7 +520,7 @@ public final class LocalStoreManager implements SyncCompleteListener {
 
 		if (!successful) {
 			System.out.println("[LS] Store to global failed for: " + blockID);
-			globalProc.store(blockID, this); //FIXME: This doesn't seem to be the right approach
+			globalProc.store(blockID, this, evictableAfterUpload(blockID)); // The worker backs off before it retries the upload
 			return;
 		}
 		
@@ -281,11 +533,23 @@ public final class LocalStoreManager implements SyncCompleteListener {
 			evictFromLocal(block);
 		}*/
 
-		if (blockID.type() == BlockID.BlockType.DATA_SEGMENT) {
+		if (blockID.type() == BlockID.BlockType.DATA_SEGMENT && blockID.onPrimaryNode() && replicator.enabled()) {
+			replicator.released((DataSegmentID) blockID); // The peers do not need the replica of the block anymore
+		}
+		
+		if (evictableAfterUpload(blockID)) {
 			evictFromLocal(blockID); //FIXME: We should add it in the list of toBeEvicted
 		}
 	}
 	
+	/**
+	 * @return Whether the local copy of the block is removed after the block is stored in the global store. The
+	 * primary node keeps its blocks locally.
+	 */
+	private boolean evictableAfterUpload(BlockID id) {
+		return id.type() == BlockID.BlockType.DATA_SEGMENT && !id.onPrimaryNode();
+	}
+	
 	//public void notifyEvictedFromCache(Block block) throws KawkabException {
 		//block.unsetInCache();
 		
@@ -299,16 +563,54 @@ public final class LocalStoreManager implements SyncCompleteListener {
 	//}
 	
 	private void evictFromLocal(BlockID id) throws KawkabException {
-		if (id.onPrimaryNode())
+		//System.out.println("[LSM] Evict locally: " + id);
+		
+		removeLocalFile(id);
+	}
+	
+	/**
+	 * Removes a block that has no data from the local store, for example, a data block that was created just before
+	 * the node crashed. Unlike the eviction, this also removes the blocks of the primary node.
+	 */
+	void discardEmptyBlock(BlockID id) throws KawkabException {
+		assert storedFilesMap.length(id) <= 0;
+		
+		System.out.println("[LSM] Discarding the empty block " + id);
+		
+		removeLocalFile(id);
+	}
+	
+	/**
+	 * Removes a block from the local store after its retention period, including the blocks of the primary node. The
+	 * caller must ensure that the block is not modified or waiting to be stored anymore.
+	 */
+	void removeExpired(BlockID id) throws KawkabException {
+		removeLocalFile(id);
+	}
+	
+	private void removeLocalFile(BlockID id) throws KawkabException {
+		// The path depends on the device that is recorded in the entry, so it is taken before the entry is removed
+		int device = storedFilesMap.device(id);
+		String path = id.localPath();
+		
+		if (!storedFilesMap.removeEntry(id)) {
 			return;
+		}
 		
-		//System.out.println("[LSM] Evict locally: " + id);
+		boolean unmapped = MappedBlockFiles.instance().invalidate(path);
+		boolean channelsClosed = closeChannels(id);
+		
+		File file = new File(path);
+		int permitsIdx = permitsIndex(id, device);
 		
-		if (storedFilesMap.removeEntry(id) == null) {
+		// Recycle the file only if no reader has a mapped view or an open channel of the file. Otherwise, the readers
+		// would see the data of the next block that takes the file. Such a file is deleted instead.
+		if (permitsIdx >= 0 && unmapped && channelsClosed && id.type() == BlockID.BlockType.DATA_SEGMENT &&
+				blockFilePool.recycle(((DataSegmentID)id).deviceDir(device), file)) {
+			storePermits[permitsIdx].release();
 			return;
 		}
 		
-		File file = new File(id.localPath());
 		if (!file.delete()) {
 			throw new KawkabException("[LSM] Unable to delete file: " + file.getAbsolutePath());
 		}
@@ -319,7 +621,21 @@ public final class LocalStoreManager implements SyncCompleteListener {
 		//int permits = storePermits.availablePermits();
 		//System.out.println("\t\t\t\t\t\t Evict: Permits: " + permits + ", map: " + mapSize);
 		
-		storePermits.release();
+		if (permitsIdx >= 0)
+			storePermits[permitsIdx].release();
+	}
+	
+	/**
+	 * Closes the cached channels of the workers to the local file of the block.
+	 *
+	 * @return false if a worker is using a channel to the file
+	 */
+	private boolean closeChannels(BlockID id) {
+		boolean closed = true;
+		for (FileChannels channels : fileChannels) {
+			closed &= channels.invalidate(id);
+		}
+		return closed;
 	}
 	
 	/**
@@ -329,22 +645,31 @@ public final class LocalStoreManager implements SyncCompleteListener {
 	 * The function assumes that the caller prevents multiple writers from creating the same new block.
 	 */
 	public void createBlock(BlockID blockID) throws IOException, InterruptedException {
+		boolean isData = blockID.type() == BlockID.BlockType.DATA_SEGMENT;
+		int device = isData ? chooseDevice() : -1;
+		Semaphore permits = isReserved(blockID) ? null : storePermits[permitsIndex(blockID, device)];
 		
-		storePermits.acquire(); // This provides an upper limit on the number of blocks that can be created locally.
+		if (permits != null)
+			acquirePermit(blockID, permits); // This provides an upper limit on the number of blocks that can be created locally.
 		
-		File file = new File(blockID.localPath());
+		String path = isData ? ((DataSegmentID)blockID).localPath(device) : blockID.localPath();
+		File file = new File(path);
 		File parent = file.getParentFile();
 		if (!parent.exists()){
 			parent.mkdirs();
 		}
 		
+		// Data blocks take a pre-allocated file from the pool, if available
+		boolean fromPool = isData && !file.exists() && blockFilePool.takeAs(dataDirs[device], file);
+		
 		//syncLocally(block);
-		if (!file.createNewFile()) {
-			storePermits.release();
-			throw new IOException("Unable to create the file: " + blockID.localPath());
+		if (!fromPool && !file.createNewFile()) {
+			if (permits != null)
+				permits.release();
+			throw new IOException("Unable to create the file: " + path);
 		}
 		
-		storedFilesMap.put(blockID); // storedFilesMap.put() and block.setInLocal() are not required to be atomic. This is because a  
+		storedFilesMap.put(blockID, device); // storedFilesMap.put() and block.setInLocal() are not required to be atomic. This is because a  
 										// file's size is only updated when the block has been created. Therefore, a reader cannot read 
 										// a non-existing block.
 		
@@ -353,6 +678,138 @@ public final class LocalStoreManager implements SyncCompleteListener {
 		//block.setInLocalStore(); //Mark the block as locally saved
 	}
 	
+	/**
+	 * The data blocks wait for at most createBlockTimeoutMs, so that an appender fails instead of stalling forever
+	 * when the global store does not free the local store. The flow control normally rejects the appends well before
+	 * the local store is full. The index blocks wait without a timeout because they are created in the middle of
+	 * updating a file, and they are a small fraction of the blocks.
+	 */
+	private void acquirePermit(BlockID blockID, Semaphore permits) throws InsufficientResourcesException, InterruptedException {
+		if (permits.tryAcquire())
+			return;
+
+		long startNanos = System.nanoTime();
+		try {
+			if (blockID.type() != BlockID.BlockType.DATA_SEGMENT) {
+				permits.acquire();
+			} else if (!permits.tryAcquire(createBlockTimeoutMs, TimeUnit.MILLISECONDS)) {
+				throw new InsufficientResourcesException(String.format("[LSM] The local store is full, unable to create " +
+						"the block %s after %d ms", blockID, createBlockTimeoutMs));
+			}
+		} finally {
+			metrics.localStoreStalled(startNanos);
+		}
+	}
+	
+	/**
+	 * Chooses the device of a new data block. The free blocks of a device are limited by both its permits and the
+	 * usable space of its file system, which can be shared with other data. If no device has a free block, the block
+	 * waits for the device with the shortest queue.
+	 */
+	private int chooseDevice() {
+		if (numDevices == 1)
+			return 0;
+		
+		int best = 0;
+		double bestScore = -1;
+		int bestQueued = Integer.MAX_VALUE;
+		for (int i=0; i<numDevices; i++) {
+			long free = Math.min(storePermits[i].availablePermits(), new File(dataDirs[i]).getUsableSpace() / dataBlockSizeBytes);
+			int queued = queuedBlocks(i);
+			double score = (double) free / (1 + queued);
+			if (score > bestScore || (score == bestScore && queued < bestQueued)) {
+				best = i;
+				bestScore = score;
+				bestQueued = queued;
+			}
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * @return Whether the block is an inodes block or an ibmap, which are reserved at the start
+	 */
+	private static boolean isReserved(BlockID id) {
+		return id.type() == BlockID.BlockType.INODES_BLOCK || id.type() == BlockID.BlockType.IBMAP_BLOCK;
+	}
+	
+	/**
+	 * @param id ID of the block, or null for the index blocks
+	 * @param device The recorded device of the block, or -1
+	 * @return The index of the device whose permits the block takes, or -1 if the block does not take permits: the
+	 * inodes blocks and ibmaps, and the data blocks in a directory that is not one of the localDataDirs
+	 */
+	private static int permitsIndex(BlockID id, int device) {
+		if (id != null && isReserved(id))
+			return -1;
+		if (device >= 0)
+			return device;
+		if (id == null || id.type() != BlockID.BlockType.DATA_SEGMENT)
+			return 0;
+		
+		// The blocks that were created before the devices were recorded are in the directory that is derived from the
+		// block, which is a device only if it is one of the localDataDirs
+		String dir = ((DataSegmentID) id).deviceDir(-1);
+		for (int i=0; i<numDevices; i++) {
+			if (dataDirs[i].equals(dir))
+				return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * @return The local device of the data block, or -1 if the block is not in the local store or its device is not
+	 * recorded
+	 */
+	int deviceOf(BlockID id) {
+		if (!dbOpen)
+			return -1;
+		return storedFilesMap.device(id);
+	}
+	
+	/**
+	 * @return The fraction of the blocks of the local store that are in use
+	 */
+	double usedFraction() {
+		long available = 0;
+		for (Semaphore permits : storePermits) {
+			available += permits.availablePermits();
+		}
+		return 1.0 - (double) available / ((long) maxBlocks * numDevices - metadataBlocks);
+	}
+	
+	/**
+	 * @return The number of blocks waiting in the queues of the local store workers
+	 */
+	int queuedBlocks() {
+		int count = 0;
+		for (TransferQueue<Block> queue : storeQs) {
+			count += queue.size();
+		}
+		return count;
+	}
+	
+	/**
+	 * @return The number of blocks waiting in the queues of the workers of the device. The queues of a device also
+	 * have the metadata blocks whose hash maps to them.
+	 */
+	private int queuedBlocks(int device) {
+		int count = 0;
+		for (int i=device*workersPerDevice; i<(device+1)*workersPerDevice; i++) {
+			count += storeQs[i].size();
+		}
+		return count;
+	}
+	
+	/**
+	 * @return The number of bytes of the block file that are written by the block, or -1 if it is not known. The
+	 * data block files are pre-allocated, so their size is not the valid length.
+	 */
+	public long validLength(BlockID id) {
+		return storedFilesMap.length(id);
+	}
+	
 	/**
 	 * This is a blocking function. The block is loaded from the local store if the block is available in it. Otherwise,
 	 * the block is loaded from the global store. The function blocks until it is loaded from the local or the global
@@ -422,14 +879,11 @@ public final class LocalStoreManager implements SyncCompleteListener {
 		}
 		System.out.println("Stopped workers, checking for any remaining jobs.");
 		for (int i=0; i<storeQs.length; i++) {
-			Block block = null;
-			while( (block = storeQs[i].poll()) != null) {
-				try {
-					processStoreRequest(block, fileChannels[i]);
-				} catch (KawkabException e) {
-					e.printStackTrace();
-				}
+			List<LocalIOEngine.IOTask> batch = new ArrayList<>();
+			while (pollBatch(storeQs[i], fileChannels[i], ioEngines[i].queueDepth(), batch) > 0) {
+				executeBatch(ioEngines[i], batch);
 			}
+			ioEngines[i].shutdown();
 		}
 		
 		for (int i=0; i<storeQs.length; i++) {
@@ -439,12 +893,16 @@ public final class LocalStoreManager implements SyncCompleteListener {
 		
 		globalProc.shutdown();
 		
+		dbOpen = false;
 		storedFilesMap.shutdown();
 		
 		for (int i=0; i<fileChannels.length; i++) {
 			fileChannels[i].shutdown();
 		}
 		
+		MappedBlockFiles.instance().shutdown();
+		blockFilePool.shutdown();
+		
 		System.out.println("Closed LocalStoreManager");
 	}
 
@@ -0,0 +1,231 @@
+package kawkab.fs.core;
+
+import kawkab.fs.commons.Configuration;
+import org.agrona.IoUtil;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Read-only memory mappings of the local block files. The sealed data segments that are loaded from the local store
+ * are served as views of the mapped file instead of copying the segment in the segment's buffer.
+ *
+ * A block file is mapped up to the last complete segment within the valid length of the file. A mapping is shared by
+ * all the segments of the block and is reference counted. The mappings that are not referenced are unmapped in the LRU
+ * order when the total mapped size exceeds localMmapBudgetMiB.
+ *
+ * Only the bookkeeping of the regions is done under the lock. A new region is added as a placeholder that reserves its
+ * size in the budget, and the file is mapped and prefetched outside the lock. The concurrent acquires of the same file
+ * wait for the mapping of the placeholder instead of mapping the file again.
+ *
+ * The readers that copy the segments from the block files are also tracked here, so that a block file that is being
+ * read is not reused for another block.
+ */
+public final class MappedBlockFiles {
+	private static MappedBlockFiles instance;
+
+	private final long budgetBytes;
+	private final boolean prefetch;
+	private final int segmentSizeBytes;
+	private final int dataBlockSizeBytes;
+	private final LinkedHashMap<String, Region> regions; // Access ordered for the LRU eviction
+	private final Map<String, Integer> readers = new HashMap<>(); // Number of the readers that have the file open
+	private long mappedBytes;
+
+	private MappedBlockFiles() {
+		Configuration conf = Configuration.instance();
+		budgetBytes = conf.localMmapBudgetMiB * 1048576L;
+		prefetch = conf.localMmapPrefetch;
+		segmentSizeBytes = conf.segmentSizeBytes;
+		dataBlockSizeBytes = conf.dataBlockSizeBytes;
+		regions = new LinkedHashMap<>(1024, 0.75f, true);
+	}
+
+	public static synchronized MappedBlockFiles instance() {
+		if (instance == null) {
+			instance = new MappedBlockFiles();
+		}
+
+		return instance;
+	}
+
+	boolean enabled() {
+		return budgetBytes > 0;
+	}
+
+	/**
+	 * Returns a mapped region of the block file that contains the given range. The caller must release the region
+	 * when it no longer uses the views of the region.
+	 *
+	 * @param validLength Number of bytes of the file that are written by the block
+	 * @return null if the range is not complete in the file, the mapping does not fit in the budget, or the file cannot
+	 * be mapped
+	 */
+	Region acquire(String path, int offset, int length, long validLength) {
+		int end = offset + length;
+		Region region;
+		boolean placeholder = false;
+		synchronized (this) {
+			region = regions.get(path);
+			if (region != null && region.length < end) {
+				if (region.refCount > 0) // The file has grown, but the current mapping is in use or being mapped
+					return null;
+
+				regions.remove(path);
+				unmap(region);
+				region = null;
+			}
+
+			if (region == null) {
+				int mapLen = (int)(Math.min(validLength, dataBlockSizeBytes) / segmentSizeBytes * segmentSizeBytes);
+				if (mapLen < end || !makeRoom(mapLen))
+					return null;
+
+				region = new Region(path, mapLen);
+				regions.put(path, region);
+				mappedBytes += mapLen;
+				placeholder = true;
+			}
+
+			region.refCount++;
+		}
+
+		if (placeholder)
+			map(region);
+
+		if (region.mapping.join() == null) { // The placeholder is already removed
+			synchronized (this) {
+				region.refCount--;
+			}
+			return null;
+		}
+
+		return region;
+	}
+
+	/**
+	 * Maps the file of the placeholder region without holding the lock. The region is removed if the file cannot be
+	 * mapped, and the mapping of the region completes with null.
+	 */
+	private void map(Region region) {
+		MappedByteBuffer buffer = null;
+		try (
+				RandomAccessFile file = new RandomAccessFile(region.path, "r");
+				FileChannel channel = file.getChannel()
+		) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, region.length);
+			if (prefetch)
+				buffer.load(); // Read ahead the whole block for sequential scans
+		} catch (IOException e) {
+			System.out.println("[MBF] Unable to map the block file " + region.path + ": " + e.getMessage());
+			synchronized (this) {
+				regions.remove(region.path, region);
+				mappedBytes -= region.length;
+			}
+		}
+
+		region.mapping.complete(buffer);
+	}
+
+	synchronized void release(Region region) {
+		assert region.refCount > 0;
+
+		region.refCount--;
+		if (region.retired && region.refCount == 0)
+			unmap(region);
+	}
+
+	/**
+	 * Registers a reader that has opened the block file. The reader must call endRead() after closing the file.
+	 */
+	synchronized void beginRead(String path) {
+		readers.merge(path, 1, Integer::sum);
+	}
+
+	synchronized void endRead(String path) {
+		readers.computeIfPresent(path, (k, count) -> count == 1 ? null : count - 1);
+	}
+
+	/**
+	 * Removes the mapping of the block file, for example, when the file is deleted from the local store. The mapping
+	 * is unmapped after the current views of the region are released.
+	 *
+	 * @return false if the file is still mapped by the current views or opened by a reader
+	 */
+	synchronized boolean invalidate(String path) {
+		Region region = regions.remove(path);
+		if (region == null)
+			return !readers.containsKey(path);
+
+		if (region.refCount == 0) {
+			unmap(region);
+			return !readers.containsKey(path);
+		}
+
+		region.retired = true;
+		return false;
+	}
+
+	synchronized void shutdown() {
+		for (Region region : regions.values()) {
+			if (region.refCount == 0)
+				unmap(region);
+			else
+				region.retired = true;
+		}
+		regions.clear();
+	}
+
+	private boolean makeRoom(int length) {
+		Iterator<Region> itr = regions.values().iterator();
+		while (mappedBytes + length > budgetBytes && itr.hasNext()) {
+			Region region = itr.next();
+			if (region.refCount == 0) {
+				itr.remove();
+				unmap(region);
+			}
+		}
+
+		return mappedBytes + length <= budgetBytes;
+	}
+
+	private void unmap(Region region) {
+		IoUtil.unmap(region.mapping.join()); // A region without references is always mapped
+		mappedBytes -= region.length;
+	}
+
+	static final class Region {
+		private final String path;
+		private final CompletableFuture<MappedByteBuffer> mapping = new CompletableFuture<>(); // null if not mapped
+		private final int length;
+		private int refCount;
+		private boolean retired;
+
+		private Region(String path, int length) {
+			this.path = path;
+			this.length = length;
+		}
+
+		/**
+		 * @return A read-only view of the given range of the file
+		 */
+		ByteBuffer view(int offset, int length) {
+			ByteBuffer view = mapping.join().duplicate();
+			view.limit(offset + length).position(offset);
+			return view.slice();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s[%d], refs=%d", path, length, refCount);
+		}
+	}
+}
@@ -1,7 +1,11 @@
 package kawkab.fs.core;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -22,7 +26,7 @@ public class Namespace {
 	// private PersistentMap filesMap;
 	private NamespaceService ns;
 	private Cache cache;
-	private int lastIbmapUsed;
+	private volatile int lastIbmapUsed;
 	private KeyedLock<String> locks;
 	private static LocalStoreManager localStore;
 
@@ -82,7 +86,7 @@ public class Namespace {
 				} catch (FileNotExistException fnee) { // If the file does not exist
 					if (appendMode) { // Create file if the file is opened in the append mode.
 						// System.out.println("[NS] Creating new file: " + filename);
-						inumber = createNewFile(opts.recordSize());
+						inumber = createNewFile(opts);
 						
 						try {
 							ns.addFile(filename, inumber);
@@ -125,6 +129,143 @@ public class Namespace {
 		return inumber;
 	}
 
+	/**
+	 * Opens multiple files in one batch. The namespace lookups and the file creations are pipelined to ZooKeeper,
+	 * the inumbers of the new files are allocated together from the ibmaps, and the new inodes are initialized with
+	 * one acquire per inodes block.
+	 *
+	 * If opening any of the files fails, the files of this batch that are already registered in the append mode are
+	 * unregistered, and the exception is passed to the caller.
+	 *
+	 * @param filenames Names of the files
+	 * @param appendModes Whether each file is opened in the append mode
+	 * @param opts Options of each file
+	 * @return inumbers of the files in the same order as the filenames
+	 */
+	public long[] openFiles(String[] filenames, boolean[] appendModes, FileOptions[] opts) throws IbmapsFullException, IOException,
+			InvalidFileModeException, FileAlreadyOpenedException, FileNotExistException, KawkabException, InterruptedException {
+		assert filenames.length == appendModes.length && filenames.length == opts.length;
+
+		// Lock the files in a fixed order to avoid deadlocks with the concurrent bulk open requests
+		TreeSet<String> sortedNames = new TreeSet<>();
+		for (String fn : filenames) {
+			sortedNames.add(fn);
+		}
+
+		List<String> lockedNames = new ArrayList<>(sortedNames.size());
+		long[] inumbers = null;
+		int registered = 0;
+		try {
+			for (String fn : sortedNames) {
+				locks.lock(fn);
+				lockedNames.add(fn);
+			}
+
+			inumbers = ns.getInumbers(filenames);
+
+			createMissingFiles(filenames, appendModes, opts, inumbers);
+
+			for (; registered < filenames.length; registered++) {
+				long inumber = inumbers[registered];
+				if (!appendModes[registered])
+					continue;
+
+				if (!Commons.onPrimaryNode(inumber)) {
+					throw new InvalidFileModeException(
+							String.format("Cannot open file in the append mode. Inumber of the file is out of range of this node's range. NodeID=%d, PrimaryWriter=%d",
+									thisNodeID,
+									Commons.primaryWriterID(inumber)));
+				}
+
+				openAppendFile(inumber, filenames[registered]);
+			}
+		} catch (KawkabException | IOException | InterruptedException e) {
+			for (int i=0; i<registered; i++) {
+				if (appendModes[i])
+					openedFiles.remove(inumbers[i]);
+			}
+			throw e;
+		} finally {
+			for (String fn : lockedNames) {
+				locks.unlock(fn);
+			}
+		}
+
+		return inumbers;
+	}
+
+	/**
+	 * Creates the files that do not exist in the namespace and updates their inumbers in the given array. This must be
+	 * called with the locks on the given filenames.
+	 */
+	private void createMissingFiles(String[] filenames, boolean[] appendModes, FileOptions[] opts, long[] inumbers)
+			throws IbmapsFullException, IOException, FileNotExistException, KawkabException, InterruptedException {
+		Map<String, Integer> missing = new HashMap<>(); // filename -> index of its first occurrence
+		for (int i=0; i<filenames.length; i++) {
+			if (inumbers[i] >= 0 || missing.containsKey(filenames[i]))
+				continue;
+
+			if (!appendModes[i]) // The file cannot be created if it is not opened in the append mode.
+				throw new FileNotExistException("File does not exist: " + filenames[i]);
+
+			missing.put(filenames[i], i);
+		}
+
+		if (missing.isEmpty())
+			return;
+
+		String[] newNames = new String[missing.size()];
+		FileOptions[] newOpts = new FileOptions[newNames.length];
+		int n = 0;
+		for (Map.Entry<String, Integer> e : missing.entrySet()) {
+			newNames[n] = e.getKey();
+			newOpts[n] = opts[e.getValue()];
+			n++;
+		}
+
+		long[] newInumbers = createNewFiles(newOpts);
+		boolean[] added;
+		try {
+			added = ns.addFiles(newNames, newInumbers);
+		} catch (KawkabException | InterruptedException e) {
+			releaseUnregistered(newNames, newInumbers);
+			throw e;
+		}
+
+		for (int i=0; i<newNames.length; i++) {
+			if (!added[i]) { // Another node has created the same file with a different inumber
+				releaseInumber(newInumbers[i]);
+				newInumbers[i] = ns.getInumber(newNames[i]);
+			}
+			missing.put(newNames[i], i);
+		}
+
+		for (int i=0; i<filenames.length; i++) {
+			Integer idx = missing.get(filenames[i]);
+			if (idx != null)
+				inumbers[i] = newInumbers[idx];
+		}
+	}
+
+	/**
+	 * Releases the inumbers of the new files that are not registered in the namespace after a failed addFiles. Some
+	 * files of the batch may have been registered before the failure, so the inumbers that the namespace maps to the
+	 * files are kept. If the namespace cannot be read, the inumbers are not released because they may be in use.
+	 */
+	private void releaseUnregistered(String[] filenames, long[] inumbers) {
+		try {
+			long[] registered = ns.getInumbers(filenames);
+			for (int i=0; i<filenames.length; i++) {
+				if (registered[i] != inumbers[i])
+					releaseInumber(inumbers[i]);
+			}
+		} catch (IOException | KawkabException e) {
+			System.out.println("[NS] Unable to release the inumbers of the files that are not created: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt(); // The caller throws the failure of addFiles
+		}
+	}
+
 	public synchronized long openFileDbg(String filename, boolean appendMode, FileOptions opts) throws IbmapsFullException, IOException,
 			InvalidFileModeException, FileAlreadyOpenedException, FileNotExistException, KawkabException, InterruptedException {
 		long inumber;
@@ -133,7 +274,7 @@ public class Namespace {
 		locks.lock(filename);
 
 		try {
-				inumber = createNewFile(opts.recordSize());
+				inumber = createNewFile(opts);
 
 			// TODO: update openFilesTable
 
@@ -170,8 +311,22 @@ public class Namespace {
 		}
 	}
 
-	private void releaseInumber(long inumber) {
-		// TODO: Need to implement this function
+	/**
+	 * Clears the bit of the inumber in its ibmap so that the inumber can be allocated again. The inode is initialized
+	 * again when the inumber is reused.
+	 */
+	private void releaseInumber(long inumber) throws IOException, KawkabException {
+		BlockID id = new IbmapBlockID(Ibmap.blockIndexFromInumber(inumber));
+		Ibmap ibmap = null;
+		try {
+			ibmap = (Ibmap) (cache.acquireBlock(id));
+			ibmap.loadBlock(false);
+			ibmap.unlinkInode(inumber);
+		} finally {
+			if (ibmap != null) {
+				cache.releaseBlock(ibmap.id());
+			}
+		}
 	}
 
 	/**
@@ -217,6 +372,87 @@ public class Namespace {
 		return inumber;
 	}
 
+	/**
+	 * Allocates the given number of inumbers. Each ibmap block is acquired once for all the inumbers that it can
+	 * provide. This must be called with the locks on the files that are being created.
+	 *
+	 * @param count Number of inumbers to allocate
+	 * @return the new inumbers
+	 * @throws IbmapsFullException if the ibmaps do not have enough free inumbers
+	 */
+	private long[] getNewInumbers(int count) throws IbmapsFullException, IOException, KawkabException, InterruptedException {
+		long[] inumbers = new long[count];
+		int allocated = 0;
+		int mapNum = lastIbmapUsed;
+		while (true) { // Iterate over the ibmap blocks.
+			BlockID id = new IbmapBlockID(mapNum);
+			Ibmap ibmap = null;
+
+			try {
+				ibmap = (Ibmap) (cache.acquireBlock(id));
+				ibmap.loadBlock(false);
+				while (allocated < count) {
+					long inumber = ibmap.useNextInumber();
+					if (inumber < 0)
+						break;
+					inumbers[allocated++] = inumber;
+				}
+
+				if (allocated == count)
+					break;
+
+				mapNum = (mapNum + 1) % ibmapsPerMachine;
+				if (mapNum == lastIbmapUsed) {
+					for (int i=0; i<allocated; i++) {
+						releaseInumber(inumbers[i]);
+					}
+					throw new IbmapsFullException();
+				}
+			} finally {
+				if (ibmap != null) {
+					cache.releaseBlock(ibmap.id());
+				}
+			}
+		}
+		lastIbmapUsed = mapNum;
+
+		return inumbers;
+	}
+
+	/**
+	 * Creates new files in a batch: allocates the inumbers and initializes the inodes. The inodes that are in the
+	 * same inodes block are initialized with a single acquire of the block.
+	 *
+	 * This function must be called with the locks on the files that are being created.
+	 *
+	 * @param opts Options of each new file
+	 * @return the inumbers of the new files
+	 */
+	private long[] createNewFiles(FileOptions[] opts) throws IbmapsFullException, IOException, KawkabException, InterruptedException {
+		long[] inumbers = getNewInumbers(opts.length);
+
+		int i = 0;
+		while (i < inumbers.length) {
+			int blockIndex = InodesBlock.blockIndexFromInumber(inumbers[i]);
+			BlockID id = new InodesBlockID(blockIndex);
+			InodesBlock inodesBlock = null;
+			try {
+				inodesBlock = (InodesBlock) cache.acquireBlock(id);
+				inodesBlock.loadBlock(false);
+				do {
+					inodesBlock.initInode(inumbers[i], opts[i]);
+					i++;
+				} while (i < inumbers.length && InodesBlock.blockIndexFromInumber(inumbers[i]) == blockIndex);
+			} finally {
+				if (inodesBlock != null) {
+					cache.releaseBlock(inodesBlock.id());
+				}
+			}
+		}
+
+		return inumbers;
+	}
+
 	/**
 	 * Creates a new file: allocates a new inumber, initializes the inode, and
 	 * updates the openFilesTable.
@@ -229,7 +465,7 @@ public class Namespace {
 	 * @throws KawkabException
 	 * @throws InterruptedException
 	 */
-	private long createNewFile(int recordSize) throws IbmapsFullException, IOException, KawkabException, InterruptedException {
+	private long createNewFile(FileOptions opts) throws IbmapsFullException, IOException, KawkabException, InterruptedException {
 		long inumber = getNewInumber();
 
 		int blockIndex = InodesBlock.blockIndexFromInumber(inumber);
@@ -241,7 +477,7 @@ public class Namespace {
 
 			inodesBlock = (InodesBlock) cache.acquireBlock(id);
 			inodesBlock.loadBlock(false);
-			inodesBlock.initInode(inumber, recordSize);
+			inodesBlock.initInode(inumber, opts);
 		} finally {
 			if (inodesBlock != null) {
 				cache.releaseBlock(inodesBlock.id());
@@ -251,6 +487,20 @@ public class Namespace {
 		return inumber;
 	}
 
+	/**
+	 * @see NamespaceService#list(String, String, int)
+	 */
+	public List<String> list(String prefix, String startAfter, int maxEntries) throws KawkabException {
+		return ns.list(prefix, startAfter, maxEntries);
+	}
+
+	/**
+	 * @return inumbers of the given files, or -1 for the files that do not exist
+	 */
+	public long[] lookup(String[] filenames) throws KawkabException, InterruptedException {
+		return ns.getInumbers(filenames);
+	}
+
 	void bootstrap() throws IOException { // We don't need to bootstrap if we are using a distributed namesapce through
 											// ZooKeeper
 		// filesMap = PersistentMap.instance();
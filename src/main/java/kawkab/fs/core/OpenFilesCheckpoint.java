@@ -0,0 +1,114 @@
+package kawkab.fs.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+import kawkab.fs.commons.Configuration;
+import kawkab.fs.core.exceptions.KawkabException;
+
+/**
+ * A persistent set of the files that are open for appends on this node. The set is a bitmap over the inumbers of
+ * this node, with one bit per file. The byte of a file's bit is written in place when the file is opened or closed.
+ *
+ * The tails of the files in the set are recovered when the filesystem is bootstrapped, so the recovery is
+ * proportional to the number of the files that were open when the node stopped rather than to the total data.
+ */
+public final class OpenFilesCheckpoint {
+	private static OpenFilesCheckpoint instance;
+
+	private final long firstInumber;
+	private final int count;
+	private final BitSet open;
+	private final FileChannel channel;
+
+	private OpenFilesCheckpoint() throws KawkabException {
+		Configuration conf = Configuration.instance();
+		firstInumber = 8L * conf.ibmapBlocksRangeStart * conf.ibmapBlockSizeBytes;
+		count = 8 * conf.ibmapBlockSizeBytes * conf.ibmapsPerMachine;
+
+		File file = new File(conf.basePath + File.separator + "checkpoint" + File.separator + "open-files-" +
+				conf.thisNodeID);
+		File parent = file.getParentFile();
+		if (!parent.exists()) {
+			parent.mkdirs();
+		}
+
+		try {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+
+			ByteBuffer buffer = ByteBuffer.allocate((count + 7) / 8);
+			while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0);
+			open = BitSet.valueOf(buffer.array());
+		} catch (IOException e) {
+			throw new KawkabException(e);
+		}
+	}
+
+	public static synchronized OpenFilesCheckpoint instance() throws KawkabException {
+		if (instance == null) {
+			instance = new OpenFilesCheckpoint();
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Adds the files in the set. The set is forced to the disk before returning so that the files are recovered
+	 * after a crash.
+	 */
+	synchronized void opened(long... inumbers) throws KawkabException {
+		try {
+			for (long inumber : inumbers) {
+				update(inumber, true);
+			}
+			channel.force(false);
+		} catch (IOException e) {
+			throw new KawkabException(e);
+		}
+	}
+
+	/**
+	 * Removes the file from the set. The set is not forced to the disk because the recovery of a closed file is
+	 * harmless.
+	 */
+	synchronized void closed(long inumber) throws KawkabException {
+		try {
+			update(inumber, false);
+		} catch (IOException e) {
+			throw new KawkabException(e);
+		}
+	}
+
+	/**
+	 * @return The inumbers of the files in the set
+	 */
+	synchronized long[] openFiles() {
+		return open.stream().mapToLong(bit -> firstInumber + bit).toArray();
+	}
+
+	synchronized void shutdown() {
+		try {
+			channel.force(false);
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void update(long inumber, boolean isOpen) throws IOException {
+		int bit = (int) (inumber - firstInumber);
+		if (bit < 0 || bit >= count || open.get(bit) == isOpen) // Not a file of this node, or not changed
+			return;
+
+		open.set(bit, isOpen);
+
+		int byteIdx = bit / 8;
+		byte[] bytes = open.get(byteIdx*8, byteIdx*8+8).toByteArray();
+		channel.write(ByteBuffer.wrap(new byte[]{bytes.length == 0 ? 0 : bytes[0]}), byteIdx);
+	}
+}
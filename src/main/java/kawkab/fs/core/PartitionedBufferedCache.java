@@ -3,9 +3,11 @@ package kawkab.fs.core;
 import kawkab.fs.commons.Configuration;
 import kawkab.fs.core.exceptions.KawkabException;
 import kawkab.fs.core.exceptions.OutOfMemoryException;
+import kawkab.fs.core.metrics.Metrics;
 import kawkab.fs.utils.GCMonitor;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 import static kawkab.fs.core.BlockID.BlockType;
@@ -21,6 +23,7 @@ public class PartitionedBufferedCache extends Cache {
 	private Configuration conf;
 	private BufferedCache[] cache; // An extended LinkedHashMap that implements removeEldestEntry()
 	private LocalStoreManager localStore;
+	private final Metrics metrics = Metrics.instance();
 	private int numPartitions = 8;
 
 	private ConcurrentHashMap<BlockID, CachedItem> pinnedMap;
@@ -121,6 +124,31 @@ public class PartitionedBufferedCache extends Cache {
 		return cache[numPart].acquireBlock(blockID);
 	}
 
+	@Override
+	public Block acquireSegment(long inumber, long blockInFile, int segmentInBlock, int recordSize)
+			throws OutOfMemoryException, KawkabException {
+		BlockKey key = BlockKey.ofThread().set(DataSegmentID.keyHighOf(inumber),
+				DataSegmentID.keyLowOf(blockInFile, segmentInBlock));
+		BufferedCache part = cache[key.hashCode() % numPartitions];
+
+		Block block = part.acquireIfCached(key);
+		if (block != null)
+			return block;
+
+		return part.acquireBlock(new DataSegmentID(inumber, blockInFile, segmentInBlock, recordSize));
+	}
+
+	@Override
+	public Block acquireInodesBlock(int blockIndex) {
+		CachedItem ci = pinnedMap.get(BlockKey.ofThread().set(InodesBlockID.keyHighOf(), blockIndex));
+		if (ci == null)
+			return acquirePinned(new InodesBlockID(blockIndex));
+
+		metrics.cacheAccess(BlockType.INODES_BLOCK, true);
+		ci.incrementRefCnt();
+		return ci.block();
+	}
+
 	/**
 	 * Releases the block and decrements its reference count. Blocks with reference count 0 are eligible for eviction.
 	 *
@@ -144,6 +172,7 @@ public class PartitionedBufferedCache extends Cache {
 	private Block acquirePinned(BlockID blockID) {
 		CachedItem ci = pinnedMap.get(blockID);
 		int hc = blockID.hashCode();
+		metrics.cacheAccess(blockID.type(), ci != null);
 		if (ci == null) {
 			//A lock is required to prevent concurrent additions of different memory blocks for the same blockID
 			pinLock.lock(hc);  // Lock based on the blockID
@@ -179,6 +208,21 @@ public class PartitionedBufferedCache extends Cache {
 		//FIXME: Remove entries from the pinnedMap that have zero reference count
 	}
 	
+	@Override
+	public List<Block> dirtyBlocks() {
+		List<Block> dirty = cache[0].dirtyBlocks();
+		for (int i=1; i<numPartitions; i++) {
+			dirty.addAll(cache[i].dirtyBlocks());
+		}
+
+		for (CachedItem cachedItem : pinnedMap.values()) {
+			Block block = cachedItem.block();
+			if (block.id().onPrimaryNode() && block.isLocalDirty())
+				dirty.add(block);
+		}
+		return dirty;
+	}
+	
 	/**
 	 * Flushes the block in the persistent store. This should be used only for system shutdown.
 	 * 
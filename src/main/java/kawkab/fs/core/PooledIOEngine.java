@@ -0,0 +1,83 @@
+package kawkab.fs.core;
+
+import kawkab.fs.core.exceptions.KawkabException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes a batch of I/O tasks from a pool of threads so that the device receives many writes at the same time.
+ * The tasks are grouped by their file. Each group runs in a pool thread, and the tasks of a group run in order.
+ */
+final class PooledIOEngine implements LocalIOEngine {
+	private final ExecutorService pool;
+	private final int queueDepth;
+
+	PooledIOEngine(String name, int numThreads, int queueDepth) {
+		this.queueDepth = queueDepth;
+
+		AtomicInteger counter = new AtomicInteger();
+		pool = Executors.newFixedThreadPool(numThreads, runnable -> {
+			Thread thread = new Thread(runnable, name + "-IO-" + counter.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public void execute(List<IOTask> tasks) throws InterruptedException {
+		Map<String, List<IOTask>> groups = new LinkedHashMap<>();
+		for (IOTask task : tasks) {
+			groups.computeIfAbsent(task.fileKey(), k -> new ArrayList<>(2)).add(task);
+		}
+
+		if (groups.size() == 1) { // Nothing to parallelize
+			runGroup(tasks);
+			return;
+		}
+
+		List<Callable<Void>> jobs = new ArrayList<>(groups.size());
+		for (List<IOTask> group : groups.values()) {
+			jobs.add(() -> {
+				runGroup(group);
+				return null;
+			});
+		}
+
+		pool.invokeAll(jobs);
+	}
+
+	private void runGroup(List<IOTask> group) {
+		for (IOTask task : group) {
+			try {
+				task.run();
+			} catch (KawkabException e) {
+				e.printStackTrace();
+			} catch (RuntimeException e) { // Do not lose the rest of the group
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public int queueDepth() {
+		return queueDepth;
+	}
+
+	@Override
+	public void shutdown() {
+		pool.shutdown();
+		try {
+			pool.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+}
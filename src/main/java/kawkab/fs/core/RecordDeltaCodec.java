@@ -0,0 +1,320 @@
+package kawkab.fs.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Record-aware codec for the segments of fixed-size timestamped records, similar to the Gorilla encoding. The first
+ * 8 bytes of a record are the timestamp, which is encoded as the delta-of-delta from the previous record. The rest of
+ * the record is split in 8-byte words, and each word is XORed with the same word of the previous record. Only the
+ * meaningful bits of the XORed value are stored. The segments are decoded as a whole.
+ *
+ * Encoded segment: {recordSize, numRecords, tailLength, bitstreamLength}, bitstream, tail. The tail is the bytes after
+ * the last complete record, which are stored as is.
+ */
+final class RecordDeltaCodec implements SegmentCodec {
+	private static final int HEADER_BYTES = 16;
+
+	@Override
+	public String name() {
+		return "delta";
+	}
+
+	@Override
+	public int maxCompressedLength(int srcLen) {
+		return srcLen; // compress() gives up when the encoding does not fit in srcLen bytes
+	}
+
+	@Override
+	public int compress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dst, int dstOff, int recordSize) {
+		if (recordSize < Long.BYTES || srcLen < recordSize)
+			return srcLen; // Not compressible; the caller stores the segment as is
+
+		int numRecords = srcLen / recordSize;
+		int tailLen = srcLen - numRecords*recordSize;
+		int streamOff = dstOff + HEADER_BYTES;
+		if (HEADER_BYTES >= srcLen)
+			return srcLen;
+
+		dst.putInt(dstOff, recordSize);
+		dst.putInt(dstOff+4, numRecords);
+		dst.putInt(dstOff+8, tailLen);
+
+		int numWords = (recordSize - Long.BYTES + Long.BYTES - 1) / Long.BYTES;
+		WordState[] words = newWordStates(numWords);
+		BitWriter out = new BitWriter(dst, streamOff, dstOff + srcLen);
+		long prevTs = 0;
+		long prevDelta = 0;
+
+		for (int i=0; i<numRecords; i++) {
+			int recOff = srcOff + i*recordSize;
+			long ts = src.getLong(recOff);
+
+			if (i == 0) {
+				out.write(ts, 64);
+			} else {
+				long delta = ts - prevTs;
+				writeDoD(out, delta - prevDelta);
+				prevDelta = delta;
+			}
+			prevTs = ts;
+
+			for (int w=0; w<numWords; w++) {
+				int wordOff = recOff + Long.BYTES + w*Long.BYTES;
+				int wordLen = Math.min(Long.BYTES, recordSize - Long.BYTES - w*Long.BYTES);
+				writeXor(out, words[w], getWord(src, wordOff, wordLen));
+			}
+
+			if (out.overflow)
+				return srcLen; // Encoding is larger than the raw data
+		}
+
+		out.flush();
+		int streamLen = out.bytesWritten();
+		if (out.overflow || streamOff + streamLen + tailLen - dstOff >= srcLen)
+			return srcLen;
+		dst.putInt(dstOff+12, streamLen);
+
+		int tailOff = streamOff + streamLen;
+		for (int i=0; i<tailLen; i++) {
+			dst.put(tailOff+i, src.get(srcOff + numRecords*recordSize + i));
+		}
+
+		return tailOff + tailLen - dstOff;
+	}
+
+	@Override
+	public void decompress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dst, int dstOff, int rawLen) {
+		int recordSize = src.getInt(srcOff);
+		int numRecords = src.getInt(srcOff+4);
+		int tailLen = src.getInt(srcOff+8);
+		int streamLen = src.getInt(srcOff+12);
+		int streamOff = srcOff + HEADER_BYTES;
+
+		assert numRecords*recordSize + tailLen == rawLen;
+
+		int numWords = (recordSize - Long.BYTES + Long.BYTES - 1) / Long.BYTES;
+		WordState[] words = newWordStates(numWords);
+		BitReader in = new BitReader(src, streamOff, streamOff + streamLen);
+		long prevTs = 0;
+		long prevDelta = 0;
+
+		for (int i=0; i<numRecords; i++) {
+			int recOff = dstOff + i*recordSize;
+			long ts;
+			if (i == 0) {
+				ts = in.read(64);
+			} else {
+				long delta = prevDelta + readDoD(in);
+				ts = prevTs + delta;
+				prevDelta = delta;
+			}
+			prevTs = ts;
+			dst.putLong(recOff, ts);
+
+			for (int w=0; w<numWords; w++) {
+				int wordOff = recOff + Long.BYTES + w*Long.BYTES;
+				int wordLen = Math.min(Long.BYTES, recordSize - Long.BYTES - w*Long.BYTES);
+				putWord(dst, wordOff, wordLen, readXor(in, words[w]));
+			}
+		}
+
+		int tailOff = streamOff + streamLen;
+		for (int i=0; i<tailLen; i++) {
+			dst.put(dstOff + numRecords*recordSize + i, src.get(tailOff+i));
+		}
+	}
+
+	private static void writeDoD(BitWriter out, long dod) {
+		if (dod == 0) {
+			out.write(0, 1);
+		} else if (dod >= -63 && dod <= 64) {
+			out.write(0b10, 2);
+			out.write(dod + 63, 7);
+		} else if (dod >= -255 && dod <= 256) {
+			out.write(0b110, 3);
+			out.write(dod + 255, 9);
+		} else if (dod >= -2047 && dod <= 2048) {
+			out.write(0b1110, 4);
+			out.write(dod + 2047, 12);
+		} else {
+			out.write(0b1111, 4);
+			out.write(dod, 64);
+		}
+	}
+
+	private static long readDoD(BitReader in) {
+		if (in.read(1) == 0)
+			return 0;
+		if (in.read(1) == 0)
+			return in.read(7) - 63;
+		if (in.read(1) == 0)
+			return in.read(9) - 255;
+		if (in.read(1) == 0)
+			return in.read(12) - 2047;
+		return in.read(64);
+	}
+
+	private static void writeXor(BitWriter out, WordState state, long value) {
+		long xor = value ^ state.prev;
+		state.prev = value;
+
+		if (xor == 0) {
+			out.write(0, 1);
+			return;
+		}
+
+		int lead = Long.numberOfLeadingZeros(xor);
+		int trail = Long.numberOfTrailingZeros(xor);
+		if (state.lead >= 0 && lead >= state.lead && trail >= state.trail) { // Fits in the previous window
+			out.write(0b10, 2);
+			out.write(xor >>> state.trail, 64 - state.lead - state.trail);
+		} else {
+			int len = 64 - lead - trail;
+			out.write(0b11, 2);
+			out.write(lead, 6);
+			out.write(len == 64 ? 0 : len, 6);
+			out.write(xor >>> trail, len);
+			state.lead = lead;
+			state.trail = trail;
+		}
+	}
+
+	private static long readXor(BitReader in, WordState state) {
+		if (in.read(1) == 0)
+			return state.prev;
+
+		if (in.read(1) == 1) { // New window
+			int lead = (int) in.read(6);
+			int len = (int) in.read(6);
+			if (len == 0)
+				len = 64;
+			state.lead = lead;
+			state.trail = 64 - lead - len;
+		}
+
+		long xor = in.read(64 - state.lead - state.trail) << state.trail;
+		state.prev ^= xor;
+		return state.prev;
+	}
+
+	private static long getWord(ByteBuffer buf, int off, int len) {
+		if (len == Long.BYTES)
+			return buf.getLong(off);
+
+		long word = 0;
+		for (int i=0; i<len; i++) {
+			word = (word << 8) | (buf.get(off+i) & 0xFF);
+		}
+		return word;
+	}
+
+	private static void putWord(ByteBuffer buf, int off, int len, long word) {
+		if (len == Long.BYTES) {
+			buf.putLong(off, word);
+			return;
+		}
+
+		for (int i=len-1; i>=0; i--) {
+			buf.put(off+i, (byte) word);
+			word >>>= 8;
+		}
+	}
+
+	private static WordState[] newWordStates(int numWords) {
+		WordState[] words = new WordState[numWords];
+		for (int i=0; i<numWords; i++) {
+			words[i] = new WordState();
+		}
+		return words;
+	}
+
+	private static final class WordState {
+		private long prev;
+		private int lead = -1; // No window yet
+		private int trail;
+	}
+
+	private static final class BitWriter {
+		private final ByteBuffer dst;
+		private final int start;
+		private final int limit;
+		private int pos;
+		private long acc;
+		private int accBits;
+		private boolean overflow; // Set when the writes exceed the limit, the extra bytes are discarded
+
+		private BitWriter(ByteBuffer dst, int start, int limit) {
+			this.dst = dst;
+			this.start = start;
+			this.limit = limit;
+			this.pos = start;
+		}
+
+		private void put(byte b) {
+			if (pos >= limit) {
+				overflow = true;
+				return;
+			}
+			dst.put(pos++, b);
+		}
+
+		private void write(long value, int nbits) {
+			if (nbits > 32) {
+				write(value >>> 32, nbits - 32);
+				write(value, 32);
+				return;
+			}
+			if (nbits == 0)
+				return;
+
+			acc = (acc << nbits) | (value & ((1L << nbits) - 1));
+			accBits += nbits;
+			while (accBits >= 8) {
+				put((byte) (acc >>> (accBits - 8)));
+				accBits -= 8;
+			}
+		}
+
+		private void flush() {
+			if (accBits > 0) {
+				put((byte) (acc << (8 - accBits)));
+				accBits = 0;
+			}
+		}
+
+		private int bytesWritten() {
+			return pos - start + (accBits > 0 ? 1 : 0);
+		}
+	}
+
+	private static final class BitReader {
+		private final ByteBuffer src;
+		private final int limit;
+		private int pos;
+		private long acc;
+		private int accBits;
+
+		private BitReader(ByteBuffer src, int start, int limit) {
+			this.src = src;
+			this.limit = limit;
+			this.pos = start;
+		}
+
+		private long read(int nbits) {
+			if (nbits > 32) {
+				long high = read(nbits - 32);
+				return (high << 32) | read(32);
+			}
+			if (nbits == 0)
+				return 0;
+
+			while (accBits < nbits) {
+				acc = (acc << 8) | (pos < limit ? (src.get(pos) & 0xFF) : 0);
+				pos++;
+				accBits += 8;
+			}
+			accBits -= nbits;
+			return (acc >>> accBits) & ((1L << nbits) - 1);
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package kawkab.fs.core;
+
+import kawkab.fs.commons.Configuration;
+import kawkab.fs.core.exceptions.InsufficientResourcesException;
+import kawkab.fs.core.exceptions.KawkabException;
+import kawkab.fs.core.services.thrift.ReplicationClient;
+import kawkab.fs.core.services.thrift.TReplicaBlock;
+import kawkab.fs.core.services.thrift.TReplicaRange;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The replicas of the data blocks of the other nodes, see Replicator. A replica is a file per block, and the appended
+ * bytes are written at their offsets in the block, so the batches that are sent again are written again without harm.
+ * The replicas are written without fsync; they protect the data against the loss of the primary node.
+ *
+ * The store keeps at most maxReplicaBlocks files. The primary node releases a replica when the block is stored in the
+ * global store. When the store is full, the oldest replicas whose blocks are in the global store are removed, which
+ * also removes the replicas whose releases are lost. If no replica can be removed, the batch fails and the primary
+ * node sends it again later.
+ *
+ * The batches of a primary node arrive on one connection, and the PrimaryNodeService processes the requests of a
+ * connection in order. A batch that comes after a gap in the sequence numbers is not applied, so the acknowledged
+ * sequence number covers all the bytes before it. The applied sequence numbers are not persisted. After this node
+ * restarts, only the first batch of a stream or a resync batch is applied, and the other batches are acknowledged with
+ * the sequence number -1, which tells the primary node to resend its unacknowledged batches with resync.
+ */
+public final class ReplicaStore {
+	private static ReplicaStore instance;
+
+	private final int thisNodeID;
+	private final int maxBlocks;
+	private final String replicasPath;
+	private final Acknowledger acks;
+	private final StoredBlocks stored;
+	private final Map<String, ReplicaFile> files = new LinkedHashMap<>(); // Replica files by path, the oldest first, guarded by this
+	private final Map<Integer, Source> sources = new ConcurrentHashMap<>(); // The streams of the primary nodes
+
+	public static synchronized ReplicaStore instance() {
+		if (instance == null) {
+			instance = new ReplicaStore();
+		}
+
+		return instance;
+	}
+
+	private ReplicaStore() {
+		this(Configuration.instance().thisNodeID, Configuration.instance().maxReplicaBlocks,
+				Configuration.instance().basePath + File.separator + "replicas", ReplicationClient.instance()::replicaAcked,
+				(inumber, blockInFile) -> GlobalStoreManager.instance().isStored(DataSegmentID.lastSegmentOf(inumber, blockInFile, 1)));
+	}
+
+	/**
+	 * @param acks Sends the acknowledgements to the primary nodes without blocking
+	 * @param stored Checks whether a block is in the global store
+	 */
+	ReplicaStore(int thisNodeID, int maxBlocks, String replicasPath, Acknowledger acks, StoredBlocks stored) {
+		this.thisNodeID = thisNodeID;
+		this.maxBlocks = maxBlocks;
+		this.replicasPath = replicasPath;
+		this.acks = acks;
+		this.stored = stored;
+
+		load();
+	}
+
+	/**
+	 * Adds the replica files that were stored before the restart, the oldest first
+	 */
+	private void load() {
+		File[] nodeDirs = new File(replicasPath).listFiles(File::isDirectory);
+		if (nodeDirs == null)
+			return;
+
+		List<ReplicaFile> existing = new ArrayList<>();
+		for (File nodeDir : nodeDirs) {
+			File[] blockFiles = nodeDir.listFiles(File::isFile);
+			if (blockFiles == null)
+				continue;
+
+			for (File file : blockFiles) {
+				String[] parts = file.getName().split("-");
+				try {
+					existing.add(new ReplicaFile(file.getPath(), Long.parseLong(parts[0]), Long.parseLong(parts[1]), file.lastModified()));
+				} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+					System.out.println("[RS] Ignoring the unknown file in the replica store: " + file);
+				}
+			}
+		}
+
+		existing.sort(Comparator.comparingLong(file -> file.createdAtMs));
+		for (ReplicaFile file : existing) {
+			files.put(file.path, file);
+		}
+
+		if (!existing.isEmpty())
+			System.out.printf("[RS] Loaded %d replica blocks\n", existing.size());
+	}
+
+	/**
+	 * Applies a batch of the replication stream of a primary node, and acknowledges the batch to the primary node.
+	 */
+	public void apply(int fromNode, long epoch, long firstSeq, long lastSeq, boolean resync,
+					  List<TReplicaRange> ranges, List<TReplicaBlock> released) {
+		Source source = sources.computeIfAbsent(fromNode, k -> new Source());
+		long ackedSeq;
+		boolean successful = true;
+		synchronized (source) {
+			if (source.epoch != epoch) { // The primary node has restarted, or this node has restarted
+				source.epoch = epoch;
+				source.ackedSeq = -1;
+			}
+
+			// An earlier batch is missing, or the applied batches are not known because this node has restarted
+			if (firstSeq > source.ackedSeq + 1 && firstSeq > 1 && !resync) {
+				successful = false;
+			} else {
+				try {
+					if (lastSeq > source.ackedSeq) { // Not a repeated batch
+						for (TReplicaRange range : ranges) {
+							write(fromNode, range);
+						}
+					}
+
+					for (TReplicaBlock block : released) {
+						remove(pathOf(fromNode, block.getInumber(), block.getBlockInFile()));
+					}
+
+					source.ackedSeq = Math.max(source.ackedSeq, lastSeq);
+				} catch (IOException e) {
+					System.out.printf("[RS] Unable to store the replicas of node %d: %s\n", fromNode, e.getMessage());
+					successful = false;
+				}
+			}
+
+			ackedSeq = source.ackedSeq;
+		}
+
+		acks.replicaAcked(fromNode, thisNodeID, epoch, ackedSeq, successful);
+	}
+
+	private void write(int fromNode, TReplicaRange range) throws IOException {
+		ReplicaFile file = fileOf(fromNode, range.getInumber(), range.getBlockInFile());
+
+		File parent = new File(file.path).getParentFile();
+		if (!parent.exists()) {
+			parent.mkdirs();
+		}
+
+		try (FileChannel channel = FileChannel.open(new File(file.path).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			ByteBuffer data = range.bufferForData();
+			long pos = range.getOffsetInBlock();
+			while (data.hasRemaining()) {
+				pos += channel.write(data, pos);
+			}
+		}
+	}
+
+	/**
+	 * @return The replica file of the block, which is added in the store if it does not exist
+	 * @throws InsufficientResourcesException if the store is full and no replica can be removed
+	 */
+	private ReplicaFile fileOf(int fromNode, long inumber, long blockInFile) throws InsufficientResourcesException {
+		String path = pathOf(fromNode, inumber, blockInFile);
+		for (int attempt=0; attempt<2; attempt++) {
+			synchronized (this) {
+				ReplicaFile file = files.get(path);
+				if (file != null)
+					return file;
+
+				if (files.size() < maxBlocks) {
+					file = new ReplicaFile(path, inumber, blockInFile, System.currentTimeMillis());
+					files.put(path, file);
+					return file;
+				}
+			}
+
+			if (attempt == 0)
+				removeStored();
+		}
+
+		throw new InsufficientResourcesException(String.format("[RS] The replica store is full, unable to add the " +
+				"replica of the block %d-%d of node %d", inumber, blockInFile, fromNode));
+	}
+
+	/**
+	 * Removes the oldest replicas whose blocks are in the global store. The global store is checked without holding
+	 * the lock of the store.
+	 */
+	private void removeStored() {
+		List<ReplicaFile> candidates;
+		synchronized (this) {
+			candidates = new ArrayList<>(files.values()).subList(0, Math.min(files.size(), maxBlocks/8 + 1));
+		}
+
+		int removed = 0;
+		for (ReplicaFile file : candidates) {
+			try {
+				if (stored.isStored(file.inumber, file.blockInFile)) {
+					remove(file.path);
+					removed++;
+				}
+			} catch (KawkabException e) {
+				System.out.println("[RS] Unable to check the global store: " + e.getMessage());
+				break;
+			}
+		}
+
+		System.out.printf("[RS] The replica store is full, removed %d replicas of the blocks in the global store\n", removed);
+	}
+
+	private void remove(String path) {
+		synchronized (this) {
+			if (files.remove(path) == null)
+				return;
+		}
+
+		new File(path).delete();
+	}
+
+	String pathOf(int fromNode, long inumber, long blockInFile) {
+		return replicasPath + File.separator + fromNode + File.separator + inumber + "-" + blockInFile;
+	}
+
+	interface Acknowledger {
+		void replicaAcked(int nodeID, int fromNode, long epoch, long ackedSeq, boolean successful);
+	}
+
+	interface StoredBlocks {
+		boolean isStored(long inumber, long blockInFile) throws KawkabException;
+	}
+
+	private static final class Source {
+		private long epoch;
+		private long ackedSeq = -1; // -1 if the last applied batch is not known
+	}
+
+	private static final class ReplicaFile {
+		private final String path;
+		private final long inumber;
+		private final long blockInFile;
+		private final long createdAtMs;
+
+		private ReplicaFile(String path, long inumber, long blockInFile, long createdAtMs) {
+			this.path = path;
+			this.inumber = inumber;
+			this.blockInFile = blockInFile;
+			this.createdAtMs = createdAtMs;
+		}
+	}
+}
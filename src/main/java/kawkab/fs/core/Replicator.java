@@ -0,0 +1,469 @@
+package kawkab.fs.core;
+
+import kawkab.fs.commons.Configuration;
+import kawkab.fs.core.exceptions.KawkabException;
+import kawkab.fs.core.exceptions.ReplicationException;
+import kawkab.fs.core.services.thrift.ReplicationClient;
+import kawkab.fs.core.services.thrift.TReplicaBlock;
+import kawkab.fs.core.services.thrift.TReplicaRange;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replicates the appended bytes of the data blocks of this node to replicationFactor peer nodes, so that the data of
+ * the blocks that are not yet in the global store survives the loss of this node. The peers are the next nodes by
+ * node ID, and they keep the replicas in the ReplicaStore until the blocks are stored in the global store.
+ *
+ * Each peer has a stream: a thread that sends the appended bytes in batches with oneway calls, without waiting for the
+ * acknowledgements of the previous batches, up to replicaPipelineDepth batches. The contiguous bytes of a block are
+ * merged in a batch. The peer acknowledges the batches on its own connection to this node. The appended bytes get
+ * sequence numbers that are the same for all the peers, and an append waits until replicationQuorum peers have
+ * acknowledged its last sequence number.
+ *
+ * The batches that fail, or whose acknowledgements do not arrive in replicaAckTimeoutMs, are sent again in order. A
+ * peer ignores the batches after a gap in the sequence numbers, so the acknowledged sequence number of a peer covers
+ * all the bytes before it. A peer that has restarted does not know which batches it has applied, and it acknowledges
+ * the batches with the sequence number -1; the stream sends its unacknowledged batches again, and the first of them
+ * tells the peer to continue from there. If a peer falls replicaMaxPendingBytes behind, for example because it is down, the stream
+ * drops the queued bytes and continues from the next bytes. The appends of the dropped bytes do not count the peer.
+ */
+public final class Replicator {
+	private static Replicator instance;
+
+	static final long retryDelayMs = 1000; // Delay before sending the unacknowledged batches again
+
+	private final int thisNodeID;
+	private final int quorum;
+	private final long ackTimeoutMs;
+	private final long epoch = System.currentTimeMillis(); // Identifies the streams of this run at the peers
+	private final ReplicationClient client = ReplicationClient.instance();
+	private final PeerStream[] streams;
+	private final Thread[] senders; // A thread per stream
+	private final Object ackLock = new Object(); // The appends wait on this lock for the acknowledgements
+	private long lastSeq; // Guarded by this
+	private volatile boolean working = true;
+
+	public static synchronized Replicator instance() {
+		if (instance == null) {
+			instance = new Replicator();
+		}
+
+		return instance;
+	}
+
+	private Replicator() {
+		Configuration conf = Configuration.instance();
+		thisNodeID = conf.thisNodeID;
+		quorum = conf.replicationQuorum;
+		ackTimeoutMs = conf.replicaAckTimeoutMs;
+
+		int nodesCount = conf.nodesMap.size();
+		streams = new PeerStream[conf.replicationFactor];
+		senders = new Thread[streams.length];
+		for (int i=0; i<streams.length; i++) {
+			PeerStream stream = new PeerStream((thisNodeID + i + 1) % nodesCount, ackTimeoutMs, conf.replicaBatchMaxBytes,
+					conf.replicaPipelineDepth, conf.replicaMaxPendingBytes);
+			streams[i] = stream;
+			senders[i] = new Thread(() -> send(stream), "Replicator-"+stream.nodeID);
+			senders[i].setDaemon(true);
+			senders[i].start();
+		}
+
+		if (streams.length > 0) {
+			System.out.printf("[RP] Replicating to %d peers, quorum %d\n", streams.length, quorum);
+		}
+	}
+
+	boolean enabled() {
+		return streams.length > 0;
+	}
+
+	/**
+	 * Adds the appended bytes of a data block to the streams of the peers. The bytes are copied.
+	 *
+	 * @return The sequence number of the bytes, see awaitQuorum()
+	 */
+	long submit(DataSegmentID id, int offsetInBlock, byte[] data, int offset, int length) {
+		byte[] bytes = Arrays.copyOfRange(data, offset, offset+length);
+		return submit(new Range(id.inumber(), id.blockInFile(), offsetInBlock, bytes));
+	}
+
+	/**
+	 * Adds the bytes of the buffer from the position pos to the streams of the peers. The position of the buffer is
+	 * not changed.
+	 *
+	 * @return The sequence number of the bytes, see awaitQuorum()
+	 */
+	long submit(DataSegmentID id, int offsetInBlock, ByteBuffer src, int pos, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer dup = src.duplicate();
+		dup.position(pos);
+		dup.get(bytes);
+		return submit(new Range(id.inumber(), id.blockInFile(), offsetInBlock, bytes));
+	}
+
+	private synchronized long submit(Range range) {
+		range.seq = ++lastSeq;
+		for (PeerStream stream : streams) {
+			stream.add(range); // The ranges are added to all the streams in the order of their sequence numbers
+		}
+		return range.seq;
+	}
+
+	/**
+	 * Waits until the quorum of the peers has acknowledged the bytes up to the sequence number.
+	 *
+	 * @throws ReplicationException if the quorum does not acknowledge the bytes in replicaAckTimeoutMs
+	 */
+	void awaitQuorum(long seq) throws ReplicationException, InterruptedException {
+		if (quorum == 0 || seq <= 0)
+			return;
+
+		long deadline = System.currentTimeMillis() + ackTimeoutMs;
+		synchronized (ackLock) {
+			int acked;
+			while ((acked = ackedPeers(seq)) < quorum) {
+				long waitMs = deadline - System.currentTimeMillis();
+				if (waitMs <= 0) {
+					throw new ReplicationException(String.format("[RP] %d of the %d peers acknowledged the appended " +
+							"data in %d ms", acked, quorum, ackTimeoutMs));
+				}
+				ackLock.wait(waitMs);
+			}
+		}
+	}
+
+	private int ackedPeers(long seq) {
+		int count = 0;
+		for (PeerStream stream : streams) {
+			if (stream.covers(seq))
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Called when a data block of this node is stored in the global store. The peers remove their replicas of the
+	 * block.
+	 */
+	void released(DataSegmentID id) {
+		for (PeerStream stream : streams) {
+			stream.release(new TReplicaBlock(id.inumber(), id.blockInFile()));
+		}
+	}
+
+	/**
+	 * Called by the PrimaryNodeService when a peer acknowledges the batches of the stream of this node
+	 *
+	 * @param successful false if the peer could not store the batch after ackedSeq
+	 */
+	public void acked(int peerNodeID, long epoch, long ackedSeq, boolean successful) {
+		if (epoch != this.epoch) // An acknowledgement for the previous run of this node
+			return;
+
+		for (PeerStream stream : streams) {
+			if (stream.nodeID == peerNodeID)
+				stream.acked(ackedSeq, successful);
+		}
+
+		synchronized (ackLock) {
+			ackLock.notifyAll();
+		}
+	}
+
+	public void shutdown() {
+		working = false;
+		for (Thread sender : senders) {
+			sender.interrupt();
+			try {
+				sender.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+
+		client.shutdown();
+	}
+
+	/**
+	 * Sends the batches of the stream to its peer until the replicator is shut down
+	 */
+	private void send(PeerStream stream) {
+		while (working) {
+			Batch batch;
+			try {
+				batch = stream.nextBatch();
+			} catch (InterruptedException e) {
+				continue;
+			}
+
+			try {
+				client.replicate(stream.nodeID, thisNodeID, epoch, batch.firstSeq, batch.lastSeq, batch.resync,
+						batch.ranges, batch.released);
+			} catch (KawkabException e) {
+				System.out.printf("[RP] Unable to send the replicas to node %d, retrying: %s\n", stream.nodeID, e.getMessage());
+				stream.failed();
+			}
+		}
+	}
+
+	/**
+	 * The stream of the appended bytes to a peer node. The ranges are queued in pending until they are sent in a batch,
+	 * and the batches stay in inFlight until the peer acknowledges them.
+	 */
+	static final class PeerStream {
+		private final int nodeID;
+		private final long ackTimeoutMs;
+		private final int batchMaxBytes;
+		private final int pipelineDepth;
+		private final long maxPendingBytes;
+		private final ArrayDeque<Range> pending = new ArrayDeque<>();
+		private final ArrayDeque<Batch> inFlight = new ArrayDeque<>();
+		private final ArrayDeque<Batch> toResend = new ArrayDeque<>();
+		private List<TReplicaBlock> releases = new ArrayList<>();
+		private long pendingBytes; // The bytes in pending and inFlight
+		private long sentSeq; // The last sequence number that is taken in a batch
+		private long ackedSeq;
+		private long skippedFrom = 1, skippedTo = 0; // The sequence numbers that are dropped without acknowledgements
+		private boolean resync; // The next batch tells the peer to skip the dropped sequence numbers
+		private boolean resend; // The batches in inFlight are sent again at retryAtMs
+		private long retryAtMs;
+
+		PeerStream(int nodeID, long ackTimeoutMs, int batchMaxBytes, int pipelineDepth, long maxPendingBytes) {
+			this.nodeID = nodeID;
+			this.ackTimeoutMs = ackTimeoutMs;
+			this.batchMaxBytes = batchMaxBytes;
+			this.pipelineDepth = pipelineDepth;
+			this.maxPendingBytes = maxPendingBytes;
+		}
+
+		/**
+		 * Waits until a batch can be sent. The unacknowledged batches are sent again before any new batch.
+		 */
+		synchronized Batch nextBatch() throws InterruptedException {
+			while (true) {
+				long now = System.currentTimeMillis();
+				Batch batch = poll(now);
+				if (batch != null)
+					return batch;
+
+				long waitMs;
+				if (resend)
+					waitMs = retryAtMs - now;
+				else if (!inFlight.isEmpty())
+					waitMs = inFlight.peek().sentAtMs + ackTimeoutMs - now + 1;
+				else
+					waitMs = 0; // Until a range is added
+
+				wait(Math.max(waitMs, 0));
+			}
+		}
+
+		/**
+		 * @param now The current time in milliseconds
+		 * @return The batch to send at the time, or null if no batch can be sent yet
+		 */
+		synchronized Batch poll(long now) {
+			if (resend && now >= retryAtMs) {
+				resend = false;
+				toResend.addAll(inFlight);
+			}
+
+			Batch batch = toResend.poll();
+			if (batch != null) {
+				batch.sentAtMs = now;
+				return batch;
+			}
+
+			if (!resend && !inFlight.isEmpty() && now - inFlight.peek().sentAtMs > ackTimeoutMs) {
+				scheduleResend(now); // The batch or its acknowledgement is lost
+				return null;
+			}
+
+			if (!resend && inFlight.size() < pipelineDepth && (!pending.isEmpty() || !releases.isEmpty())) {
+				batch = newBatch();
+				batch.sentAtMs = now;
+				inFlight.add(batch);
+				return batch;
+			}
+
+			return null;
+		}
+
+		private Batch newBatch() {
+			long firstSeq = sentSeq + 1;
+			List<TReplicaRange> ranges = new ArrayList<>();
+			List<Range> run = new ArrayList<>(); // Contiguous ranges of the same block
+			long bytes = 0;
+			Range range;
+			while ((range = pending.peek()) != null && (bytes == 0 || bytes + range.data.length <= batchMaxBytes)) {
+				pending.poll();
+				if (!run.isEmpty() && !run.get(run.size()-1).precedes(range)) {
+					ranges.add(merge(run));
+					run.clear();
+				}
+
+				run.add(range);
+				bytes += range.data.length;
+				sentSeq = range.seq;
+			}
+
+			if (!run.isEmpty())
+				ranges.add(merge(run));
+
+			// The released blocks go in the batch only after all the queued ranges, which include the ranges of the blocks
+			List<TReplicaBlock> released = new ArrayList<>(0);
+			if (pending.isEmpty()) {
+				released = releases;
+				releases = new ArrayList<>();
+			}
+
+			Batch batch = new Batch(firstSeq, sentSeq, resync, ranges, released, bytes);
+			resync = false;
+			return batch;
+		}
+
+		private TReplicaRange merge(List<Range> run) {
+			Range first = run.get(0);
+			byte[] data = first.data;
+			if (run.size() > 1) {
+				int length = 0;
+				for (Range range : run) {
+					length += range.data.length;
+				}
+
+				data = new byte[length];
+				int pos = 0;
+				for (Range range : run) {
+					System.arraycopy(range.data, 0, data, pos, range.data.length);
+					pos += range.data.length;
+				}
+			}
+
+			return new TReplicaRange(first.inumber, first.blockInFile, first.offsetInBlock, ByteBuffer.wrap(data));
+		}
+
+		synchronized void add(Range range) {
+			if (pendingBytes + range.data.length > maxPendingBytes)
+				skip(range.seq - 1);
+
+			pending.add(range);
+			pendingBytes += range.data.length;
+			notifyAll();
+		}
+
+		/**
+		 * Drops the queued and the unacknowledged ranges of a peer that is too far behind
+		 */
+		private void skip(long lastSkipped) {
+			System.out.printf("[RP] Node %d is %d bytes behind, skipping the replicas up to %d\n", nodeID, pendingBytes, lastSkipped);
+
+			skippedFrom = ackedSeq + 1;
+			skippedTo = lastSkipped;
+			pending.clear();
+			inFlight.clear();
+			toResend.clear();
+			resend = false;
+			pendingBytes = 0;
+			sentSeq = lastSkipped;
+			resync = true;
+		}
+
+		synchronized void release(TReplicaBlock block) {
+			releases.add(block);
+			notifyAll();
+		}
+
+		/**
+		 * @param seq The last sequence number that the peer has applied, or -1 if the peer does not know the stream
+		 * @param successful false if the peer could not apply the batch after seq
+		 */
+		synchronized void acked(long seq, boolean successful) {
+			if (seq > ackedSeq)
+				ackedSeq = seq;
+
+			if (seq < 0 && !successful) { // The peer has restarted; the next batch that it receives must resync the peer
+				if (inFlight.isEmpty())
+					resync = true;
+				else
+					inFlight.peek().resync = true;
+			}
+
+			while (!inFlight.isEmpty() && inFlight.peek().lastSeq <= ackedSeq) {
+				pendingBytes -= inFlight.poll().bytes;
+			}
+			toResend.removeIf(batch -> batch.lastSeq <= ackedSeq);
+
+			if (!successful && !inFlight.isEmpty() && !resend && toResend.isEmpty())
+				scheduleResend(System.currentTimeMillis());
+
+			notifyAll();
+		}
+
+		/**
+		 * Called when a batch could not be sent
+		 */
+		synchronized void failed() {
+			scheduleResend(System.currentTimeMillis());
+		}
+
+		private void scheduleResend(long now) {
+			resend = true;
+			retryAtMs = now + retryDelayMs;
+			toResend.clear();
+			notifyAll();
+		}
+
+		/**
+		 * @return Whether the peer has acknowledged the bytes with the sequence number
+		 */
+		synchronized boolean covers(long seq) {
+			return ackedSeq >= seq && (seq < skippedFrom || seq > skippedTo);
+		}
+	}
+
+	static final class Range {
+		private final long inumber;
+		private final long blockInFile;
+		private final int offsetInBlock;
+		private final byte[] data;
+		long seq;
+
+		Range(long inumber, long blockInFile, int offsetInBlock, byte[] data) {
+			this.inumber = inumber;
+			this.blockInFile = blockInFile;
+			this.offsetInBlock = offsetInBlock;
+			this.data = data;
+		}
+
+		/**
+		 * @return Whether the next range continues this range in the same block
+		 */
+		private boolean precedes(Range next) {
+			return next.inumber == inumber && next.blockInFile == blockInFile && next.offsetInBlock == offsetInBlock + data.length;
+		}
+	}
+
+	static final class Batch {
+		final long firstSeq;
+		final long lastSeq;
+		volatile boolean resync; // Set when the batch is sent again to a peer that has restarted
+		final List<TReplicaRange> ranges;
+		final List<TReplicaBlock> released;
+		private final long bytes;
+		private long sentAtMs;
+
+		private Batch(long firstSeq, long lastSeq, boolean resync, List<TReplicaRange> ranges, List<TReplicaBlock> released, long bytes) {
+			this.firstSeq = firstSeq;
+			this.lastSeq = lastSeq;
+			this.resync = resync;
+			this.ranges = ranges;
+			this.released = released;
+			this.bytes = bytes;
+		}
+	}
+}
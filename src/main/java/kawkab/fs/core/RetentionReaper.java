@@ -0,0 +1,268 @@
+package kawkab.fs.core;
+
+import kawkab.fs.commons.Configuration;
+import kawkab.fs.core.exceptions.KawkabException;
+import kawkab.fs.core.index.poh.PostOrderHeapIndex;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces the retention policies of the files of this node. The reaper periodically scans the inodes of this node
+ * and, for each file that has a retention policy:
+ *
+ * 1. Removes the file's prefix that is older than the global retention: the first block of the file is advanced in
+ *    the inode, and the data blocks before it are deleted from the global and the local store. The index blocks whose
+ *    nodes are all before the first retained index entry are deleted as well.
+ * 2. Removes the local copies of the full data blocks that are older than the local retention and are stored in the
+ *    global store. These blocks are read from the global store afterwards.
+ *
+ * The age of a block is the timestamp of its last record, taken from the index. The block that is being appended is
+ * never deleted. The cursors of the local and the index deletions are not persisted; after a restart the first scan
+ * checks the blocks again from the first block of the file.
+ */
+final class RetentionReaper {
+	private static RetentionReaper instance;
+
+	private final Configuration conf = Configuration.instance();
+	private final Cache cache = Cache.instance();
+	private final LocalStoreManager localStore = LocalStoreManager.instance();
+	private final GlobalStoreManager globalStore = GlobalStoreManager.instance();
+	private final Map<Long, FileState> files = new HashMap<>(); // Accessed only by the reaper thread
+	private final long intervalMs;
+	private Thread reaper;
+	private volatile boolean working;
+
+	static synchronized RetentionReaper instance() {
+		if (instance == null) {
+			instance = new RetentionReaper();
+		}
+
+		return instance;
+	}
+
+	private RetentionReaper() {
+		intervalMs = TimeUnit.SECONDS.toMillis(conf.retentionReaperIntervalSec);
+	}
+
+	synchronized void start() {
+		if (intervalMs == 0 || reaper != null) // Disabled, or already started
+			return;
+
+		working = true;
+		reaper = new Thread(this::run, "RetentionReaper");
+		reaper.setDaemon(true);
+		reaper.start();
+	}
+
+	private void run() {
+		while (working) {
+			try {
+				Thread.sleep(intervalMs);
+			} catch (InterruptedException e) {
+				if (!working)
+					break;
+			}
+
+			try {
+				reapAll();
+			} catch (IOException | KawkabException e) {
+				System.out.println("[RR] Retention scan failed, retrying in the next scan: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Scans the inodes blocks of this node that exist in the local store.
+	 */
+	void reapAll() throws IOException, KawkabException {
+		long now = System.currentTimeMillis();
+		int inodesPerBlock = conf.inodesPerBlock;
+		Set<Long> reaped = new HashSet<>();
+
+		for (int blockIdx = conf.inodeBlocksRangeStart; working && blockIdx < conf.inodeBlocksRangeStart + conf.inodeBlocksPerMachine; blockIdx++) {
+			if (!InodesBlock.isCreated(blockIdx))
+				continue;
+
+			BlockID id = new InodesBlockID(blockIdx);
+			InodesBlock inb = null;
+			try {
+				inb = (InodesBlock) cache.acquireBlock(id);
+				inb.loadBlock(false);
+
+				for (int i=0; i<inodesPerBlock; i++) {
+					Inode inode = inb.getInode((long) blockIdx*inodesPerBlock + i);
+					if (inode.recordSize() <= 1 || (inode.localRetentionDays() == 0 && inode.globalRetentionDays() == 0))
+						continue;
+
+					reap(inb, inode, now);
+					reaped.add(inode.inumber());
+				}
+			} finally {
+				if (inb != null) {
+					cache.releaseBlock(id);
+				}
+			}
+		}
+
+		if (working) // The scan is complete
+			prune(reaped);
+	}
+
+	/**
+	 * Removes the states of the files that no longer have a retention policy, for example the deleted files
+	 *
+	 * @param reaped The files that have a retention policy in the last scan
+	 */
+	private void prune(Set<Long> reaped) throws KawkabException {
+		Iterator<Map.Entry<Long, FileState>> it = files.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, FileState> entry = it.next();
+			if (reaped.contains(entry.getKey()))
+				continue;
+
+			it.remove();
+			entry.getValue().index.shutdown();
+		}
+	}
+
+	private void reap(InodesBlock inb, Inode inode, long now) throws IOException, KawkabException {
+		long inumber = inode.inumber();
+		int recordSize = inode.recordSize();
+		long recsPerSeg = conf.segmentSizeBytes / recordSize;
+		long fullBlocks = inode.fileSize() / recordSize / recsPerSeg / conf.segmentsPerBlock; // Excludes the last block
+
+		FileState state = files.computeIfAbsent(inumber, k -> new FileState(k));
+		PostOrderHeapIndex index = state.index;
+		try {
+			if (inode.globalRetentionDays() > 0) {
+				long cutoff = now - TimeUnit.DAYS.toMillis(inode.globalRetentionDays());
+				long first = inode.firstBlock();
+				long block = first;
+				while (block < fullBlocks && lastTimestamp(index, block) < cutoff &&
+						!globalStore.isQueued(DataSegmentID.lastSegmentOf(inumber, block, recordSize))) {
+					block++;
+				}
+
+				if (block > first) {
+					inode.setFirstBlock(block); // The readers skip the blocks before the deletion
+					inb.markLocalDirty();
+					localStore.store(inb);
+
+					for (long b = first; b < block; b++) {
+						DataSegmentID id = DataSegmentID.lastSegmentOf(inumber, b, recordSize);
+						globalStore.delete(id);
+						if (localStore.exists(id))
+							localStore.removeExpired(id);
+					}
+
+					System.out.printf("[RR] File %d: deleted data blocks %d to %d\n", inumber, first, block-1);
+				}
+
+				index.trimBefore(block * conf.segmentsPerBlock);
+				trimIndex(state, inode);
+			}
+
+			if (inode.localRetentionDays() > 0) {
+				long cutoff = now - TimeUnit.DAYS.toMillis(inode.localRetentionDays());
+				long block = Math.max(state.localCursor, inode.firstBlock());
+				while (block < fullBlocks && lastTimestamp(index, block) < cutoff) {
+					DataSegmentID id = DataSegmentID.lastSegmentOf(inumber, block, recordSize);
+					if (localStore.exists(id)) {
+						if (!globalStore.isStored(id)) // Not uploaded yet, retry in the next scan
+							break;
+						localStore.removeExpired(id);
+					}
+					block++;
+				}
+
+				if (block > state.localCursor)
+					System.out.printf("[RR] File %d: removed the local copies of data blocks up to %d\n", inumber, block-1);
+				state.localCursor = block;
+			}
+		} finally {
+			index.flush(); // Releases the index nodes that were acquired in this scan
+		}
+	}
+
+	/**
+	 * Deletes the index blocks before the block of the first retained index node, except the blocks that have a root
+	 * node of the index. A block that is still in the local store is deleted from both stores.
+	 */
+	private void trimIndex(FileState state, Inode inode) throws KawkabException {
+		PostOrderHeapIndex index = state.index;
+		int limit = index.firstRetainedBlock();
+		long indexLength = inode.indexLength();
+		int retainedFrom = limit;
+		int deleted = 0;
+
+		for (int block = state.indexCursor; block < limit; block++) {
+			IndexNodeID id = IndexNodeID.lastNodeOf(inode.inumber(), block);
+			if (index.hasRootNode(block, indexLength) || globalStore.isQueued(id)) {
+				retainedFrom = Math.min(retainedFrom, block);
+				continue;
+			}
+
+			if (!localStore.exists(id)) // The local copy is removed after the global copy
+				continue;
+
+			globalStore.delete(id);
+			localStore.removeExpired(id);
+			deleted++;
+		}
+
+		if (deleted > 0)
+			System.out.printf("[RR] File %d: deleted %d index blocks\n", inode.inumber(), deleted);
+
+		state.indexCursor = retainedFrom;
+	}
+
+	/**
+	 * @return The timestamp of the last record of the full data block
+	 */
+	private long lastTimestamp(PostOrderHeapIndex index, long blockInFile) throws IOException, KawkabException {
+		return index.maxTimestamp((blockInFile+1)*conf.segmentsPerBlock - 1, false);
+	}
+
+	synchronized void shutdown() {
+		if (reaper == null)
+			return;
+
+		working = false;
+		reaper.interrupt();
+		try {
+			reaper.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		reaper = null;
+
+		for (FileState state : files.values()) {
+			try {
+				state.index.shutdown();
+			} catch (KawkabException e) {
+				e.printStackTrace();
+			}
+		}
+		files.clear();
+	}
+
+	/**
+	 * The reaper's read-only view of the file's index, and the blocks that have been checked in the previous scans
+	 */
+	private final class FileState {
+		private final PostOrderHeapIndex index;
+		private long localCursor; // The first data block whose local copy may exist
+		private int indexCursor; // The first index block that may exist
+
+		private FileState(long inumber) {
+			index = new PostOrderHeapIndex(inumber, conf.indexNodeSizeBytes, conf.nodesPerBlockPOH,
+					conf.percentIndexEntriesPerNode, cache, null);
+		}
+	}
+}
@@ -9,6 +9,9 @@ import java.util.List;
 import java.util.Random;
 import java.util.concurrent.locks.Lock;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.SdkBaseException;
@@ -25,7 +28,9 @@ import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
 
+import kawkab.fs.commons.Commons;
 import kawkab.fs.commons.Configuration;
+import kawkab.fs.core.BlockID.BlockType;
 import kawkab.fs.core.exceptions.FileNotExistException;
 import kawkab.fs.core.exceptions.KawkabException;
 import org.apache.zookeeper.server.ByteBufferInputStream;
@@ -37,6 +42,27 @@ public final class S3Backend implements GlobalBackend{
 	//private ByteBuffer bufferWrap;
 	private FileLocks fileLocks;
 	private static final String contentType = "application/octet-stream";
+
+	// The data blocks are optionally compressed segment by segment. A compressed object is the concatenation of the
+	// compressed segments followed by a footer: an entry {offset, compressedLength, rawLength, flags} for each segment,
+	// the number of segments, and FOOTER_MAGIC. The codec name and the footer length are in the object's user metadata.
+	private static final String codecMetaKey = "kawkab-codec";
+	private static final String footerLenMetaKey = "kawkab-footer-len";
+	private static final int FOOTER_MAGIC = 0x4b534547; // "KSEG"
+	private static final int FOOTER_ENTRY_BYTES = 16;
+	private static final int FLAG_STORED_RAW = 1; // The segment did not compress and is stored as is
+
+	// Segment tables of the data blocks in the global store by the globalPath of the blocks. Data blocks are uploaded
+	// once after they are full, so the tables do not change after they are cached.
+	private static final Cache<String, SegmentTable> segmentTables = CacheBuilder.newBuilder()
+			.maximumSize(100000)
+			.build();
+
+	private final SegmentCodec codec;
+	private final int segmentSizeBytes;
+	private ByteBuffer compBuffer; // Compressed data of a block before upload
+	private ByteBuffer loadCompBuffer; // Compressed segments fetched from the global store
+	private ByteBuffer loadRawBuffer; // Decompressed segments before loading in a block
 	
 	public S3Backend() {
 		client = newS3Client();
@@ -47,6 +73,13 @@ public final class S3Backend implements GlobalBackend{
 		Configuration conf = Configuration.instance();
 		buffer = ByteBuffer.allocateDirect((Math.max(conf.dataBlockSizeBytes, conf.inodesBlockSizeBytes)));
 		//bufferWrap = ByteBuffer.wrap(buffer);
+
+		segmentSizeBytes = conf.segmentSizeBytes;
+		codec = SegmentCodec.forName(conf.globalStoreCodec);
+		if (codec != null) {
+			compBuffer = ByteBuffer.allocateDirect(conf.segmentsPerBlock*codec.maxCompressedLength(segmentSizeBytes) +
+					conf.segmentsPerBlock*FOOTER_ENTRY_BYTES + 8);
+		}
 	}
 	
 	@Override
@@ -63,9 +96,146 @@ public final class S3Backend implements GlobalBackend{
 			rangeEnd = rangeStart + dstBlock.sizeWhenSerialized() - 1; //end range is inclusive
 		}*/
 		
-		System.out.printf("\t\t[S3] Loading from GS %s: stIdx=%d, endIdx=%d, len=%d, path=%s\n", dstBlock.id(), rangeStart, rangeEnd, length, dstBlock.id().localPath());
+		System.out.printf("\t\t[S3] Loading from GS %s: stIdx=%d, endIdx=%d, len=%d, path=%s\n", dstBlock.id(), rangeStart, rangeEnd, length, dstBlock.id().globalPath());
+		
+		String path = dstBlock.id().globalPath();
+
+		if (dstBlock.id().type() == BlockType.DATA_SEGMENT) {
+			SegmentTable table = segmentTable(dstBlock.id());
+			if (table.codec != null) {
+				loadCompressed(dstBlock, table, offset, length);
+				return;
+			}
+			path = table.path;
+		}
+
+		getRange(path, rangeStart, rangeEnd, dstBlock::loadFrom);
 		
-		String path = dstBlock.id().localPath();
+		//System.out.println("[S3] Loading from global: " + id.name());
+	}
+
+	/**
+	 * Fetches the compressed segments that cover the raw range [offset, offset+length) in a single ranged read,
+	 * decompresses them, and loads the requested raw bytes in the block.
+	 */
+	private void loadCompressed(final Block dstBlock, final SegmentTable table, final int offset, final int length)
+			throws FileNotExistException, KawkabException {
+		int numSegs = table.offsets.length;
+		int firstSeg = offset / segmentSizeBytes;
+		int lastSeg = Math.min((offset + length - 1) / segmentSizeBytes, numSegs-1);
+		if (firstSeg >= numSegs)
+			return;
+
+		int compStart = table.offsets[firstSeg];
+		int compLen = table.offsets[lastSeg] + table.compLengths[lastSeg] - compStart;
+		int rawLen = (lastSeg - firstSeg + 1) * segmentSizeBytes;
+
+		if (loadCompBuffer == null || loadCompBuffer.capacity() < compLen)
+			loadCompBuffer = ByteBuffer.allocate(compLen);
+		if (loadRawBuffer == null || loadRawBuffer.capacity() < rawLen)
+			loadRawBuffer = ByteBuffer.allocate(rawLen);
+
+		loadCompBuffer.clear();
+		loadCompBuffer.limit(compLen);
+		getRange(table.path, compStart, compStart + compLen - 1, chan -> Commons.readFrom(chan, loadCompBuffer));
+
+		int rawPos = 0;
+		for (int seg = firstSeg; seg <= lastSeg; seg++) {
+			int srcOff = table.offsets[seg] - compStart;
+			if ((table.flags[seg] & FLAG_STORED_RAW) != 0) {
+				System.arraycopy(loadCompBuffer.array(), srcOff, loadRawBuffer.array(), rawPos, table.rawLengths[seg]);
+			} else {
+				table.codec.decompress(loadCompBuffer, srcOff, table.compLengths[seg], loadRawBuffer, rawPos, table.rawLengths[seg]);
+			}
+			rawPos += table.rawLengths[seg];
+		}
+
+		int from = offset - firstSeg*segmentSizeBytes;
+		int len = Math.min(length, rawPos - from);
+		try (ReadableByteChannel chan = Channels.newChannel(new ByteArrayInputStream(loadRawBuffer.array(), from, len))) {
+			dstBlock.loadFrom(chan);
+		} catch (IOException e) {
+			throw new KawkabException(e);
+		}
+	}
+
+	/**
+	 * Returns the segment table of the data block object, reading it from the object's footer if it is not cached.
+	 * The objects that were stored without compression have a table without a codec. The object of a block that was
+	 * uploaded before the keys were independent of the local devices is found with the legacy key of the block.
+	 */
+	private SegmentTable segmentTable(final BlockID id) throws FileNotExistException, KawkabException {
+		String key = id.globalPath();
+		SegmentTable table = segmentTables.getIfPresent(key);
+		if (table != null)
+			return table;
+
+		try {
+			table = readSegmentTable(key);
+		} catch (FileNotExistException e) {
+			String legacyKey = id.legacyGlobalPath();
+			if (legacyKey == null)
+				throw e;
+			table = readSegmentTable(legacyKey);
+		}
+
+		segmentTables.put(key, table);
+		return table;
+	}
+
+	private SegmentTable readSegmentTable(final String path) throws FileNotExistException, KawkabException {
+		ObjectMetadata metadata;
+		try {
+			metadata = client.getObjectMetadata(rootBucket, path);
+		} catch (AmazonS3Exception e) {
+			if (e.getStatusCode() == 404)
+				throw new FileNotExistException("S3 NoSuckKey: " + path);
+			throw new KawkabException(e);
+		} catch (SdkBaseException e) {
+			throw new KawkabException(e);
+		}
+
+		String codecName = metadata.getUserMetaDataOf(codecMetaKey);
+		if (codecName == null)
+			return new SegmentTable(path, null, null, null, null, null);
+
+		SegmentCodec objCodec = codec != null && codec.name().equals(codecName) ? codec : SegmentCodec.forName(codecName);
+		int footerLen = Integer.parseInt(metadata.getUserMetaDataOf(footerLenMetaKey));
+		long objLen = metadata.getContentLength();
+		ByteBuffer footer = ByteBuffer.allocate(footerLen);
+		getRange(path, objLen - footerLen, objLen - 1, chan -> Commons.readFrom(chan, footer));
+		footer.flip();
+
+		int numSegs = footer.getInt(footerLen - 8);
+		int magic = footer.getInt(footerLen - 4);
+		if (magic != FOOTER_MAGIC || numSegs*FOOTER_ENTRY_BYTES + 8 != footerLen) {
+			throw new KawkabException(String.format("Invalid segment table in %s: magic=%x, numSegs=%d, footerLen=%d",
+					path, magic, numSegs, footerLen));
+		}
+
+		int[] offsets = new int[numSegs];
+		int[] compLengths = new int[numSegs];
+		int[] rawLengths = new int[numSegs];
+		int[] flags = new int[numSegs];
+		for (int i=0; i<numSegs; i++) {
+			offsets[i] = footer.getInt();
+			compLengths[i] = footer.getInt();
+			rawLengths[i] = footer.getInt();
+			flags[i] = footer.getInt();
+		}
+
+		return new SegmentTable(path, objCodec, offsets, compLengths, rawLengths, flags);
+	}
+
+	private interface RangeReader {
+		void read(ReadableByteChannel chan) throws IOException;
+	}
+
+	/**
+	 * Reads the inclusive byte range of the object, retrying on failures.
+	 */
+	private void getRange(final String path, final long rangeStart, final long rangeEnd, final RangeReader reader)
+			throws FileNotExistException, KawkabException {
 		GetObjectRequest getReq = new GetObjectRequest(rootBucket, path);
 		getReq.setRange(rangeStart, rangeEnd);
 		
@@ -78,7 +248,7 @@ public final class S3Backend implements GlobalBackend{
 					S3ObjectInputStream is = obj.getObjectContent();
 					ReadableByteChannel chan = Channels.newChannel(new BufferedInputStream(is));
 				) {
-					dstBlock.loadFrom(chan);
+					reader.read(chan);
 				break;
 			} catch (SdkBaseException | IOException ae) { // If the block does not exist in S3, it throws NoSucKey error code
 				if (ae instanceof AmazonS3Exception) {
@@ -93,15 +263,13 @@ public final class S3Backend implements GlobalBackend{
 				try {
 					long sleepMs = (100+(Math.abs(rand.nextLong())%400));
 					 System.out.println(String.format("[S3] Load from the global store failed for %s, retrying in %d ms...",
-							dstBlock.id().toString(),sleepMs));
+							path,sleepMs));
 					Thread.sleep(sleepMs);
 				} catch (InterruptedException e) {
 					throw new KawkabException(e);
 				}
 			}
 		}
-		
-		//System.out.println("[S3] Loading from global: " + id.name());
 	}
 	
 	@Override
@@ -114,18 +282,23 @@ public final class S3Backend implements GlobalBackend{
 				FileChannel chan = raf.getChannel();
             ) {
 			
-			length = (int)raf.length(); //Block size in Kawkab is an integer
-
 			Lock lock = fileLocks.grabLock(id);
 			try {
 				lock.lock();
 				//System.out.printf("\t\t[S3] Reading %d bytes from %s for storing in global: path=%s\n",length, srcBlock.id(), srcBlock.id().localPath());
 				//raf.readFully(buffer, 0, length);
-
+				
+				length = (int)raf.length(); //Block size in Kawkab is an integer
+				if (id.type() == BlockType.DATA_SEGMENT) { // Data block files are pre-allocated
+					long validLength = LocalStoreManager.instance().validLength(id);
+					if (validLength >= 0)
+						length = (int)Math.min(length, validLength);
+				}
 
 				chan.position(0);
 				buffer.clear();
-				chan.read(buffer);
+				buffer.limit(length);
+				Commons.readFrom(chan, buffer);
 				buffer.flip();
 			} finally {
 				lock.unlock();
@@ -135,12 +308,22 @@ public final class S3Backend implements GlobalBackend{
 			throw new KawkabException(e);
 		}
 		
-		try (InputStream istream = new ByteBufferInputStream(buffer)) {
-			ObjectMetadata metadata = new ObjectMetadata();
+		ByteBuffer upload = buffer;
+		ObjectMetadata metadata = new ObjectMetadata();
+		if (codec != null && id.type() == BlockType.DATA_SEGMENT) {
+			int footerLen = compressSegments(buffer, length, ((DataSegmentID)id).recordSize(), compBuffer);
+			length = compBuffer.remaining();
+			upload = compBuffer;
+			metadata.addUserMetadata(codecMetaKey, codec.name());
+			metadata.addUserMetadata(footerLenMetaKey, Integer.toString(footerLen));
+			segmentTables.invalidate(id.globalPath());
+		}
+		
+		try (InputStream istream = new ByteBufferInputStream(upload)) {
 			metadata.setContentLength(length);
 			metadata.setContentType(contentType);
 			try {
-				client.putObject(rootBucket, id.localPath(), istream, metadata);
+				client.putObject(rootBucket, id.globalPath(), istream, metadata);
 			} catch (AmazonServiceException ase) {
 				System.out.println("Failed to upload block: " + id);
 				throw ase;
@@ -153,6 +336,102 @@ public final class S3Backend implements GlobalBackend{
 		//System.out.println("\t[S3] >>> Finished store to global: " + id);   
 	}
 	
+	@Override
+	public boolean exists(final BlockID id) throws KawkabException {
+		try {
+			String legacyKey = id.legacyGlobalPath();
+			return client.doesObjectExist(rootBucket, id.globalPath()) ||
+					(legacyKey != null && client.doesObjectExist(rootBucket, legacyKey));
+		} catch (SdkBaseException e) {
+			throw new KawkabException(e);
+		}
+	}
+	
+	/**
+	 * Deletes the object of the block, and the object under the legacy key of the block. Deleting an object that does
+	 * not exist is not an error.
+	 */
+	@Override
+	public void delete(final BlockID id) throws KawkabException {
+		try {
+			client.deleteObject(rootBucket, id.globalPath());
+			String legacyKey = id.legacyGlobalPath();
+			if (legacyKey != null)
+				client.deleteObject(rootBucket, legacyKey);
+		} catch (SdkBaseException e) {
+			throw new KawkabException(e);
+		} finally {
+			segmentTables.invalidate(id.globalPath());
+		}
+	}
+	
+	/**
+	 * Compresses each segment of the block independently and appends the segment table as the footer.
+	 *
+	 * @param src The raw block, from position to limit
+	 * @param length Number of bytes in the raw block
+	 * @param recordSize Size of the records in the block
+	 * @param dst The destination buffer, flipped for reading after the call
+	 * @return Length of the footer in bytes
+	 */
+	private int compressSegments(final ByteBuffer src, final int length, final int recordSize, final ByteBuffer dst) {
+		int numSegs = (length + segmentSizeBytes - 1) / segmentSizeBytes;
+		int footerLen = numSegs*FOOTER_ENTRY_BYTES + 8;
+		int[] entries = new int[numSegs*4];
+
+		int dstPos = 0;
+		for (int i=0; i<numSegs; i++) {
+			int srcOff = src.position() + i*segmentSizeBytes;
+			int rawLen = Math.min(segmentSizeBytes, length - i*segmentSizeBytes);
+			int compLen = codec.compress(src, srcOff, rawLen, dst, dstPos, recordSize);
+			int flags = 0;
+			if (compLen >= rawLen) { // Incompressible segment
+				ByteBuffer dup = dst.duplicate();
+				dup.clear().position(dstPos);
+				ByteBuffer srcDup = src.duplicate();
+				srcDup.limit(srcOff + rawLen).position(srcOff);
+				dup.put(srcDup);
+				compLen = rawLen;
+				flags = FLAG_STORED_RAW;
+			}
+
+			entries[i*4] = dstPos;
+			entries[i*4+1] = compLen;
+			entries[i*4+2] = rawLen;
+			entries[i*4+3] = flags;
+			dstPos += compLen;
+		}
+
+		dst.clear();
+		dst.position(dstPos);
+		for (int entry : entries) {
+			dst.putInt(entry);
+		}
+		dst.putInt(numSegs);
+		dst.putInt(FOOTER_MAGIC);
+		dst.flip();
+
+		return footerLen;
+	}
+
+	private static final class SegmentTable {
+		private final String path; // Key of the object
+		private final SegmentCodec codec; // Null if the object is not compressed
+		private final int[] offsets;
+		private final int[] compLengths;
+		private final int[] rawLengths;
+		private final int[] flags;
+
+		private SegmentTable(String path, SegmentCodec codec, int[] offsets, int[] compLengths, int[] rawLengths, int[] flags) {
+			this.path = path;
+			this.codec = codec;
+			this.offsets = offsets;
+			this.compLengths = compLengths;
+			this.rawLengths = rawLengths;
+			this.flags = flags;
+		}
+	}
+	
 	private AmazonS3 newS3Client() {
 		Configuration conf = Configuration.instance();
 		
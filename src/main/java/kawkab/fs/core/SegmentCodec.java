@@ -0,0 +1,49 @@
+package kawkab.fs.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compression codec for the data segments that are stored in the global store. Each segment is compressed
+ * independently so that a segment can be fetched and decompressed without reading the rest of the block.
+ */
+interface SegmentCodec {
+	/**
+	 * @return Name of the codec that is stored with the object in the global store
+	 */
+	String name();
+
+	/**
+	 * @return Maximum size of the compressed data of srcLen bytes
+	 */
+	int maxCompressedLength(int srcLen);
+
+	/**
+	 * Compresses srcLen bytes from the src buffer starting at srcOff to the dst buffer starting at dstOff. The position
+	 * and limits of the buffers are not modified.
+	 *
+	 * @param recordSize Size of the records in the segment, used by the record-aware codecs
+	 * @return Number of bytes written in the dst buffer, or a value not less than srcLen if the segment should be
+	 * stored uncompressed
+	 */
+	int compress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dst, int dstOff, int recordSize);
+
+	/**
+	 * Decompresses the compressed data from the src buffer starting at srcOff. The decompressed data must be exactly
+	 * rawLen bytes long.
+	 */
+	void decompress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dst, int dstOff, int rawLen);
+
+	/**
+	 * @param name Codec name from the configuration
+	 * @return The codec or null if the compression is disabled
+	 */
+	static SegmentCodec forName(String name) {
+		switch (name) {
+			case "none": return null;
+			case "lz4": return new LZ4SegmentCodec(false);
+			case "lz4hc": return new LZ4SegmentCodec(true);
+			case "delta": return new RecordDeltaCodec();
+			default: throw new IllegalArgumentException("Unknown global store codec: " + name);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package kawkab.fs.core;
+
+import kawkab.fs.core.exceptions.KawkabException;
+
+import java.util.List;
+
+/**
+ * Executes the I/O tasks one by one in the worker thread, which is how the local store worked without an engine.
+ * The batches still allow the worker to coalesce the writes of the same file.
+ */
+final class SyncIOEngine implements LocalIOEngine {
+	private final int queueDepth;
+
+	SyncIOEngine(int queueDepth) {
+		this.queueDepth = queueDepth;
+	}
+
+	@Override
+	public void execute(List<IOTask> tasks) {
+		for (IOTask task : tasks) {
+			try {
+				task.run();
+			} catch (KawkabException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public int queueDepth() {
+		return queueDepth;
+	}
+
+	@Override
+	public void shutdown() {
+	}
+}
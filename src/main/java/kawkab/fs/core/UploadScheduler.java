@@ -0,0 +1,210 @@
+package kawkab.fs.core;
+
+import kawkab.fs.core.GlobalStoreManager.Task;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Orders the uploads of the GlobalStoreManager. The workers take the next upload from this shared scheduler, so an
+ * idle worker never waits while the uploads that would have been assigned to it are stuck behind a large upload.
+ *
+ * The uploads are in three lanes, each in the order of queuing: the metadata blocks (inodes blocks and ibmaps), the
+ * bulk blocks whose local copies are evicted after the upload, and the other bulk blocks (data and index blocks).
+ * The next upload is the head of the lane that has the earliest queuing time after subtracting the boost of the lane.
+ * The metadata lane is always boosted, and the evictable lane is boosted while the local store is nearly full. As the
+ * boost is bounded, an upload that has waited for longer than the boost goes ahead of the newer boosted uploads, so
+ * no lane starves.
+ *
+ * At most numWorkers-1 bulk uploads run at the same time, so a worker is always free for the small metadata uploads.
+ *
+ * A block is uploaded by one worker at a time. If a block is queued again before its upload starts, the new request
+ * is coalesced with the queued one. If a block is queued while it is being uploaded, the new request waits until the
+ * current upload finishes. All the requests of a block must have the same listener.
+ */
+final class UploadScheduler {
+	private final ArrayDeque<Task> metadata = new ArrayDeque<>();
+	private final ArrayDeque<Task> evictable = new ArrayDeque<>();
+	private final ArrayDeque<Task> bulk = new ArrayDeque<>();
+	private final Map<BlockID, Task> queued = new HashMap<>(); // The tasks in the lanes
+	private final Map<BlockID, Task> deferred = new HashMap<>(); // The tasks of the blocks that are being uploaded
+	private final Set<BlockID> inFlight = new HashSet<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+
+	private final long boostNanos;
+	private final double nearFullFraction;
+	private final int maxBulkInFlight;
+	private int bulkInFlight;
+	private volatile DoubleSupplier localUse = () -> 0;
+
+	/**
+	 * @param boostMs The boost of the metadata and the evictable uploads
+	 * @param nearFullFraction The use of the local store above which the evictable uploads are boosted
+	 * @param numWorkers The number of the workers that take the uploads
+	 */
+	UploadScheduler(long boostMs, double nearFullFraction, int numWorkers) {
+		this.boostNanos = TimeUnit.MILLISECONDS.toNanos(boostMs);
+		this.nearFullFraction = nearFullFraction;
+		this.maxBulkInFlight = Math.max(1, numWorkers - 1);
+	}
+
+	/**
+	 * @param localUse Returns the used fraction of the local store
+	 */
+	void setLocalUse(DoubleSupplier localUse) {
+		this.localUse = localUse;
+	}
+
+	/**
+	 * @return false if the task is coalesced with a task of the same block that has not started yet
+	 */
+	boolean add(Task task) {
+		lock.lock();
+		try {
+			BlockID id = task.blockID;
+			if (queued.containsKey(id) || deferred.containsKey(id))
+				return false;
+
+			if (inFlight.contains(id)) {
+				deferred.put(id, task);
+				return true;
+			}
+
+			enqueue(task);
+			available.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until an upload can be started or the timeout expires.
+	 *
+	 * @return The next upload, or null if the timeout has expired. The caller must call done() after the upload.
+	 */
+	Task take(long timeout, TimeUnit unit) throws InterruptedException {
+		long remaining = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			Task task;
+			while ((task = next()) == null) {
+				if (remaining <= 0)
+					return null;
+				remaining = available.awaitNanos(remaining);
+			}
+
+			queued.remove(task.blockID);
+			inFlight.add(task.blockID);
+			if (task.bulk)
+				bulkInFlight++;
+
+			return task;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Completes the upload that was returned by take(), successful or not.
+	 */
+	void done(Task task) {
+		lock.lock();
+		try {
+			inFlight.remove(task.blockID);
+			if (task.bulk)
+				bulkInFlight--;
+
+			Task waiting = deferred.remove(task.blockID);
+			if (waiting != null)
+				enqueue(waiting);
+
+			available.signalAll(); // A bulk upload may be waiting for the bulk limit
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of the uploads that are queued, including those that wait for the upload of their block
+	 */
+	int size() {
+		lock.lock();
+		try {
+			return queued.size() + deferred.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Whether the block is queued or being uploaded
+	 */
+	boolean contains(BlockID id) {
+		lock.lock();
+		try {
+			return queued.containsKey(id) || deferred.containsKey(id) || inFlight.contains(id);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	boolean isIdle() {
+		lock.lock();
+		try {
+			return queued.isEmpty() && deferred.isEmpty() && inFlight.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void enqueue(Task task) {
+		queued.put(task.blockID, task);
+		if (!task.bulk)
+			metadata.add(task);
+		else if (task.evictable)
+			evictable.add(task);
+		else
+			bulk.add(task);
+	}
+
+	/**
+	 * Removes and returns the head of the lane with the earliest boosted queuing time, or null if no upload can start.
+	 */
+	private Task next() {
+		ArrayDeque<Task> lane = null;
+		long key = 0;
+
+		Task head = metadata.peek();
+		if (head != null) {
+			lane = metadata;
+			key = head.queuedAt - boostNanos;
+		}
+
+		if (bulkInFlight < maxBulkInFlight) {
+			head = evictable.peek();
+			if (head != null) {
+				long evKey = head.queuedAt - (localUse.getAsDouble() >= nearFullFraction ? boostNanos : 0);
+				if (lane == null || evKey - key < 0) { // Compares the nanoTime values by their difference
+					lane = evictable;
+					key = evKey;
+				}
+			}
+
+			head = bulk.peek();
+			if (head != null && (lane == null || head.queuedAt - key < 0)) {
+				lane = bulk;
+			}
+		}
+
+		return lane == null ? null : lane.poll();
+	}
+}
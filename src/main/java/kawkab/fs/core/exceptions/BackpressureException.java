@@ -0,0 +1,18 @@
+package kawkab.fs.core.exceptions;
+
+/**
+ * An append is rejected because the local store or the backlog of the uploads to the global store is above the high
+ * watermark. The file is not modified, and the append can be retried after retryAfterMs.
+ */
+public class BackpressureException extends KawkabException {
+	private final long retryAfterMs;
+
+	public BackpressureException(String errorMsg, long retryAfterMs) {
+		super(errorMsg);
+		this.retryAfterMs = retryAfterMs;
+	}
+
+	public long retryAfterMs() {
+		return retryAfterMs;
+	}
+}
@@ -1,11 +1,34 @@
 package kawkab.fs.core.exceptions;
 
+import java.util.Collections;
+import java.util.Map;
+
 public class OutOfMemoryException extends KawkabException{
+	private final Map<Integer, Integer> appendedRecords;
+	
 	public OutOfMemoryException(){
 		super();
+		appendedRecords = Collections.emptyMap();
 	}
 	
 	public OutOfMemoryException(String errorMsg){
 		super(errorMsg);
+		appendedRecords = Collections.emptyMap();
+	}
+	
+	/**
+	 * @param appendedRecords The number of the leading records of each session that were appended in a multi-file
+	 * batch before the memory ran out
+	 */
+	public OutOfMemoryException(String errorMsg, Map<Integer, Integer> appendedRecords){
+		super(errorMsg);
+		this.appendedRecords = appendedRecords;
+	}
+	
+	/**
+	 * @return sessionID -> number of the leading records of the session that were appended; empty if none
+	 */
+	public Map<Integer, Integer> appendedRecords() {
+		return appendedRecords;
 	}
 }
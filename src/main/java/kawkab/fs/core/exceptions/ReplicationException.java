@@ -0,0 +1,11 @@
+package kawkab.fs.core.exceptions;
+
+/**
+ * The appended data is not acknowledged by the quorum of the peer nodes in time. The data is appended on the primary
+ * node and remains in the file, but it is not known to be replicated on enough nodes.
+ */
+public class ReplicationException extends KawkabException {
+	public ReplicationException(String errorMsg) {
+		super(errorMsg);
+	}
+}
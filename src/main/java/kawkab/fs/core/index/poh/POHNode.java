@@ -301,6 +301,12 @@ public class POHNode extends Block {
 		return entries[entryIndex].segmentInFile();
 	}
 
+	long entryMaxTS(final int entryIndex) {
+		assert entryIndex < entryIdx : String.format("given idx should be less than the node's entryIdx. Given %d, expected < %d", entryIndex, entryIdx);
+
+		return entries[entryIndex].maxTS();
+	}
+
 	/**
 	 * Returns the node number of the left most child node that contain the given timestamp
 	 *
@@ -472,6 +478,55 @@ public class POHNode extends Block {
 		return tsCount.get() == entries.length*2;
 	}
 
+	/**
+	 * @return Number of timestamps in the node, including the timestamps that are not persisted yet
+	 */
+	int timestampsCount() {
+		return tsCount.get();
+	}
+
+	/**
+	 * Removes the timestamps after the first numTS timestamps from the node and its local file. This is used only in
+	 * the recovery of the file's tail, when the index has been persisted ahead of the file's data. The node must be
+	 * the last node of the index, and therefore, the last node in its local file.
+	 *
+	 * @param numTS Number of timestamps to keep, must be greater than zero
+	 */
+	void truncate(final int numTS) throws IOException {
+		synchronized (storeBuffer) {
+			assert numTS > 0 && numTS <= tsCount.get();
+
+			int numEntries = (numTS+1)/2;
+			for (int i=numEntries; i<entryIdx; i++) {
+				entries[i] = null;
+			}
+
+			POHEntry last = entries[numEntries-1];
+			if (numTS % 2 == 1 && last.isMaxSet()) { // Remove the maxTS from the last entry
+				last = new POHEntry(last.minTS(), last.segmentInFile());
+				entries[numEntries-1] = last;
+			}
+
+			entryIdx = numEntries;
+			tsCount.set(numTS);
+			dirtyOffsetStart = Math.min(dirtyOffsetStart, numTS);
+			nodeMaxTS = last.maxTS();
+
+			// The entries are stored as {segmentInFile, minTS} followed by maxTS
+			long end = nodeOffsetInFile() + nodeSizeBytes - entries.length*POHEntry.sizeBytes()
+					+ (numTS/2)*POHEntry.sizeBytes() + (numTS%2)*Long.BYTES*2;
+
+			try (FileChannel channel = FileChannel.open(new File(id.localPath()).toPath(), StandardOpenOption.WRITE)) {
+				if (channel.size() > end)
+					channel.truncate(end);
+			}
+		}
+	}
+
+	private long nodeOffsetInFile() {
+		return (long) id.numNodeInIndexBlock() * nodeSizeBytes;
+	}
+
 	long entryMinTS() {
 		return entryMinTS;
 	}
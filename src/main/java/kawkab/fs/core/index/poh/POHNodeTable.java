@@ -0,0 +1,93 @@
+package kawkab.fs.core.index.poh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The nodes of an index by their node numbers. The nodes are added under the table's lock, and the readers get the
+ * nodes without locking and without boxing the node numbers.
+ *
+ * The nodes are stored in fixed size chunks. When the table grows, only the array of the chunks is copied, so a node
+ * that is added concurrently is never lost.
+ */
+final class POHNodeTable {
+	private static final int chunkBits = 10;
+	private static final int chunkSize = 1 << chunkBits;
+	private static final int chunkMask = chunkSize - 1;
+
+	private volatile AtomicReferenceArray<POHNode>[] chunks;
+	private int size;
+
+	POHNodeTable() {
+		chunks = newChunks(1);
+	}
+
+	/**
+	 * @return The node, or null if the node is not in the table
+	 */
+	POHNode get(final int nodeNum) {
+		AtomicReferenceArray<POHNode>[] curChunks = chunks;
+		int chunk = nodeNum >>> chunkBits;
+		if (chunk >= curChunks.length || curChunks[chunk] == null)
+			return null;
+
+		return curChunks[chunk].get(nodeNum & chunkMask);
+	}
+
+	/**
+	 * @return The previous node of the node number
+	 */
+	synchronized POHNode put(final int nodeNum, final POHNode node) {
+		assert nodeNum >= 0;
+
+		int chunk = nodeNum >>> chunkBits;
+		AtomicReferenceArray<POHNode>[] curChunks = chunks;
+		if (chunk >= curChunks.length) {
+			AtomicReferenceArray<POHNode>[] newChunks = newChunks(Math.max(chunk+1, curChunks.length*2));
+			System.arraycopy(curChunks, 0, newChunks, 0, curChunks.length);
+			curChunks = newChunks;
+		}
+
+		if (curChunks[chunk] == null)
+			curChunks[chunk] = new AtomicReferenceArray<>(chunkSize);
+		chunks = curChunks; // Publishes the new chunk to the readers
+
+		POHNode prev = curChunks[chunk].getAndSet(nodeNum & chunkMask, node);
+		if (prev == null)
+			size++;
+		return prev;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return A snapshot of the nodes in the table
+	 */
+	synchronized List<POHNode> values() {
+		List<POHNode> values = new ArrayList<>(size);
+		for (AtomicReferenceArray<POHNode> chunk : chunks) {
+			if (chunk == null)
+				continue;
+
+			for (int i=0; i<chunkSize; i++) {
+				POHNode node = chunk.get(i);
+				if (node != null)
+					values.add(node);
+			}
+		}
+		return values;
+	}
+
+	synchronized void clear() {
+		chunks = newChunks(1);
+		size = 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static AtomicReferenceArray<POHNode>[] newChunks(final int count) {
+		return (AtomicReferenceArray<POHNode>[]) new AtomicReferenceArray[count];
+	}
+}
@@ -11,10 +11,10 @@ import kawkab.fs.core.timerqueue.TimerQueueIface;
 import kawkab.fs.core.timerqueue.TimerQueueItem;
 import kawkab.fs.utils.LatHistogram;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -34,7 +34,7 @@ public class PostOrderHeapIndex implements DeferredWorkReceiver<POHNode> {
 	private static final int bufferTimeOffsetMs = 1; //Giving some time for buffering
 
 	private final double logBase;
-	private ConcurrentHashMap<Integer, POHNode> nodes;	//This is an append-only list. The readers should read but not modify the list. Only a single writer should append new nodes.
+	private POHNodeTable nodes;	//This is an append-only list. The readers should read but not modify the list. Only a single writer should append new nodes.
 
 	// Configuration parameters
 	private final int childrenPerNode; //Branching factor of the tree
@@ -56,6 +56,10 @@ public class PostOrderHeapIndex implements DeferredWorkReceiver<POHNode> {
 
 	private int nodeSizeBytes;
 
+	// The first node that has the entries of the segments that are not deleted by the retention policy of the file. The
+	// nodes before this node are not read, and their index blocks may be deleted.
+	private volatile int firstNode = 1;
+
 	//private LatHistogram loadLog;
 
 	/**
@@ -87,7 +91,7 @@ public class PostOrderHeapIndex implements DeferredWorkReceiver<POHNode> {
 
 		System.out.printf("Per node index entries %d, pointers %d\n", entriesPerNode, childrenPerNode);
 
-		nodes = new ConcurrentHashMap<>();
+		nodes = new POHNodeTable();
 		//nodes.add(null); // Add a dummy value to match the node number with the array index. We do this to simplify the calculation of the index of the children of a node
 		//currentNode = createNewNode(1);
 		//nodes.add(currentNode);
@@ -130,7 +134,7 @@ public class PostOrderHeapIndex implements DeferredWorkReceiver<POHNode> {
 
 		//System.out.printf("[POHI] Loading %d nodes, index length %d\n",nodesCount, len);
 
-		for (int i=1; i<=nodesCount; i++) {
+		for (int i=firstNode; i<=nodesCount; i++) {
 			acquireNode(i, true);
 			//POHNode node = loadIndexNode(i);
 			//nodes.put(i, node);
@@ -164,6 +168,16 @@ public class PostOrderHeapIndex implements DeferredWorkReceiver<POHNode> {
 		return node;
 	}
 
+	/**
+	 * @return The node, or null if the node is before the first retained node
+	 */
+	private POHNode acquireRetainedNode(final int nodeNum, boolean loadFromPrimary) throws IOException, KawkabException {
+		if (nodeNum < firstNode)
+			return null;
+
+		return acquireNode(nodeNum, loadFromPrimary);
+	}
+
 	/**
 	 * Create a file locally for the new block
 	 *
@@ -426,7 +440,7 @@ public class PostOrderHeapIndex implements DeferredWorkReceiver<POHNode> {
 				break;
 
 			//curNode--;
-			curNode = acquireNode(curNode.nodeNumber()-1, loadFromPrimary);
+			curNode = acquireRetainedNode(curNode.nodeNumber()-1, loadFromPrimary);
 		}
 
 		return results;
@@ -481,7 +495,7 @@ public class PostOrderHeapIndex implements DeferredWorkReceiver<POHNode> {
 			if (curNode.entryMinTS() < minTS)
 				break;
 
-			curNode = acquireNode(curNode.nodeNumber()-1, loadFromPrimary);
+			curNode = acquireRetainedNode(curNode.nodeNumber()-1, loadFromPrimary);
 		}
 
 
@@ -571,7 +585,9 @@ public class PostOrderHeapIndex implements DeferredWorkReceiver<POHNode> {
 				//ls2.end();
 			}
 
-			node = acquireNode(curNode, loadFromPrimary);
+			node = acquireRetainedNode(curNode, loadFromPrimary);
+			if (node == null) // The timestamp is in the data that is deleted by the retention policy
+				return null;
 			//ls1.printStats();
 			//ls2.printStats();
 		}
@@ -726,6 +742,95 @@ public class PostOrderHeapIndex implements DeferredWorkReceiver<POHNode> {
 		nodes.clear();
 	}
 
+	/**
+	 * Returns the number of timestamps that are persisted in the local index files. The nodes are loaded starting from
+	 * the last node of the given index length, or from an earlier node if that node is not persisted. This is used
+	 * only in the recovery of the file's tail on the primary node.
+	 *
+	 * @param fromLength Expected index length, for example, the index length of the last persisted file size
+	 */
+	public long persistedLength(final long fromLength) throws IOException, KawkabException {
+		int nodeNum = Math.max(1, (int)Math.ceil((fromLength + 1) / 2 / ((double)entriesPerNode)));
+		while (nodeNum > 1 && !isPersisted(nodeNum)) {
+			nodeNum--;
+		}
+
+		long length = 0;
+		while (isPersisted(nodeNum)) {
+			POHNode node = acquireNode(nodeNum, false);
+			length = (nodeNum-1L)*entriesPerNode*2 + node.timestampsCount();
+			if (!node.isFull())
+				break;
+			nodeNum++;
+		}
+
+		return length;
+	}
+
+	/**
+	 * Removes the timestamps after toLength from the index. Only the timestamps of the last node can be removed.
+	 *
+	 * @return false if the index cannot be truncated to the given length
+	 */
+	public boolean truncate(final long fromLength, final long toLength) throws IOException, KawkabException {
+		assert toLength < fromLength;
+
+		int nodeNum = (int)Math.ceil(fromLength / 2.0 / entriesPerNode); // The node of the last timestamp
+		long nodeStart = (nodeNum-1L)*entriesPerNode*2;
+		if (toLength <= nodeStart) // The node would be empty
+			return false;
+
+		acquireNode(nodeNum, false).truncate((int)(toLength - nodeStart));
+		return true;
+	}
+
+	/**
+	 * Excludes the entries of the segments before the given segment from the searches, after the segments are deleted
+	 * by the retention policy of the file. The searches may still return the segments before the given segment if
+	 * they share the first retained node.
+	 */
+	public void trimBefore(final long segmentInFile) {
+		int node = (int)(segmentInFile / entriesPerNode) + 1;
+		if (node > firstNode)
+			firstNode = node;
+	}
+
+	/**
+	 * @return The timestamp of the last record in the given full segment
+	 */
+	public long maxTimestamp(final long segmentInFile, boolean loadFromPrimary) throws IOException, KawkabException {
+		POHNode node = acquireNode((int)(segmentInFile / entriesPerNode) + 1, loadFromPrimary);
+		return node.entryMaxTS((int)(segmentInFile % entriesPerNode));
+	}
+
+	/**
+	 * @return The index block of the first retained node. The nodes of the blocks before this block are not read.
+	 */
+	public int firstRetainedBlock() {
+		return firstNode / nodesPerBlock;
+	}
+
+	/**
+	 * Returns whether the index block has a root node of the index. Such a block must not be deleted even if its nodes
+	 * are not retained, because a root node is read when its parent is created.
+	 *
+	 * @param blockInIndex Block number in the index
+	 * @param indexLength Current length of the index
+	 */
+	public boolean hasRootNode(final int blockInIndex, final long indexLength) {
+		for (int root = lastNodeIndex(indexLength, entriesPerNode); root > 0; root -= nodesCountTable[heightOfNode(root)]) {
+			if (root / nodesPerBlock == blockInIndex)
+				return true;
+		}
+
+		return false;
+	}
+
+	private boolean isPersisted(final int nodeNum) {
+		IndexNodeID id = new IndexNodeID(inumber, nodeNum);
+		return localStore.exists(id) && new File(id.localPath()).length() > (long) id.numNodeInIndexBlock() * nodeSizeBytes;
+	}
+
 	public void printStats() {
 		//loadLog.printStats();
 
@@ -0,0 +1,44 @@
+package kawkab.fs.core.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters of the operations on a file on this node. The rates of the operations are derived from the counters by
+ * the metrics collector.
+ */
+public final class FileMetrics {
+	private final long inumber;
+	private final LongAdder appends = new LongAdder();
+	private final LongAdder appendedBytes = new LongAdder();
+	private final LongAdder reads = new LongAdder();
+	int handles; // Number of the open handles of the file, guarded by the entry of the file in Metrics
+
+	FileMetrics(long inumber) {
+		this.inumber = inumber;
+	}
+
+	public void appended(int bytes) {
+		appends.increment();
+		appendedBytes.add(bytes);
+	}
+
+	public void read() {
+		reads.increment();
+	}
+
+	long inumber() {
+		return inumber;
+	}
+
+	long appends() {
+		return appends.sum();
+	}
+
+	long appendedBytes() {
+		return appendedBytes.sum();
+	}
+
+	long reads() {
+		return reads.sum();
+	}
+}
@@ -0,0 +1,368 @@
+package kawkab.fs.core.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import kawkab.fs.commons.Configuration;
+import kawkab.fs.core.BlockID.BlockType;
+import kawkab.fs.utils.ConcurrentHistogram;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Always-on metrics of this node: the operation counters of the open files, the cache accesses and misses by block
+ * type, the lag of the local flushes, the backlog and the latency of the uploads to the global store, and the latency
+ * of the block fetches from the primary nodes. The flow control adds the throttled and the rejected appends, the waits for
+ * space in the local store, and the gauges of the backlogs of the stages.
+ *
+ * The counters are LongAdders and the latencies are recorded in ConcurrentHistograms, so recording a metric does not
+ * lock or allocate. The metrics are exported through JMX as kawkab:type=Metrics, and in the Prometheus text format at
+ * http://<node>:metricsHttpPort/metrics if the port is configured.
+ */
+public final class Metrics implements MetricsMXBean {
+	private static final String objectName = "kawkab:type=Metrics";
+	private static Metrics instance;
+
+	private final Map<Long, FileMetrics> files = new ConcurrentHashMap<>();
+	private final LongAdder[] cacheAccesses; // By the ordinal of the block type
+	private final LongAdder[] cacheMisses;
+	private final ConcurrentHistogram localFlushLag = new ConcurrentHistogram("local_flush_lag");
+	private final LongAdder uploadsQueued = new LongAdder();
+	private final LongAdder uploadsCompleted = new LongAdder();
+	private final ConcurrentHistogram uploadLatency = new ConcurrentHistogram("upload_latency");
+	private final ConcurrentHistogram[] primaryFetches; // By the ordinal of the block type
+	private final LongAdder uploadFailures = new LongAdder();
+	private final LongAdder appendsThrottled = new LongAdder();
+	private final ConcurrentHistogram appendThrottle = new ConcurrentHistogram("append_throttle");
+	private final LongAdder appendsRejected = new LongAdder();
+	private final ConcurrentHistogram localStoreStalls = new ConcurrentHistogram("local_store_stall");
+	private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+	private HttpServer server;
+
+	private Metrics() {
+		int numTypes = BlockType.values().length;
+		cacheAccesses = new LongAdder[numTypes];
+		cacheMisses = new LongAdder[numTypes];
+		primaryFetches = new ConcurrentHistogram[numTypes];
+		for (BlockType type : BlockType.values()) {
+			cacheAccesses[type.ordinal()] = new LongAdder();
+			cacheMisses[type.ordinal()] = new LongAdder();
+			primaryFetches[type.ordinal()] = new ConcurrentHistogram("primary_fetch_" + type.name().toLowerCase());
+		}
+	}
+
+	public static synchronized Metrics instance() {
+		if (instance == null) {
+			instance = new Metrics();
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Registers the JMX bean and starts the HTTP endpoint if metricsHttpPort is configured.
+	 */
+	public synchronized void start() {
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = new ObjectName(objectName);
+			if (!mbs.isRegistered(name))
+				mbs.registerMBean(this, name);
+		} catch (JMException e) {
+			System.out.println("[M] Unable to register the metrics in JMX: " + e);
+		}
+
+		int port = Configuration.instance().metricsHttpPort;
+		if (port == 0 || server != null)
+			return;
+
+		try {
+			server = HttpServer.create(new InetSocketAddress(port), 0);
+			server.createContext("/metrics", exchange -> {
+				byte[] body = prometheusText().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			});
+			server.start();
+			System.out.println("[M] Metrics endpoint at port " + port);
+		} catch (IOException e) {
+			System.out.println("[M] Unable to start the metrics endpoint at port " + port + ": " + e);
+			server = null;
+		}
+	}
+
+	public synchronized void shutdown() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+
+		try {
+			ObjectName name = new ObjectName(objectName);
+			MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			if (mbs.isRegistered(name))
+				mbs.unregisterMBean(name);
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return The counters of the file, which the caller should keep for the file's operations and release when the
+	 * file is closed
+	 */
+	public FileMetrics file(long inumber) {
+		return files.compute(inumber, (key, file) -> {
+			if (file == null)
+				file = new FileMetrics(key);
+			file.handles++;
+			return file;
+		});
+	}
+
+	/**
+	 * Releases the counters of a file. The counters are removed when the last handle of the file is closed, so only
+	 * the open files are exported.
+	 */
+	public void release(FileMetrics metrics) {
+		files.computeIfPresent(metrics.inumber(), (key, file) -> {
+			if (file != metrics || --file.handles > 0)
+				return file;
+			return null;
+		});
+	}
+
+	public void cacheAccess(BlockType type, boolean hit) {
+		cacheAccesses[type.ordinal()].increment();
+		if (!hit)
+			cacheMisses[type.ordinal()].increment();
+	}
+
+	/**
+	 * @param dirtySinceNanos System.nanoTime() when the block became dirty
+	 */
+	public void localFlushed(long dirtySinceNanos) {
+		localFlushLag.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - dirtySinceNanos));
+	}
+
+	public void uploadQueued() {
+		uploadsQueued.increment();
+	}
+
+	/**
+	 * @param queuedAtNanos System.nanoTime() when the upload was queued
+	 */
+	public void uploadCompleted(long queuedAtNanos) {
+		uploadsCompleted.increment();
+		uploadLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - queuedAtNanos));
+	}
+
+	public void uploadFailed() {
+		uploadFailures.increment();
+	}
+
+	/**
+	 * @param delayNanos The time for which the append is delayed
+	 */
+	public void appendThrottled(long delayNanos) {
+		appendsThrottled.increment();
+		appendThrottle.record(TimeUnit.NANOSECONDS.toMicros(delayNanos));
+	}
+
+	public void appendRejected() {
+		appendsRejected.increment();
+	}
+
+	/**
+	 * @param startNanos System.nanoTime() when the creation of a block started to wait for space in the local store
+	 */
+	public void localStoreStalled(long startNanos) {
+		localStoreStalls.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+	}
+
+	/**
+	 * Adds a gauge that is read when the metrics are exported. The value must be cheap to compute.
+	 */
+	public void gauge(String name, String help, DoubleSupplier value) {
+		gauges.add(new Gauge(name, help, value));
+	}
+
+	/**
+	 * @param startNanos System.nanoTime() when the fetch started
+	 */
+	public void primaryFetched(BlockType type, long startNanos) {
+		primaryFetches[type.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+	}
+
+	@Override
+	public double getCacheHitRatio() {
+		long accesses = 0;
+		long misses = 0;
+		for (int i=0; i<cacheAccesses.length; i++) {
+			accesses += cacheAccesses[i].sum();
+			misses += cacheMisses[i].sum();
+		}
+		return accesses == 0 ? 0 : (accesses - misses) * 1.0 / accesses;
+	}
+
+	@Override
+	public long getUploadBacklog() {
+		return uploadsQueued.sum() - uploadsCompleted.sum();
+	}
+
+	@Override
+	public long getLocalFlushLagP99Micros() {
+		return localFlushLag.snapshot().percentile(99);
+	}
+
+	@Override
+	public long getUploadLatencyP99Micros() {
+		return uploadLatency.snapshot().percentile(99);
+	}
+
+	@Override
+	public long getPrimaryFetchP99Micros() {
+		long p99 = 0;
+		for (ConcurrentHistogram hist : primaryFetches) {
+			p99 = Math.max(p99, hist.snapshot().percentile(99));
+		}
+		return p99;
+	}
+
+	@Override
+	public int getTrackedFiles() {
+		return files.size();
+	}
+
+	@Override
+	public long getAppendsThrottled() {
+		return appendsThrottled.sum();
+	}
+
+	@Override
+	public long getAppendsRejected() {
+		return appendsRejected.sum();
+	}
+
+	@Override
+	public long getUploadFailures() {
+		return uploadFailures.sum();
+	}
+
+	@Override
+	public long getLocalStoreStallP99Micros() {
+		return localStoreStalls.snapshot().percentile(99);
+	}
+
+	@Override
+	public String getPrometheusText() {
+		return prometheusText();
+	}
+
+	public String prometheusText() {
+		StringBuilder out = new StringBuilder(4096);
+
+		header(out, "kawkab_file_appends_total", "counter", "Append requests of a file");
+		for (FileMetrics file : files.values())
+			sample(out, "kawkab_file_appends_total", "inumber", Long.toString(file.inumber()), file.appends());
+		header(out, "kawkab_file_appended_bytes_total", "counter", "Bytes appended in a file");
+		for (FileMetrics file : files.values())
+			sample(out, "kawkab_file_appended_bytes_total", "inumber", Long.toString(file.inumber()), file.appendedBytes());
+		header(out, "kawkab_file_reads_total", "counter", "Read requests of a file");
+		for (FileMetrics file : files.values())
+			sample(out, "kawkab_file_reads_total", "inumber", Long.toString(file.inumber()), file.reads());
+
+		header(out, "kawkab_cache_accesses_total", "counter", "Cache accesses by block type");
+		for (BlockType type : BlockType.values())
+			sample(out, "kawkab_cache_accesses_total", "type", type.name(), cacheAccesses[type.ordinal()].sum());
+		header(out, "kawkab_cache_misses_total", "counter", "Cache misses by block type");
+		for (BlockType type : BlockType.values())
+			sample(out, "kawkab_cache_misses_total", "type", type.name(), cacheMisses[type.ordinal()].sum());
+
+		summary(out, "kawkab_local_flush_lag_micros", "Time from a block becoming dirty until it is flushed locally",
+				null, null, localFlushLag);
+
+		header(out, "kawkab_upload_backlog", "gauge", "Blocks queued for the global store");
+		sample(out, "kawkab_upload_backlog", null, null, getUploadBacklog());
+		summary(out, "kawkab_upload_latency_micros", "Time from queuing a block for the global store until it is stored",
+				null, null, uploadLatency);
+		header(out, "kawkab_upload_failures_total", "counter", "Failed uploads to the global store, which are retried");
+		sample(out, "kawkab_upload_failures_total", null, null, uploadFailures.sum());
+
+		header(out, "kawkab_appends_throttled_total", "counter", "Appends delayed by the flow control");
+		sample(out, "kawkab_appends_throttled_total", null, null, appendsThrottled.sum());
+		summary(out, "kawkab_append_throttle_micros", "Delay of the throttled appends", null, null, appendThrottle);
+		header(out, "kawkab_appends_rejected_total", "counter", "Appends rejected by the flow control");
+		sample(out, "kawkab_appends_rejected_total", null, null, appendsRejected.sum());
+		summary(out, "kawkab_local_store_stall_micros", "Time waited for space in the local store to create a data block",
+				null, null, localStoreStalls);
+
+		for (Gauge gauge : gauges) {
+			header(out, gauge.name, "gauge", gauge.help);
+			sample(out, gauge.name, null, null, gauge.value.getAsDouble());
+		}
+
+		header(out, "kawkab_primary_fetch_micros", "summary", "Latency of fetching blocks from the primary nodes");
+		for (BlockType type : BlockType.values())
+			quantiles(out, "kawkab_primary_fetch_micros", "type", type.name(), primaryFetches[type.ordinal()]);
+
+		return out.toString();
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder out, String name, String label, String labelValue, double value) {
+		out.append(name);
+		if (label != null)
+			out.append('{').append(label).append("=\"").append(labelValue).append("\"}");
+		out.append(' ').append(value).append('\n');
+	}
+
+	private static void summary(StringBuilder out, String name, String help, String label, String labelValue,
+								ConcurrentHistogram hist) {
+		header(out, name, "summary", help);
+		quantiles(out, name, label, labelValue, hist);
+	}
+
+	private static void quantiles(StringBuilder out, String name, String label, String labelValue,
+								  ConcurrentHistogram hist) {
+		ConcurrentHistogram.Snapshot snap = hist.snapshot();
+		String prefix = label == null ? "" : label + "=\"" + labelValue + "\",";
+		for (double q : new double[]{0.5, 0.9, 0.99, 0.999}) {
+			out.append(name).append('{').append(prefix).append("quantile=\"").append(q).append("\"} ")
+					.append(snap.percentile(q * 100)).append('\n');
+		}
+		sample(out, name + "_sum", label, labelValue, snap.sum());
+		sample(out, name + "_count", label, labelValue, snap.count());
+	}
+
+	private static final class Gauge {
+		final String name;
+		final String help;
+		final DoubleSupplier value;
+
+		Gauge(String name, String help, DoubleSupplier value) {
+			this.name = name;
+			this.help = help;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package kawkab.fs.core.metrics;
+
+/**
+ * The JMX interface of the metrics, registered as kawkab:type=Metrics. The latencies are in microseconds.
+ */
+public interface MetricsMXBean {
+	double getCacheHitRatio();
+
+	long getUploadBacklog();
+
+	long getLocalFlushLagP99Micros();
+
+	long getUploadLatencyP99Micros();
+
+	long getPrimaryFetchP99Micros();
+
+	int getTrackedFiles();
+
+	long getAppendsThrottled();
+
+	long getAppendsRejected();
+
+	long getUploadFailures();
+
+	long getLocalStoreStallP99Micros();
+
+	/**
+	 * @return All the metrics in the Prometheus text format
+	 */
+	String getPrometheusText();
+}
@@ -0,0 +1,55 @@
+package kawkab.fs.core.services.thrift;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Helpers for the appendRecords batches, which are the pairs {sessionID, record} of multiple files.
+ */
+public final class AppendBatches {
+	private AppendBatches() {}
+
+	/**
+	 * Removes the records that the server has appended from the batch, keeping the order of the remaining records.
+	 * The server appends the records of a session in order, so the appended records of a session are the first records
+	 * of the session in the batch. The batch is compacted in place between its position and limit, and its limit is
+	 * moved to the end of the remaining records.
+	 *
+	 * @param appended sessionID -> number of the leading records of the session that are appended,
+	 *                 see TOutOfMemoryException.appendedRecords
+	 * @param recordSize Returns the record size of a session in the batch
+	 */
+	public static void removeAppended(ByteBuffer batch, Map<Integer, Integer> appended, IntUnaryOperator recordSize) {
+		if (appended.isEmpty())
+			return;
+
+		Map<Integer, Integer> toSkip = new HashMap<>(appended);
+		ByteBuffer src = batch.duplicate();
+		int start = batch.position();
+		int limit = batch.limit();
+		int writePos = start;
+		int pos = start;
+		while (pos < limit) {
+			int sessionID = batch.getInt(pos);
+			int len = Integer.BYTES + recordSize.applyAsInt(sessionID);
+
+			int skip = toSkip.getOrDefault(sessionID, 0);
+			if (skip > 0) {
+				toSkip.put(sessionID, skip-1);
+			} else {
+				if (writePos != pos) {
+					src.limit(pos+len).position(pos);
+					batch.position(writePos);
+					batch.put(src);
+				}
+				writePos += len;
+			}
+
+			pos += len;
+		}
+
+		batch.limit(writePos).position(start);
+	}
+}
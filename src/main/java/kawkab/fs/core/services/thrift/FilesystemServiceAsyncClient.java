@@ -0,0 +1,276 @@
+package kawkab.fs.core.services.thrift;
+
+import kawkab.fs.core.exceptions.BackpressureException;
+import kawkab.fs.core.exceptions.KawkabException;
+import kawkab.fs.core.exceptions.OutOfMemoryException;
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TNonblockingSocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking client of the FilesystemService. The requests return immediately with a future that is completed when
+ * the response is received. The requests are sent over a small pool of connections that are driven by a single
+ * selector thread of the TAsyncClientManager. A Thrift async connection carries one request at a time, so each
+ * connection queues the pending requests and sends the next one from the completion callback of the previous one.
+ *
+ * All the requests of a session are sent through the same connection. Therefore, the requests of a file are executed
+ * and completed in the order in which they are issued, while the requests of different files proceed in parallel.
+ *
+ * A Thrift async client cannot be used after any error of a call, including the exceptions that the service declares,
+ * so a connection opens a new socket and client after every error. The requests that the server rejects because the
+ * memory is full are sent again immediately, and the requests that are rejected by the flow control are sent again
+ * after the delay that the server suggests, up to MAX_TRIES times. The connection does not send the next requests until
+ * the retried request completes.
+ *
+ * The caller must not modify the source buffers of the append requests until the returned futures are completed.
+ */
+public class FilesystemServiceAsyncClient {
+	private static final int MAX_TRIES = 3;
+
+	private final TAsyncClientManager manager;
+	private final ScheduledExecutorService retries; // Sends the requests again after the backpressure delays
+	private final Connection[] conns;
+
+	/**
+	 * @param serverIP IP of the server to connect
+	 * @param port Filesystem service port
+	 * @param numConnections Number of connections to the server
+	 * @throws KawkabException
+	 */
+	public FilesystemServiceAsyncClient(String serverIP, int port, int numConnections) throws KawkabException {
+		this(serverIP, port, numConnections, false);
+	}
+
+	/**
+	 * @param compactProtocol Use the compact protocol instead of the binary protocol. This must match the protocol of the server.
+	 */
+	public FilesystemServiceAsyncClient(String serverIP, int port, int numConnections, boolean compactProtocol) throws KawkabException {
+		assert numConnections > 0;
+
+		System.out.printf("[FSAC] Connecting to %s:%d with %d connections\n",serverIP,port,numConnections);
+		try {
+			manager = new TAsyncClientManager();
+			retries = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "FSAC-retries");
+				thread.setDaemon(true);
+				return thread;
+			});
+			conns = new Connection[numConnections];
+			TProtocolFactory protocolFactory = compactProtocol ? new TCompactProtocol.Factory() : new TBinaryProtocol.Factory();
+			for (int i=0; i<numConnections; i++) {
+				conns[i] = new Connection(serverIP, port, protocolFactory, manager, retries);
+			}
+		} catch (IOException x) {
+			x.printStackTrace();
+			throw new KawkabException(x);
+		}
+	}
+
+	public CompletableFuture<Integer> append(int sessionID, ByteBuffer data) {
+		return connection(sessionID).submit((c, cb) -> c.append(sessionID, data, cb));
+	}
+
+	public CompletableFuture<Integer> appendRecord(int sessionID, ByteBuffer data, int recSize) {
+		return connection(sessionID).submit((c, cb) -> c.appendRecord(sessionID, data, recSize, cb));
+	}
+
+	public CompletableFuture<Integer> appendBuffered(int sessionID, ByteBuffer srcBuf, int recSize) {
+		return connection(sessionID).submit((c, cb) -> c.appendRecordBuffered(sessionID, srcBuf, recSize, cb));
+	}
+
+	/**
+	 * The records in the buffer may belong to different sessions. The request is sent through the connection of the
+	 * first session in the buffer. Therefore, the ordering with the other requests is guaranteed only for that session.
+	 */
+	public CompletableFuture<Integer> appendRecords(ByteBuffer buffer) {
+		return connection(buffer.getInt(buffer.position())).submit((c, cb) -> c.appendRecords(buffer, cb));
+	}
+
+	public CompletableFuture<ByteBuffer> recordNum(int sessionID, long recNum, int recSize, boolean loadFromPrimary) {
+		return connection(sessionID).submit((c, cb) -> c.recordNum(sessionID, recNum, recSize, loadFromPrimary, cb));
+	}
+
+	public CompletableFuture<ByteBuffer> recordAt(int sessionID, long timestamp, int recSize, boolean loadFromPrimary) {
+		return connection(sessionID).submit((c, cb) -> c.recordAt(sessionID, timestamp, recSize, loadFromPrimary, cb));
+	}
+
+	public CompletableFuture<List<ByteBuffer>> readRecords(int sessionID, long minTS, long maxTS, int recSize, boolean loadFromPrimary) {
+		return connection(sessionID).submit((c, cb) -> c.readRecords(sessionID, minTS, maxTS, recSize, loadFromPrimary, cb));
+	}
+
+	public CompletableFuture<Long> size(int sessionID) {
+		return connection(sessionID).submit((c, cb) -> c.size(sessionID, cb));
+	}
+
+	private Connection connection(int sessionID) {
+		return conns[Math.floorMod(sessionID, conns.length)];
+	}
+
+	public void disconnect() {
+		retries.shutdownNow();
+		for (Connection conn : conns) {
+			conn.reset();
+		}
+		manager.stop();
+	}
+
+	@FunctionalInterface
+	private interface Call<T> {
+		void issue(FilesystemService.AsyncClient client, AsyncMethodCallback<T> callback) throws TException;
+	}
+
+	/**
+	 * A connection sends one request at a time and queues the rest in the FIFO order.
+	 */
+	private static class Connection {
+		private final String serverIP;
+		private final int port;
+		private final TProtocolFactory protocolFactory;
+		private final TAsyncClientManager manager;
+		private final ScheduledExecutorService retries;
+		private final ArrayDeque<Request<?>> pending = new ArrayDeque<>();
+		private FilesystemService.AsyncClient client; // null after an error until the next request, guarded by this
+		private TNonblockingSocket transport;
+		private boolean busy;
+
+		private Connection(String serverIP, int port, TProtocolFactory protocolFactory, TAsyncClientManager manager,
+						   ScheduledExecutorService retries) throws IOException {
+			this.serverIP = serverIP;
+			this.port = port;
+			this.protocolFactory = protocolFactory;
+			this.manager = manager;
+			this.retries = retries;
+			client();
+		}
+
+		/**
+		 * @return The client of the connection, which is created with a new socket after an error
+		 */
+		private synchronized FilesystemService.AsyncClient client() throws IOException {
+			if (client == null) {
+				transport = new TNonblockingSocket(serverIP, port);
+				client = new FilesystemService.AsyncClient(protocolFactory, manager, transport);
+			}
+			return client;
+		}
+
+		/**
+		 * Drops the client after an error of a call. The client has closed its transport and fails all the later calls.
+		 */
+		private synchronized void reset() {
+			client = null;
+			if (transport != null) {
+				transport.close();
+				transport = null;
+			}
+		}
+
+		private <T> CompletableFuture<T> submit(Call<T> call) {
+			Request<T> req = new Request<>(call);
+			synchronized (this) {
+				if (busy) {
+					pending.addLast(req);
+					return req.future;
+				}
+				busy = true;
+			}
+
+			issue(req);
+			return req.future;
+		}
+
+		private <T> void issue(Request<T> req) {
+			req.tries++;
+			try {
+				req.call.issue(client(), new AsyncMethodCallback<T>() {
+					@Override
+					public void onComplete(T response) {
+						req.future.complete(response);
+						issueNext();
+					}
+
+					@Override
+					public void onError(Exception e) {
+						reset();
+
+						if (e instanceof TOutOfMemoryException) {
+							TOutOfMemoryException oom = (TOutOfMemoryException) e;
+							// A batch cannot be sent again if some of its records are appended; the caller removes them first
+							if (oom.isSetAppendedRecords() && !oom.getAppendedRecords().isEmpty()) {
+								req.future.completeExceptionally(new OutOfMemoryException(oom.getMessage(), oom.getAppendedRecords()));
+							} else if (req.tries < MAX_TRIES) {
+								issue(req); // Retry if the memory was full. The pending requests wait to keep the order.
+								return;
+							} else {
+								req.future.completeExceptionally(new OutOfMemoryException(String.format("Request failed after %d tries", req.tries)));
+							}
+						} else if (e instanceof TBackpressureException) {
+							TBackpressureException bpe = (TBackpressureException) e;
+							if (req.tries < MAX_TRIES && retry(req, bpe.getRetryAfterMs() << (req.tries-1)))
+								return;
+							req.future.completeExceptionally(new BackpressureException(bpe.getMessage(), bpe.getRetryAfterMs()));
+						} else {
+							req.future.completeExceptionally(new KawkabException(e));
+						}
+						issueNext();
+					}
+				});
+			} catch (TException | IOException | IllegalStateException e) {
+				reset();
+				req.future.completeExceptionally(new KawkabException(e));
+				issueNext();
+			}
+		}
+
+		/**
+		 * Sends the request again after the delay. The pending requests wait to keep the order.
+		 *
+		 * @return false if the client is shut down
+		 */
+		private boolean retry(Request<?> req, long delayMs) {
+			try {
+				retries.schedule(() -> issue(req), delayMs, TimeUnit.MILLISECONDS);
+				return true;
+			} catch (RejectedExecutionException e) {
+				return false;
+			}
+		}
+
+		private void issueNext() {
+			Request<?> next;
+			synchronized (this) {
+				next = pending.pollFirst();
+				if (next == null) {
+					busy = false;
+					return;
+				}
+			}
+
+			issue(next);
+		}
+	}
+
+	private static class Request<T> {
+		private final Call<T> call;
+		private final CompletableFuture<T> future = new CompletableFuture<>();
+		private int tries;
+
+		private Request(Call<T> call) {
+			this.call = call;
+		}
+	}
+}
@@ -1,10 +1,13 @@
 package kawkab.fs.core.services.thrift;
 
+import kawkab.fs.api.FileStat;
 import kawkab.fs.core.Filesystem;
+import kawkab.fs.core.exceptions.BackpressureException;
 import kawkab.fs.core.exceptions.KawkabException;
 import kawkab.fs.core.exceptions.OutOfMemoryException;
 import org.apache.thrift.TException;
 import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
 import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.transport.TFastFramedTransport;
 import org.apache.thrift.transport.TSocket;
@@ -26,12 +29,22 @@ public class FilesystemServiceClient {
 	 * @throws KawkabException
 	 */
 	public FilesystemServiceClient(String serverIP, int port) throws KawkabException {
+		this(serverIP, port, false);
+	}
+
+	/**
+	 * @param serverIP IP of the server to connect
+	 * @param port Filesystem service port
+	 * @param compactProtocol Use the compact protocol instead of the binary protocol. This must match the protocol of the server.
+	 * @throws KawkabException
+	 */
+	public FilesystemServiceClient(String serverIP, int port, boolean compactProtocol) throws KawkabException {
 		System.out.printf("[FSC] Connecting to %s:%d\n",serverIP,port);
 		try {
 			transport = new TFastFramedTransport(new TSocket(serverIP, port));
 			transport.open();
 
-			TProtocol protocol = new TBinaryProtocol(transport);
+			TProtocol protocol = compactProtocol ? new TCompactProtocol(transport) : new TBinaryProtocol(transport);
 			client = new FilesystemService.Client(protocol);
 		} catch (TException x) {
 			x.printStackTrace();
@@ -72,6 +85,30 @@ public class FilesystemServiceClient {
 		}
 	}
 
+	public List<String> list(String prefix, String startAfter, int maxEntries) throws KawkabException {
+		try {
+			return client.list(prefix, startAfter == null ? "" : startAfter, maxEntries);
+		} catch (TException e) {
+			throw new KawkabException(e);
+		}
+	}
+
+	public List<FileStat> bulkStat(String[] fnames) throws KawkabException {
+		List<TFileStat> tstats;
+		try {
+			tstats = client.bulkStat(Arrays.asList(fnames));
+		} catch (TException e) {
+			throw new KawkabException(e);
+		}
+
+		List<FileStat> stats = new ArrayList<>(tstats.size());
+		for (TFileStat ts : tstats) {
+			stats.add(new FileStat(ts.filename, ts.exists, ts.size, ts.recordSize));
+		}
+
+		return stats;
+	}
+
 	public ByteBuffer recordNum(int sessionID, long recNum, int recSize, boolean loadFromPrimary) throws KawkabException {
 		try {
 			return client.recordNum(sessionID, recNum, recSize, loadFromPrimary);
@@ -105,6 +142,8 @@ public class FilesystemServiceClient {
 	public int append(int sessionID, ByteBuffer buffer) throws KawkabException {
 		try {
 			return client.append(sessionID, buffer);
+		} catch (TBackpressureException e) {
+			throw new BackpressureException(e.getMessage(), e.getRetryAfterMs());
 		} catch (TException e) {
 			throw new KawkabException(e);
 		}
@@ -113,6 +152,8 @@ public class FilesystemServiceClient {
 	public int append(int sessionID, ByteBuffer srcBuf, int recSize) throws KawkabException {
 		try {
 			return client.appendRecord(sessionID, srcBuf, recSize);
+		} catch (TBackpressureException e) {
+			throw new BackpressureException(e.getMessage(), e.getRetryAfterMs());
 		} catch (TException e) {
 			throw new KawkabException(e);
 		}
@@ -124,7 +165,14 @@ public class FilesystemServiceClient {
 			try {
 				return client.appendRecords(buffer);
 			} catch (TOutOfMemoryException e) {
+				// The batch cannot be sent again if some of its records are appended; the caller removes them first
+				if (e.isSetAppendedRecords() && !e.getAppendedRecords().isEmpty())
+					throw new OutOfMemoryException(e.getMessage(), e.getAppendedRecords());
 				// Retry if the memory was full
+			} catch (TBackpressureException e) {
+				if (tries+1 >= MAX_TRIES)
+					throw new BackpressureException(e.getMessage(), e.getRetryAfterMs());
+				backoff(e.getRetryAfterMs() << (tries-1));
 			} catch (TException e) {
 				throw new KawkabException(e);
 			}
@@ -133,6 +181,30 @@ public class FilesystemServiceClient {
 		throw new OutOfMemoryException(String.format("Request failed after %d tries", tries));
 	}
 
+	private void backoff(long ms) throws KawkabException {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			throw new KawkabException(e);
+		}
+	}
+
+	public int attachSharedRing(String path) throws KawkabException {
+		try {
+			return client.attachSharedRing(path);
+		} catch (TException e) {
+			throw new KawkabException(e);
+		}
+	}
+
+	public void detachSharedRing(int ringID) throws KawkabException {
+		try {
+			client.detachSharedRing(ringID);
+		} catch (TException e) {
+			throw new KawkabException(e);
+		}
+	}
+
 	public int appendNoops(ByteBuffer buffer) throws OutOfMemoryException, KawkabException {
 		int tries = 0;
 		while(++tries < MAX_TRIES) {
@@ -156,6 +228,10 @@ public class FilesystemServiceClient {
 				return client.appendRecordBuffered(sessionID, srcBuf, recSize);
 			} catch (TOutOfMemoryException e) {
 				// Retry if the memory was full
+			} catch (TBackpressureException e) {
+				if (tries+1 >= MAX_TRIES)
+					throw new BackpressureException(e.getMessage(), e.getRetryAfterMs());
+				backoff(e.getRetryAfterMs() << (tries-1));
 			} catch (TException e) {
 				throw new KawkabException(e);
 			}
@@ -167,6 +243,8 @@ public class FilesystemServiceClient {
 	public int appendBatched(int sessionID, List<ByteBuffer> srcBufs, int recSize) throws KawkabException {
 		try {
 			return client.appendRecordBatched(sessionID, srcBufs, recSize);
+		} catch (TBackpressureException e) {
+			throw new BackpressureException(e.getMessage(), e.getRetryAfterMs());
 		} catch (TException e) {
 			throw new KawkabException(e);
 		}
@@ -1,12 +1,16 @@
 package kawkab.fs.core.services.thrift;
 
 import kawkab.fs.api.FileOptions;
+import kawkab.fs.api.FileStat;
 import kawkab.fs.api.Record;
 import kawkab.fs.commons.Configuration;
 import kawkab.fs.core.FileHandle;
 import kawkab.fs.core.Filesystem;
+import kawkab.fs.core.FlowControl;
+import kawkab.fs.core.exceptions.BackpressureException;
 import kawkab.fs.core.exceptions.KawkabException;
 import kawkab.fs.core.exceptions.OutOfMemoryException;
+import kawkab.fs.core.exceptions.ReplicationException;
 import kawkab.fs.core.services.thrift.FilesystemService.Iface;
 import kawkab.fs.records.SampleRecord;
 import org.apache.thrift.TException;
@@ -14,6 +18,8 @@ import org.apache.thrift.TException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -23,14 +29,17 @@ public class FilesystemServiceImpl implements Iface {
 	private Filesystem fs;
 	private Map<Integer, Session> sessions;			// Opened files from the clients
 	private AtomicInteger counter = new AtomicInteger();	//To assigns unique sessionsIDs for each file open request from the clients
+	private SharedRingIngest sharedRings;			// Appends from the clients on the same host
 
 	private static Configuration conf = Configuration.instance();
 
 	private static ThreadLocal<ByteBuffer> thrLocalBuf = ThreadLocal.withInitial(() -> ByteBuffer.allocate(conf.maxBufferLen));
+	private static ThreadLocal<ByteBuffer> thrLocalRunsBuf = ThreadLocal.withInitial(() -> ByteBuffer.allocate(conf.maxBufferLen)); // For demultiplexing appendRecords
 
 	public FilesystemServiceImpl(Filesystem fs) {
 		this.fs = fs;
 		sessions = new ConcurrentHashMap<>();
+		sharedRings = new SharedRingIngest(this);
 	}
 
 	@Override
@@ -67,9 +76,68 @@ public class FilesystemServiceImpl implements Iface {
 
 	@Override
 	public List<Integer> bulkOpen(List<TFileOpenRequest> fopenReqs) throws TRequestFailedException, TException {
-		List<Integer> retVals = new ArrayList<>(fopenReqs.size());
-		for (TFileOpenRequest req : fopenReqs) {
-			retVals.add(open(req.filename, req.fileMode, req.recordSize));
+		int count = fopenReqs.size();
+		String[] filenames = new String[count];
+		Filesystem.FileMode[] modes = new Filesystem.FileMode[count];
+		FileOptions[] opts = new FileOptions[count];
+		for (int i=0; i<count; i++) {
+			TFileOpenRequest req = fopenReqs.get(i);
+			filenames[i] = req.filename;
+			modes[i] = convertFileMode(req.fileMode);
+			opts[i] = new FileOptions(req.recordSize);
+		}
+
+		FileHandle[] handles;
+		try {
+			handles = fs.bulkOpen(filenames, modes, opts);
+		} catch (Exception | AssertionError e) {
+			e.printStackTrace();
+			throw new TRequestFailedException(e.getMessage());
+		}
+
+		List<Integer> retVals = new ArrayList<>(count);
+		for (FileHandle handle : handles) {
+			int sessionID = counter.incrementAndGet();
+			int recSize;
+			try {
+				recSize = handle.recordSize();
+			} catch (OutOfMemoryException e) {
+				throw new TOutOfMemoryException(e.getMessage());
+			} catch (Exception | AssertionError e) {
+				e.printStackTrace();
+				throw new TRequestFailedException(e.getMessage());
+			}
+
+			sessions.put(sessionID, new Session(sessionID, recSize, handle));
+			retVals.add(sessionID);
+		}
+
+		return retVals;
+	}
+
+	@Override
+	public List<String> list(String prefix, String startAfter, int maxEntries) throws TRequestFailedException {
+		try {
+			return fs.list(prefix, startAfter.isEmpty() ? null : startAfter, maxEntries);
+		} catch (Exception | AssertionError e) {
+			e.printStackTrace();
+			throw new TRequestFailedException(e.getMessage());
+		}
+	}
+
+	@Override
+	public List<TFileStat> bulkStat(List<String> filenames) throws TRequestFailedException {
+		FileStat[] stats;
+		try {
+			stats = fs.stat(filenames.toArray(new String[0]));
+		} catch (Exception | AssertionError e) {
+			e.printStackTrace();
+			throw new TRequestFailedException(e.getMessage());
+		}
+
+		List<TFileStat> retVals = new ArrayList<>(stats.length);
+		for (FileStat stat : stats) {
+			retVals.add(new TFileStat(stat.filename(), stat.exists(), stat.size(), stat.recordSize()));
 		}
 
 		return retVals;
@@ -169,7 +237,7 @@ public class FilesystemServiceImpl implements Iface {
 	}
 
 	@Override
-	public int appendRecord(int sessionID, ByteBuffer data, int recSize) throws TRequestFailedException, TInvalidSessionException, TOutOfMemoryException {
+	public int appendRecord(int sessionID, ByteBuffer data, int recSize) throws TRequestFailedException, TInvalidSessionException, TOutOfMemoryException, TBackpressureException {
 		Session s = sessions.get(sessionID);
 		if (s == null) {
 			throw new TInvalidSessionException("Session ID is invalid or the session does not exist.");
@@ -178,6 +246,8 @@ public class FilesystemServiceImpl implements Iface {
 
 		try {
 			return fh.append(data, recSize);
+		} catch (BackpressureException e) {
+			throw new TBackpressureException(e.getMessage(), e.retryAfterMs());
 		} catch (OutOfMemoryException e) {
 			//e.getMessage();
 			throw new TOutOfMemoryException(e.getMessage());
@@ -188,7 +258,7 @@ public class FilesystemServiceImpl implements Iface {
 	}
 
 	@Override
-	public int appendRecordBuffered(int sessionID, ByteBuffer srcBuf, int recSize) throws TOutOfMemoryException, TRequestFailedException, TInvalidSessionException {
+	public int appendRecordBuffered(int sessionID, ByteBuffer srcBuf, int recSize) throws TOutOfMemoryException, TRequestFailedException, TInvalidSessionException, TBackpressureException {
 		Session s = sessions.get(sessionID);
 		if (s == null) {
 			throw new TInvalidSessionException("Session ID is invalid or the session does not exist.");
@@ -197,6 +267,8 @@ public class FilesystemServiceImpl implements Iface {
 
 		try {
 			return fh.append(srcBuf, recSize);
+		} catch (BackpressureException e) {
+			throw new TBackpressureException(e.getMessage(), e.retryAfterMs());
 		} catch (OutOfMemoryException e) {
 			//e.getMessage();
 			throw new TOutOfMemoryException(e.getMessage());
@@ -232,42 +304,171 @@ public class FilesystemServiceImpl implements Iface {
 	 * @throws TException
 	 */
 	@Override
-	public int appendRecords(ByteBuffer data) throws TRequestFailedException, TInvalidSessionException, TOutOfMemoryException, TException {
-		int pos = data.position();
-		int limit = data.limit();
-
+	public int appendRecords(ByteBuffer data) throws TRequestFailedException, TInvalidSessionException, TOutOfMemoryException, TBackpressureException, TException {
 		assert data.remaining() >= Integer.BYTES;
 
-		int cnt = 0;
+		// The batch contains {sessionID, record} pairs of multiple files. First, we group the records of each session
+		// into a contiguous run, keeping the order of the records within each session. Then, we append each run with
+		// a single append call, which amortizes the FileHandle locking and the timer queue updates over the run.
+
+		int initPos = data.position();
+		int limit = data.limit();
+
+		Map<Integer, Run> runs = new LinkedHashMap<>(); // sessionID -> run; in the order of first appearance
+		int pos = initPos;
 		while(pos < limit) {
-			int sessionID = data.getInt();
+			int sessionID = data.getInt(pos);
+			Run run = runs.get(sessionID);
+			if (run == null) {
+				Session s = sessions.get(sessionID);
+				if (s == null) {
+					throw new TInvalidSessionException("Session ID is invalid or the session does not exist.");
+				}
+				run = new Run(s);
+				runs.put(sessionID, run);
+			}
 
-			Session s = sessions.get(sessionID);
-			if (s == null) {
-				throw new TInvalidSessionException("Session ID is invalid or the session does not exist.");
+			pos += Integer.BYTES + run.session.recSize;
+			if (pos > limit) {
+				throw new TRequestFailedException("Incomplete record in the batch for session " + sessionID);
 			}
-			FileHandle fh = s.fh;
+			run.count++;
+		}
 
-			pos += Integer.BYTES + s.recSize;
-			data.limit(pos);
+		int totalBytes = 0;
+		for (Run run : runs.values()) {
+			run.start = totalBytes;
+			totalBytes += run.count * run.session.recSize;
+		}
 
-			try {
-				fh.append(data, s.recSize);
-			} catch (OutOfMemoryException e) {
-				//e.getMessage();
-				throw new TOutOfMemoryException(e.getMessage());
-			} catch (Exception | AssertionError e) {
-				e.printStackTrace();
-				throw new TRequestFailedException(e.getMessage());
+		ByteBuffer runsBuf = thrLocalRunsBuf.get();
+		if (runsBuf.capacity() < totalBytes) {
+			runsBuf = ByteBuffer.allocate(totalBytes);
+			thrLocalRunsBuf.set(runsBuf);
+		}
+		runsBuf.clear();
+
+		ByteBuffer src = data.duplicate();
+		pos = initPos;
+		while(pos < limit) {
+			Run run = runs.get(data.getInt(pos));
+			int recSize = run.session.recSize;
+			pos += Integer.BYTES;
+
+			src.limit(pos + recSize).position(pos);
+			runsBuf.position(run.start + run.filled);
+			runsBuf.put(src);
+
+			run.filled += recSize;
+			pos += recSize;
+		}
+
+		int cnt = 0;
+		Run last = null; // The last run that has appended records
+		TOutOfMemoryException oom = null;
+		beginBatch();
+		try {
+			for (Run run : runs.values()) {
+				runsBuf.limit(run.start + run.filled).position(run.start);
+				last = run;
+
+				try {
+					run.session.fh.append(runsBuf, run.session.recSize, false);
+				} catch (OutOfMemoryException e) {
+					oom = new TOutOfMemoryException(e.getMessage());
+					oom.setAppendedRecords(appendedRecords(runs, run, runsBuf));
+					break;
+				} catch (Exception | AssertionError e) {
+					e.printStackTrace();
+					throw new TRequestFailedException(e.getMessage());
+				}
+
+				cnt += run.count;
 			}
+		} finally {
+			FlowControl.instance().endBatch();
+		}
 
-			data.limit(limit);
-			cnt++;
+		// The appended records, including those before an out-of-memory failure, are acknowledged after the peers
+		// have them
+		for (Run run : runs.values()) {
+			awaitReplicated(run.session.fh);
+			if (run == last)
+				break;
 		}
 
+		if (oom != null)
+			throw oom;
+
+		data.position(limit);
+
 		return cnt;
 	}
 
+	/**
+	 * Waits until the peers acknowledge the records that a batch has appended through the handle. The appends of a
+	 * batch do not wait for the peers, and the batch waits once after its appends without holding the handle's lock.
+	 */
+	private static void awaitReplicated(FileHandle fh) throws TRequestFailedException {
+		try {
+			fh.awaitReplicated();
+		} catch (ReplicationException | InterruptedException e) {
+			throw new TRequestFailedException(e.getMessage());
+		}
+	}
+
+	/**
+	 * @param failed The run whose append has failed
+	 * @param runsBuf The demultiplexing buffer, whose position is after the last appended record of the failed run
+	 * @return sessionID -> the number of the leading records of the session that are appended in the batch
+	 */
+	private static Map<Integer, Integer> appendedRecords(Map<Integer, Run> runs, Run failed, ByteBuffer runsBuf) {
+		Map<Integer, Integer> appended = new HashMap<>();
+		for (Run run : runs.values()) {
+			int count = run == failed ? (runsBuf.position() - run.start) / run.session.recSize : run.count;
+			if (count > 0)
+				appended.put(run.session.id, count);
+			if (run == failed)
+				break;
+		}
+		return appended;
+	}
+
+	/**
+	 * @return The record size of the session
+	 * @throws IllegalArgumentException if the session does not exist
+	 */
+	int sessionRecordSize(int sessionID) {
+		Session s = sessions.get(sessionID);
+		if (s == null)
+			throw new IllegalArgumentException("Session " + sessionID + " does not exist");
+		return s.recSize;
+	}
+
+	@Override
+	public int attachSharedRing(String path) throws TRequestFailedException {
+		try {
+			return sharedRings.attach(path);
+		} catch (Exception | AssertionError e) {
+			e.printStackTrace();
+			throw new TRequestFailedException(e.getMessage());
+		}
+	}
+
+	@Override
+	public void detachSharedRing(int ringID) throws TRequestFailedException {
+		try {
+			sharedRings.detach(ringID);
+		} catch (Exception | AssertionError e) {
+			e.printStackTrace();
+			throw new TRequestFailedException(e.getMessage());
+		}
+	}
+
+	void shutdown() {
+		sharedRings.shutdown();
+	}
+
 	@Override
 	public int appendNoops(ByteBuffer data) throws TRequestFailedException, TInvalidSessionException, TOutOfMemoryException, TException {
 		ByteBuffer buffer = thrLocalBuf.get();
@@ -277,7 +478,7 @@ public class FilesystemServiceImpl implements Iface {
 	}
 
 	@Override
-	public int appendRecordBatched(int sessionID, List<ByteBuffer> data, int recSize) throws TRequestFailedException, TInvalidSessionException, TOutOfMemoryException {
+	public int appendRecordBatched(int sessionID, List<ByteBuffer> data, int recSize) throws TRequestFailedException, TInvalidSessionException, TOutOfMemoryException, TBackpressureException {
 		Session s = sessions.get(sessionID);
 		if (s == null) {
 			throw new TInvalidSessionException("Session ID is invalid or the session does not exist.");
@@ -285,21 +486,48 @@ public class FilesystemServiceImpl implements Iface {
 		FileHandle fh = s.fh;
 
 		int cnt = 0;
-		for(ByteBuffer srcBuf : data) {
-			//data.position(offset);
-			try {
-				cnt += fh.append(srcBuf, recSize);
-			} catch (OutOfMemoryException e) {
-				//e.getMessage();
-				throw new TOutOfMemoryException(e.getMessage());
-			} catch (Exception | AssertionError e) {
-				e.printStackTrace();
-				throw new TRequestFailedException(e.getMessage());
+		TOutOfMemoryException oom = null;
+		beginBatch();
+		try {
+			for(ByteBuffer srcBuf : data) {
+				//data.position(offset);
+				try {
+					cnt += fh.append(srcBuf, recSize, false);
+				} catch (OutOfMemoryException e) {
+					//e.getMessage();
+					oom = new TOutOfMemoryException(e.getMessage());
+					break;
+				} catch (Exception | AssertionError e) {
+					e.printStackTrace();
+					throw new TRequestFailedException(e.getMessage());
+				}
 			}
+		} finally {
+			FlowControl.instance().endBatch();
 		}
+
+		awaitReplicated(fh);
+
+		if (oom != null)
+			throw oom;
+
 		return cnt;
 	}
 
+	/**
+	 * Admits all the appends of a request together, so that a rejected request has not appended any of its records
+	 * and the client can retry the whole request. The caller must call FlowControl.endBatch() after the appends.
+	 */
+	private static void beginBatch() throws TBackpressureException, TRequestFailedException {
+		try {
+			FlowControl.instance().beginBatch();
+		} catch (BackpressureException e) {
+			throw new TBackpressureException(e.getMessage(), e.retryAfterMs());
+		} catch (InterruptedException e) {
+			throw new TRequestFailedException(e.getMessage());
+		}
+	}
+
 	@Override
 	public ByteBuffer read(int sessionID, long offset, int length, boolean loadFromPrimary) throws TRequestFailedException, TInvalidSessionException, TInvalidArgumentException, TOutOfMemoryException {
 		Session s = sessions.get(sessionID);
@@ -341,7 +569,7 @@ public class FilesystemServiceImpl implements Iface {
 	}
 
 	@Override
-	public int append(int sessionID, ByteBuffer srcBuf) throws TRequestFailedException, TInvalidSessionException, TOutOfMemoryException {
+	public int append(int sessionID, ByteBuffer srcBuf) throws TRequestFailedException, TInvalidSessionException, TOutOfMemoryException, TBackpressureException {
 		Session s = sessions.get(sessionID);
 		if (s == null) {
 			throw new TInvalidSessionException("Session ID is invalid or the session does not exist.");
@@ -352,6 +580,8 @@ public class FilesystemServiceImpl implements Iface {
 		int length = srcBuf.remaining();
 		try {
 			return fh.append(srcBuf.array(), offset, length);
+		} catch (BackpressureException e) {
+			throw new TBackpressureException(e.getMessage(), e.retryAfterMs());
 		} catch (OutOfMemoryException e) {
 			//e.getMessage();
 			throw new TOutOfMemoryException(e.getMessage());
@@ -463,6 +693,20 @@ public class FilesystemServiceImpl implements Iface {
 		}
 	}
 
+	/**
+	 * Records of a session in a batch of appendRecords
+	 */
+	private static class Run {
+		private final Session session;
+		private int count;	// Number of records of the session in the batch
+		private int start;	// Offset of the run in the demultiplexing buffer
+		private int filled;	// Number of bytes copied in the run
+
+		private Run(Session session) {
+			this.session = session;
+		}
+	}
+
 	private class Session {
 		private final int id;
 		private final int recSize;
@@ -5,13 +5,17 @@ import kawkab.fs.core.Filesystem;
 import kawkab.fs.core.exceptions.KawkabException;
 import kawkab.fs.core.services.thrift.FilesystemService.Processor;
 import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
 import org.apache.thrift.server.THsHaServer;
 import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
 import org.apache.thrift.server.TThreadedSelectorServer;
 import org.apache.thrift.transport.TFastFramedTransport;
-import org.apache.thrift.transport.TFramedTransport;
 import org.apache.thrift.transport.TNonblockingServerSocket;
 import org.apache.thrift.transport.TNonblockingServerTransport;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TServerTransport;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -24,31 +28,56 @@ public class FilesystemServiceServer {
 	private TServer server;
 	private boolean started = false;
 	private ExecutorService executor;
+	private FilesystemServiceImpl handler;
 
 	public FilesystemServiceServer(Filesystem fs) throws KawkabException {
-		int minThreads = 8;
-		int maxThreads = 1000;
-		int ioThreads = 8;
+		Configuration conf = Configuration.instance();
+
+		handler = new FilesystemServiceImpl(fs);
+
+		switch (conf.fsServerType) {
+			case "hsha":
+				server = hsHaServer(handler, conf.fsServerWorkerThreads);
+				break;
+			case "threadpool":
+				server = threadPoolServer(handler, conf.fsServerWorkerThreads, conf.fsServerMaxWorkerThreads);
+				break;
+			case "selector":
+			default:
+				server = threadedSelectorServer(handler, conf.fsServerWorkerThreads, conf.fsServerSelectorThreads);
+		}
+	}
 
-		FilesystemService.Iface handler = new FilesystemServiceImpl(fs);
+	/**
+	 * @return The protocol factory selected in the configuration. The clients must use the same protocol.
+	 */
+	private TProtocolFactory protocolFactory() {
+		Configuration conf = Configuration.instance();
+		if (conf.fsServerProtocol.equals("compact"))
+			return new TCompactProtocol.Factory(conf.fsServerMaxFrameLen, conf.fsServerMaxFrameLen);
+
+		return new TBinaryProtocol.Factory(false, true, conf.fsServerMaxFrameLen, conf.fsServerMaxFrameLen);
+	}
 
-		//server = hsHaServer(handler, minThreads, maxThreads);
-		server = threadedSelectorServer(handler, minThreads, ioThreads);
-		//server = threadPoolServer(handler, minThreads, maxThreads);
+	private TFastFramedTransport.Factory transportFactory() {
+		Configuration conf = Configuration.instance();
+		// Each connection starts with a small read/write buffer that grows up to the largest frame of the connection,
+		// rather than allocating the maximum request size for every connection upfront.
+		return new TFastFramedTransport.Factory(TFastFramedTransport.DEFAULT_BUF_CAPACITY, conf.fsServerMaxFrameLen);
 	}
 
 	private TServer threadPoolServer(FilesystemService.Iface handler, int minThreads, int maxThreads) throws KawkabException {
-		System.out.printf("[FSI] TThreadPoolServer: minThreads=%d, maxThreads=%d\n", minThreads, maxThreads);
+		System.out.printf("[FSI] TThreadPoolServer: minThreads=%d, maxThreads=%d, protocol=%s\n", minThreads, maxThreads,
+				Configuration.instance().fsServerProtocol);
 
 		Configuration conf = Configuration.instance();
 		try {
-			// For transmitting data to wire
-			TNonblockingServerTransport transport = new TNonblockingServerSocket(conf.fsServerListenPort);
+			// Blocking server socket; each connection is served by a dedicated thread from the pool
+			TServerTransport transport = new TServerSocket(conf.fsServerListenPort);
 
-			// Uses Java's ThreadPool to create concurrent worker threads
-			return new THsHaServer(new THsHaServer.Args(transport)
-					.transportFactory(new TFastFramedTransport.Factory())
-					.protocolFactory(new TBinaryProtocol.Factory())
+			return new TThreadPoolServer(new TThreadPoolServer.Args(transport)
+					.transportFactory(transportFactory())
+					.protocolFactory(protocolFactory())
 					.processor(new Processor<>(handler))
 					.minWorkerThreads(minThreads)
 					.maxWorkerThreads(maxThreads));
@@ -59,40 +88,47 @@ public class FilesystemServiceServer {
 	}
 
 	private TServer threadedSelectorServer(FilesystemService.Iface handler, int workerThreads, int ioThreads) throws KawkabException {
-		System.out.printf("[FSI] ThreadedSelectorServer: workerThreads=%d, ioThreads-%d\n", workerThreads, ioThreads);
+		System.out.printf("[FSI] ThreadedSelectorServer: workerThreads=%d, ioThreads-%d, protocol=%s\n", workerThreads, ioThreads,
+				Configuration.instance().fsServerProtocol);
 		Configuration conf = Configuration.instance();
 		try {
 			// For transmitting data to wire
 			TNonblockingServerTransport transport = new TNonblockingServerSocket(conf.fsServerListenPort);
 
 			// Uses Java's ThreadPool to create concurrent worker threads
-			return new TThreadedSelectorServer(new TThreadedSelectorServer.Args(transport)
-					.transportFactory(new TFastFramedTransport.Factory())
-					.protocolFactory(new TBinaryProtocol.Factory())
+			TThreadedSelectorServer.Args args = new TThreadedSelectorServer.Args(transport)
+					.transportFactory(transportFactory())
+					.protocolFactory(protocolFactory())
 					.processor(new Processor<>(handler))
 
 					.selectorThreads(ioThreads)
-					.workerThreads(workerThreads));
+					.workerThreads(workerThreads);
+			args.maxReadBufferBytes = conf.fsServerMaxFrameLen;
+
+			return new TThreadedSelectorServer(args);
 		} catch(Exception e) {
 			e.printStackTrace();
 			throw new KawkabException(e);
 		}
 	}
 
-	private TServer hsHaServer(FilesystemService.Iface handler, int minThreads, int maxThreads) throws KawkabException {
-		System.out.printf("[FSI] HsHaServer: minThreads=%d, maxThreads=%d\n", minThreads, maxThreads);
+	private TServer hsHaServer(FilesystemService.Iface handler, int workerThreads) throws KawkabException {
+		System.out.printf("[FSI] HsHaServer: workerThreads=%d, protocol=%s\n", workerThreads, Configuration.instance().fsServerProtocol);
 		Configuration conf = Configuration.instance();
 		try {
 			// For transmitting data to wire
 			TNonblockingServerTransport transport = new TNonblockingServerSocket(conf.fsServerListenPort);
 
 			// Uses Java's ThreadPool to create concurrent worker threads
-			return new THsHaServer(new THsHaServer.Args(transport)
-					.transportFactory(new TFastFramedTransport.Factory())
-					.protocolFactory(new TBinaryProtocol.Factory())
+			THsHaServer.Args args = new THsHaServer.Args(transport)
+					.transportFactory(transportFactory())
+					.protocolFactory(protocolFactory())
 					.processor(new Processor<>(handler))
-					.minWorkerThreads(minThreads)
-					.maxWorkerThreads(maxThreads));
+					.minWorkerThreads(workerThreads)
+					.maxWorkerThreads(workerThreads);
+			args.maxReadBufferBytes = conf.fsServerMaxFrameLen;
+
+			return new THsHaServer(args);
 		} catch(Exception e) {
 			e.printStackTrace();
 			throw new KawkabException(e);
@@ -119,6 +155,8 @@ public class FilesystemServiceServer {
 			server.stop();
 		}
 
+		handler.shutdown();
+
 		executor.shutdown();
 		started = false;
 	}
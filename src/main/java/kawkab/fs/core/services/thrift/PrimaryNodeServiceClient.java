@@ -1,12 +1,14 @@
 package kawkab.fs.core.services.thrift;
 
 import kawkab.fs.commons.Configuration;
+import kawkab.fs.core.BlockID.BlockType;
 import kawkab.fs.core.DataSegmentID;
 import kawkab.fs.core.IndexNodeID;
 import kawkab.fs.core.InodesBlockID;
 import kawkab.fs.core.NodesRegister;
 import kawkab.fs.core.exceptions.FileNotExistException;
 import kawkab.fs.core.exceptions.KawkabException;
+import kawkab.fs.core.metrics.Metrics;
 import kawkab.fs.core.services.thrift.PrimaryNodeService.Client;
 import org.apache.thrift.TException;
 import org.apache.thrift.protocol.TBinaryProtocol;
@@ -23,6 +25,7 @@ public class PrimaryNodeServiceClient {
 	private Map<Integer, TTransport> transports;
 	private static PrimaryNodeServiceClient instance;
 	private static NodesRegister nodesRegister = NodesRegister.instance();
+	private static final Metrics metrics = Metrics.instance();
 
 	private PrimaryNodeServiceClient() {
 		clients = new HashMap<>();
@@ -40,6 +43,7 @@ public class PrimaryNodeServiceClient {
 	public ByteBuffer getSegment(DataSegmentID id, final int offset) throws FileNotExistException, KawkabException {
 		//System.out.println("[PC] getSegment: " + id);
 
+		long start = System.nanoTime();
 		try {
 			return client(id.primaryNodeID()).getSegment(id.inumber(), id.blockInFile(), id.segmentInBlock(), id.recordSize(), offset);
 		} catch (kawkab.fs.core.services.thrift.TFileNotExistException e) {
@@ -47,30 +51,38 @@ public class PrimaryNodeServiceClient {
 		} catch (TException e) {
 			e.printStackTrace();
 			throw new KawkabException(e);
+		} finally {
+			metrics.primaryFetched(BlockType.DATA_SEGMENT, start);
 		}
 	}
 
 	public ByteBuffer getInodesBlock(InodesBlockID id) throws FileNotExistException, KawkabException{
 		//System.out.println("[PC] getInodesBlock: " + id);
 
+		long start = System.nanoTime();
 		try {
 			return client(id.primaryNodeID()).getInodesBlock(id.blockIndex());
 		} catch (kawkab.fs.core.services.thrift.TFileNotExistException e) {
 			throw new FileNotExistException();
 		} catch (TException e) {
 			throw new KawkabException(e);
+		} finally {
+			metrics.primaryFetched(BlockType.INODES_BLOCK, start);
 		}
 	}
 
 	public ByteBuffer getIndexNode(IndexNodeID id, int fromTsIdx) throws FileNotExistException, KawkabException {
 		//System.out.println("[PC] getIndexNode: " + id);
 
+		long start = System.nanoTime();
 		try {
 			return client(id.primaryNodeID()).getIndexNode(id.inumber(), id.numNodeInIndexBlock(), fromTsIdx);
 		} catch (kawkab.fs.core.services.thrift.TFileNotExistException e) {
 			throw new FileNotExistException();
 		} catch (TException e) {
 			throw new KawkabException(e);
+		} finally {
+			metrics.primaryFetched(BlockType.INDEX_BLOCK, start);
 		}
 	}
 
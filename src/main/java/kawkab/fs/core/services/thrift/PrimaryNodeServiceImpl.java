@@ -9,11 +9,14 @@ import org.apache.thrift.TException;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 
 public class PrimaryNodeServiceImpl implements PrimaryNodeService.Iface {
 	private static Cache cache = Cache.instance();
+	private static ReplicaStore replicaStore = ReplicaStore.instance();
+	private static Replicator replicator = Replicator.instance();
 	private static int segmentSizeBytes = Configuration.instance().segmentSizeBytes;
 	//private static int inodesBlockSizeBytes = Configuration.instance().inodesBlockSizeBytes;
 	//private static int indexNodeSizeBytes = Configuration.instance().indexNodeSizeBytes;
@@ -36,15 +39,13 @@ public class PrimaryNodeServiceImpl implements PrimaryNodeService.Iface {
 	public ByteBuffer getSegment(long inumber, long blockInFile, int segmentInBlock, int recordSize, int offset) throws TFileNotExistException, TException {
 		segLog.start();
 
-		DataSegmentID id = new DataSegmentID(inumber, blockInFile, segmentInBlock, recordSize);
-
 		ByteBuffer buffer = buffers.poll();
 		if (buffer == null) buffer = ByteBuffer.allocate(segmentSizeBytes);
 		buffer.clear();
 
 		DataSegment ds = null;
 		try {
-			ds = (DataSegment)cache.acquireBlock(id);
+			ds = (DataSegment)cache.acquireSegment(inumber, blockInFile, segmentInBlock, recordSize);
 			ds.storeTo(buffer, offset);
 			buffer.flip();
 			return buffer;
@@ -54,7 +55,7 @@ public class PrimaryNodeServiceImpl implements PrimaryNodeService.Iface {
 		} finally {
 			if (ds != null) {
 				try {
-					cache.releaseBlock(id);
+					cache.releaseBlock(ds.id());
 				} catch (KawkabException e) {
 					e.printStackTrace();
 				}
@@ -130,6 +131,17 @@ public class PrimaryNodeServiceImpl implements PrimaryNodeService.Iface {
 		}
 	}
 
+	@Override
+	public void replicate(int fromNode, long epoch, long firstSeq, long lastSeq, boolean resync,
+						  List<TReplicaRange> ranges, List<TReplicaBlock> released) throws TException {
+		replicaStore.apply(fromNode, epoch, firstSeq, lastSeq, resync, ranges, released);
+	}
+
+	@Override
+	public void replicaAcked(int fromNode, long epoch, long ackedSeq, boolean successful) throws TException {
+		replicator.acked(fromNode, epoch, ackedSeq, successful);
+	}
+
 	public void printStats() {
 		segLog.printStats();
 	}
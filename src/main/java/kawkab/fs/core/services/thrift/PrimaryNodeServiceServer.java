@@ -34,6 +34,14 @@ public class PrimaryNodeServiceServer {
 		//server = threadPoolServer(handler, workerThreads, maxThreads);
 	}
 
+	/**
+	 * The buffers of a connection start small and grow with the frames of the connection. The maximum frame is the
+	 * Thrift default because the batches of the replication streams are larger than maxBufferLen.
+	 */
+	private TFastFramedTransport.Factory transportFactory() {
+		return new TFastFramedTransport.Factory(TFastFramedTransport.DEFAULT_BUF_CAPACITY, TFastFramedTransport.DEFAULT_MAX_LENGTH);
+	}
+
 	private TServer threadPoolServer(PrimaryNodeService.Iface handler, int minThreads, int maxThreads) throws KawkabException {
 		System.out.printf("[PSS] TThreadPoolServer: minThreads=%d, maxThreads=%d\n", minThreads, maxThreads);
 		Configuration conf = Configuration.instance();
@@ -43,7 +51,7 @@ public class PrimaryNodeServiceServer {
 
 			// Uses Java's ThreadPool to create concurrent worker threads
 			return new THsHaServer(new THsHaServer.Args(transport)
-					.transportFactory(new TFastFramedTransport.Factory(conf.maxBufferLen))
+					.transportFactory(transportFactory())
 					.protocolFactory(new TBinaryProtocol.Factory())
 					.processor(new Processor<>(handler))
 					.minWorkerThreads(minThreads)
@@ -64,7 +72,7 @@ public class PrimaryNodeServiceServer {
 
 			// Uses Java's ThreadPool to create concurrent worker threads
 			return new TThreadedSelectorServer(new TThreadedSelectorServer.Args(transport)
-					.transportFactory(new TFastFramedTransport.Factory(conf.maxBufferLen))
+					.transportFactory(transportFactory())
 					.protocolFactory(new TBinaryProtocol.Factory())
 					.processor(new Processor<>(handler))
 
@@ -86,7 +94,7 @@ public class PrimaryNodeServiceServer {
 
 			// Uses Java's ThreadPool to create concurrent worker threads
 			return new THsHaServer(new THsHaServer.Args(transport)
-					.transportFactory(new TFastFramedTransport.Factory(conf.maxBufferLen))
+					.transportFactory(transportFactory())
 					.protocolFactory(new TBinaryProtocol.Factory())
 					.processor(new Processor<>(handler))
 					.minWorkerThreads(minThreads)
@@ -0,0 +1,176 @@
+package kawkab.fs.core.services.thrift;
+
+import kawkab.fs.commons.Configuration;
+import kawkab.fs.core.NodesRegister;
+import kawkab.fs.core.exceptions.KawkabException;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connections to the PrimaryNodeService of the other nodes for the replication streams and their acknowledgements.
+ * The connections are not shared with PrimaryNodeServiceClient so that the batches of a stream are not delayed by
+ * the block fetches. The calls are oneway, so a call returns when the request is written to the connection, and the
+ * requests on the same connection are processed in order.
+ *
+ * The acknowledgements are sent by a separate thread on separate connections. The PrimaryNodeService does not read
+ * the next requests of a connection while it applies a batch, so a batch that waited for the connection of this node's
+ * own stream could deadlock two nodes that replicate to each other when the streams fill their socket buffers. The
+ * thread sends the latest acknowledgement to each node, and the older ones are dropped.
+ *
+ * A connection is closed when a call fails, and it is opened again in the next call. The sockets time out after
+ * replicaAckTimeoutMs.
+ */
+public final class ReplicationClient {
+	private static ReplicationClient instance;
+	private static final NodesRegister nodesRegister = NodesRegister.instance();
+	private final Map<Integer, Connection> connections = new ConcurrentHashMap<>(); // The replication streams
+	private final Map<Integer, Connection> ackConnections = new ConcurrentHashMap<>(); // Used only by the ackSender
+	private final Map<Integer, Ack> unsentAcks = new LinkedHashMap<>(); // The latest ack to each node, guarded by itself
+	private final Thread ackSender;
+	private volatile boolean working = true;
+
+	private ReplicationClient() {
+		ackSender = new Thread(this::sendAcks, "ReplicaAckSender");
+		ackSender.setDaemon(true);
+		ackSender.start();
+	}
+
+	public static synchronized ReplicationClient instance() {
+		if (instance == null) {
+			instance = new ReplicationClient();
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Sends a batch of the replication stream of this node to the peer node
+	 */
+	public void replicate(int nodeID, int fromNode, long epoch, long firstSeq, long lastSeq, boolean resync,
+						  List<TReplicaRange> ranges, List<TReplicaBlock> released) throws KawkabException {
+		Connection conn = connections.computeIfAbsent(nodeID, Connection::new);
+		synchronized (conn) {
+			try {
+				conn.client().replicate(fromNode, epoch, firstSeq, lastSeq, resync, ranges, released);
+			} catch (TException e) {
+				conn.close();
+				throw new KawkabException(e);
+			}
+		}
+	}
+
+	/**
+	 * Queues the acknowledgement of the batches of the replication stream of the primary node up to ackedSeq. The
+	 * acknowledgement replaces the unsent acknowledgement to the node.
+	 */
+	public void replicaAcked(int nodeID, int fromNode, long epoch, long ackedSeq, boolean successful) {
+		synchronized (unsentAcks) {
+			unsentAcks.put(nodeID, new Ack(nodeID, fromNode, epoch, ackedSeq, successful));
+			unsentAcks.notifyAll();
+		}
+	}
+
+	private void sendAcks() {
+		while (working) {
+			List<Ack> acks;
+			synchronized (unsentAcks) {
+				try {
+					while (unsentAcks.isEmpty() && working) {
+						unsentAcks.wait();
+					}
+				} catch (InterruptedException e) {
+					continue;
+				}
+
+				acks = new ArrayList<>(unsentAcks.values());
+				unsentAcks.clear();
+			}
+
+			for (Ack ack : acks) {
+				Connection conn = ackConnections.computeIfAbsent(ack.nodeID, Connection::new);
+				try {
+					conn.client().replicaAcked(ack.fromNode, ack.epoch, ack.ackedSeq, ack.successful);
+				} catch (TException | KawkabException e) { // The primary node sends the batches again if the acknowledgement is lost
+					conn.close();
+					System.out.printf("[RC] Unable to acknowledge the replicas to node %d: %s\n", ack.nodeID, e.getMessage());
+				}
+			}
+		}
+	}
+
+	public void shutdown() {
+		working = false;
+		ackSender.interrupt();
+		try {
+			ackSender.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+
+		for (Connection conn : connections.values()) {
+			synchronized (conn) {
+				conn.close();
+			}
+		}
+
+		for (Connection conn : ackConnections.values()) {
+			conn.close();
+		}
+	}
+
+	private static final class Connection {
+		private final int nodeID;
+		private TTransport transport;
+		private PrimaryNodeService.Client client;
+
+		private Connection(int nodeID) {
+			this.nodeID = nodeID;
+		}
+
+		private PrimaryNodeService.Client client() throws KawkabException, TException {
+			if (client != null)
+				return client;
+
+			String ip = nodesRegister.getIP(nodeID);
+			Configuration conf = Configuration.instance();
+			int port = conf.primaryNodeServicePort;
+			System.out.printf("[RC] Connecting to %s:%d\n", ip, port);
+			transport = new TFramedTransport(new TSocket(ip, port, conf.replicaAckTimeoutMs));
+			transport.open();
+			client = new PrimaryNodeService.Client(new TBinaryProtocol(transport));
+			return client;
+		}
+
+		private void close() {
+			if (transport != null)
+				transport.close();
+			transport = null;
+			client = null;
+		}
+	}
+
+	private static final class Ack {
+		private final int nodeID;
+		private final int fromNode;
+		private final long epoch;
+		private final long ackedSeq;
+		private final boolean successful;
+
+		private Ack(int nodeID, int fromNode, long epoch, long ackedSeq, boolean successful) {
+			this.nodeID = nodeID;
+			this.fromNode = fromNode;
+			this.epoch = epoch;
+			this.ackedSeq = ackedSeq;
+			this.successful = successful;
+		}
+	}
+}
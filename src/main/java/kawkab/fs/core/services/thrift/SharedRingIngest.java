@@ -0,0 +1,292 @@
+package kawkab.fs.core.services.thrift;
+
+import kawkab.fs.commons.Configuration;
+import kawkab.fs.core.exceptions.KawkabException;
+import org.agrona.IoUtil;
+import org.agrona.MutableDirectBuffer;
+import org.agrona.concurrent.BackoffIdleStrategy;
+import org.agrona.concurrent.IdleStrategy;
+import org.agrona.concurrent.UnsafeBuffer;
+import org.agrona.concurrent.ringbuffer.OneToOneRingBuffer;
+import org.agrona.concurrent.ringbuffer.RingBuffer;
+import org.agrona.concurrent.ringbuffer.RingBufferDescriptor;
+import org.apache.thrift.TException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Same-host ingest path for the clients that run on the same machine as this node. A client creates a memory-mapped
+ * file that holds a header and a single-producer single-consumer ring buffer, and attaches it through the
+ * attachSharedRing RPC. The client then writes the appendRecords batches in the ring instead of sending them over the
+ * socket. A drainer thread of the server reads the batches from the ring and appends them through the same path as
+ * appendRecords.
+ *
+ * The server accepts only the regular files in its sharedRingDir, which the server creates for its own user. At start,
+ * the server writes a random token in that directory, and a ring is accepted only if its header has the token. The
+ * token can be read only by the processes of the same user on this host, so remote clients cannot attach rings.
+ *
+ * The ring is one-way. If the server runs out of memory, the drainer retries the records of the batch that are not
+ * appended yet, which stops the draining and eventually blocks the client when the ring is full. The batches that fail
+ * for other reasons are counted in the header of the ring along with the last error, and the client fails its next
+ * flush or close.
+ */
+public class SharedRingIngest {
+	public static final int MSG_APPEND_RECORDS = 1;
+
+	// Layout of the header of a ring file. The first cache line is written by the client, and the rest of the header
+	// is written by the server. The ring buffer follows the header.
+	public static final String TOKEN_FILE = ".token";
+	public static final String RING_FILE_PREFIX = "kawkab-ring-";
+	public static final long MAGIC = 0x4b41574b52494e47L; // "KAWKRING"
+	public static final int MAGIC_OFFSET = 0;
+	public static final int TOKEN_OFFSET = 8;
+	public static final int CAPACITY_OFFSET = 16;
+	public static final int FAILED_BATCHES_OFFSET = 64;
+	public static final int ERROR_LENGTH_OFFSET = 72;
+	public static final int ERROR_OFFSET = 76;
+	public static final int HEADER_LENGTH = 512;
+	public static final int MIN_CAPACITY = 4096;
+
+	private final FilesystemServiceImpl handler;
+	private final Map<Integer, Drainer> drainers = new ConcurrentHashMap<>();
+	private final AtomicInteger counter = new AtomicInteger();
+	private final Path ringDir;
+	private final int maxCapacity;
+	private long token; // 0 if the shared rings are disabled
+
+	SharedRingIngest(FilesystemServiceImpl handler) {
+		this.handler = handler;
+		Configuration conf = Configuration.instance();
+		ringDir = Paths.get(conf.sharedRingDir).toAbsolutePath().normalize();
+		maxCapacity = conf.sharedRingMaxBytes;
+
+		try {
+			initRingDir();
+		} catch (IOException | UnsupportedOperationException e) {
+			System.out.printf("[SRI] Shared rings are disabled, unable to initialize %s: %s\n", ringDir, e.getMessage());
+		}
+	}
+
+	/**
+	 * Creates the directory of the ring files for the user of this server and writes a new token in the directory.
+	 * Only the owner can access the directory.
+	 */
+	private void initRingDir() throws IOException {
+		if (!Files.isDirectory(ringDir, LinkOption.NOFOLLOW_LINKS)) {
+			Files.createDirectories(ringDir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		}
+		Files.setPosixFilePermissions(ringDir, PosixFilePermissions.fromString("rwx------"));
+
+		long newToken = 0;
+		SecureRandom random = new SecureRandom();
+		while (newToken == 0) {
+			newToken = random.nextLong();
+		}
+
+		Path tokenFile = ringDir.resolve(TOKEN_FILE);
+		Path tmpFile = ringDir.resolve(TOKEN_FILE + ".tmp");
+		Files.write(tmpFile, Long.toString(newToken).getBytes(StandardCharsets.US_ASCII));
+		Files.setPosixFilePermissions(tmpFile, PosixFilePermissions.fromString("rw-------"));
+		Files.move(tmpFile, tokenFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		token = newToken;
+		System.out.printf("[SRI] Accepting shared rings in %s\n", ringDir);
+	}
+
+	/**
+	 * Validates the ring buffer file created by the client, maps it, and starts draining it.
+	 *
+	 * @param path Path of the ring buffer file, which must be a regular file in sharedRingDir
+	 * @return ID of the ring
+	 * @throws KawkabException if the file is not a valid ring of a client on this host
+	 */
+	synchronized int attach(String path) throws KawkabException, IOException {
+		if (token == 0)
+			throw new KawkabException("Shared rings are disabled on this server");
+
+		Path file = Paths.get(path).toAbsolutePath().normalize();
+		if (!ringDir.equals(file.getParent()) || !file.getFileName().toString().startsWith(RING_FILE_PREFIX))
+			throw new KawkabException(String.format("Shared rings are accepted only from %s/%s*", ringDir, RING_FILE_PREFIX));
+
+		if (!Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS))
+			throw new KawkabException("Shared ring is not a regular file: " + file);
+
+		for (Drainer drainer : drainers.values()) {
+			if (drainer.file.equals(file))
+				throw new KawkabException("Shared ring is already attached: " + file);
+		}
+
+		MappedByteBuffer mapped;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS)) {
+			long capacity = channel.size() - HEADER_LENGTH - RingBufferDescriptor.TRAILER_LENGTH;
+			if (capacity < MIN_CAPACITY || capacity > maxCapacity || Long.bitCount(capacity) != 1)
+				throw new KawkabException(String.format("Invalid shared ring length %d, the capacity must be a power " +
+						"of two in [%d, %d]", channel.size(), MIN_CAPACITY, maxCapacity));
+
+			mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+		}
+
+		UnsafeBuffer header = new UnsafeBuffer(mapped, 0, HEADER_LENGTH);
+		if (header.getLongVolatile(MAGIC_OFFSET) != MAGIC || header.getLong(TOKEN_OFFSET) != token ||
+				header.getInt(CAPACITY_OFFSET) != mapped.capacity() - HEADER_LENGTH - RingBufferDescriptor.TRAILER_LENGTH) {
+			IoUtil.unmap(mapped);
+			throw new KawkabException("Invalid header of the shared ring " + file);
+		}
+
+		int ringID = counter.incrementAndGet();
+		Drainer drainer = new Drainer(ringID, file, mapped);
+		drainers.put(ringID, drainer);
+		drainer.start();
+
+		System.out.printf("[SRI] Attached shared ring %d: %s\n", ringID, file);
+
+		return ringID;
+	}
+
+	/**
+	 * Drains the remaining batches in the ring, stops the drainer, and unmaps the ring.
+	 */
+	void detach(int ringID) throws InterruptedException {
+		Drainer drainer = drainers.remove(ringID);
+		if (drainer == null)
+			return;
+
+		drainer.stopAndJoin();
+		System.out.printf("[SRI] Detached shared ring %d\n", ringID);
+	}
+
+	void shutdown() {
+		for (int ringID : drainers.keySet()) {
+			try {
+				detach(ringID);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private class Drainer extends Thread {
+		private final Path file;
+		private final MappedByteBuffer mapped;
+		private final UnsafeBuffer header;
+		private final RingBuffer ring;
+		private final ByteBuffer batch;
+		private volatile boolean working = true;
+
+		private Drainer(int ringID, Path file, MappedByteBuffer mapped) {
+			super("SharedRingDrainer-"+ringID);
+			this.file = file;
+			this.mapped = mapped;
+			header = new UnsafeBuffer(mapped, 0, HEADER_LENGTH);
+			ring = new OneToOneRingBuffer(new UnsafeBuffer(mapped, HEADER_LENGTH, mapped.capacity() - HEADER_LENGTH));
+			batch = ByteBuffer.allocate(ring.maxMsgLength());
+		}
+
+		@Override
+		public void run() {
+			IdleStrategy idle = new BackoffIdleStrategy(100, 10, TimeUnit.MICROSECONDS.toNanos(1), TimeUnit.MICROSECONDS.toNanos(100));
+			while (working) {
+				idle.idle(ring.read(this::onMessage));
+			}
+
+			while (ring.read(this::onMessage) > 0) { // Drain the remaining batches
+			}
+
+			IoUtil.unmap(mapped);
+		}
+
+		private void onMessage(int msgTypeId, MutableDirectBuffer buffer, int index, int length) {
+			if (msgTypeId != MSG_APPEND_RECORDS) {
+				reportFailure(String.format("Unknown message type %d", msgTypeId));
+				return;
+			}
+
+			batch.clear();
+			buffer.getBytes(index, batch, length);
+			batch.flip();
+
+			long backoffMs = 1;
+			while (true) {
+				try {
+					handler.appendRecords(batch);
+					return;
+				} catch (TOutOfMemoryException e) {
+					// Retry the records that are not appended until the memory is available; the client blocks when
+					// the ring becomes full
+					if (e.isSetAppendedRecords()) {
+						try {
+							AppendBatches.removeAppended(batch, e.getAppendedRecords(), handler::sessionRecordSize);
+						} catch (IllegalArgumentException iae) { // A session of the batch is closed
+							reportFailure(iae.getMessage());
+							return;
+						}
+
+						if (!batch.hasRemaining())
+							return;
+					}
+
+					if (!sleep(backoffMs))
+						return;
+					backoffMs = Math.min(backoffMs*2, 100);
+				} catch (TBackpressureException e) {
+					// The batch is not appended. Wait as the server suggests; the client blocks when the ring becomes full.
+					if (!sleep(e.getRetryAfterMs()))
+						return;
+				} catch (TException e) {
+					reportFailure(e.getMessage());
+					return;
+				}
+			}
+		}
+
+		/**
+		 * @return false if the batch has failed because the drainer is interrupted
+		 */
+		private boolean sleep(long ms) {
+			try {
+				Thread.sleep(ms);
+				return true;
+			} catch (InterruptedException ie) {
+				reportFailure("The drainer is interrupted");
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		/**
+		 * Records the failure of the current batch in the header of the ring. The client reads the failures when it
+		 * waits for the ring to drain. The message is written before the counter, so the client reads the message
+		 * of the failure it has seen.
+		 */
+		private void reportFailure(String message) {
+			System.out.printf("[SRI] Failed a batch in %s: %s\n", getName(), message);
+
+			byte[] msg = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+			int len = Math.min(msg.length, HEADER_LENGTH - ERROR_OFFSET);
+			header.putBytes(ERROR_OFFSET, msg, 0, len);
+			header.putInt(ERROR_LENGTH_OFFSET, len);
+			header.putLongOrdered(FAILED_BATCHES_OFFSET, header.getLong(FAILED_BATCHES_OFFSET) + 1);
+		}
+
+		private void stopAndJoin() throws InterruptedException {
+			working = false;
+			join();
+		}
+	}
+}
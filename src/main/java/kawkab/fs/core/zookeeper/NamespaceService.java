@@ -1,8 +1,16 @@
 package kawkab.fs.core.zookeeper;
 
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Base64.Decoder;
 import java.util.Base64.Encoder;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.curator.framework.api.CuratorWatcher;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.Code;
 
@@ -17,16 +25,33 @@ public final class NamespaceService {
 	
 	private static NamespaceService instance; //There must be only one instance of 
 	private final static String pathPrefix = "/KawkabFiles/";
+	private final static String dirTag = "d-"; // Prefix of the znodes that represent directories
+	private final static String fileTag = "f-"; // Prefix of the znodes that represent files
 	private ZKService zkclient;
 	private ZKClusterConfig zkcluster;
 	private Encoder encoder;
+	private Decoder decoder;
+	
+	// True if the root node has the flat znodes of the files that were created before the directory layout. These
+	// znodes are named with the Base64 encoded filename without a tag. The files are looked up under their old znode
+	// if they are not found in their directory, and the names are not reused.
+	private boolean hasLegacyFiles;
+	
+	// Node-local cache of filename to inumber mappings. A filename is mapped to an inumber only once when the file
+	// is created, so the cached entries do not become stale. Each cached entry has a ZK watch on its node that evicts
+	// the entry if the node is removed. A ZK watch fires only once, so the entry is evicted on any event of the watch,
+	// including the connection events, and the next lookup reads the node again and registers a new watch.
+	private Map<String, Long> inumbersCache;
 	
 	private NamespaceService() throws KawkabException {
 		zkclient = ZKService.instance();
 		zkcluster = Configuration.instance().zkMainCluster;
 		zkclient.initService(zkcluster);
 		encoder = Base64.getUrlEncoder();
+		decoder = Base64.getUrlDecoder();
+		inumbersCache = new ConcurrentHashMap<>();
 		createRootNode();
+		hasLegacyFiles = detectLegacyFiles();
 	}
 	
 	public static NamespaceService instance() throws KawkabException {
@@ -46,12 +71,16 @@ public final class NamespaceService {
 	 * @throws FileAlreadyExistsException if the file already exists in the namespace
 	 * @throws KawkabException Any other exception
 	 */
-	public synchronized void addFile(String filename, long inumber) throws FileAlreadyExistsException, KawkabException {
+	public void addFile(String filename, long inumber) throws FileAlreadyExistsException, KawkabException {
 		//System.out.println("[NSS] Adding file in the namespace: " + filename);
 		String path = fixPath(filename);
 		
 		// System.out.println("[NSS] Adding file in namespace: " + filename + ", path: " + path);
 		
+		if (hasLegacyFiles && legacyInumber(filename, false) >= 0) {
+			throw new FileAlreadyExistsException("File already exists: " + filename);
+		}
+		
 		try {
 			zkclient.addNode(zkcluster.id(), path, Commons.longToBytes(inumber));
 		} catch (KeeperException e) {
@@ -62,6 +91,8 @@ public final class NamespaceService {
 			e.printStackTrace();
 			throw new KawkabException(e);
 		}
+		
+		cacheInumber(filename, path, inumber, true);
 	}
 	
 	/**
@@ -70,35 +101,376 @@ public final class NamespaceService {
 	 * @throws FileNotExistException If the file does not exist in the namespace
 	 * @throws KawkabException Any other exception
 	 */
-	public synchronized long getInumber(String filename) throws FileNotExistException, KawkabException {
+	public long getInumber(String filename) throws FileNotExistException, KawkabException {
+		Long cached = inumbersCache.get(filename);
+		if (cached != null)
+			return cached;
+		
 		String path = fixPath(filename);
 		//System.out.println("[NSS] Checking path: " + path);
 		
 		long inumber = -1;
 		try {
-			byte[] res = zkclient.getData(zkcluster.id(), path);
+			byte[] res = zkclient.getData(zkcluster.id(), path, evictionWatcher(filename));
 			inumber = Commons.bytesToLong(res);
 		} catch (KeeperException e) {
-			if (e.code() == Code.NONODE) {
+			if (e.code() != Code.NONODE) {
+				throw new KawkabException(e);
+			}
+			
+			if (hasLegacyFiles)
+				inumber = legacyInumber(filename, true);
+			
+			if (inumber < 0) {
 				//System.out.println("[NSS] File not exist in ZK: " + filename + ", path: " + path);
 				throw new FileNotExistException(e.getMessage());
 			}
 			
+			return inumber;
+		}
+		
+		cacheInumber(filename, path, inumber, false);
+		
+		return inumber;
+	}
+	
+	/**
+	 * Reads the inumber of the file from the flat znode of the file, see hasLegacyFiles.
+	 *
+	 * @param cache Whether to add the inumber in the local cache
+	 * @return The inumber of the file, or -1 if the file does not have a flat znode
+	 */
+	private long legacyInumber(String filename, boolean cache) throws KawkabException {
+		String path = legacyPath(filename);
+		long inumber;
+		try {
+			inumber = Commons.bytesToLong(zkclient.getData(zkcluster.id(), path, cache ? evictionWatcher(filename) : null));
+		} catch (KeeperException e) {
+			if (e.code() == Code.NONODE)
+				return -1;
 			throw new KawkabException(e);
 		}
 		
-		System.out.println("[NSS] File already exist: " + filename + ", inumber: " + inumber);
+		if (cache)
+			cacheInumber(filename, path, inumber, false);
 		
 		return inumber;
 	}
 	
 	/**
-	 * Converts the given path in a Base64 encoded string and prepends the pathPrefix
-	 * @param path
+	 * Adds the mapping in the local cache. The watch is registered here if it is not already registered with the
+	 * request that retrieved the inumber.
+	 */
+	private void cacheInumber(String filename, String path, long inumber, boolean registerWatch) throws KawkabException {
+		if (inumbersCache.putIfAbsent(filename, inumber) == null && registerWatch) {
+			zkclient.watchNode(zkcluster.id(), path, evictionWatcher(filename));
+		}
+	}
+	
+	/**
+	 * @return A one-time watcher that removes the filename from the local cache when the watch fires. The entry is
+	 * removed on every event type because the cache entry is no longer watched after the event.
+	 */
+	private CuratorWatcher evictionWatcher(String filename) {
+		return event -> inumbersCache.remove(filename);
+	}
+	
+	/**
+	 * Resolves the inumbers of all the given files using pipelined ZooKeeper requests.
+	 *
+	 * @param filenames Names of the files
+	 * @return The inumbers of the files in the same order as the filenames. The inumber is -1 if the file does
+	 * not exist in the namespace.
+	 * @throws KawkabException Any other exception
+	 */
+	public long[] getInumbers(String[] filenames) throws KawkabException, InterruptedException {
+		long[] inumbers = new long[filenames.length];
+		int misses = 0;
+		for (int i=0; i<filenames.length; i++) {
+			Long cached = inumbersCache.get(filenames[i]);
+			if (cached != null) {
+				inumbers[i] = cached;
+			} else {
+				inumbers[i] = -1;
+				misses++;
+			}
+		}
+		
+		if (misses == 0)
+			return inumbers;
+		
+		int[] missIdx = new int[misses];
+		String[] paths = new String[misses];
+		CuratorWatcher[] watchers = new CuratorWatcher[misses];
+		for (int i=0, m=0; i<filenames.length; i++) {
+			if (inumbers[i] >= 0)
+				continue;
+			missIdx[m] = i;
+			paths[m] = fixPath(filenames[i]);
+			watchers[m] = evictionWatcher(filenames[i]);
+			m++;
+		}
+
+		int notFound = resolveBulk(filenames, inumbers, missIdx, paths, watchers);
+		
+		if (notFound == 0 || !hasLegacyFiles)
+			return inumbers;
+		
+		// Look up the files that are not in their directories under their flat znodes
+		int[] legacyIdx = new int[notFound];
+		String[] legacyPaths = new String[notFound];
+		CuratorWatcher[] legacyWatchers = new CuratorWatcher[notFound];
+		for (int m=0, l=0; m<misses; m++) {
+			int i = missIdx[m];
+			if (inumbers[i] >= 0)
+				continue;
+			legacyIdx[l] = i;
+			legacyPaths[l] = legacyPath(filenames[i]);
+			legacyWatchers[l] = evictionWatcher(filenames[i]);
+			l++;
+		}
+		
+		resolveBulk(filenames, inumbers, legacyIdx, legacyPaths, legacyWatchers);
+		
+		return inumbers;
+	}
+	
+	/**
+	 * Reads the inumbers of the files at the given indexes from the given znodes, and caches the resolved inumbers.
+	 *
+	 * @return The number of the files whose znodes do not exist
+	 */
+	private int resolveBulk(String[] filenames, long[] inumbers, int[] idx, String[] paths, CuratorWatcher[] watchers)
+			throws KawkabException, InterruptedException {
+		byte[][] results = new byte[idx.length][];
+		int[] retCodes = new int[idx.length];
+		zkclient.getDataBulk(zkcluster.id(), paths, results, retCodes, watchers);
+		
+		int notFound = 0;
+		for (int m=0; m<idx.length; m++) {
+			Code code = Code.get(retCodes[m]);
+			if (code == Code.OK) {
+				long inumber = Commons.bytesToLong(results[m]);
+				inumbers[idx[m]] = inumber;
+				cacheInumber(filenames[idx[m]], paths[m], inumber, false);
+			} else if (code == Code.NONODE) {
+				notFound++;
+			} else {
+				throw new KawkabException(KeeperException.create(code, paths[m]));
+			}
+		}
+		
+		return notFound;
+	}
+
+	/**
+	 * Adds all the given files in the namespace using pipelined ZooKeeper requests.
+	 *
+	 * @param filenames Names of the files
+	 * @param inumbers Inumbers of the files
+	 * @return For each file, true if the file is added, false if the file already exists in the namespace
+	 * @throws KawkabException Any other exception
+	 */
+	public boolean[] addFiles(String[] filenames, long[] inumbers) throws KawkabException, InterruptedException {
+		boolean[] added = new boolean[filenames.length];
+		
+		// The files that exist under their flat znodes are not added again
+		boolean[] existing = new boolean[filenames.length];
+		int toAdd = filenames.length;
+		if (hasLegacyFiles) {
+			String[] legacyPaths = new String[filenames.length];
+			for (int i=0; i<filenames.length; i++) {
+				legacyPaths[i] = legacyPath(filenames[i]);
+			}
+			
+			byte[][] results = new byte[filenames.length][];
+			int[] retCodes = new int[filenames.length];
+			zkclient.getDataBulk(zkcluster.id(), legacyPaths, results, retCodes);
+			for (int i=0; i<filenames.length; i++) {
+				Code code = Code.get(retCodes[i]);
+				if (code == Code.OK) {
+					existing[i] = true;
+					toAdd--;
+				} else if (code != Code.NONODE) {
+					throw new KawkabException(KeeperException.create(code, legacyPaths[i]));
+				}
+			}
+		}
+		
+		if (toAdd == 0)
+			return added;
+		
+		int[] addIdx = new int[toAdd];
+		String[] paths = new String[toAdd];
+		byte[][] data = new byte[toAdd][];
+		for (int i=0, a=0; i<filenames.length; i++) {
+			if (existing[i])
+				continue;
+			addIdx[a] = i;
+			paths[a] = fixPath(filenames[i]);
+			data[a] = Commons.longToBytes(inumbers[i]);
+			a++;
+		}
+
+		int[] retCodes = new int[toAdd];
+		zkclient.addNodesBulk(zkcluster.id(), paths, data, retCodes);
+
+		for (int a=0; a<toAdd; a++) {
+			int i = addIdx[a];
+			Code code = Code.get(retCodes[a]);
+			if (code == Code.OK) {
+				added[i] = true;
+				cacheInumber(filenames[i], paths[a], inumbers[i], true);
+			} else if (code != Code.NODEEXISTS) {
+				throw new KawkabException(KeeperException.create(code, paths[a]));
+			}
+		}
+
+		return added;
+	}
+	
+	/**
+	 * Lists the files and directories whose names start with the given prefix. The part of the prefix up to the last
+	 * "/" selects the directory, and the rest of the prefix filters the entries in that directory. The directories are
+	 * returned with a trailing "/". The entries are sorted by name so that the caller can paginate using startAfter.
+	 *
+	 * @param prefix Prefix of the names, e.g., "nasdaq/2019-10-"; an empty prefix lists the root directory
+	 * @param startAfter Only the entries that are greater than this name are returned; null to start from the first
+	 * @param maxEntries Maximum number of entries to return
+	 * @return Full names of the matching entries
+	 * @throws KawkabException Any other exception
+	 */
+	public List<String> list(String prefix, String startAfter, int maxEntries) throws KawkabException {
+		int slash = prefix.lastIndexOf('/');
+		String dir = prefix.substring(0, slash+1);
+		String namePrefix = prefix.substring(slash+1);
+
+		List<String> children;
+		try {
+			children = zkclient.getChildren(zkcluster.id(), dirPath(dir));
+		} catch (KeeperException e) {
+			if (e.code() != Code.NONODE)
+				throw new KawkabException(e);
+			children = Collections.emptyList(); // The directory may still have the files of the flat znodes
+		}
+
+		TreeSet<String> entries = new TreeSet<>();
+		if (hasLegacyFiles) {
+			addLegacyEntries(dir, namePrefix, startAfter, entries);
+		}
+		
+		for (String child : children) {
+			if (!child.startsWith(fileTag) && !child.startsWith(dirTag)) // Not created by this namespace
+				continue;
+
+			String name = new String(decoder.decode(child.substring(fileTag.length())));
+			if (!name.startsWith(namePrefix))
+				continue;
+
+			String entry = child.startsWith(dirTag) ? dir + name + "/" : dir + name;
+			if (startAfter != null && entry.compareTo(startAfter) <= 0)
+				continue;
+
+			entries.add(entry);
+		}
+
+		List<String> sorted = new ArrayList<>(Math.min(entries.size(), maxEntries));
+		for (String entry : entries) {
+			if (sorted.size() == maxEntries)
+				break;
+			sorted.add(entry);
+		}
+		
+		return sorted;
+	}
+	
+	/**
+	 * Adds the files of the flat znodes that are in the given directory, and the subdirectories of the directory that
+	 * have such files, in the given entries.
+	 */
+	private void addLegacyEntries(String dir, String namePrefix, String startAfter, TreeSet<String> entries) throws KawkabException {
+		for (String filename : legacyFilenames()) {
+			if (!filename.startsWith(dir + namePrefix))
+				continue;
+			
+			int slash = filename.indexOf('/', dir.length());
+			String entry = slash < 0 ? filename : filename.substring(0, slash+1);
+			if (startAfter != null && entry.compareTo(startAfter) <= 0)
+				continue;
+			
+			entries.add(entry);
+		}
+	}
+	
+	/**
+	 * @return The names of the files that have flat znodes under the root node
+	 */
+	private List<String> legacyFilenames() throws KawkabException {
+		List<String> children;
+		try {
+			children = zkclient.getChildren(zkcluster.id(), pathPrefix.substring(0, pathPrefix.length()-1));
+		} catch (KeeperException e) {
+			throw new KawkabException(e);
+		}
+		
+		List<String> filenames = new ArrayList<>();
+		for (String child : children) {
+			if (child.startsWith(fileTag) || child.startsWith(dirTag))
+				continue;
+			
+			try {
+				filenames.add(new String(decoder.decode(child)));
+			} catch (IllegalArgumentException e) { // Not created by this namespace
+			}
+		}
+		
+		return filenames;
+	}
+	
+	/**
+	 * @return True if the root node has any flat znode of a file
+	 */
+	private boolean detectLegacyFiles() throws KawkabException {
+		boolean found = !legacyFilenames().isEmpty();
+		if (found)
+			System.out.println("[NSS] Found the files of the flat namespace layout, looking them up under their old znodes");
+		return found;
+	}
+	
+	/**
+	 * @return Absolute ZK path of the flat znode of the file that was created before the directory layout
+	 */
+	private String legacyPath(String filename) {
+		return pathPrefix + encoder.encodeToString(filename.getBytes());
+	}
+	
+	/**
+	 * Converts the given filename to the path of its znode. Each directory in the filename becomes a znode with the
+	 * Base64 encoded name of the directory, and the file becomes a child of the znode of its parent directory.
+	 * Directories and files are tagged differently so that a file and a directory can have the same name.
+	 *
+	 * @param filename
 	 * @return Absolute ZK path
 	 */
-	private String fixPath(String path) {
-		return pathPrefix + encoder.encodeToString(path.getBytes());
+	private String fixPath(String filename) {
+		int slash = filename.lastIndexOf('/');
+		String name = filename.substring(slash+1);
+		return dirPath(filename.substring(0, slash+1)) + "/" + fileTag + encoder.encodeToString(name.getBytes());
+	}
+
+	/**
+	 * @param dir Path of the directory, which is either empty or ends with "/"
+	 * @return Absolute ZK path of the directory without the trailing "/"
+	 */
+	private String dirPath(String dir) {
+		StringBuilder path = new StringBuilder(pathPrefix.length() + dir.length()*2);
+		path.append(pathPrefix, 0, pathPrefix.length()-1);
+		for (String component : dir.split("/")) {
+			if (component.isEmpty())
+				continue;
+			path.append('/').append(dirTag).append(encoder.encodeToString(component.getBytes()));
+		}
+		return path.toString();
 	}
 	
 	/**
@@ -1,10 +1,14 @@
 package kawkab.fs.core.zookeeper;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorWatcher;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.zookeeper.KeeperException;
 
@@ -74,6 +78,14 @@ public final class ZKService {
 	}
 	
 	public byte[] getData(int zkClusterID, String path) throws KeeperException, KawkabException { //TODO: Change KawkabException to proper type
+		return getData(zkClusterID, path, null);
+	}
+	
+	/**
+	 * Reads the data of the node and leaves a watch on the node if the watcher is not null. The watcher is
+	 * triggered once on the next change of the node, e.g., when the node is deleted.
+	 */
+	public byte[] getData(int zkClusterID, String path, CuratorWatcher watcher) throws KeeperException, KawkabException { //TODO: Change KawkabException to proper type
 		//System.out.println("[ZKS] Get node " + path);
 		
 		CuratorFramework client = clients.get(zkClusterID);
@@ -82,7 +94,10 @@ public final class ZKService {
 		
 		byte[] res = null;
 		try {
-			res = client.getData().forPath(path);
+			if (watcher == null)
+				res = client.getData().forPath(path);
+			else
+				res = client.getData().usingWatcher(watcher).forPath(path);
 		} catch (KeeperException e) {
 			throw e;
 		} catch(Exception e) {
@@ -92,6 +107,115 @@ public final class ZKService {
 		return res;
 	}
 	
+	public List<String> getChildren(int zkClusterID, String path) throws KeeperException, KawkabException {
+		CuratorFramework client = clients.get(zkClusterID);
+		if (client == null)
+			throw new KawkabException("ZK cluster "+zkClusterID+" is not initialized.");
+		
+		try {
+			return client.getChildren().forPath(path);
+		} catch (KeeperException e) {
+			throw e;
+		} catch(Exception e) {
+			throw new KawkabException(e);
+		}
+	}
+	
+	/**
+	 * Issues the getData requests for all the paths asynchronously and waits until all the responses are received.
+	 * The requests are pipelined on the same ZooKeeper session, which avoids one round trip per path.
+	 *
+	 * @param zkClusterID ID of the ZooKeeper cluster
+	 * @param paths Paths of the nodes to read
+	 * @param results Output: the data of each node, or null if the request failed
+	 * @param retCodes Output: the ZooKeeper result code of each request, see KeeperException.Code
+	 */
+	public void getDataBulk(int zkClusterID, String[] paths, byte[][] results, int[] retCodes) throws KawkabException, InterruptedException {
+		getDataBulk(zkClusterID, paths, results, retCodes, null);
+	}
+
+	/**
+	 * Same as {@link #getDataBulk(int, String[], byte[][], int[])}, but leaves a watch on each node if the watchers
+	 * are not null.
+	 *
+	 * @param watchers The watcher of each node, or null to not leave any watch
+	 */
+	public void getDataBulk(int zkClusterID, String[] paths, byte[][] results, int[] retCodes, CuratorWatcher[] watchers)
+			throws KawkabException, InterruptedException {
+		assert paths.length == results.length && paths.length == retCodes.length;
+
+		CuratorFramework client = clients.get(zkClusterID);
+		if (client == null)
+			throw new KawkabException("ZK cluster "+zkClusterID+" is not initialized.");
+
+		CountDownLatch latch = new CountDownLatch(paths.length);
+		for (int i=0; i<paths.length; i++) {
+			final int idx = i;
+			try {
+				BackgroundCallback callback = (cl, event) -> {
+					retCodes[idx] = event.getResultCode();
+					results[idx] = event.getData();
+					latch.countDown();
+				};
+
+				if (watchers == null)
+					client.getData().inBackground(callback).forPath(paths[i]);
+				else
+					client.getData().usingWatcher(watchers[i]).inBackground(callback).forPath(paths[i]);
+			} catch(Exception e) {
+				throw new KawkabException(e);
+			}
+		}
+
+		latch.await();
+	}
+
+	/**
+	 * Creates the nodes asynchronously and waits until all the responses are received.
+	 *
+	 * @param zkClusterID ID of the ZooKeeper cluster
+	 * @param paths Paths of the nodes to create
+	 * @param data Data of each node
+	 * @param retCodes Output: the ZooKeeper result code of each request, see KeeperException.Code
+	 */
+	public void addNodesBulk(int zkClusterID, String[] paths, byte[][] data, int[] retCodes) throws KawkabException, InterruptedException {
+		assert paths.length == data.length && paths.length == retCodes.length;
+
+		CuratorFramework client = clients.get(zkClusterID);
+		if (client == null)
+			throw new KawkabException("ZK cluster "+zkClusterID+" is not initialized.");
+
+		CountDownLatch latch = new CountDownLatch(paths.length);
+		for (int i=0; i<paths.length; i++) {
+			final int idx = i;
+			try {
+				client.create().creatingParentsIfNeeded().inBackground((cl, event) -> {
+					retCodes[idx] = event.getResultCode();
+					latch.countDown();
+				}).forPath(paths[i], data[i]);
+			} catch(Exception e) {
+				throw new KawkabException(e);
+			}
+		}
+
+		latch.await();
+	}
+	
+	/**
+	 * Leaves a watch on the node without reading its data. The request is sent in the background.
+	 */
+	public void watchNode(int zkClusterID, String path, CuratorWatcher watcher) throws KawkabException {
+		CuratorFramework client = clients.get(zkClusterID);
+		if (client == null)
+			throw new KawkabException("ZK cluster "+zkClusterID+" is not initialized.");
+
+		try {
+			client.checkExists().usingWatcher(watcher).inBackground().forPath(path);
+		} catch(Exception e) {
+			throw new KawkabException(e);
+		}
+	}
+	
 	public void shutdown() {
 		System.out.println("Closed ZooKeeper clients");
 		for (CuratorFramework client : clients.values()) {
@@ -0,0 +1,179 @@
+package kawkab.fs.testclient;
+
+import kawkab.fs.api.Record;
+import kawkab.fs.client.KClient;
+import kawkab.fs.core.Filesystem;
+import kawkab.fs.core.exceptions.KawkabException;
+import kawkab.fs.records.BytesRecord;
+import kawkab.fs.records.SampleRecord;
+import kawkab.fs.records.SixteenRecord;
+import kawkab.fs.utils.Accumulator;
+import kawkab.fs.utils.LatHistogram;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator that sweeps the client side parameters against a running FilesystemServiceServer. For each combination
+ * of the record size, the number of connections, and the batch size, it runs appendRecords from the given number of
+ * client threads, each with its own connection, and prints one CSV line of throughput and latency.
+ *
+ * The server side parameters (fsServerType, fsServerProtocol, thread counts, and frame size) are set in the server's
+ * configuration. Run the sweep once for each server configuration and pass the same protocol to the sweep.
+ */
+public class ServerSweep {
+	public static void main(String[] args) throws KawkabException, InterruptedException {
+		String usage = "Usage: ServerSweep sip=svrIP sport=svrPort proto=binary|compact rs=16,100 nc=1,8,32 bs=1,10,100 " +
+				"nf=filesPerClient dur=testSec wup=warmupSec";
+
+		if (args.length == 1) {
+			args = args[0].split(" ");
+		}
+
+		String sip = "";
+		int sport = 33433;
+		boolean compact = false;
+		int[] recSizes = {16};
+		int[] numClients = {1};
+		int[] batchSizes = {1};
+		int nf = 10;
+		int durSec = 10;
+		int warmupSec = 3;
+
+		for (String iArg : args) {
+			String[] arg = iArg.split("=");
+			switch(arg[0]) {
+				case "sip": sip = arg[1]; break;
+				case "sport": sport = Integer.parseInt(arg[1]); break;
+				case "proto": compact = arg[1].equals("compact"); break;
+				case "rs": recSizes = parseList(arg[1]); break;
+				case "nc": numClients = parseList(arg[1]); break;
+				case "bs": batchSizes = parseList(arg[1]); break;
+				case "nf": nf = Integer.parseInt(arg[1]); break;
+				case "dur": durSec = Integer.parseInt(arg[1]); break;
+				case "wup": warmupSec = Integer.parseInt(arg[1]); break;
+				default: System.out.printf("Invalid argument %s.\n%s\n",iArg,usage); return;
+			}
+		}
+
+		System.out.println("proto,recSize,clients,batchSize,recsPerSec,MBps,meanLatUs,p50LatUs,p95LatUs,p99LatUs");
+		int testNum = 0;
+		for (int rs : recSizes) {
+			for (int nc : numClients) {
+				for (int bs : batchSizes) {
+					testNum++;
+					runPoint(testNum, sip, sport, compact, rs, nc, bs, nf, durSec, warmupSec);
+				}
+			}
+		}
+	}
+
+	private static void runPoint(int testNum, String sip, int sport, boolean compact, int rs, int nc, int bs, int nf,
+								 int durSec, int warmupSec) throws InterruptedException {
+		Accumulator[] latencies = new Accumulator[nc];
+		Thread[] threads = new Thread[nc];
+		for (int i=0; i<nc; i++) {
+			final int cid = i;
+			threads[i] = new Thread(() -> {
+				try {
+					latencies[cid] = runClient(testNum, cid, sip, sport, compact, rs, bs, nf, durSec, warmupSec);
+				} catch (KawkabException e) {
+					e.printStackTrace();
+				}
+			});
+			threads[i].setName("SweepClient-"+cid);
+			threads[i].start();
+		}
+
+		Accumulator total = null;
+		for (int i=0; i<nc; i++) {
+			threads[i].join();
+			if (latencies[i] == null)
+				continue;
+			if (total == null)
+				total = latencies[i];
+			else
+				total.merge(latencies[i]);
+		}
+
+		if (total == null) {
+			System.out.printf("%s,%d,%d,%d,failed\n", compact ? "compact" : "binary", rs, nc, bs);
+			return;
+		}
+
+		long recs = total.count();
+		double recsPerSec = recs / (double) durSec;
+		double[] lats = total.getLatencies();
+		System.out.printf("%s,%d,%d,%d,%.0f,%.2f,%.1f,%.0f,%.0f,%.0f\n", compact ? "compact" : "binary", rs, nc, bs,
+				recsPerSec, recsPerSec*rs/1048576.0, total.mean(), lats[0], lats[1], lats[2]);
+	}
+
+	private static Accumulator runClient(int testNum, int cid, String sip, int sport, boolean compact, int rs, int bs,
+										 int nf, int durSec, int warmupSec) throws KawkabException {
+		Record recGen;
+		if (rs == 16) {
+			recGen = new SixteenRecord();
+		} else if (rs == SampleRecord.length()) {
+			recGen = new SampleRecord();
+		} else {
+			recGen = new BytesRecord(rs);
+		}
+
+		KClient client = new KClient(cid);
+		client.connect(sip, sport, compact);
+
+		Random rand = new Random();
+		String[] fnames = new String[nf];
+		Filesystem.FileMode[] modes = new Filesystem.FileMode[nf];
+		int[] sizes = new int[nf];
+		for (int i=0; i<nf; i++) {
+			fnames[i] = String.format("sweep-t%d-c%d-%d-%d", testNum, cid, i, rand.nextInt(1000000));
+			modes[i] = Filesystem.FileMode.APPEND;
+			sizes[i] = rs;
+		}
+		client.bulkOpen(fnames, modes, sizes);
+
+		String[] files = new String[bs];
+		Record[] batch = new Record[bs];
+		for (int i=0; i<bs; i++) {
+			batch[i] = recGen.newRecord();
+			files[i] = fnames[rand.nextInt(nf)];
+		}
+
+		LatHistogram tlog = null;
+		try {
+			appendFor(client, files, batch, warmupSec, null);
+
+			tlog = new LatHistogram(TimeUnit.MICROSECONDS, "Sweep appends", 100, 1000000, bs);
+			appendFor(client, files, batch, durSec, tlog);
+		} finally {
+			client.bulkClose(fnames);
+			client.disconnect();
+		}
+
+		return tlog.accumulator();
+	}
+
+	private static void appendFor(KClient client, String[] files, Record[] batch, int durSec, LatHistogram tlog) throws KawkabException {
+		long now;
+		long et = System.currentTimeMillis() + durSec*1000L;
+		while((now = System.currentTimeMillis()) < et) {
+			for (Record rec : batch) {
+				rec.timestamp(now);
+			}
+
+			if (tlog != null) tlog.start();
+			client.appendRecords(files, batch);
+			if (tlog != null) tlog.end();
+		}
+	}
+
+	private static int[] parseList(String csv) {
+		String[] parts = csv.split(",");
+		int[] vals = new int[parts.length];
+		for (int i=0; i<parts.length; i++) {
+			vals[i] = Integer.parseInt(parts[i]);
+		}
+		return vals;
+	}
+}
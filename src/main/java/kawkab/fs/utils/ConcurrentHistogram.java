@@ -0,0 +1,135 @@
+package kawkab.fs.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * A thread-safe histogram of non-negative long values with log-linear buckets, similar to HdrHistogram. The values
+ * below 2^subBucketBits have their own buckets. Each larger power of two range is divided into 2^subBucketBits
+ * buckets, so the relative error of a value is less than 2^-subBucketBits, 3% with 5 bits, and the histogram covers
+ * the whole long range in less than 2000 buckets.
+ *
+ * The counts are striped over a few arrays by the thread ID so that the concurrent writers do not contend on the same
+ * cache lines. Recording a value is one atomic increment without any allocation.
+ */
+public final class ConcurrentHistogram {
+	private static final int subBucketBits = 5;
+	private static final int subBuckets = 1 << subBucketBits;
+	private static final int numBuckets = (64 - subBucketBits + 1) * subBuckets;
+
+	private final String name;
+	private final AtomicLongArray[] stripes;
+	private final int stripeMask;
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	public ConcurrentHistogram(String name) {
+		this.name = name;
+
+		int numStripes = Integer.highestOneBit(Math.min(16, Runtime.getRuntime().availableProcessors()));
+		stripes = new AtomicLongArray[numStripes];
+		for (int i=0; i<numStripes; i++) {
+			stripes[i] = new AtomicLongArray(numBuckets);
+		}
+		stripeMask = numStripes - 1;
+	}
+
+	public void record(long value) {
+		if (value < 0) //Diff can be negative due to using nanoTime() in multi-cpu hardware
+			return;
+
+		stripes[(int) Thread.currentThread().getId() & stripeMask].incrementAndGet(bucketOf(value));
+		max.accumulate(value);
+	}
+
+	/**
+	 * @return A consistent copy of the counts, which can be queried without synchronization
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[numBuckets];
+		for (AtomicLongArray stripe : stripes) {
+			for (int i=0; i<numBuckets; i++) {
+				counts[i] += stripe.get(i);
+			}
+		}
+		return new Snapshot(counts, max.get());
+	}
+
+	public String name() {
+		return name;
+	}
+
+	static int bucketOf(long value) {
+		if (value < subBuckets)
+			return (int) value;
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits; // value >>> shift is in [subBuckets, 2*subBuckets)
+		return (shift + 1) * subBuckets + (int) (value >>> shift) - subBuckets;
+	}
+
+	/**
+	 * @return The largest value that is counted in the bucket
+	 */
+	static long highestValueOf(int bucket) {
+		if (bucket < subBuckets)
+			return bucket;
+
+		int shift = bucket / subBuckets - 1;
+		long lowest = (long) (bucket % subBuckets + subBuckets) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long max;
+		private final double sum; // Approximated by the highest values of the buckets
+
+		private Snapshot(long[] counts, long max) {
+			this.counts = counts;
+			this.max = max;
+
+			long cnt = 0;
+			double total = 0;
+			for (int i=0; i<counts.length; i++) {
+				cnt += counts[i];
+				total += (double) counts[i] * Math.min(highestValueOf(i), max);
+			}
+			count = cnt;
+			sum = total;
+		}
+
+		public long count() {
+			return count;
+		}
+
+		public long max() {
+			return max;
+		}
+
+		public double sum() {
+			return sum;
+		}
+
+		public double mean() {
+			return count == 0 ? 0 : sum / count;
+		}
+
+		/**
+		 * @param percentile Between 0 and 100
+		 * @return The highest value of the bucket that contains the percentile
+		 */
+		public long percentile(double percentile) {
+			if (count == 0)
+				return 0;
+
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+			long seen = 0;
+			for (int i=0; i<counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(highestValueOf(i), max);
+			}
+			return max;
+		}
+	}
+}
@@ -33,8 +33,17 @@ exception TInvalidSessionException {
 	1: string message
 }
 
+// For appendRecords, appendedRecords has the number of the leading records of each session that were appended before
+// the memory ran out. These records must not be sent again.
 exception TOutOfMemoryException {
-	1: string message
+	1: string message,
+	2: optional map<i32, i32> appendedRecords
+}
+
+// The append is rejected by the flow control of the server and the file is not modified. Retry after retryAfterMs.
+exception TBackpressureException {
+	1: string message,
+	2: i64 retryAfterMs
 }
 
 struct TOpenRequest {
@@ -75,10 +84,24 @@ struct TFileOpenRequest {
     3: required i32 recordSize;
 }
 
+struct TFileStat {
+    1: required string filename;
+    2: required bool exists;
+    3: required i64 size;
+    4: required i32 recordSize;
+}
+
 service FilesystemService {
 	i32 open (1: string filename, 2: TFileMode fileMode, 3: i32 recordSize) throws (1: TRequestFailedException rfe);
 
 	list<i32> bulkOpen (1: list<TFileOpenRequest> fopenReqs) throws (1: TRequestFailedException rfe);
+
+	// Returns at most maxEntries names that start with the prefix and are greater than startAfter, sorted by name.
+	// Directories are returned with a trailing "/". An empty startAfter starts from the first entry.
+	list<string> list (1: string prefix, 2: string startAfter, 3: i32 maxEntries) throws (1: TRequestFailedException rfe);
+
+	// Returns the stats of the files in the same order as the filenames
+	list<TFileStat> bulkStat (1: list<string> filenames) throws (1: TRequestFailedException rfe);
 	
 	// Returns data read from the given offset in the file
 	binary read (1: i32 sessionID, 2: i64 offset, 3: i32 length, 4: bool loadFromPrimary) throws
@@ -97,19 +120,26 @@ service FilesystemService {
 	    (1: TRequestFailedException rfe, 2: TInvalidSessionException ise, 3: TOutOfMemoryException ome);
 
 	i32 appendRecord (1: i32 sessionID, 2: binary data, 3: i32 recSize) throws
-	    (1: TRequestFailedException rfe, 2: TInvalidSessionException ise, 3: TOutOfMemoryException ome);
+	    (1: TRequestFailedException rfe, 2: TInvalidSessionException ise, 3: TOutOfMemoryException ome, 4: TBackpressureException bpe);
 
     /*Batching individual ByteBuffers*/
 	i32 appendRecordBatched (1: i32 sessionID, 2: list<binary> data, 3: i32 recSize) throws
-    	    (1: TRequestFailedException rfe, 2: TInvalidSessionException ise, 3: TOutOfMemoryException ome);
+    	    (1: TRequestFailedException rfe, 2: TInvalidSessionException ise, 3: TOutOfMemoryException ome, 4: TBackpressureException bpe);
 
     /*Batching records of a single file in a buffer*/
     i32 appendRecordBuffered (1: i32 sessionID, 2: binary data, 3: i32 recSize) throws
-        	    (1: TRequestFailedException rfe, 2: TInvalidSessionException ise, 3: TOutOfMemoryException ome);
+        	    (1: TRequestFailedException rfe, 2: TInvalidSessionException ise, 3: TOutOfMemoryException ome, 4: TBackpressureException bpe);
 
     /*Batching records of multiple files in a buffer*/
     i32 appendRecords (1: binary data) throws
-            	    (1: TRequestFailedException rfe, 2: TInvalidSessionException ise, 3: TOutOfMemoryException ome);
+            	    (1: TRequestFailedException rfe, 2: TInvalidSessionException ise, 3: TOutOfMemoryException ome, 4: TBackpressureException bpe);
+
+    // Attaches a memory-mapped ring buffer file of a client on the same host. The client then writes the
+    // appendRecords batches in the ring instead of sending them through this service. Returns the ring ID.
+    i32 attachSharedRing (1: string path) throws (1: TRequestFailedException rfe);
+
+    // Appends the batches remaining in the ring and detaches the ring
+    void detachSharedRing (1: i32 ringID) throws (1: TRequestFailedException rfe);
 
     //NoOP equivalent of appendRecords
     i32 appendNoops (1: binary data) throws
@@ -117,7 +147,7 @@ service FilesystemService {
 
 	// Returns ths number of bytes appended
 	i32 append (1: i32 sessionID, 2: binary data) throws
-		(1: TRequestFailedException rfe, 2: TInvalidSessionException ise, 3: TOutOfMemoryException ome);
+		(1: TRequestFailedException rfe, 2: TInvalidSessionException ise, 3: TOutOfMemoryException ome, 4: TBackpressureException bpe);
 
 	i64 size(1: i32 sessionID) throws (1: TRequestFailedException rfe, 2: TInvalidSessionException ise);
 
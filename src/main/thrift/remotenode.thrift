@@ -8,8 +8,27 @@ exception TRequestFailedException {
 	1: string message
 }
 
+struct TReplicaRange {
+	1: i64 inumber,
+	2: i64 blockInFile,
+	3: i32 offsetInBlock,
+	4: binary data
+}
+
+struct TReplicaBlock {
+	1: i64 inumber,
+	2: i64 blockInFile
+}
+
 service PrimaryNodeService {
 	binary getSegment (1: i64 inumber, 2: i64 blockInFile, 3: i32 segmentInBlock, 4: i32 recordSize, 5: i32 offset) throws (1: TFileNotExistException fne);
 	binary getInodesBlock (1: i32 blockIndex) throws (1: TFileNotExistException fne);
 	binary getIndexNode (1: i64 inumber, 2: i32 nodeNumInIndex, 3: i32 fromTsIndex) throws (1: TFileNotExistException fne);
+
+	# The replication stream of a primary node to a peer. A batch has the appended bytes with the sequence numbers
+	# firstSeq to lastSeq, and the blocks that are stored in the global store. The peer acknowledges the batches with
+	# replicaAcked on its own connection to the primary. The epoch identifies the run of the primary's stream, and
+	# resync tells the peer that the primary has skipped the sequence numbers before firstSeq.
+	oneway void replicate (1: i32 fromNode, 2: i64 epoch, 3: i64 firstSeq, 4: i64 lastSeq, 5: bool resync, 6: list<TReplicaRange> ranges, 7: list<TReplicaBlock> released);
+	oneway void replicaAcked (1: i32 fromNode, 2: i64 epoch, 3: i64 ackedSeq, 4: bool successful);
 }
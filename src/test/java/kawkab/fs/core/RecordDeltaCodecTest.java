@@ -0,0 +1,100 @@
+package kawkab.fs.core;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class RecordDeltaCodecTest {
+	private static final int[] recordSizes = {8, 12, 16, 17, 33, 40};
+	private static final int[] recordCounts = {1, 2, 255, 256, 257, 1000};
+	private static final int minCompressible = 256; // The smaller segments may not cover the header and the first record
+	private static final int[] tailLengths = {0, 5};
+
+	@Test
+	public void regularTimestampsTest() {
+		roundTripAll((rand, i, prevTs) -> prevTs + 10, true);
+	}
+
+	@Test
+	public void jitteredTimestampsTest() {
+		roundTripAll((rand, i, prevTs) -> prevTs + 1000 + rand.nextInt(5000), true);
+	}
+
+	@Test
+	public void nonMonotonicTimestampsTest() {
+		roundTripAll((rand, i, prevTs) -> prevTs + rand.nextInt(200) - 100, true);
+		roundTripAll((rand, i, prevTs) -> i % 7 == 0 ? rand.nextLong() : prevTs - 3000, false);
+	}
+
+	@Test
+	public void randomRecordsTest() {
+		Random rand = new Random(3);
+		for (int recSize : recordSizes) {
+			int srcLen = 500*recSize;
+			ByteBuffer src = ByteBuffer.allocate(srcLen);
+			rand.nextBytes(src.array());
+			roundTrip(src, 0, srcLen, recSize, false);
+		}
+	}
+
+	private void roundTripAll(TimestampGenerator gen, boolean compressible) {
+		Random rand = new Random(7);
+		for (int recSize : recordSizes) {
+			for (int numRecs : recordCounts) {
+				for (int tailLen : tailLengths) {
+					int srcOff = 3; // The segments are not at the start of the buffers
+					int srcLen = numRecs*recSize + tailLen;
+					ByteBuffer src = ByteBuffer.allocate(srcOff + srcLen);
+
+					long ts = 1_000_000;
+					for (int i=0; i<numRecs; i++) {
+						ts = gen.next(rand, i, ts);
+						int recOff = srcOff + i*recSize;
+						src.putLong(recOff, ts);
+						for (int b=Long.BYTES; b<recSize; b++) { // Slowly changing payload
+							src.put(recOff+b, (byte) (b + i/16));
+						}
+					}
+					for (int i=0; i<tailLen; i++) {
+						src.put(srcOff + numRecs*recSize + i, (byte) rand.nextInt());
+					}
+
+					roundTrip(src, srcOff, srcLen, recSize, compressible && numRecs >= minCompressible);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compresses and decompresses the segment, and checks that the decompressed segment is the same as the source
+	 *
+	 * @param mustCompress Whether the segment must be smaller after the compression
+	 */
+	private void roundTrip(ByteBuffer src, int srcOff, int srcLen, int recSize, boolean mustCompress) {
+		RecordDeltaCodec codec = new RecordDeltaCodec();
+		int dstOff = 5;
+		ByteBuffer compressed = ByteBuffer.allocate(dstOff + codec.maxCompressedLength(srcLen));
+		int compLen = codec.compress(src, srcOff, srcLen, compressed, dstOff, recSize);
+
+		if (mustCompress)
+			Assertions.assertTrue(compLen < srcLen, String.format("recSize=%d, srcLen=%d, compressed=%d", recSize, srcLen, compLen));
+
+		if (compLen >= srcLen) // Stored uncompressed
+			return;
+
+		int outOff = 11;
+		ByteBuffer out = ByteBuffer.allocate(outOff + srcLen);
+		codec.decompress(compressed, dstOff, compLen, out, outOff, srcLen);
+
+		for (int i=0; i<srcLen; i++) {
+			Assertions.assertEquals(src.get(srcOff+i), out.get(outOff+i),
+					String.format("recSize=%d, srcLen=%d, byte=%d", recSize, srcLen, i));
+		}
+	}
+
+	private interface TimestampGenerator {
+		long next(Random rand, int recNum, long prevTs);
+	}
+}
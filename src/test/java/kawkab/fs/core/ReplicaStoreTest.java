@@ -0,0 +1,138 @@
+package kawkab.fs.core;
+
+import kawkab.fs.core.services.thrift.TReplicaBlock;
+import kawkab.fs.core.services.thrift.TReplicaRange;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ReplicaStoreTest {
+	private static final int thisNode = 1;
+	private static final int fromNode = 2;
+
+	private long lastAckedSeq;
+	private boolean lastSuccessful;
+
+	@Test
+	public void gapTest() throws IOException {
+		ReplicaStore store = newStore(10, (inumber, blockInFile) -> false);
+
+		apply(store, 5, 1, 1, false, range(7, 0, 0, 4));
+		assertAck(1, true);
+
+		apply(store, 5, 3, 3, false, range(8, 0, 0, 4)); // The batch 2 is missing
+		assertAck(1, false);
+		Assertions.assertFalse(new File(store.pathOf(fromNode, 8, 0)).exists());
+
+		apply(store, 5, 2, 2, false, range(7, 0, 4, 4));
+		assertAck(2, true);
+		apply(store, 5, 3, 3, false, range(8, 0, 0, 4));
+		assertAck(3, true);
+		Assertions.assertEquals(8, new File(store.pathOf(fromNode, 7, 0)).length());
+		Assertions.assertTrue(new File(store.pathOf(fromNode, 8, 0)).exists());
+
+		apply(store, 5, 2, 2, false, range(7, 0, 4, 4)); // A repeated batch
+		assertAck(3, true);
+
+		apply(store, 5, 10, 10, true, range(9, 0, 0, 4)); // The primary node has skipped 4 to 9
+		assertAck(10, true);
+		Assertions.assertTrue(new File(store.pathOf(fromNode, 9, 0)).exists());
+
+		apply(store, 6, 5, 5, false, range(9, 1, 0, 4)); // The primary node has restarted and the batch 1 is missing
+		assertAck(-1, false);
+		apply(store, 6, 1, 1, false, range(9, 1, 0, 4));
+		assertAck(1, true);
+	}
+
+	@Test
+	public void restartTest() throws IOException {
+		ReplicaStore store = newStore(10, (inumber, blockInFile) -> false);
+		apply(store, 5, 1, 1, false, range(7, 0, 0, 4));
+		assertAck(1, true);
+
+		store = new ReplicaStore(thisNode, 10, new File(store.pathOf(fromNode, 7, 0)).getParentFile().getParent(),
+				this::acked, (inumber, blockInFile) -> false); // This node has restarted
+		Assertions.assertTrue(new File(store.pathOf(fromNode, 7, 0)).exists());
+
+		apply(store, 5, 3, 3, false, range(7, 0, 8, 4)); // The batch 2 may be lost
+		assertAck(-1, false);
+		Assertions.assertEquals(4, new File(store.pathOf(fromNode, 7, 0)).length());
+
+		apply(store, 5, 2, 2, true, range(7, 0, 4, 4)); // The primary node resends its unacknowledged batches
+		assertAck(2, true);
+		apply(store, 5, 3, 3, false, range(7, 0, 8, 4));
+		assertAck(3, true);
+		Assertions.assertEquals(12, new File(store.pathOf(fromNode, 7, 0)).length());
+	}
+
+	@Test
+	public void releaseTest() throws IOException {
+		ReplicaStore store = newStore(10, (inumber, blockInFile) -> false);
+
+		apply(store, 5, 1, 1, false, range(7, 0, 0, 4));
+		Assertions.assertTrue(new File(store.pathOf(fromNode, 7, 0)).exists());
+
+		store.apply(fromNode, 5, 2, 1, false, Collections.emptyList(), List.of(new TReplicaBlock(7, 0)));
+		assertAck(1, true);
+		Assertions.assertFalse(new File(store.pathOf(fromNode, 7, 0)).exists());
+	}
+
+	@Test
+	public void evictionTest() throws IOException {
+		Set<Long> stored = new HashSet<>(); // The blocks of the inode 7 that are in the global store
+		ReplicaStore store = newStore(2, (inumber, blockInFile) -> inumber == 7 && stored.contains(blockInFile));
+
+		apply(store, 5, 1, 1, false, range(7, 0, 0, 4));
+		apply(store, 5, 2, 2, false, range(7, 1, 0, 4));
+		assertAck(2, true);
+
+		apply(store, 5, 3, 3, false, range(7, 2, 0, 4)); // The store is full and no replica is in the global store
+		assertAck(2, false);
+		Assertions.assertFalse(new File(store.pathOf(fromNode, 7, 2)).exists());
+
+		stored.add(0L);
+		apply(store, 5, 3, 3, false, range(7, 2, 0, 4)); // The replica of the stored block is removed
+		assertAck(3, true);
+		Assertions.assertFalse(new File(store.pathOf(fromNode, 7, 0)).exists());
+		Assertions.assertTrue(new File(store.pathOf(fromNode, 7, 1)).exists());
+		Assertions.assertTrue(new File(store.pathOf(fromNode, 7, 2)).exists());
+
+		apply(store, 5, 4, 4, false, range(7, 1, 4, 4)); // An existing replica does not need space
+		assertAck(4, true);
+	}
+
+	private ReplicaStore newStore(int maxBlocks, ReplicaStore.StoredBlocks stored) throws IOException {
+		Path dir = Files.createTempDirectory("kawkab-replicas");
+		dir.toFile().deleteOnExit();
+		return new ReplicaStore(thisNode, maxBlocks, dir.toString(), this::acked, stored);
+	}
+
+	private void acked(int nodeID, int from, long epoch, long ackedSeq, boolean successful) {
+		Assertions.assertEquals(fromNode, nodeID);
+		Assertions.assertEquals(thisNode, from);
+		lastAckedSeq = ackedSeq;
+		lastSuccessful = successful;
+	}
+
+	private void apply(ReplicaStore store, long epoch, long firstSeq, long lastSeq, boolean resync, TReplicaRange range) {
+		store.apply(fromNode, epoch, firstSeq, lastSeq, resync, List.of(range), Collections.emptyList());
+	}
+
+	private void assertAck(long ackedSeq, boolean successful) {
+		Assertions.assertEquals(ackedSeq, lastAckedSeq);
+		Assertions.assertEquals(successful, lastSuccessful);
+	}
+
+	private static TReplicaRange range(long inumber, long blockInFile, int offsetInBlock, int length) {
+		return new TReplicaRange(inumber, blockInFile, offsetInBlock, ByteBuffer.wrap(new byte[length]));
+	}
+}
@@ -0,0 +1,165 @@
+package kawkab.fs.core;
+
+import kawkab.fs.core.Replicator.Batch;
+import kawkab.fs.core.Replicator.PeerStream;
+import kawkab.fs.core.Replicator.Range;
+import kawkab.fs.core.services.thrift.TReplicaBlock;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ReplicatorTest {
+	private static final long ackTimeoutMs = 100;
+
+	@Test
+	public void batchAndAckTest() {
+		PeerStream stream = new PeerStream(1, ackTimeoutMs, 1024, 4, 4096);
+		long now = System.currentTimeMillis();
+
+		stream.add(range(1, 5, 0, 0, 8));
+		stream.add(range(2, 5, 0, 8, 8)); // Continues the first range
+		stream.add(range(3, 6, 0, 0, 4));
+		stream.release(new TReplicaBlock(4, 0));
+
+		Batch batch = stream.poll(now);
+		assertBatch(batch, 1, 3, false);
+		Assertions.assertEquals(2, batch.ranges.size());
+		Assertions.assertEquals(16, batch.ranges.get(0).getData().length);
+		Assertions.assertEquals(4, batch.ranges.get(1).getData().length);
+		Assertions.assertEquals(1, batch.released.size());
+		Assertions.assertNull(stream.poll(now));
+
+		Assertions.assertFalse(stream.covers(1));
+		stream.acked(2, true); // A part of the batch does not remove the batch
+		Assertions.assertTrue(stream.covers(2));
+		Assertions.assertFalse(stream.covers(3));
+		Assertions.assertNull(stream.poll(now + ackTimeoutMs + 1)); // Times out and schedules the resend
+
+		stream.acked(3, true);
+		Assertions.assertTrue(stream.covers(1));
+		Assertions.assertTrue(stream.covers(3));
+		Assertions.assertFalse(stream.covers(4));
+	}
+
+	@Test
+	public void pipelineDepthTest() {
+		PeerStream stream = new PeerStream(1, ackTimeoutMs, 8, 2, 4096);
+		long now = System.currentTimeMillis();
+
+		for (int i=0; i<4; i++) {
+			stream.add(range(i+1, 5, 0, i*8, 8));
+		}
+
+		assertBatch(stream.poll(now), 1, 1, false); // A batch takes at most batchMaxBytes
+		assertBatch(stream.poll(now), 2, 2, false);
+		Assertions.assertNull(stream.poll(now)); // The pipeline is full
+
+		stream.acked(1, true);
+		assertBatch(stream.poll(now), 3, 3, false);
+	}
+
+	@Test
+	public void resendTest() {
+		PeerStream stream = new PeerStream(1, ackTimeoutMs, 1024, 4, 4096);
+		long now = System.currentTimeMillis();
+
+		stream.add(range(1, 5, 0, 0, 8));
+		assertBatch(stream.poll(now), 1, 1, false);
+		stream.add(range(2, 5, 0, 8, 8));
+		assertBatch(stream.poll(now + 10), 2, 2, false);
+
+		Assertions.assertNull(stream.poll(now + ackTimeoutMs/2));
+		Assertions.assertNull(stream.poll(now + ackTimeoutMs + 1)); // The first batch has timed out
+		stream.add(range(3, 5, 0, 16, 8));
+		Assertions.assertNull(stream.poll(now + ackTimeoutMs + 2)); // No new batches until the resend
+
+		long retryAt = now + ackTimeoutMs + 1 + Replicator.retryDelayMs;
+		assertBatch(stream.poll(retryAt), 1, 1, false); // The batches are sent again in order
+		assertBatch(stream.poll(retryAt), 2, 2, false);
+		assertBatch(stream.poll(retryAt), 3, 3, false);
+
+		stream.acked(1, false); // The peer could not store the batches after the first batch
+		Assertions.assertTrue(stream.covers(1));
+		Assertions.assertFalse(stream.covers(2));
+
+		long retryAgainAt = System.currentTimeMillis() + Replicator.retryDelayMs;
+		assertBatch(stream.poll(retryAgainAt), 2, 2, false);
+		stream.acked(2, true); // The batch in toResend is dropped when acknowledged
+		assertBatch(stream.poll(retryAgainAt), 3, 3, false);
+		Assertions.assertNull(stream.poll(retryAgainAt));
+
+		stream.failed(); // The batch could not be sent
+		assertBatch(stream.poll(System.currentTimeMillis() + Replicator.retryDelayMs), 3, 3, false);
+		stream.acked(3, true);
+		Assertions.assertTrue(stream.covers(3));
+	}
+
+	@Test
+	public void skipAndResyncTest() {
+		PeerStream stream = new PeerStream(1, ackTimeoutMs, 1024, 4, 20);
+		long now = System.currentTimeMillis();
+
+		stream.add(range(1, 5, 0, 0, 8));
+		assertBatch(stream.poll(now), 1, 1, false);
+		stream.acked(1, true);
+
+		stream.add(range(2, 5, 0, 8, 8));
+		assertBatch(stream.poll(now), 2, 2, false);
+		stream.add(range(3, 5, 0, 16, 8));
+		stream.add(range(4, 5, 0, 24, 8)); // The peer is too far behind; drops 2 and 3
+
+		Batch batch = stream.poll(now);
+		assertBatch(batch, 4, 4, true);
+		Assertions.assertEquals(24, batch.ranges.get(0).getOffsetInBlock());
+
+		stream.acked(4, true);
+		Assertions.assertTrue(stream.covers(1));
+		Assertions.assertFalse(stream.covers(2)); // The dropped ranges are not covered by the later acknowledgements
+		Assertions.assertFalse(stream.covers(3));
+		Assertions.assertTrue(stream.covers(4));
+
+		stream.add(range(5, 5, 0, 32, 8));
+		assertBatch(stream.poll(now), 5, 5, false); // Only the first batch after the skip resyncs the peer
+	}
+
+	@Test
+	public void restartedPeerTest() {
+		PeerStream stream = new PeerStream(1, ackTimeoutMs, 8, 4, 4096);
+		long now = System.currentTimeMillis();
+
+		stream.add(range(1, 5, 0, 0, 8));
+		assertBatch(stream.poll(now), 1, 1, false);
+		stream.acked(1, true);
+
+		stream.add(range(2, 5, 0, 8, 8));
+		stream.add(range(3, 5, 0, 16, 8));
+		assertBatch(stream.poll(now), 2, 2, false);
+		assertBatch(stream.poll(now), 3, 3, false);
+
+		stream.acked(-1, false); // The peer has restarted and has not applied the batch 2
+		Assertions.assertTrue(stream.covers(1));
+		Assertions.assertFalse(stream.covers(2));
+
+		long retryAt = System.currentTimeMillis() + Replicator.retryDelayMs;
+		assertBatch(stream.poll(retryAt), 2, 2, true); // The oldest unacknowledged batch resyncs the peer
+		assertBatch(stream.poll(retryAt), 3, 3, false);
+		stream.acked(3, true);
+		Assertions.assertTrue(stream.covers(3));
+
+		stream.acked(-1, false); // Nothing is in flight; the next batch resyncs the peer
+		stream.add(range(4, 5, 0, 24, 8));
+		assertBatch(stream.poll(retryAt), 4, 4, true);
+	}
+
+	private static Range range(long seq, long inumber, long blockInFile, int offsetInBlock, int length) {
+		Range range = new Range(inumber, blockInFile, offsetInBlock, new byte[length]);
+		range.seq = seq;
+		return range;
+	}
+
+	private static void assertBatch(Batch batch, long firstSeq, long lastSeq, boolean resync) {
+		Assertions.assertNotNull(batch);
+		Assertions.assertEquals(firstSeq, batch.firstSeq);
+		Assertions.assertEquals(lastSeq, batch.lastSeq);
+		Assertions.assertEquals(resync, batch.resync);
+	}
+}
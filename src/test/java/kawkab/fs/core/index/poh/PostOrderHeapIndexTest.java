@@ -1,6 +1,8 @@
 package kawkab.fs.core.index.poh;
 
 import kawkab.fs.commons.Configuration;
+import kawkab.fs.core.DataSegmentID;
+import kawkab.fs.core.IndexNodeID;
 import kawkab.fs.core.NullCache;
 import kawkab.fs.core.exceptions.KawkabException;
 import kawkab.fs.core.timerqueue.NullTimerQueue;
@@ -438,4 +440,93 @@ public class PostOrderHeapIndexTest {
 			len += 2;
 		}
 	}
+
+	@Test
+	public void maxTimestampTest() throws IOException, KawkabException {
+		System.out.println("Test: maxTimestampTest");
+
+		int epn = 1; // entries per node
+		int cpn = 3; // children per node
+		int nodeSize = epn*POHEntry.sizeBytes() + cpn*POHNode.childSizeBytes() + POHNode.headerSizeBytes();
+		int nodesPerBlock = Configuration.instance().nodesPerBlockPOH;
+		PostOrderHeapIndex poh = new PostOrderHeapIndex(15, nodeSize, nodesPerBlock, 25, new NullCache(), new NullTimerQueue());
+
+		int len = 0;
+		for (int seg=0; seg<30; seg++) { // One entry per segment, see Inode
+			poh.appendIndexEntry(seg*10, seg*10+5, seg, len);
+			len += 2;
+		}
+
+		assertEquals(5, poh.maxTimestamp(0, false));
+		assertEquals(125, poh.maxTimestamp(12, false));
+		assertEquals(295, poh.maxTimestamp(29, false));
+	}
+
+	@Test
+	public void trimBeforeTest() {
+		System.out.println("Test: trimBeforeTest");
+
+		int epn = 1; // entries per node
+		int cpn = 3; // children per node
+		int nodeSize = epn*POHEntry.sizeBytes() + cpn*POHNode.childSizeBytes() + POHNode.headerSizeBytes();
+		int nodesPerBlock = 10;
+		PostOrderHeapIndex poh = new PostOrderHeapIndex(16, nodeSize, nodesPerBlock, 25, new NullCache(), new NullTimerQueue());
+
+		assertEquals(0, poh.firstRetainedBlock());
+
+		poh.trimBefore(8); // The first retained node is 9
+		assertEquals(0, poh.firstRetainedBlock());
+
+		poh.trimBefore(25); // Node 26
+		assertEquals(2, poh.firstRetainedBlock());
+
+		poh.trimBefore(5); // The trimmed nodes are not retained again
+		assertEquals(2, poh.firstRetainedBlock());
+	}
+
+	@Test
+	public void hasRootNodeTest() {
+		System.out.println("Test: hasRootNodeTest");
+
+		int epn = 1; // entries per node
+		int cpn = 3; // children per node
+		int nodeSize = epn*POHEntry.sizeBytes() + cpn*POHNode.childSizeBytes() + POHNode.headerSizeBytes();
+		int nodesPerBlock = 10;
+		PostOrderHeapIndex poh = new PostOrderHeapIndex(17, nodeSize, nodesPerBlock, 25, new NullCache(), new NullTimerQueue());
+
+		// 12 nodes are three trees of 4 nodes, with the roots 4, 8 and 12
+		assertTrue(poh.hasRootNode(0, 12*2));
+		assertTrue(poh.hasRootNode(1, 12*2));
+		assertFalse(poh.hasRootNode(2, 12*2));
+
+		// 13 nodes are one tree with the root 13
+		assertFalse(poh.hasRootNode(0, 13*2));
+		assertTrue(poh.hasRootNode(1, 13*2));
+
+		// 29 nodes are two trees of 13 nodes and three single nodes, with the roots 13, 26, 27, 28 and 29
+		assertFalse(poh.hasRootNode(0, 29*2));
+		assertTrue(poh.hasRootNode(1, 29*2));
+		assertTrue(poh.hasRootNode(2, 29*2));
+		assertFalse(poh.hasRootNode(3, 29*2));
+	}
+
+	@Test
+	public void reaperUploadIDsTest() {
+		System.out.println("Test: reaperUploadIDsTest");
+
+		// The reaper checks the uploads of the blocks with the IDs under which the blocks are queued for the upload
+		Configuration conf = Configuration.instance();
+		DataSegmentID seg = DataSegmentID.lastSegmentOf(18, 3, 16);
+		assertEquals(conf.segmentsPerBlock, seg.segmentInBlock()+1);
+		assertEquals(new DataSegmentID(18, 3, conf.segmentsPerBlock-1, 16), seg);
+		assertEquals(3, seg.blockInFile());
+		if (conf.segmentsPerBlock > 1)
+			assertNotEquals(new DataSegmentID(18, 3, 0, 16), seg);
+
+		for (int block=0; block<3; block++) {
+			IndexNodeID node = IndexNodeID.lastNodeOf(18, block);
+			assertEquals(conf.nodesPerBlockPOH, node.numNodeInIndexBlock()+1);
+			assertEquals(block, node.localKeyLow());
+		}
+	}
 }
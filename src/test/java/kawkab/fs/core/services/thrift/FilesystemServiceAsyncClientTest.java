@@ -0,0 +1,107 @@
+package kawkab.fs.core.services.thrift;
+
+import kawkab.fs.core.exceptions.OutOfMemoryException;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadedSelectorServer;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the async client against a server whose appendRecord fails as many times as the test asks
+ */
+public class FilesystemServiceAsyncClientTest {
+	private static final long retryAfterMs = 50;
+
+	private final AtomicInteger oomFailures = new AtomicInteger(); // The next appends that fail with TOutOfMemoryException
+	private final AtomicInteger backpressureFailures = new AtomicInteger(); // The next appends that fail with TBackpressureException
+	private final AtomicInteger appended = new AtomicInteger();
+	private TServer server;
+	private Thread serverThread;
+	private FilesystemServiceAsyncClient client;
+
+	@BeforeEach
+	public void start() throws Exception {
+		FilesystemService.Iface handler = (FilesystemService.Iface) Proxy.newProxyInstance(
+				FilesystemService.Iface.class.getClassLoader(), new Class<?>[]{FilesystemService.Iface.class},
+				(proxy, method, args) -> {
+					if (!method.getName().equals("appendRecord"))
+						throw new UnsupportedOperationException(method.getName());
+
+					if (oomFailures.getAndUpdate(n -> Math.max(n-1, 0)) > 0)
+						throw new TOutOfMemoryException("Memory is full");
+					if (backpressureFailures.getAndUpdate(n -> Math.max(n-1, 0)) > 0)
+						throw new TBackpressureException("Slow down", retryAfterMs);
+
+					appended.incrementAndGet();
+					return ((ByteBuffer) args[1]).remaining();
+				});
+
+		TNonblockingServerSocket transport = new TNonblockingServerSocket(0);
+		server = new TThreadedSelectorServer(new TThreadedSelectorServer.Args(transport)
+				.processor(new FilesystemService.Processor<>(handler)));
+		serverThread = new Thread(server::serve);
+		serverThread.start();
+		while (!server.isServing()) {
+			Thread.sleep(10);
+		}
+
+		client = new FilesystemServiceAsyncClient("localhost", transport.getPort(), 1);
+	}
+
+	@AfterEach
+	public void stop() throws InterruptedException {
+		client.disconnect();
+		server.stop();
+		serverThread.join();
+	}
+
+	@Test
+	public void outOfMemoryRetryTest() throws Exception {
+		oomFailures.set(1);
+		Assertions.assertEquals(16, append(1).intValue()); // Retried on a new socket
+		Assertions.assertEquals(16, append(2).intValue());
+		Assertions.assertEquals(2, appended.get());
+	}
+
+	@Test
+	public void failedThenSuccessfulAppendTest() throws Exception {
+		oomFailures.set(3); // All the tries of the first append
+		CompletableFuture<Integer> failed = client.appendRecord(1, ByteBuffer.allocate(16), 16);
+		CompletableFuture<Integer> queued = client.appendRecord(3, ByteBuffer.allocate(16), 16); // Same connection
+
+		ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> failed.get(10, TimeUnit.SECONDS));
+		Assertions.assertTrue(e.getCause() instanceof OutOfMemoryException);
+
+		Assertions.assertEquals(16, queued.get(10, TimeUnit.SECONDS).intValue());
+		Assertions.assertEquals(16, append(1).intValue());
+		Assertions.assertEquals(2, appended.get());
+	}
+
+	@Test
+	public void backpressureRetryTest() throws Exception {
+		backpressureFailures.set(2);
+		long startMs = System.currentTimeMillis();
+		CompletableFuture<Integer> delayed = client.appendRecord(1, ByteBuffer.allocate(16), 16);
+		CompletableFuture<Integer> next = client.appendRecord(1, ByteBuffer.allocate(8), 8);
+
+		Assertions.assertEquals(16, delayed.get(10, TimeUnit.SECONDS).intValue());
+		Assertions.assertTrue(System.currentTimeMillis() - startMs >= retryAfterMs + 2*retryAfterMs);
+		Assertions.assertFalse(next.isCompletedExceptionally());
+		Assertions.assertEquals(8, next.get(10, TimeUnit.SECONDS).intValue());
+		Assertions.assertEquals(2, appended.get());
+	}
+
+	private Integer append(int sessionID) throws Exception {
+		return client.appendRecord(sessionID, ByteBuffer.allocate(16), 16).get(10, TimeUnit.SECONDS);
+	}
+}
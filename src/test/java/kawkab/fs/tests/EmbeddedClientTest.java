@@ -0,0 +1,184 @@
+package kawkab.fs.tests;
+
+import kawkab.fs.api.Record;
+import kawkab.fs.client.EmbeddedClient;
+import kawkab.fs.client.KClient;
+import kawkab.fs.commons.Configuration;
+import kawkab.fs.core.Filesystem;
+import kawkab.fs.core.Filesystem.FileMode;
+import kawkab.fs.core.exceptions.KawkabException;
+import kawkab.fs.records.BytesRecord;
+import kawkab.fs.records.SampleRecord;
+import kawkab.fs.records.SixteenRecord;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Checks the records that are appended and read through the EmbeddedClient, and compares the append throughput of the
+ * EmbeddedClient with the KClient that connects to the Thrift server of the same node. Both clients append the same
+ * batches of records to the same number of files.
+ */
+public class EmbeddedClientTest {
+	@BeforeAll
+	public static void initialize() throws IOException, InterruptedException, KawkabException {
+		int nodeID = Configuration.getNodeID();
+		Properties props = Configuration.getProperties(Configuration.propsFileCluster);
+		Filesystem.bootstrap(nodeID, props);
+	}
+
+	@AfterAll
+	public static void terminate() throws KawkabException, InterruptedException, IOException {
+		Filesystem.instance().shutdown();
+	}
+
+	@Test
+	public void appendAndReadTest() throws KawkabException {
+		final int numRecs = 100;
+		String[] fnames = fileNames("embd-read", 2);
+		EmbeddedClient embedded = new EmbeddedClient();
+		Record recGen = new SixteenRecord();
+		embedded.bulkOpen(fnames, modes(fnames.length), recSizes(fnames.length, recGen.size()));
+		try {
+			Random rand = new Random();
+			String[] files = new String[numRecs];
+			Record[] records = new Record[numRecs];
+			for (int i=0; i<numRecs; i++) {
+				files[i] = fnames[i/(numRecs/2)]; // The first half of the batch goes to the first file
+				records[i] = recGen.newRandomRecord(rand, i%(numRecs/2) + 1);
+			}
+			Assertions.assertEquals(numRecs, embedded.appendRecords(files, records));
+
+			for (int f=0; f<fnames.length; f++) {
+				String fn = fnames[f];
+				Assertions.assertEquals(numRecs/2 * recGen.size(), embedded.size(fn));
+				for (int i=0; i<numRecs/2; i++) {
+					Record expected = records[f*numRecs/2 + i];
+					Assertions.assertEquals(expected, embedded.recordNum(fn, i+1, recGen, false));
+					Assertions.assertEquals(expected, embedded.recordAt(fn, expected.timestamp(), recGen, false));
+				}
+
+				List<Record> read = embedded.readRecords(fn, 1, numRecs/2, recGen, false);
+				Assertions.assertEquals(numRecs/2, read.size());
+				for (int i=0; i<read.size(); i++) { // The records are returned from the latest to the oldest
+					Assertions.assertEquals(records[f*numRecs/2 + numRecs/2-1-i], read.get(i));
+				}
+
+				Assertions.assertThrows(KawkabException.class, () -> embedded.recordNum(fn, numRecs/2 + 1, recGen, false));
+			}
+		} finally {
+			embedded.bulkClose(fnames);
+		}
+	}
+
+	@Test
+	public void embeddedVsThriftAppendTest() throws KawkabException {
+		System.out.println("----------------------------------------------------------------");
+		System.out.println("       Append Throughput: Embedded vs. Thrift client");
+		System.out.println("----------------------------------------------------------------");
+
+		final int recSize = Integer.parseInt(System.getProperty("recSize", "16"));
+		final int batchSize = Integer.parseInt(System.getProperty("batchSize", "100"));
+		final int numFiles = Integer.parseInt(System.getProperty("numFiles", "10"));
+		final int durSec = Integer.parseInt(System.getProperty("durSec", "10"));
+
+		Record recGen;
+		if (recSize == 16)
+			recGen = new SixteenRecord();
+		else if (recSize == SampleRecord.length())
+			recGen = new SampleRecord();
+		else
+			recGen = new BytesRecord(recSize);
+
+		String[] fnames = fileNames("embd", numFiles);
+		EmbeddedClient embedded = new EmbeddedClient();
+		embedded.bulkOpen(fnames, modes(numFiles), recSizes(numFiles, recSize));
+		long embeddedRecs;
+		try {
+			embeddedRecs = appendFor(durSec, fnames, recGen, batchSize, (files, recs) -> embedded.appendRecords(files, recs));
+
+			long appendedBytes = 0;
+			for (String fn : fnames) {
+				appendedBytes += embedded.size(fn);
+			}
+			Assertions.assertEquals(embeddedRecs * recSize, appendedBytes);
+		} finally {
+			embedded.bulkClose(fnames);
+		}
+
+		fnames = fileNames("thrift", numFiles);
+		KClient client = new KClient(1);
+		client.connect("localhost", Configuration.instance().fsServerListenPort);
+		client.bulkOpen(fnames, modes(numFiles), recSizes(numFiles, recSize));
+		long thriftRecs;
+		try {
+			thriftRecs = appendFor(durSec, fnames, recGen, batchSize, client::appendRecords);
+		} finally {
+			client.bulkClose(fnames);
+			client.disconnect();
+		}
+
+		double embeddedTput = embeddedRecs / (double) durSec;
+		double thriftTput = thriftRecs / (double) durSec;
+		System.out.printf("Embedded: %.0f recs/s, %.2f MB/s\n", embeddedTput, embeddedTput*recSize/1048576.0);
+		System.out.printf("Thrift:   %.0f recs/s, %.2f MB/s\n", thriftTput, thriftTput*recSize/1048576.0);
+		System.out.printf("Speedup:  %.2fx\n", embeddedTput / thriftTput);
+	}
+
+	private interface Appender {
+		int append(String[] fnames, Record[] records) throws KawkabException;
+	}
+
+	private long appendFor(int durSec, String[] fnames, Record recGen, int batchSize, Appender appender) throws KawkabException {
+		Random rand = new Random();
+		String[] files = new String[batchSize];
+		Record[] batch = new Record[batchSize];
+		for (int i=0; i<batchSize; i++) {
+			batch[i] = recGen.newRecord();
+			files[i] = fnames[rand.nextInt(fnames.length)];
+		}
+
+		long count = 0;
+		long now;
+		long et = System.currentTimeMillis() + durSec*1000L;
+		while ((now = System.currentTimeMillis()) < et) {
+			for (Record rec : batch) {
+				rec.timestamp(now);
+			}
+			count += appender.append(files, batch);
+		}
+
+		return count;
+	}
+
+	private String[] fileNames(String prefix, int numFiles) {
+		Random rand = new Random();
+		String[] fnames = new String[numFiles];
+		for (int i=0; i<numFiles; i++) {
+			fnames[i] = String.format("%s-%d-%d", prefix, i, rand.nextInt(1000000));
+		}
+		return fnames;
+	}
+
+	private FileMode[] modes(int numFiles) {
+		FileMode[] modes = new FileMode[numFiles];
+		for (int i=0; i<numFiles; i++) {
+			modes[i] = FileMode.APPEND;
+		}
+		return modes;
+	}
+
+	private int[] recSizes(int numFiles, int recSize) {
+		int[] sizes = new int[numFiles];
+		for (int i=0; i<numFiles; i++) {
+			sizes[i] = recSize;
+		}
+		return sizes;
+	}
+}
@@ -0,0 +1,112 @@
+package kawkab.fs.tests;
+
+import kawkab.fs.api.FileOptions;
+import kawkab.fs.api.Record;
+import kawkab.fs.commons.Configuration;
+import kawkab.fs.core.Cache;
+import kawkab.fs.core.FileHandle;
+import kawkab.fs.core.Filesystem;
+import kawkab.fs.core.Filesystem.FileMode;
+import kawkab.fs.core.LocalStoreManager;
+import kawkab.fs.core.exceptions.KawkabException;
+import kawkab.fs.records.SixteenRecord;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Measures the throughput of flushing dirty segments to the local store as the number of open files grows. In each
+ * round, one record is appended to every file, which makes one dirty segment per file, and all the dirty blocks are
+ * stored together in the local store.
+ *
+ * Run the test once for each localIOEngine in the configuration to compare the engines.
+ */
+public class LocalFlushTest {
+	@BeforeAll
+	public static void initialize() throws IOException, InterruptedException, KawkabException {
+		int nodeID = Configuration.getNodeID();
+		Properties props = Configuration.getProperties(Configuration.propsFileCluster);
+		Filesystem.bootstrap(nodeID, props);
+	}
+
+	@AfterAll
+	public static void terminate() throws KawkabException, InterruptedException, IOException {
+		Filesystem.instance().shutdown();
+	}
+
+	@Test
+	public void flushThroughputTest() throws IOException, KawkabException, InterruptedException {
+		System.out.println("----------------------------------------------------------------");
+		System.out.println("       Local Flush Throughput vs. Open Files");
+		System.out.println("----------------------------------------------------------------");
+
+		final int[] fileCounts = Arrays.stream(System.getProperty("numFiles", "100,1000,10000").split(","))
+				.mapToInt(Integer::parseInt).toArray();
+		final int rounds = Integer.parseInt(System.getProperty("rounds", "20"));
+
+		Configuration conf = Configuration.instance();
+		System.out.printf("Engine=%s, threads=%d, queueDepth=%d, devices=%d\n", conf.localIOEngine, conf.localIOThreads,
+				conf.localIOQueueDepth, conf.numLocalDevices);
+		System.out.println("files,rounds,flushesPerSec,MBps");
+
+		Filesystem fs = Filesystem.instance();
+		Cache cache = Cache.instance();
+		LocalStoreManager localStore = LocalStoreManager.instance();
+		Record out = new SixteenRecord();
+		Random rand = new Random();
+		Record rec = new SixteenRecord();
+		int recSize = rec.size();
+
+		for (int numFiles : fileCounts) {
+			String[] fnames = new String[numFiles];
+			FileMode[] modes = new FileMode[numFiles];
+			FileOptions[] opts = new FileOptions[numFiles];
+			for (int i=0; i<numFiles; i++) {
+				fnames[i] = String.format("flush-%d-%d-%d", numFiles, i, rand.nextInt(1000000));
+				modes[i] = FileMode.APPEND;
+				opts[i] = new FileOptions(recSize);
+			}
+
+			FileHandle[] files = fs.bulkOpen(fnames, modes, opts);
+			long ts = 1;
+			long elapsedNs = 0;
+			try {
+				for (int r=0; r<rounds; r++) {
+					long start = System.nanoTime();
+					for (FileHandle fh : files) {
+						rec.timestamp(ts++);
+						ByteBuffer buf = rec.copyOutSrcBuffer().duplicate();
+						buf.limit(buf.position() + recSize);
+						fh.append(buf, recSize);
+					}
+					int stored = localStore.storeAll(cache.dirtyBlocks());
+					elapsedNs += System.nanoTime() - start;
+
+					Assertions.assertTrue(stored >= numFiles, "Stored blocks " + stored + " < files " + numFiles);
+					Assertions.assertTrue(cache.dirtyBlocks().isEmpty());
+				}
+
+				for (int i=0; i<numFiles; i++) {
+					Assertions.assertEquals((long) rounds * recSize, files[i].size());
+					Assertions.assertTrue(files[i].recordNum(out.copyInDstBuffer(), rounds, recSize, false));
+					Assertions.assertEquals((long) (rounds-1) * numFiles + i + 1, out.timestamp());
+				}
+			} finally {
+				for (FileHandle fh : files) {
+					fs.close(fh);
+				}
+			}
+
+			double sec = elapsedNs / 1e9;
+			double flushes = (double) numFiles * rounds;
+			System.out.printf("%d,%d,%.0f,%.2f\n", numFiles, rounds, flushes/sec, flushes*recSize/1048576.0/sec);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package kawkab.fs.tests;
+
+import kawkab.fs.api.FileOptions;
+import kawkab.fs.api.Record;
+import kawkab.fs.commons.Configuration;
+import kawkab.fs.core.FileHandle;
+import kawkab.fs.core.Filesystem;
+import kawkab.fs.core.Filesystem.FileMode;
+import kawkab.fs.core.exceptions.KawkabException;
+import kawkab.fs.records.SixteenRecord;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Measures the bytes allocated by the reading thread for each recordAt() on a file whose segments are in the cache,
+ * and checks that the average is below the bound given by the system property "maxBytesPerRead". The default bound is
+ * smaller than a BlockID, so the test fails if the blocks are looked up by new BlockIDs again. The number of reads is
+ * given by the system property "reads".
+ */
+public class ReadAllocationTest {
+	@BeforeAll
+	public static void initialize() throws IOException, InterruptedException, KawkabException {
+		int nodeID = Configuration.getNodeID();
+		Properties props = Configuration.getProperties(Configuration.propsFileCluster);
+		Filesystem.bootstrap(nodeID, props);
+	}
+
+	@AfterAll
+	public static void terminate() throws KawkabException, InterruptedException, IOException {
+		Filesystem.instance().shutdown();
+	}
+
+	@Test
+	public void recordAtAllocationTest() throws IOException, KawkabException, InterruptedException {
+		System.out.println("----------------------------------------------------------------");
+		System.out.println("       Allocations per recordAt");
+		System.out.println("----------------------------------------------------------------");
+
+		int numReads = Integer.parseInt(System.getProperty("reads", "1000000"));
+		double maxBytesPerRead = Double.parseDouble(System.getProperty("maxBytesPerRead", "32"));
+
+		Record rec = new SixteenRecord();
+		int recSize = rec.size();
+		int numRecs = 4 * Configuration.instance().segmentSizeBytes / recSize; // A few segments that fit in the cache
+
+		Filesystem fs = Filesystem.instance();
+		FileHandle fh = fs.open("read-alloc-" + new Random().nextInt(1000000), FileMode.APPEND, new FileOptions(recSize));
+		try {
+			for (int i=1; i<=numRecs; i++) {
+				rec.timestamp(i);
+				ByteBuffer buf = rec.copyOutSrcBuffer().duplicate();
+				buf.limit(buf.position() + recSize);
+				fh.append(buf, recSize);
+			}
+
+			ByteBuffer dstBuf = ByteBuffer.allocate(recSize);
+			Random rand = new Random(0);
+			for (int i=0; i<numReads/10; i++) { // Warm up
+				dstBuf.clear();
+				fh.recordAt(dstBuf, 1 + rand.nextInt(numRecs), recSize, false);
+			}
+
+			com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			assumeTrue(mx.isThreadAllocatedMemorySupported() && mx.isThreadAllocatedMemoryEnabled());
+			long tid = Thread.currentThread().getId();
+			long startBytes = mx.getThreadAllocatedBytes(tid);
+			long startTime = System.nanoTime();
+
+			int found = 0;
+			for (int i=0; i<numReads; i++) {
+				dstBuf.clear();
+				if (fh.recordAt(dstBuf, 1 + rand.nextInt(numRecs), recSize, false))
+					found++;
+			}
+
+			long elapsed = System.nanoTime() - startTime;
+			long allocated = mx.getThreadAllocatedBytes(tid) - startBytes;
+
+			System.out.printf("Reads=%d, found=%d, bytes per recordAt=%.1f, ns per recordAt=%.1f\n", numReads, found,
+					allocated*1.0/numReads, elapsed*1.0/numReads);
+
+			assertEquals(numReads, found);
+			assertTrue(allocated*1.0/numReads < maxBytesPerRead, String.format("%.1f bytes per recordAt, expected < %.1f",
+					allocated*1.0/numReads, maxBytesPerRead));
+		} finally {
+			fs.close(fh);
+		}
+	}
+}
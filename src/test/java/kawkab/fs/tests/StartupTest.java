@@ -0,0 +1,72 @@
+package kawkab.fs.tests;
+
+import kawkab.fs.api.FileOptions;
+import kawkab.fs.api.Record;
+import kawkab.fs.commons.Configuration;
+import kawkab.fs.core.FileHandle;
+import kawkab.fs.core.Filesystem;
+import kawkab.fs.core.Filesystem.FileMode;
+import kawkab.fs.core.exceptions.KawkabException;
+import kawkab.fs.records.SixteenRecord;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Measures the time from the start of the filesystem bootstrap until the first record is appended in a new file.
+ * The filesystem can be bootstrapped only once in a JVM, so run the test in a new JVM for each measurement, with and
+ * without the inode manifests from the previous run.
+ */
+public class StartupTest {
+	@AfterAll
+	public static void terminate() throws KawkabException, InterruptedException, IOException {
+		Filesystem.instance().shutdown();
+	}
+
+	@Test
+	public void timeToFirstAppendTest() throws IOException, KawkabException, InterruptedException {
+		System.out.println("----------------------------------------------------------------");
+		System.out.println("       Startup: Time to the First Append");
+		System.out.println("----------------------------------------------------------------");
+
+		long start = System.nanoTime();
+
+		int nodeID = Configuration.getNodeID();
+		Properties props = Configuration.getProperties(Configuration.propsFileCluster);
+		Filesystem fs = Filesystem.bootstrap(nodeID, props);
+
+		long bootstrapped = System.nanoTime();
+
+		Record rec = new SixteenRecord();
+		int recSize = rec.size();
+		String fname = "startup-" + new Random().nextInt(1000000);
+		FileHandle fh = fs.open(fname, FileMode.APPEND, new FileOptions(recSize));
+		Record out = new SixteenRecord();
+		long appended;
+		try {
+			rec.timestamp(1);
+			ByteBuffer buf = rec.copyOutSrcBuffer().duplicate();
+			buf.limit(buf.position() + recSize);
+			Assertions.assertEquals(recSize, fh.append(buf, recSize));
+			appended = System.nanoTime();
+
+			Assertions.assertEquals(recSize, fh.size());
+			Assertions.assertTrue(fh.recordNum(out.copyInDstBuffer(), 1, recSize, false));
+		} finally {
+			fs.close(fh);
+		}
+
+		Assertions.assertEquals(rec, out);
+
+		Configuration conf = Configuration.instance();
+		System.out.printf("Inode blocks per machine=%d, ibmaps per machine=%d\n", conf.inodeBlocksPerMachine,
+				conf.ibmapsPerMachine);
+		System.out.printf("Bootstrap (ms)=%.1f, first append (ms)=%.1f, time to first append (ms)=%.1f\n",
+				(bootstrapped-start)/1e6, (appended-bootstrapped)/1e6, (appended-start)/1e6);
+	}
+}